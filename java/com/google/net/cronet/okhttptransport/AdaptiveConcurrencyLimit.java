@@ -0,0 +1,192 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A concurrency limit for {@link CronetDispatcher} which adapts to the observed latency.
+ *
+ * <p>The limit follows the gradient between the lowest observed time to response headers and the
+ * latest sample. As long as the latency stays close to the baseline, the limit grows by roughly
+ * its square root on each sample. Once requests start to queue up in the network stack and the
+ * latency grows, the limit shrinks proportionally, down to half of its value per sample. Failed
+ * requests (for example timeouts) cut the limit multiplicatively. The limit only grows while the
+ * application actually uses at least half of it.
+ *
+ * <p>The baseline is reset periodically so that the limit recovers after the network conditions
+ * change, for example after switching from a cellular network to Wi-Fi.
+ *
+ * <p>An instance keeps the state of a single dispatcher and mustn't be shared.
+ */
+public final class AdaptiveConcurrencyLimit {
+  /** Latency up to this multiple of the baseline doesn't shrink the limit. */
+  private static final double RTT_TOLERANCE = 1.5;
+
+  /** The lowest gradient applied on a single sample. */
+  private static final double MIN_GRADIENT = 0.5;
+
+  /** The ratio the limit is multiplied by when a request fails. */
+  private static final double BACKOFF_RATIO = 0.9;
+
+  /** The number of samples after which the latency baseline is reset. */
+  private static final int BASELINE_RESET_INTERVAL = 500;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double smoothing;
+
+  @GuardedBy("this")
+  private double estimatedLimit;
+
+  @GuardedBy("this")
+  private long baselineRttNanos;
+
+  @GuardedBy("this")
+  private long lastRttNanos;
+
+  @GuardedBy("this")
+  private long sampleCount;
+
+  private AdaptiveConcurrencyLimit(Builder builder) {
+    checkArgument(
+        builder.minLimit <= builder.initialLimit && builder.initialLimit <= builder.maxLimit,
+        "The initial limit must be between the minimum and the maximum limit!");
+    this.minLimit = builder.minLimit;
+    this.maxLimit = builder.maxLimit;
+    this.smoothing = builder.smoothing;
+    this.estimatedLimit = builder.initialLimit;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Returns the current number of requests allowed to run concurrently. */
+  public synchronized int getLimit() {
+    return (int) estimatedLimit;
+  }
+
+  /** Returns the latency baseline in milliseconds, or 0 if there were no samples yet. */
+  public synchronized long getBaselineRttMillis() {
+    return NANOSECONDS.toMillis(baselineRttNanos);
+  }
+
+  /** Returns the latest latency sample in milliseconds, or 0 if there were no samples yet. */
+  public synchronized long getLastRttMillis() {
+    return NANOSECONDS.toMillis(lastRttNanos);
+  }
+
+  /** Returns the number of samples the limit was computed from. */
+  public synchronized long getSampleCount() {
+    return sampleCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "AdaptiveConcurrencyLimit{limit="
+        + getLimit()
+        + ", baselineRttMillis="
+        + getBaselineRttMillis()
+        + ", lastRttMillis="
+        + getLastRttMillis()
+        + ", samples="
+        + sampleCount
+        + "}";
+  }
+
+  /**
+   * Updates the limit with the time it took to receive the response headers of a request.
+   *
+   * @param inFlight the number of requests running when the sample was taken
+   * @param successful whether the response headers were received, or the request failed
+   */
+  synchronized void onSample(long rttNanos, int inFlight, boolean successful) {
+    sampleCount++;
+    if (!successful) {
+      estimatedLimit = Math.max(minLimit, estimatedLimit * BACKOFF_RATIO);
+      return;
+    }
+
+    rttNanos = Math.max(1, rttNanos);
+    lastRttNanos = rttNanos;
+    if (baselineRttNanos == 0
+        || rttNanos < baselineRttNanos
+        || sampleCount % BASELINE_RESET_INTERVAL == 0) {
+      baselineRttNanos = rttNanos;
+    }
+
+    double gradient =
+        Math.max(MIN_GRADIENT, Math.min(1.0, RTT_TOLERANCE * baselineRttNanos / rttNanos));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    if (newLimit > estimatedLimit && inFlight < estimatedLimit / 2) {
+      // The application doesn't use the limit, there's no evidence the network can take more.
+      return;
+    }
+    newLimit = estimatedLimit * (1 - smoothing) + newLimit * smoothing;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+  }
+
+  /** Builder for {@link AdaptiveConcurrencyLimit}. */
+  public static final class Builder {
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 200;
+    private double smoothing = 0.2;
+
+    Builder() {}
+
+    /** Sets the limit used before any latency has been observed. Defaults to 20. */
+    public Builder setInitialLimit(int initialLimit) {
+      checkArgument(initialLimit > 0, "The limit must be positive!");
+      this.initialLimit = initialLimit;
+      return this;
+    }
+
+    /** Sets the lowest value the limit can drop to. Defaults to 1. */
+    public Builder setMinLimit(int minLimit) {
+      checkArgument(minLimit > 0, "The limit must be positive!");
+      this.minLimit = minLimit;
+      return this;
+    }
+
+    /** Sets the highest value the limit can grow to. Defaults to 200. */
+    public Builder setMaxLimit(int maxLimit) {
+      checkArgument(maxLimit > 0, "The limit must be positive!");
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    /**
+     * Sets how much weight a single sample has, between 0 (exclusive) and 1. Higher values make
+     * the limit react faster and fluctuate more. Defaults to 0.2.
+     */
+    public Builder setSmoothing(double smoothing) {
+      checkArgument(smoothing > 0 && smoothing <= 1, "The smoothing must be in (0, 1]!");
+      this.smoothing = smoothing;
+      return this;
+    }
+
+    public AdaptiveConcurrencyLimit build() {
+      return new AdaptiveConcurrencyLimit(this);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.common.base.Ascii;
+import com.google.common.base.Ticker;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import okhttp3.Request;
+
+/**
+ * Limits the bandwidth used by requests made through the transport, for example to keep
+ * background syncs from competing with interactive requests on slow links.
+ *
+ * <p>Limits can be set for each {@link CronetTrafficClass} and for each host. A limit is shared by
+ * all the requests it applies to and covers the bytes transferred in both directions: the
+ * response body reads are paced, and so are the request body uploads. A request which several
+ * limits apply to is paced by the strictest one. Response headers aren't limited.
+ *
+ * <pre>
+ *   BandwidthLimits limits = BandwidthLimits.newBuilder()
+ *       .setTrafficClassLimit(CronetTrafficClass.BACKGROUND, 64 * 1024)
+ *       .build();
+ * </pre>
+ */
+public final class BandwidthLimits {
+  /** The number of default host buckets above which the idle ones are evicted. */
+  private static final int MAX_DEFAULT_HOST_BUCKETS = 64;
+
+  private final Map<CronetTrafficClass, TokenBucket> trafficClassBuckets;
+  private final Map<String, TokenBucket> hostBuckets;
+  private final long defaultHostBytesPerSecond;
+  private final Ticker ticker;
+
+  /** The buckets created for hosts without an explicit limit, if there's a default host limit. */
+  private final ConcurrentMap<String, TokenBucket> defaultHostBuckets = new ConcurrentHashMap<>();
+
+  private BandwidthLimits(Builder builder) {
+    this.trafficClassBuckets = new EnumMap<>(CronetTrafficClass.class);
+    for (Map.Entry<CronetTrafficClass, Long> limit : builder.trafficClassLimits.entrySet()) {
+      trafficClassBuckets.put(limit.getKey(), new TokenBucket(limit.getValue(), builder.ticker));
+    }
+    this.hostBuckets = new HashMap<>();
+    for (Map.Entry<String, Long> limit : builder.hostLimits.entrySet()) {
+      hostBuckets.put(limit.getKey(), new TokenBucket(limit.getValue(), builder.ticker));
+    }
+    this.defaultHostBytesPerSecond = builder.defaultHostBytesPerSecond;
+    this.ticker = builder.ticker;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Returns the throttle pacing the given request. */
+  RequestThrottle throttleFor(Request request) {
+    List<TokenBucket> buckets = new ArrayList<>(2);
+    TokenBucket trafficClassBucket = trafficClassBuckets.get(CronetTrafficClass.of(request));
+    if (trafficClassBucket != null) {
+      buckets.add(trafficClassBucket);
+    }
+    TokenBucket hostBucket = hostBucket(Ascii.toLowerCase(request.url().host()));
+    if (hostBucket != null) {
+      buckets.add(hostBucket);
+    }
+    return buckets.isEmpty() ? RequestThrottle.UNLIMITED : new RequestThrottle(buckets);
+  }
+
+  @Nullable
+  private TokenBucket hostBucket(String host) {
+    TokenBucket bucket = hostBuckets.get(host);
+    if (bucket != null || defaultHostBytesPerSecond == 0) {
+      return bucket;
+    }
+    bucket = defaultHostBuckets.get(host);
+    if (bucket == null) {
+      if (defaultHostBuckets.size() >= MAX_DEFAULT_HOST_BUCKETS) {
+        evictIdleDefaultHostBuckets();
+      }
+      TokenBucket newBucket = new TokenBucket(defaultHostBytesPerSecond, ticker);
+      bucket = defaultHostBuckets.putIfAbsent(host, newBucket);
+      if (bucket == null) {
+        bucket = newBucket;
+      }
+    }
+    return bucket;
+  }
+
+  /**
+   * Drops the default host buckets which refilled completely. A full bucket is no different from a
+   * new one, so the host's limit is unaffected, unless a request which is still running keeps
+   * using the evicted bucket while new requests use a new one.
+   */
+  private void evictIdleDefaultHostBuckets() {
+    for (Iterator<TokenBucket> it = defaultHostBuckets.values().iterator(); it.hasNext(); ) {
+      if (it.next().isFull()) {
+        it.remove();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int defaultHostBucketCount() {
+    return defaultHostBuckets.size();
+  }
+
+  /** Builder for {@link BandwidthLimits}. */
+  public static final class Builder {
+    private final Map<CronetTrafficClass, Long> trafficClassLimits =
+        new EnumMap<>(CronetTrafficClass.class);
+    private final Map<String, Long> hostLimits = new HashMap<>();
+    private long defaultHostBytesPerSecond = 0; // Unlimited
+    private Ticker ticker = Ticker.systemTicker();
+
+    Builder() {}
+
+    /** Limits the combined bandwidth of all the requests of the given traffic class. */
+    public Builder setTrafficClassLimit(CronetTrafficClass trafficClass, long bytesPerSecond) {
+      checkNotNull(trafficClass);
+      checkArgument(bytesPerSecond > 0, "The limit must be positive!");
+      trafficClassLimits.put(trafficClass, bytesPerSecond);
+      return this;
+    }
+
+    /** Limits the combined bandwidth of all the requests to the given host. */
+    public Builder setHostLimit(String host, long bytesPerSecond) {
+      checkNotNull(host);
+      checkArgument(bytesPerSecond > 0, "The limit must be positive!");
+      hostLimits.put(Ascii.toLowerCase(host), bytesPerSecond);
+      return this;
+    }
+
+    /**
+     * Limits the bandwidth of the requests to each host without a {@link #setHostLimit host
+     * specific limit}. Every host gets its own budget. Unlimited by default.
+     */
+    public Builder setDefaultHostLimit(long bytesPerSecond) {
+      checkArgument(bytesPerSecond > 0, "The limit must be positive!");
+      this.defaultHostBytesPerSecond = bytesPerSecond;
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder setTicker(Ticker ticker) {
+      this.ticker = checkNotNull(ticker);
+      return this;
+    }
+
+    public BandwidthLimits build() {
+      return new BandwidthLimits(this);
+    }
+  }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import okhttp3.Headers;
+import okio.Buffer;
+import okio.Sink;
+import okio.Source;
+import okio.Timeout;
+import org.chromium.net.BidirectionalStream;
+import org.chromium.net.CronetException;
+import org.chromium.net.UrlResponseInfo;
+
+/**
+ * An implementation of Cronet's bidirectional stream callback. Analogous to {@link
+ * OkHttpBridgeRequestCallback}, but both halves of the exchange are open at the same time: the
+ * request body is exposed as a {@link Sink} and the response body as a {@link Source}, and each of
+ * them can be used from its own thread.
+ *
+ * <p>Both directions follow the same model as the request callback. There's always at most one
+ * read and at most one write in flight, and the blocking side waits for Cronet's callback using a
+ * queue. Terminal events (failure, cancellation) are broadcast to both queues. Like for requests,
+ * the reads, the writes and the call deadline are timed by an {@link OperationTimeout} each,
+ * which cancels the stream, and the buffers come from a {@link ByteBufferPool}.
+ */
+final class BidirectionalStreamBridgeCallback extends BidirectionalStream.Callback {
+
+  private static final ByteBufferPool UNPOOLED_BUFFERS =
+      new ByteBufferPool(
+          OkHttpBridgeRequestCallback.CRONET_BYTE_BUFFER_CAPACITY, /* maxPooledBuffers= */ 0);
+
+  private static final String CANCELED_MESSAGE = "The stream was canceled!";
+
+  private final SettableFuture<Void> streamReadyFuture = SettableFuture.create();
+  private final SettableFuture<UrlResponseInfo> headersFuture = SettableFuture.create();
+  private final SettableFuture<Headers> trailersFuture = SettableFuture.create();
+
+  /**
+   * Results of {@link BidirectionalStream#read}. Has a capacity of 2 - at most one slot for a read
+   * result and at most one slot for a terminal signal, this guarantees that all inserts are non
+   * blocking.
+   */
+  private final BlockingQueue<CallbackResult> readResults = new ArrayBlockingQueue<>(2);
+
+  /** Results of {@link BidirectionalStream#write}. Sized the same way as {@link #readResults}. */
+  private final BlockingQueue<CallbackResult> writeResults = new ArrayBlockingQueue<>(2);
+
+  /** The reason the stream failed or was canceled, or null if it hasn't. */
+  private final AtomicReference<IOException> terminated = new AtomicReference<>();
+
+  private final long readTimeoutMillis;
+  private final long writeTimeoutMillis;
+
+  /** Cancels the stream once the call deadline passes. */
+  private final OperationTimeout callTimeout;
+
+  /** Cancels the stream if a read takes too long. Armed for the duration of each read. */
+  private final OperationTimeout readTimeout;
+
+  /** Cancels the stream if a write takes too long. Armed for the duration of each write. */
+  private final OperationTimeout writeTimeout;
+
+  /** The pool the frame buffers are taken from and returned to once the stream is done. */
+  private final ByteBufferPool bufferPool;
+
+  /** The deadline of the call, bounding each read and write. Set along with the stream. */
+  private volatile Deadline deadline = Deadline.NONE;
+
+  /** The stream being processed. Set before the stream is started. */
+  private volatile BidirectionalStream stream;
+
+  BidirectionalStreamBridgeCallback(long readTimeoutMillis, long writeTimeoutMillis) {
+    this(readTimeoutMillis, writeTimeoutMillis, TimingWheel.shared(), UNPOOLED_BUFFERS);
+  }
+
+  BidirectionalStreamBridgeCallback(
+      long readTimeoutMillis,
+      long writeTimeoutMillis,
+      TimingWheel timingWheel,
+      ByteBufferPool bufferPool) {
+    checkArgument(readTimeoutMillis >= 0);
+    checkArgument(writeTimeoutMillis >= 0);
+
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.writeTimeoutMillis = writeTimeoutMillis;
+    this.callTimeout = new OperationTimeout(timingWheel, () -> stream.cancel());
+    this.readTimeout = new OperationTimeout(timingWheel, () -> stream.cancel());
+    this.writeTimeout = new OperationTimeout(timingWheel, () -> stream.cancel());
+    this.bufferPool = bufferPool;
+  }
+
+  void setStream(BidirectionalStream stream) {
+    setStream(stream, Deadline.NONE);
+  }
+
+  /**
+   * Sets the stream to process. The stream is canceled once the deadline passes, which fails
+   * whatever is waiting for it with a {@link CronetTimeoutException}.
+   */
+  void setStream(BidirectionalStream stream, Deadline deadline) {
+    checkState(this.stream == null, "The stream has already been set!");
+    this.stream = stream;
+    this.deadline = deadline;
+    if (deadline.hasDeadline()) {
+      // Without a timeout of its own, the operation lasts until the deadline.
+      callTimeout.arm(deadline, /* timeoutMillis= */ 0);
+    }
+  }
+
+  /** Returns the response headers of the stream. */
+  ListenableFuture<UrlResponseInfo> getUrlResponseInfo() {
+    return headersFuture;
+  }
+
+  /** Returns the response trailers, which are available once the response has been fully read. */
+  ListenableFuture<Headers> getTrailers() {
+    return trailersFuture;
+  }
+
+  /** Returns the request body sink. Closing the sink half-closes the stream. */
+  Sink createRequestSink() {
+    return new CronetBodySink();
+  }
+
+  /** Returns the response body source. Must only be used after the headers are received. */
+  Source createResponseSource() {
+    return new CronetBodySource();
+  }
+
+  @Override
+  public void onStreamReady(BidirectionalStream bidirectionalStream) {
+    streamReadyFuture.set(null);
+  }
+
+  @Override
+  public void onResponseHeadersReceived(
+      BidirectionalStream bidirectionalStream, UrlResponseInfo urlResponseInfo) {
+    checkState(headersFuture.set(urlResponseInfo));
+  }
+
+  @Override
+  public void onReadCompleted(
+      BidirectionalStream bidirectionalStream,
+      UrlResponseInfo urlResponseInfo,
+      ByteBuffer byteBuffer,
+      boolean endOfStream) {
+    readResults.add(CallbackResult.completed(byteBuffer, endOfStream));
+  }
+
+  @Override
+  public void onWriteCompleted(
+      BidirectionalStream bidirectionalStream,
+      UrlResponseInfo urlResponseInfo,
+      ByteBuffer byteBuffer,
+      boolean endOfStream) {
+    writeResults.add(CallbackResult.completed(byteBuffer, endOfStream));
+  }
+
+  @Override
+  public void onResponseTrailersReceived(
+      BidirectionalStream bidirectionalStream,
+      UrlResponseInfo urlResponseInfo,
+      UrlResponseInfo.HeaderBlock trailers) {
+    Headers.Builder trailersBuilder = new Headers.Builder();
+    for (Map.Entry<String, String> trailer : trailers.getAsList()) {
+      trailersBuilder.add(trailer.getKey(), trailer.getValue());
+    }
+    trailersFuture.set(trailersBuilder.build());
+  }
+
+  @Override
+  public void onSucceeded(
+      BidirectionalStream bidirectionalStream, UrlResponseInfo urlResponseInfo) {
+    callTimeout.disarm();
+    // No-op if the server sent trailers.
+    trailersFuture.set(new Headers.Builder().build());
+  }
+
+  @Override
+  public void onFailed(
+      BidirectionalStream bidirectionalStream,
+      UrlResponseInfo urlResponseInfo,
+      CronetException e) {
+    terminate(new IOException(e));
+  }
+
+  @Override
+  public void onCanceled(
+      BidirectionalStream bidirectionalStream, UrlResponseInfo urlResponseInfo) {
+    boolean timedOut =
+        callTimeout.hasTimedOut() || readTimeout.hasTimedOut() || writeTimeout.hasTimedOut();
+    terminate(timedOut ? new CronetTimeoutException() : new IOException(CANCELED_MESSAGE));
+  }
+
+  private void terminate(IOException e) {
+    if (!terminated.compareAndSet(null, e)) {
+      return;
+    }
+    callTimeout.disarm();
+    // Wake up anyone waiting for the stream to become ready or for the headers. These are no-ops
+    // if the futures were already set.
+    streamReadyFuture.setException(e);
+    headersFuture.setException(e);
+    trailersFuture.setException(e);
+
+    readResults.add(CallbackResult.terminated(e));
+    writeResults.add(CallbackResult.terminated(e));
+  }
+
+  /**
+   * Throws the reason the stream failed or was canceled, if it did. Cronet rejects reads and writes
+   * of a stream which is done with an {@link IllegalStateException}, so this has to be checked
+   * before calling into the stream.
+   */
+  private void throwIfTerminated() throws IOException {
+    IOException e = terminated.get();
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the result of a read or write issued to Cronet. The operation's timeout must have
+   * been armed, it's disarmed once the result arrives.
+   */
+  private CallbackResult awaitResult(
+      BlockingQueue<CallbackResult> results, OperationTimeout timeout) throws IOException {
+    CallbackResult result;
+    try {
+      result = results.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      stream.cancel();
+      throw new CronetTimeoutException();
+    } finally {
+      timeout.disarm();
+    }
+
+    if (result.exception != null) {
+      // Leave the terminal signal for any subsequent reads or writes.
+      results.add(result);
+      throw result.exception;
+    }
+    return result;
+  }
+
+  private class CronetBodySource implements Source {
+
+    @Nullable private ByteBuffer buffer = bufferPool.acquire();
+
+    /** Whether the end of the response has been reached. */
+    private boolean finished = false;
+
+    /** Whether the close() method has been called. */
+    private volatile boolean closed = false;
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+      // Using IAE instead of NPE (checkNotNull) for okio.RealBufferedSource consistency
+      checkArgument(sink != null, "sink == null");
+      checkArgument(byteCount >= 0, "byteCount < 0: %s", byteCount);
+      checkState(!closed, "closed");
+
+      if (finished) {
+        return -1;
+      }
+
+      buffer.clear();
+      if (byteCount < buffer.capacity()) {
+        buffer.limit((int) byteCount);
+      }
+
+      throwIfTerminated();
+      if (!readTimeout.arm(deadline, readTimeoutMillis)) {
+        throw new CronetTimeoutException();
+      }
+      stream.read(buffer);
+      CallbackResult result;
+      try {
+        result = awaitResult(readResults, readTimeout);
+      } catch (IOException e) {
+        releaseBuffer();
+        throw e;
+      }
+
+      if (result.endOfStream) {
+        finished = true;
+      }
+
+      result.buffer.flip();
+      int bytesWritten = sink.write(result.buffer);
+      if (finished) {
+        releaseBuffer();
+      }
+      return bytesWritten == 0 && finished ? -1 : bytesWritten;
+    }
+
+    /** Drops the buffer, returning it to the pool if Cronet is done with it. */
+    private void releaseBuffer() {
+      if (buffer != null && (finished || terminated.get() != null)) {
+        bufferPool.release(buffer);
+      }
+      // Allow fast GC of the buffer even if the callback is still in use.
+      buffer = null;
+    }
+
+    @Override
+    public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (!finished) {
+        stream.cancel();
+      }
+    }
+  }
+
+  private class CronetBodySink implements Sink {
+
+    @Nullable private ByteBuffer buffer = bufferPool.acquire();
+
+    /** Whether the close() method has been called. */
+    private boolean closed = false;
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+      checkArgument(source != null, "source == null");
+      checkArgument(byteCount >= 0, "byteCount < 0: %s", byteCount);
+      checkState(!closed, "closed");
+
+      awaitStreamReady();
+      while (byteCount > 0) {
+        buffer.clear();
+        if (byteCount < buffer.capacity()) {
+          buffer.limit((int) byteCount);
+        }
+        byteCount -= source.read(buffer);
+        buffer.flip();
+        writeAndAwait(buffer, false);
+      }
+    }
+
+    @Override
+    public void flush() {
+      // Every write is flushed to the network straight away.
+    }
+
+    @Override
+    public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+
+      awaitStreamReady();
+      buffer.clear();
+      buffer.flip();
+      writeAndAwait(buffer, true);
+      bufferPool.release(buffer);
+      buffer = null;
+    }
+
+    private void awaitStreamReady() throws IOException {
+      if (streamReadyFuture.isDone()) {
+        getStreamReady();
+        return;
+      }
+      if (!writeTimeout.arm(deadline, writeTimeoutMillis)) {
+        throw new CronetTimeoutException();
+      }
+      try {
+        getStreamReady();
+      } finally {
+        writeTimeout.disarm();
+      }
+    }
+
+    private void getStreamReady() throws IOException {
+      try {
+        streamReadyFuture.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        stream.cancel();
+        throw new CronetTimeoutException();
+      } catch (ExecutionException e) {
+        // The stream failed or was canceled, rethrow the same failure as the other operations.
+        throwIfTerminated();
+        throw new IOException(e.getCause());
+      }
+    }
+
+    private void writeAndAwait(ByteBuffer data, boolean endOfStream) throws IOException {
+      throwIfTerminated();
+      if (!writeTimeout.arm(deadline, writeTimeoutMillis)) {
+        throw new CronetTimeoutException();
+      }
+      stream.write(data, endOfStream);
+      stream.flush();
+      awaitResult(writeResults, writeTimeout);
+    }
+  }
+
+  private static class CallbackResult {
+    @Nullable private final ByteBuffer buffer;
+    private final boolean endOfStream;
+    @Nullable private final IOException exception;
+
+    private CallbackResult(
+        @Nullable ByteBuffer buffer, boolean endOfStream, @Nullable IOException exception) {
+      this.buffer = buffer;
+      this.endOfStream = endOfStream;
+      this.exception = exception;
+    }
+
+    static CallbackResult completed(ByteBuffer buffer, boolean endOfStream) {
+      return new CallbackResult(buffer, endOfStream, null);
+    }
+
+    static CallbackResult terminated(IOException exception) {
+      return new CallbackResult(null, false, exception);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A bounded pool of equally sized direct byte buffers. Direct buffers are expensive to allocate
+ * and are only freed once the garbage collector gets to them, reusing them keeps both the latency
+ * and the native memory footprint down.
+ *
+ * <p>A buffer must only be released once nothing (in particular Cronet) writes to it anymore.
+ * Buffers which aren't released are simply garbage collected.
+ */
+final class ByteBufferPool {
+  private final int bufferCapacity;
+  private final int maxPooledBuffers;
+
+  @GuardedBy("this")
+  private final ArrayDeque<ByteBuffer> pooledBuffers = new ArrayDeque<>();
+
+  /**
+   * Creates a pool of buffers of the given capacity.
+   *
+   * @param maxPooledBuffers the maximum number of idle buffers kept, 0 disables pooling
+   */
+  ByteBufferPool(int bufferCapacity, int maxPooledBuffers) {
+    checkArgument(bufferCapacity > 0, "The buffer capacity must be positive!");
+    checkArgument(maxPooledBuffers >= 0, "The pool size mustn't be negative!");
+    this.bufferCapacity = bufferCapacity;
+    this.maxPooledBuffers = maxPooledBuffers;
+  }
+
+  /** Returns a cleared buffer, allocating a new one if the pool is empty. */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = null;
+    if (maxPooledBuffers > 0) {
+      synchronized (this) {
+        buffer = pooledBuffers.pollFirst();
+      }
+    }
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferCapacity);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /** Returns the buffer to the pool, unless the pool is full. */
+  void release(ByteBuffer buffer) {
+    if (maxPooledBuffers == 0 || buffer.capacity() != bufferCapacity) {
+      return;
+    }
+    synchronized (this) {
+      if (pooledBuffers.size() < maxPooledBuffers) {
+        pooledBuffers.addFirst(buffer);
+      }
+    }
+  }
+
+  /** Drops all the idle buffers. */
+  synchronized void clear() {
+    pooledBuffers.clear();
+  }
+
+  /** Returns the number of idle buffers in the pool. */
+  synchronized int pooledBufferCount() {
+    return pooledBuffers.size();
+  }
+}
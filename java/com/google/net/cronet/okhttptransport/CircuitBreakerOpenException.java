@@ -0,0 +1,38 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call fails fast because recent requests to its host have been failing, without
+ * contacting the host. See {@link CircuitBreakerPolicy}.
+ */
+public final class CircuitBreakerOpenException extends IOException {
+  private final String host;
+
+  CircuitBreakerOpenException(String host) {
+    super("The circuit breaker is open for " + host);
+    this.host = host;
+  }
+
+  /** Returns the host whose requests are failing. */
+  public String getHost() {
+    return host;
+  }
+}
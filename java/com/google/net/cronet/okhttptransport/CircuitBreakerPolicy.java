@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Configures the per-host circuit breaker of the transport.
+ *
+ * <p>When a host keeps failing, for example because it's down and every request waits for the
+ * connection to time out, the circuit breaker opens and calls to the host fail immediately with a
+ * {@link CircuitBreakerOpenException} instead. Once the open duration elapses, a limited number of
+ * probe requests are let through. If a probe succeeds the circuit closes again, if it fails the
+ * circuit stays open for another period.
+ *
+ * <p>Only failures which point at the host are counted: connection and DNS errors reported by
+ * Cronet, and timeouts. Failures caused by the device, such as losing connectivity, and HTTP error
+ * statuses aren't. Any response resets the failure count.
+ */
+public final class CircuitBreakerPolicy {
+  private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  private static final long DEFAULT_OPEN_DURATION_MILLIS = 30_000;
+  private static final int DEFAULT_HALF_OPEN_PROBES = 1;
+
+  private final int failureThreshold;
+  private final long openDurationMillis;
+  private final int halfOpenProbes;
+
+  private CircuitBreakerPolicy(Builder builder) {
+    this.failureThreshold = builder.failureThreshold;
+    this.openDurationMillis = builder.openDurationMillis;
+    this.halfOpenProbes = builder.halfOpenProbes;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Returns the number of consecutive failures which open the circuit. */
+  int failureThreshold() {
+    return failureThreshold;
+  }
+
+  /** Returns how long the circuit stays open before probe requests are let through. */
+  long openDurationMillis() {
+    return openDurationMillis;
+  }
+
+  /** Returns the number of concurrent probe requests allowed while the circuit is half-open. */
+  int halfOpenProbes() {
+    return halfOpenProbes;
+  }
+
+  /** Builder for {@link CircuitBreakerPolicy}. */
+  public static final class Builder {
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openDurationMillis = DEFAULT_OPEN_DURATION_MILLIS;
+    private int halfOpenProbes = DEFAULT_HALF_OPEN_PROBES;
+
+    Builder() {}
+
+    /** Sets the number of consecutive failures which open the circuit. Defaults to 5. */
+    public Builder setFailureThreshold(int failureThreshold) {
+      checkArgument(failureThreshold > 0, "The threshold must be positive!");
+      this.failureThreshold = failureThreshold;
+      return this;
+    }
+
+    /**
+     * Sets how long calls fail fast once the circuit opens, before probe requests are let through.
+     * Defaults to 30 seconds.
+     */
+    public Builder setOpenDurationMillis(long openDurationMillis) {
+      checkArgument(openDurationMillis > 0, "The duration must be positive!");
+      this.openDurationMillis = openDurationMillis;
+      return this;
+    }
+
+    /** Sets the number of concurrent probe requests of a half-open circuit. Defaults to 1. */
+    public Builder setHalfOpenProbes(int halfOpenProbes) {
+      checkArgument(halfOpenProbes > 0, "The number of probes must be positive!");
+      this.halfOpenProbes = halfOpenProbes;
+      return this;
+    }
+
+    public CircuitBreakerPolicy build() {
+      return new CircuitBreakerPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+import javax.annotation.Nullable;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.DeflaterSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * A {@link RequestBody} which compresses another body on the fly.
+ *
+ * <p>The compressed length isn't known until the entire body has been written, so the body
+ * reports an unknown length.
+ */
+class CompressedRequestBody extends RequestBody {
+  private final RequestBody delegate;
+  private final RequestBodyCompression.Encoding encoding;
+
+  private CompressedRequestBody(RequestBody delegate, RequestBodyCompression.Encoding encoding) {
+    this.delegate = delegate;
+    this.encoding = encoding;
+  }
+
+  /** Creates the compressed body, which is replayable as long as the original body is. */
+  static CompressedRequestBody create(
+      RequestBody delegate, RequestBodyCompression.Encoding encoding) {
+    if (delegate instanceof ReplayableRequestBody) {
+      return new Replayable(delegate, encoding);
+    }
+    return new CompressedRequestBody(delegate, encoding);
+  }
+
+  @Nullable
+  @Override
+  public MediaType contentType() {
+    return delegate.contentType();
+  }
+
+  @Override
+  public long contentLength() {
+    return -1;
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    // The compressing sinks close the underlying sink once they're done, but the sink is owned by
+    // the caller.
+    Sink nonClosingSink =
+        new ForwardingSink(sink) {
+          @Override
+          public void close() throws IOException {
+            flush();
+          }
+        };
+
+    Sink compressingSink;
+    switch (encoding) {
+      case GZIP:
+        compressingSink = new GzipSink(nonClosingSink);
+        break;
+      case DEFLATE:
+        compressingSink = new DeflaterSink(nonClosingSink, new Deflater());
+        break;
+      default:
+        throw new AssertionError("The switch block above is exhaustive!");
+    }
+
+    try (BufferedSink compressingBufferedSink = Okio.buffer(compressingSink)) {
+      delegate.writeTo(compressingBufferedSink);
+    }
+  }
+
+  private static final class Replayable extends CompressedRequestBody
+      implements ReplayableRequestBody {
+    private Replayable(RequestBody delegate, RequestBodyCompression.Encoding encoding) {
+      super(delegate, encoding);
+    }
+  }
+}
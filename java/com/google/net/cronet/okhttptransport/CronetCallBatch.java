@@ -0,0 +1,319 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * A group of calls which are executed together under a shared concurrency limit and deadline.
+ *
+ * <p>The calls are enqueued asynchronously as slots free up, so a batch doesn't tie up any threads
+ * while it runs. The outcomes are delivered in completion order, either by polling {@link #next()}
+ * or through a {@link Callback} set on the builder. Calls which haven't completed yet can be
+ * canceled all at once with {@link #cancel()}.
+ *
+ * <pre>{@code
+ * CronetCallBatch batch =
+ *     callFactory.newBatch().addRequests(requests).setMaxConcurrentCalls(6).build();
+ * batch.start();
+ * for (CronetCallBatch.Completion completion; (completion = batch.next()) != null; ) {
+ *   try (Response response = completion.getResponse()) {
+ *     ...
+ *   }
+ * }
+ * }</pre>
+ */
+public final class CronetCallBatch {
+  private final ImmutableList<Call> calls;
+  private final int maxConcurrentCalls;
+  private final long timeoutNanos;
+  @Nullable private final Callback callback;
+
+  private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private final ArrayDeque<Call> pendingCalls;
+
+  @GuardedBy("lock")
+  private final Set<Call> runningCalls = new HashSet<>();
+
+  /** The number of completions which haven't been handed out by {@link #next()} yet. */
+  @GuardedBy("lock")
+  private int undeliveredCompletions;
+
+  @GuardedBy("lock")
+  private boolean started;
+
+  @GuardedBy("lock")
+  private boolean canceled;
+
+  /** Tracks the calls of the batch and hands their outcomes over. */
+  private final Callback memberCallback =
+      new Callback() {
+        @Override
+        public void onResponse(Call call, Response response) {
+          completed(new Completion(call, response, null));
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+          completed(new Completion(call, null, e));
+        }
+      };
+
+  /** The {@link System#nanoTime()} by which all the calls must complete, if there's a timeout. */
+  private volatile long deadlineNanoTime;
+
+  private CronetCallBatch(Builder builder) {
+    ImmutableList.Builder<Call> callsBuilder = ImmutableList.builder();
+    for (Request request : builder.requests) {
+      callsBuilder.add(builder.callFactory.newCall(request));
+    }
+    this.calls = callsBuilder.build();
+    this.maxConcurrentCalls = builder.maxConcurrentCalls;
+    this.timeoutNanos = builder.timeoutNanos;
+    this.callback = builder.callback;
+    this.pendingCalls = new ArrayDeque<>(calls);
+    this.undeliveredCompletions = calls.size();
+  }
+
+  /** Returns the calls of the batch, in the order their requests were added. */
+  public List<Call> calls() {
+    return calls;
+  }
+
+  /**
+   * Starts executing the batch. If the batch has a timeout, it starts running from now, and it
+   * includes the time the calls spend waiting for a free slot.
+   */
+  public void start() {
+    synchronized (lock) {
+      checkState(!started, "The batch has already been started!");
+      started = true;
+    }
+    if (timeoutNanos != 0) {
+      deadlineNanoTime = System.nanoTime() + timeoutNanos;
+      for (Call call : calls) {
+        call.timeout().deadlineNanoTime(deadlineNanoTime);
+      }
+    }
+    enqueuePendingCalls();
+  }
+
+  /**
+   * Returns the next call to complete, waiting for it if necessary, or null once all the calls of
+   * the batch have been handed out. Unavailable if the batch has a callback.
+   */
+  @Nullable
+  public Completion next() throws InterruptedException {
+    checkState(callback == null, "The completions are delivered to the batch callback!");
+    synchronized (lock) {
+      checkState(started, "The batch hasn't been started!");
+      if (undeliveredCompletions == 0) {
+        return null;
+      }
+      undeliveredCompletions--;
+    }
+    return completions.take();
+  }
+
+  /**
+   * Cancels all the calls of the batch which haven't completed yet. Calls which are still waiting
+   * for a slot are never sent and complete with an exception straight away.
+   */
+  public void cancel() {
+    List<Call> callsToCancel;
+    List<Call> unsentCalls;
+    synchronized (lock) {
+      if (canceled) {
+        return;
+      }
+      canceled = true;
+      callsToCancel = new ArrayList<>(runningCalls);
+      unsentCalls = new ArrayList<>(pendingCalls);
+      pendingCalls.clear();
+    }
+    for (Call call : callsToCancel) {
+      call.cancel();
+    }
+    for (Call call : unsentCalls) {
+      call.cancel();
+      deliver(new Completion(call, null, new IOException("Canceled")));
+    }
+  }
+
+  private void enqueuePendingCalls() {
+    while (true) {
+      Call call;
+      boolean expired;
+      synchronized (lock) {
+        if (canceled || runningCalls.size() >= maxConcurrentCalls || pendingCalls.isEmpty()) {
+          return;
+        }
+        call = pendingCalls.poll();
+        expired = timeoutNanos != 0 && deadlineNanoTime - System.nanoTime() <= 0;
+        if (!expired) {
+          runningCalls.add(call);
+        }
+      }
+      if (expired) {
+        // The batch ran out of time while the call was waiting for a slot.
+        call.cancel();
+        deliver(new Completion(call, null, new InterruptedIOException("timeout")));
+        continue;
+      }
+      call.enqueue(memberCallback);
+    }
+  }
+
+  private void completed(Completion completion) {
+    synchronized (lock) {
+      runningCalls.remove(completion.call);
+    }
+    // Free up the slot before the completion is handled, which might take a while.
+    enqueuePendingCalls();
+    deliver(completion);
+  }
+
+  private void deliver(Completion completion) {
+    if (callback == null) {
+      completions.add(completion);
+      return;
+    }
+    if (completion.response != null) {
+      try {
+        callback.onResponse(completion.call, completion.response);
+      } catch (IOException e) {
+        // Consistent with the call factory, the callback should have handled it.
+        completion.response.close();
+      }
+    } else {
+      callback.onFailure(completion.call, completion.failure);
+    }
+  }
+
+  /** The outcome of one call of the batch. */
+  public static final class Completion {
+    private final Call call;
+    @Nullable private final Response response;
+    @Nullable private final IOException failure;
+
+    private Completion(Call call, @Nullable Response response, @Nullable IOException failure) {
+      this.call = call;
+      this.response = response;
+      this.failure = failure;
+    }
+
+    public Call call() {
+      return call;
+    }
+
+    /** Returns whether the call received a response. */
+    public boolean isSuccessful() {
+      return response != null;
+    }
+
+    /** Returns the response of the call, or throws the exception the call failed with. */
+    public Response getResponse() throws IOException {
+      if (response == null) {
+        throw failure;
+      }
+      return response;
+    }
+  }
+
+  /** Builder for {@link CronetCallBatch}. */
+  public static final class Builder {
+    private final Call.Factory callFactory;
+    private final List<Request> requests = new ArrayList<>();
+    private int maxConcurrentCalls = Integer.MAX_VALUE;
+    private long timeoutNanos = 0;
+    @Nullable private Callback callback;
+
+    Builder(Call.Factory callFactory) {
+      this.callFactory = callFactory;
+    }
+
+    public Builder addRequest(Request request) {
+      requests.add(checkNotNull(request));
+      return this;
+    }
+
+    public Builder addRequests(Iterable<Request> requests) {
+      for (Request request : requests) {
+        addRequest(request);
+      }
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of calls of the batch which are in flight at once. The call
+     * factory's own dispatcher limits still apply. Unlimited by default.
+     */
+    public Builder setMaxConcurrentCalls(int maxConcurrentCalls) {
+      checkArgument(maxConcurrentCalls > 0, "The limit must be positive!");
+      this.maxConcurrentCalls = maxConcurrentCalls;
+      return this;
+    }
+
+    /**
+     * Sets the time within which all the calls of the batch must complete, counted from {@link
+     * CronetCallBatch#start()}. Calls which run out of time fail with an {@link
+     * InterruptedIOException}. A value of 0 means no timeout, which is the default.
+     */
+    public Builder setTimeout(long timeout, TimeUnit unit) {
+      checkArgument(timeout >= 0, "Timeout mustn't be negative!");
+      this.timeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Sets a callback which is invoked for each call as it completes, instead of handing the
+     * completions out through {@link CronetCallBatch#next()}.
+     */
+    public Builder setCallback(Callback callback) {
+      this.callback = checkNotNull(callback);
+      return this;
+    }
+
+    public CronetCallBatch build() {
+      return new CronetCallBatch(this);
+    }
+  }
+}
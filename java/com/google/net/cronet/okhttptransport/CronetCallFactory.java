@@ -20,21 +20,27 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import android.util.Log;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestAndOkHttpResponse;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.EventListener;
 import okhttp3.Request;
 import okhttp3.Response;
-import okio.AsyncTimeout;
 import okio.Timeout;
 import org.chromium.net.CronetEngine;
 
@@ -45,34 +51,79 @@ public final class CronetCallFactory implements Call.Factory {
 
   private final RequestResponseConverter converter;
   private final ExecutorService responseCallbackExecutor;
+  private final ExecutorService backgroundResponseCallbackExecutor;
   private final int readTimeoutMillis;
   private final int writeTimeoutMillis;
   private final int callTimeoutMillis;
+  private final TimingWheel timingWheel;
+  @Nullable private final CronetDispatcher dispatcher;
+
+  /** Determines the priority the calls are queued in the dispatcher with. */
+  private final RequestPriorityExtractor priorityExtractor;
+
+  /** Runs the callbacks of responses received in full, null if they aren't delivered inline. */
+  @Nullable private final Executor inlineCallbackExecutor;
+
+  @Nullable private final EventListener.Factory eventListenerFactory;
+
+  /** Records how long calls wait in the dispatcher's queue, null if the metrics aren't kept. */
+  @Nullable private final TransportMetrics transportMetrics;
 
   private CronetCallFactory(
       RequestResponseConverter converter,
       ExecutorService responseCallbackExecutor,
+      ExecutorService backgroundResponseCallbackExecutor,
       int readTimeoutMillis,
       int writeTimeoutMillis,
-      int callTimeoutMillis) {
+      int callTimeoutMillis,
+      @Nullable CronetDispatcher dispatcher,
+      @Nullable Executor inlineCallbackExecutor,
+      @Nullable EventListener.Factory eventListenerFactory,
+      @Nullable TransportMetrics transportMetrics,
+      TimingWheel timingWheel,
+      RequestPriorityExtractor priorityExtractor) {
     checkArgument(readTimeoutMillis >= 0, "Read timeout mustn't be negative!");
     checkArgument(writeTimeoutMillis >= 0, "Write timeout mustn't be negative!");
     checkArgument(callTimeoutMillis >= 0, "Call timeout mustn't be negative!");
 
     this.converter = converter;
     this.responseCallbackExecutor = responseCallbackExecutor;
+    this.backgroundResponseCallbackExecutor = backgroundResponseCallbackExecutor;
     this.readTimeoutMillis = readTimeoutMillis;
     this.writeTimeoutMillis = writeTimeoutMillis;
     this.callTimeoutMillis = callTimeoutMillis;
+    this.timingWheel = timingWheel;
+    this.priorityExtractor = priorityExtractor;
+    this.dispatcher = dispatcher;
+    this.inlineCallbackExecutor = inlineCallbackExecutor;
+    this.eventListenerFactory = eventListenerFactory;
+    this.transportMetrics = transportMetrics;
   }
 
   public static Builder newBuilder(CronetEngine cronetEngine) {
     return new Builder(cronetEngine);
   }
 
+  /** Creates a builder of a call factory which spreads its requests across the engine pool. */
+  public static Builder newBuilder(CronetEnginePool enginePool) {
+    return new Builder(enginePool);
+  }
+
   @Override
   public Call newCall(Request request) {
-    return new CronetCall(request, this, converter, responseCallbackExecutor);
+    ExecutorService callbackExecutor =
+        CronetTrafficClass.of(request) == CronetTrafficClass.BACKGROUND
+            ? backgroundResponseCallbackExecutor
+            : responseCallbackExecutor;
+    return new CronetCall(request, this, converter, callbackExecutor);
+  }
+
+  /**
+   * Returns a builder of a batch of calls made through this factory, which share a concurrency
+   * limit and a deadline and deliver their responses in completion order.
+   */
+  public CronetCallBatch.Builder newBatch() {
+    return new CronetCallBatch.Builder(this);
   }
 
   private static class CronetCall implements Call {
@@ -86,7 +137,23 @@ public final class CronetCallFactory implements Call.Factory {
     private final AtomicBoolean canceled = new AtomicBoolean();
     private final AtomicReference<CronetRequestAndOkHttpResponse> convertedRequestAndResponse =
         new AtomicReference<>();
-    private final AsyncTimeout timeout;
+    private final Timeout timeout;
+    private final TimingWheel.Entry callTimeout;
+
+    /** {@link EventListener#NONE} unless the factory has an event listener factory. */
+    private final EventListener eventListener;
+
+    /** The deadline of the call, set once the call timeout is entered. */
+    private volatile Deadline deadline = Deadline.NONE;
+
+    /** Whether the call was canceled because it ran out of time. */
+    private volatile boolean timedOut;
+
+    /** Set if the call was enqueued in a dispatcher. */
+    @Nullable private volatile DispatchedCall dispatchedCall;
+
+    @GuardedBy("this")
+    private boolean responseHeadersStartReported;
 
     private CronetCall(
         Request okHttpRequest,
@@ -98,14 +165,21 @@ public final class CronetCallFactory implements Call.Factory {
       this.converter = converter;
       this.responseCallbackExecutor = responseCallbackExecutor;
 
-      this.timeout =
-          new AsyncTimeout() {
+      // The call timeout can be adjusted through timeout() until the call is executed, it's
+      // enforced by the shared timing wheel from then on.
+      this.timeout = new Timeout().timeout(motherFactory.callTimeoutMillis, MILLISECONDS);
+      this.callTimeout =
+          new TimingWheel.Entry() {
             @Override
-            protected void timedOut() {
-              CronetCall.this.cancel(); // Timeout has its own method named cancel
+            void onTimeout() {
+              timedOut = true;
+              CronetCall.this.cancel();
             }
           };
-      timeout.timeout(motherFactory.callTimeoutMillis, MILLISECONDS);
+      this.eventListener =
+          motherFactory.eventListenerFactory != null
+              ? motherFactory.eventListenerFactory.create(this)
+              : EventListener.NONE;
     }
 
     @Override
@@ -116,21 +190,52 @@ public final class CronetCallFactory implements Call.Factory {
     @Override
     public Response execute() throws IOException {
       evaluateExecutionPreconditions();
+      eventListener.callStart(this);
+      CronetDispatcher dispatcher = motherFactory.dispatcher;
+      if (dispatcher == null) {
+        return executeInternal();
+      }
+      dispatcher.executed(this);
       try {
-        timeout.enter();
+        return executeInternal();
+      } finally {
+        dispatcher.finished(this);
+      }
+    }
+
+    private Response executeInternal() throws IOException {
+      try {
+        enterTimeout();
         CronetRequestAndOkHttpResponse requestAndOkHttpResponse =
             converter.convert(
-                request(), motherFactory.readTimeoutMillis, motherFactory.writeTimeoutMillis);
+                request(),
+                motherFactory.readTimeoutMillis,
+                motherFactory.writeTimeoutMillis,
+                deadline);
         convertedRequestAndResponse.set(requestAndOkHttpResponse);
 
-        startRequestIfNotCanceled();
-
-        return toCronetCallFactoryResponse(this, requestAndOkHttpResponse.getResponse());
+        long startNanos = System.nanoTime();
+        if (startRequestIfNotCanceled()) {
+          reportResponseHeadersStart();
+        }
+
+        Response response;
+        try {
+          response = requestAndOkHttpResponse.getResponse();
+        } catch (IOException e) {
+          reportResponseLatency(startNanos, /* successful= */ false);
+          throw e;
+        }
+        reportResponseLatency(startNanos, /* successful= */ true);
+        eventListener.responseHeadersEnd(this, response);
+        return toCronetCallFactoryResponse(this, response);
       } catch (RuntimeException | IOException e) {
         // If the request finished successfully don't exit the timeout yet. Reading the body also
         // needs to be considered and the body object will take care of exiting it. See
         // toCronetCallFactoryResponse() for details.
-        timeout.exit();
+        exitTimeout();
+        eventListener.callFailed(
+            this, e instanceof IOException ? (IOException) e : new IOException(e));
         throw e;
       }
     }
@@ -138,47 +243,156 @@ public final class CronetCallFactory implements Call.Factory {
     @Override
     public void enqueue(Callback responseCallback) {
       try {
-        timeout.enter();
         evaluateExecutionPreconditions();
+      } catch (IOException e) {
+        responseCallback.onFailure(this, e);
+        return;
+      }
+      eventListener.callStart(this);
+
+      CronetDispatcher dispatcher = motherFactory.dispatcher;
+      // The time spent waiting in the dispatcher's queue counts towards the call timeout.
+      enterTimeout();
+      if (dispatcher == null) {
+        startAsync(responseCallback, /* onFinished= */ null);
+        return;
+      }
+
+      DispatchedCall localDispatchedCall = new DispatchedCall(responseCallback);
+      dispatchedCall = localDispatchedCall;
+      dispatcher.enqueue(localDispatchedCall);
+    }
+
+    /**
+     * Starts the call asynchronously. The {@code onFinished} hook is run once the response
+     * callback returns. The call timeout must have been entered already.
+     */
+    private void startAsync(Callback responseCallback, @Nullable Runnable onFinished) {
+      try {
         CronetRequestAndOkHttpResponse requestAndOkHttpResponse =
             converter.convert(
-                request(), motherFactory.readTimeoutMillis, motherFactory.writeTimeoutMillis);
+                request(),
+                motherFactory.readTimeoutMillis,
+                motherFactory.writeTimeoutMillis,
+                deadline);
         convertedRequestAndResponse.set(requestAndOkHttpResponse);
         CronetCall call = this;
 
-        Futures.addCallback(
-            requestAndOkHttpResponse.getResponseAsync(),
+        // The response supplier creates a new future on each call, all the listeners must share
+        // the same one.
+        ListenableFuture<Response> responseFuture = requestAndOkHttpResponse.getResponseAsync();
+        if (motherFactory.dispatcher != null) {
+          long startNanos = System.nanoTime();
+          Futures.addCallback(
+              responseFuture,
+              new FutureCallback<Response>() {
+                @Override
+                public void onSuccess(Response result) {
+                  reportResponseLatency(startNanos, /* successful= */ true);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                  reportResponseLatency(startNanos, /* successful= */ false);
+                }
+              },
+              MoreExecutors.directExecutor());
+        }
+
+        FutureCallback<Response> delivery =
             new FutureCallback<Response>() {
               @Override
               public void onSuccess(Response result) {
                 try {
+                  reportResponseHeadersStart();
+                  eventListener.responseHeadersEnd(call, result);
                   responseCallback.onResponse(call, toCronetCallFactoryResponse(call, result));
                 } catch (IOException e) {
                   // The call factory doesn't really mind this - the application code
                   // threw an exception while handling the response, they should have taken care
                   // of it. Just logging the error is consistent with plain OkHttp implementation.
                   Log.i(TAG, "Callback failure for " + toLoggableString(), e);
+                } finally {
+                  runIfNotNull(onFinished);
                 }
               }
 
               @Override
               public void onFailure(Throwable t) {
-                if (t instanceof IOException) {
-                  responseCallback.onFailure(call, (IOException) t);
-                } else {
-                  responseCallback.onFailure(call, new IOException(t));
+                try {
+                  IOException e = t instanceof IOException ? (IOException) t : new IOException(t);
+                  eventListener.callFailed(call, e);
+                  responseCallback.onFailure(call, e);
+                } finally {
+                  runIfNotNull(onFinished);
                 }
               }
-            },
-            responseCallbackExecutor);
+            };
+
+        Executor inlineCallbackExecutor = motherFactory.inlineCallbackExecutor;
+        if (inlineCallbackExecutor == null) {
+          Futures.addCallback(responseFuture, delivery, responseCallbackExecutor);
+        } else {
+          // Responses which were received in full can't block the callback on further reads, they
+          // skip the hop to the callback executor.
+          Futures.addCallback(
+              responseFuture,
+              new FutureCallback<Response>() {
+                @Override
+                public void onSuccess(Response result) {
+                  Executor executor =
+                      ResponseConverter.isBodyReceived(result)
+                          ? inlineCallbackExecutor
+                          : responseCallbackExecutor;
+                  executor.execute(() -> delivery.onSuccess(result));
+                }
 
-        startRequestIfNotCanceled();
+                @Override
+                public void onFailure(Throwable t) {
+                  responseCallbackExecutor.execute(() -> delivery.onFailure(t));
+                }
+              },
+              MoreExecutors.directExecutor());
+        }
+
+        if (startRequestIfNotCanceled()) {
+          reportResponseHeadersStart();
+        }
       } catch (IOException e) {
         // If the request finished successfully don't exit the timeout yet. Reading the body also
         // needs to be considered and the body object will take care of exiting it. See
         // toCronetCallFactoryResponse() for details.
-        timeout.exit();
-        responseCallback.onFailure(this, e);
+        exitTimeout();
+        eventListener.callFailed(this, e);
+        try {
+          responseCallback.onFailure(this, e);
+        } finally {
+          runIfNotNull(onFinished);
+        }
+      } catch (RuntimeException e) {
+        // Like OkHttp, report the failure to the callback and let the exception propagate.
+        exitTimeout();
+        IOException failure = new IOException(e);
+        eventListener.callFailed(this, failure);
+        try {
+          responseCallback.onFailure(this, failure);
+        } finally {
+          runIfNotNull(onFinished);
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Reports that the request is on its way and the response headers are awaited. Cronet doesn't
+     * tell when the request has been sent, so it's reported once start() hands it over, or when
+     * the headers arrive if that happens first. The lock keeps the headers of a response delivered
+     * on another thread from being reported before this.
+     */
+    private synchronized void reportResponseHeadersStart() {
+      if (!responseHeadersStartReported) {
+        responseHeadersStartReported = true;
+        eventListener.responseHeadersStart(this);
       }
     }
 
@@ -193,6 +407,18 @@ public final class CronetCallFactory implements Call.Factory {
         // already canceled
         return;
       }
+      DispatchedCall localDispatchedCall = dispatchedCall;
+      if (localDispatchedCall != null
+          && motherFactory.dispatcher.removeQueued(localDispatchedCall)) {
+        // The call never left the dispatcher's queue, there's nothing to cancel in Cronet.
+        exitTimeout();
+        CronetCall call = this;
+        IOException e = timedOut ? timeoutException() : new IOException("Canceled");
+        eventListener.callFailed(call, e);
+        responseCallbackExecutor.execute(
+            () -> localDispatchedCall.responseCallback.onFailure(call, e));
+        return;
+      }
       CronetRequestAndOkHttpResponse localConverted = convertedRequestAndResponse.get();
       if (localConverted != null) {
         localConverted.getRequest().cancel();
@@ -214,6 +440,134 @@ public final class CronetCallFactory implements Call.Factory {
       return timeout;
     }
 
+    private void enterTimeout() {
+      long timeoutNanos = timeout.timeoutNanos();
+      if (timeout.hasDeadline()) {
+        long untilDeadlineNanos = timeout.deadlineNanoTime() - System.nanoTime();
+        timeoutNanos =
+            timeoutNanos == 0 ? untilDeadlineNanos : Math.min(timeoutNanos, untilDeadlineNanos);
+      }
+      if (timeoutNanos != 0 || timeout.hasDeadline()) {
+        deadline = Deadline.after(timeoutNanos);
+        motherFactory.timingWheel.schedule(
+            callTimeout, Math.max(1, NANOSECONDS.toMillis(timeoutNanos)));
+      }
+    }
+
+    /** The exception calls which ran out of time fail with, matching OkHttp's. */
+    private static InterruptedIOException timeoutException() {
+      return new InterruptedIOException("timeout");
+    }
+
+    private void exitTimeout() {
+      motherFactory.timingWheel.cancel(callTimeout);
+    }
+
+    /**
+     * Reports the time to the response headers to the dispatcher, unless the call was canceled.
+     *
+     * <p>The per-request RequestFinishedInfo would carry the same timing, but it's only delivered
+     * once the body has been read in full, and only if the engine supports experimental requests.
+     */
+    private void reportResponseLatency(long startNanos, boolean successful) {
+      CronetDispatcher dispatcher = motherFactory.dispatcher;
+      if (dispatcher != null && !canceled.get()) {
+        dispatcher.responseReceived(System.nanoTime() - startNanos, successful);
+      }
+    }
+
+    /** The handle of a call enqueued in the factory's {@link CronetDispatcher}. */
+    private class DispatchedCall implements CronetDispatcher.AsyncCall {
+      private final Callback responseCallback;
+      private final AtomicBoolean finished = new AtomicBoolean();
+      private final long enqueuedAtNanos = System.nanoTime();
+
+      private DispatchedCall(Callback responseCallback) {
+        this.responseCallback = responseCallback;
+      }
+
+      @Override
+      public Call call() {
+        return CronetCall.this;
+      }
+
+      @Override
+      public CronetRequestPriority priority() {
+        return motherFactory.priorityExtractor.priorityOf(request());
+      }
+
+      @Override
+      public void start() {
+        TransportMetrics metrics = motherFactory.transportMetrics;
+        if (metrics != null) {
+          metrics
+              .forHost(request().url().host())
+              .series(/* protocol= */ null)
+              .recordQueueWait(System.nanoTime() - enqueuedAtNanos);
+        }
+        if (deadline.isExpired()) {
+          // The call used up its whole budget in the queue, don't take up a slot for it.
+          exitTimeout();
+          timedOut = true;
+          canceled.set(true);
+          finish();
+          CronetCall call = CronetCall.this;
+          IOException e = timeoutException();
+          eventListener.callFailed(call, e);
+          responseCallbackExecutor.execute(() -> responseCallback.onFailure(call, e));
+          return;
+        }
+        startAsync(responseCallback, this::finish);
+      }
+
+      @Override
+      public void startFailed(RuntimeException e) {
+        exitTimeout();
+        // The dispatcher released the slot already.
+        finished.set(true);
+        CronetCall call = CronetCall.this;
+        IOException ioException = new IOException(e);
+        eventListener.callFailed(call, ioException);
+        responseCallbackExecutor.execute(() -> responseCallback.onFailure(call, ioException));
+      }
+
+      private void finish() {
+        if (!finished.getAndSet(true)) {
+          motherFactory.dispatcher.finished(this);
+        }
+      }
+    }
+
+    /** Reports reading the response body to the event listener, and ends the call with it. */
+    private class BodyEventReporter implements CronetTransportResponseBody.BodyListener {
+      private volatile boolean failed;
+
+      @Override
+      public void onBodyStart() {
+        eventListener.responseBodyStart(CronetCall.this);
+      }
+
+      @Override
+      public void onBodyEnd(long byteCount) {
+        eventListener.responseBodyEnd(CronetCall.this, byteCount);
+        if (!failed) {
+          eventListener.callEnd(CronetCall.this);
+        }
+      }
+
+      @Override
+      public void onBodyFailed(IOException e) {
+        failed = true;
+        eventListener.callFailed(CronetCall.this, e);
+      }
+    }
+
+    private static void runIfNotNull(@Nullable Runnable runnable) {
+      if (runnable != null) {
+        runnable.run();
+      }
+    }
+
     private String toLoggableString() {
       return "call to " + request().url().redact();
     }
@@ -231,7 +585,8 @@ public final class CronetCallFactory implements Call.Factory {
       checkState(!executed.getAndSet(true), "Already Executed");
     }
 
-    private void startRequestIfNotCanceled() {
+    /** Starts the request, returns false if it's canceled instead. */
+    private boolean startRequestIfNotCanceled() {
       CronetRequestAndOkHttpResponse requestAndOkHttpResponse = convertedRequestAndResponse.get();
       checkState(requestAndOkHttpResponse != null, "convertedRequestAndResponse must be set!");
 
@@ -249,22 +604,26 @@ public final class CronetCallFactory implements Call.Factory {
       //                                    | if (canceled) convertedRequest.cancel()
       if (canceled.get()) {
         requestAndOkHttpResponse.getRequest().cancel();
-      } else {
-        requestAndOkHttpResponse.getRequest().start();
+        return false;
       }
+      requestAndOkHttpResponse.getRequest().start();
+      return true;
     }
   }
 
   private static Response toCronetCallFactoryResponse(CronetCall call, Response response) {
     checkNotNull(response.body());
 
+    // Only allocated when someone's listening.
+    CronetTransportResponseBody.BodyListener bodyListener =
+        call.eventListener != EventListener.NONE ? call.new BodyEventReporter() : null;
     return response
         .newBuilder()
         .body(
-            new CronetTransportResponseBody(response.body()) {
+            new CronetTransportResponseBody(response.body(), bodyListener) {
               @Override
               void customCloseHook() {
-                call.timeout.exit();
+                call.exitTimeout();
               }
             })
         .build();
@@ -278,11 +637,19 @@ public final class CronetCallFactory implements Call.Factory {
     private int writeTimeoutMillis = DEFAULT_READ_WRITE_TIMEOUT_MILLIS;
     private int callTimeoutMillis = 0; // No timeout
     private ExecutorService callbackExecutorService = null;
+    private CronetDispatcher dispatcher = null; // Calls are started straight away
+    private int inlineCallbackMaxBodyBytes = 0; // Always use the callback executor
+    private Executor inlineCallbackExecutor = null;
+    private EventListener.Factory eventListenerFactory = null;
 
     Builder(CronetEngine cronetEngine) {
       super(cronetEngine, CronetCallFactory.Builder.class);
     }
 
+    Builder(CronetEnginePool enginePool) {
+      super(enginePool, CronetCallFactory.Builder.class);
+    }
+
     public Builder setReadTimeoutMillis(int readTimeoutMillis) {
       checkArgument(readTimeoutMillis >= 0, "Read timeout mustn't be negative!");
       this.readTimeoutMillis = readTimeoutMillis;
@@ -308,22 +675,95 @@ public final class CronetCallFactory implements Call.Factory {
       return this;
     }
 
+    /**
+     * Sets the dispatcher limiting the number of concurrent asynchronous calls. By default, calls
+     * are started as soon as they're enqueued.
+     *
+     * <p>A dispatcher can be shared by multiple call factories to apply the limits across all of
+     * them.
+     */
+    public Builder setDispatcher(CronetDispatcher dispatcher) {
+      checkNotNull(dispatcher);
+      this.dispatcher = dispatcher;
+      return this;
+    }
+
+    /**
+     * Delivers the responses of enqueued calls whose body is at most {@code maxBodyBytes} long
+     * straight from the Cronet network thread, without a hop to the callback executor. The body is
+     * read in full before the callback is invoked, so reading it doesn't block. Only responses
+     * which declare their length in the {@code Content-Length} header qualify.
+     *
+     * <p>The callbacks must be quick and mustn't block, or they'll hold up all the requests of the
+     * Cronet engine. Failures and larger responses are still delivered on the callback executor.
+     */
+    public Builder setInlineCallbackDelivery(int maxBodyBytes) {
+      return setInlineCallbackDelivery(maxBodyBytes, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Like {@link #setInlineCallbackDelivery(int)}, but the callbacks of the small responses are
+     * run on the given executor, for example one posting to the main thread's {@code Handler}.
+     */
+    public Builder setInlineCallbackDelivery(int maxBodyBytes, Executor executor) {
+      checkArgument(maxBodyBytes > 0, "The body size must be positive!");
+      checkNotNull(executor);
+      this.inlineCallbackMaxBodyBytes = maxBodyBytes;
+      this.inlineCallbackExecutor = executor;
+      return this;
+    }
+
+    /**
+     * Sets the factory of the listeners notified about the progress of each call. As Cronet
+     * handles the connections, only the call, response headers and response body events are
+     * reported.
+     */
+    public Builder setEventListenerFactory(EventListener.Factory eventListenerFactory) {
+      checkNotNull(eventListenerFactory);
+      this.eventListenerFactory = eventListenerFactory;
+      return this;
+    }
+
+    @Override
+    long responsePrefetchBytes() {
+      return inlineCallbackMaxBodyBytes;
+    }
+
     @Override
     CronetCallFactory build(RequestResponseConverter converter) {
       ExecutorService localCallbackExecutorService;
-      if (callbackExecutorService == null) {
-        // Consistent with OkHttp impl
-        localCallbackExecutorService = Executors.newCachedThreadPool();
-      } else {
+      if (callbackExecutorService != null) {
         localCallbackExecutorService = callbackExecutorService;
+      } else if (transportResources() != null) {
+        localCallbackExecutorService = transportResources().callbackExecutor();
+      } else {
+        // Unbounded, consistent with OkHttp impl
+        localCallbackExecutorService = executorStrategy().newBlockingTaskExecutor("CronetCallback");
+      }
+
+      ExecutorService backgroundCallbackExecutorService;
+      if (!backgroundTrafficIsolated()) {
+        backgroundCallbackExecutorService = localCallbackExecutorService;
+      } else if (transportResources() != null) {
+        backgroundCallbackExecutorService = transportResources().backgroundCallbackExecutor();
+      } else {
+        backgroundCallbackExecutorService =
+            executorStrategy().newBlockingTaskExecutor("CronetBackgroundCallback");
       }
 
       return new CronetCallFactory(
           converter,
           localCallbackExecutorService,
+          backgroundCallbackExecutorService,
           readTimeoutMillis,
           writeTimeoutMillis,
-          callTimeoutMillis);
+          callTimeoutMillis,
+          dispatcher,
+          inlineCallbackExecutor,
+          eventListenerFactory,
+          transportMetrics(),
+          timingWheel(),
+          priorityExtractor());
     }
   }
 }
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import okhttp3.Call;
+
+/**
+ * Limits the number of concurrent asynchronous calls made through a {@link CronetCallFactory},
+ * similarly to OkHttp's {@link okhttp3.Dispatcher}.
+ *
+ * <p>Calls over the global or per-host limit are queued and started as soon as a running call
+ * finishes. The queue is either FIFO or ordered by the {@link CronetRequestPriority} of the
+ * requests (and FIFO within a priority), as determined by the {@link RequestPriorityExtractor} of
+ * the call factory each call comes from.
+ *
+ * <p>The global limit can also be adjusted automatically from the observed latency using an
+ * {@link AdaptiveConcurrencyLimit}.
+ *
+ * <p>Optionally, calls of the {@link CronetTrafficClass#BACKGROUND background} traffic class are
+ * held in the queue while any interactive call is running, so that prefetching and syncs don't
+ * compete with the requests the user is waiting for.
+ *
+ * <p>Like in OkHttp, synchronous calls are never queued, but they count towards the number of
+ * running calls and can be canceled by {@link #cancelAll(Object)}.
+ */
+public final class CronetDispatcher {
+
+  /** How the queued calls are ordered. */
+  public enum QueueOrder {
+    /** Calls are started in the order they were enqueued in. */
+    FIFO,
+    /** Calls with a higher {@link CronetRequestPriority} are started first. */
+    PRIORITY
+  }
+
+  private final int maxRequests;
+  private final int maxRequestsPerHost;
+  @Nullable private final AdaptiveConcurrencyLimit adaptiveLimit;
+  private final boolean deferBackgroundCalls;
+
+  @GuardedBy("this")
+  private final TreeSet<QueuedCall> queuedCalls;
+
+  @GuardedBy("this")
+  private final Map<AsyncCall, QueuedCall> runningAsyncCalls = new IdentityHashMap<>();
+
+  @GuardedBy("this")
+  private final List<Call> runningSyncCalls = new ArrayList<>();
+
+  @GuardedBy("this")
+  private final Map<String, Integer> runningCallsPerHost = new HashMap<>();
+
+  @GuardedBy("this")
+  private final int[] queuedCallsPerPriority = new int[CronetRequestPriority.values().length];
+
+  /** The number of running calls, synchronous or not, which aren't background calls. */
+  @GuardedBy("this")
+  private int runningInteractiveCalls;
+
+  @GuardedBy("this")
+  private long nextSequenceNumber;
+
+  @GuardedBy("this")
+  private int peakQueuedCallsCount;
+
+  private CronetDispatcher(
+      int maxRequests,
+      int maxRequestsPerHost,
+      QueueOrder queueOrder,
+      @Nullable AdaptiveConcurrencyLimit adaptiveLimit,
+      boolean deferBackgroundCalls) {
+    this.maxRequests = maxRequests;
+    this.maxRequestsPerHost = maxRequestsPerHost;
+    this.adaptiveLimit = adaptiveLimit;
+    this.deferBackgroundCalls = deferBackgroundCalls;
+
+    Comparator<QueuedCall> fifo = (a, b) -> Long.compare(a.sequenceNumber, b.sequenceNumber);
+    switch (queueOrder) {
+      case FIFO:
+        queuedCalls = new TreeSet<>(fifo);
+        break;
+      case PRIORITY:
+        queuedCalls =
+            new TreeSet<>(
+                (a, b) -> {
+                  int byPriority = b.priority.compareTo(a.priority);
+                  return byPriority != 0 ? byPriority : fifo.compare(a, b);
+                });
+        break;
+      default:
+        throw new AssertionError("The switch block above is exhaustive!");
+    }
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Cancels all queued and running calls whose request is tagged with {@code tag}. */
+  public void cancelAll(Object tag) {
+    checkNotNull(tag);
+    List<Call> toCancel = new ArrayList<>();
+    synchronized (this) {
+      for (QueuedCall queuedCall : queuedCalls) {
+        addIfTagged(toCancel, queuedCall.asyncCall.call(), tag);
+      }
+      for (AsyncCall asyncCall : runningAsyncCalls.keySet()) {
+        addIfTagged(toCancel, asyncCall.call(), tag);
+      }
+      for (Call call : runningSyncCalls) {
+        addIfTagged(toCancel, call, tag);
+      }
+    }
+    // Canceling calls re-enters the dispatcher, don't hold the lock.
+    for (Call call : toCancel) {
+      call.cancel();
+    }
+  }
+
+  /** Returns the number of calls waiting for a free slot. */
+  public synchronized int queuedCallsCount() {
+    return queuedCalls.size();
+  }
+
+  /** Returns the number of queued calls with the given priority. */
+  public synchronized int queuedCallsCount(CronetRequestPriority priority) {
+    return queuedCallsPerPriority[priority.ordinal()];
+  }
+
+  /** Returns the highest number of calls that were waiting for a free slot at the same time. */
+  public synchronized int peakQueuedCallsCount() {
+    return peakQueuedCallsCount;
+  }
+
+  /** Returns the number of calls currently being executed, including synchronous calls. */
+  public synchronized int runningCallsCount() {
+    return runningAsyncCalls.size() + runningSyncCalls.size();
+  }
+
+  /**
+   * Returns the maximum number of asynchronous calls which can currently run concurrently. Differs
+   * from the configured maximum if the dispatcher uses an {@link AdaptiveConcurrencyLimit}.
+   */
+  public int currentMaxRequests() {
+    if (adaptiveLimit == null) {
+      return maxRequests;
+    }
+    return Math.min(maxRequests, adaptiveLimit.getLimit());
+  }
+
+  /** Queues the call and starts it once the limits allow it. */
+  void enqueue(AsyncCall asyncCall) {
+    Call call = asyncCall.call();
+    synchronized (this) {
+      QueuedCall queuedCall =
+          new QueuedCall(
+              asyncCall,
+              call.request().url().host(),
+              asyncCall.priority(),
+              CronetTrafficClass.of(call.request()),
+              nextSequenceNumber++);
+      queuedCalls.add(queuedCall);
+      queuedCallsPerPriority[queuedCall.priority.ordinal()]++;
+      peakQueuedCallsCount = Math.max(peakQueuedCallsCount, queuedCalls.size());
+    }
+    promoteAndStart();
+  }
+
+  /**
+   * Removes a canceled call from the queue. Returns false if the call isn't queued, either because
+   * it was already started or because it already finished.
+   */
+  boolean removeQueued(AsyncCall asyncCall) {
+    synchronized (this) {
+      Iterator<QueuedCall> it = queuedCalls.iterator();
+      while (it.hasNext()) {
+        QueuedCall queuedCall = it.next();
+        if (queuedCall.asyncCall == asyncCall) {
+          it.remove();
+          queuedCallsPerPriority[queuedCall.priority.ordinal()]--;
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Signals that an asynchronous call finished and its slot can be reused. */
+  void finished(AsyncCall asyncCall) {
+    checkState(releaseSlot(asyncCall), "The call wasn't running!");
+    promoteAndStart();
+  }
+
+  /**
+   * Records the time from starting a call's request until its response headers arrived, or until
+   * it failed. Used to adjust the adaptive limit, if there's one.
+   */
+  void responseReceived(long timeToHeadersNanos, boolean successful) {
+    if (adaptiveLimit == null) {
+      return;
+    }
+    int inFlight;
+    synchronized (this) {
+      inFlight = runningAsyncCalls.size() + runningSyncCalls.size();
+    }
+    adaptiveLimit.onSample(timeToHeadersNanos, inFlight, successful);
+    // The limit might have grown.
+    promoteAndStart();
+  }
+
+  /** Registers a running synchronous call. */
+  synchronized void executed(Call call) {
+    runningSyncCalls.add(call);
+    if (CronetTrafficClass.of(call.request()) != CronetTrafficClass.BACKGROUND) {
+      runningInteractiveCalls++;
+    }
+  }
+
+  /** Signals that a synchronous call finished. */
+  void finished(Call call) {
+    synchronized (this) {
+      checkState(runningSyncCalls.remove(call), "The call wasn't running!");
+      if (CronetTrafficClass.of(call.request()) != CronetTrafficClass.BACKGROUND) {
+        runningInteractiveCalls--;
+      }
+    }
+    if (deferBackgroundCalls) {
+      // Deferred background calls might be able to start now.
+      promoteAndStart();
+    }
+  }
+
+  private void promoteAndStart() {
+    List<AsyncCall> toStart = new ArrayList<>();
+    int currentMaxRequests = currentMaxRequests();
+    synchronized (this) {
+      Iterator<QueuedCall> it = queuedCalls.iterator();
+      while (it.hasNext() && runningAsyncCalls.size() < currentMaxRequests) {
+        QueuedCall queuedCall = it.next();
+        Integer runningForHost = runningCallsPerHost.get(queuedCall.host);
+        if (runningForHost != null && runningForHost >= maxRequestsPerHost) {
+          continue;
+        }
+        boolean background = queuedCall.trafficClass == CronetTrafficClass.BACKGROUND;
+        if (background && deferBackgroundCalls && runningInteractiveCalls > 0) {
+          continue;
+        }
+
+        it.remove();
+        queuedCallsPerPriority[queuedCall.priority.ordinal()]--;
+        runningAsyncCalls.put(queuedCall.asyncCall, queuedCall);
+        runningCallsPerHost.put(queuedCall.host, runningForHost == null ? 1 : runningForHost + 1);
+        if (!background) {
+          runningInteractiveCalls++;
+        }
+        toStart.add(queuedCall.asyncCall);
+      }
+    }
+    // Starting the calls can be expensive and can call back to the dispatcher.
+    boolean slotsReleased = false;
+    for (AsyncCall asyncCall : toStart) {
+      try {
+        asyncCall.start();
+      } catch (RuntimeException e) {
+        // Don't let a call which couldn't be started keep its slot, or keep the calls after it
+        // from starting. The exception mustn't surface in whoever happened to trigger the start.
+        slotsReleased |= releaseSlot(asyncCall);
+        asyncCall.startFailed(e);
+      }
+    }
+    if (slotsReleased) {
+      promoteAndStart();
+    }
+  }
+
+  /** Releases the slot of a running call. Returns false if the call already released it. */
+  private synchronized boolean releaseSlot(AsyncCall asyncCall) {
+    QueuedCall runningCall = runningAsyncCalls.remove(asyncCall);
+    if (runningCall == null) {
+      return false;
+    }
+    decrementRunningCalls(runningCall.host);
+    if (runningCall.trafficClass != CronetTrafficClass.BACKGROUND) {
+      runningInteractiveCalls--;
+    }
+    return true;
+  }
+
+  @GuardedBy("this")
+  private void decrementRunningCalls(String host) {
+    int runningForHost = runningCallsPerHost.get(host);
+    if (runningForHost == 1) {
+      runningCallsPerHost.remove(host);
+    } else {
+      runningCallsPerHost.put(host, runningForHost - 1);
+    }
+  }
+
+  private static void addIfTagged(List<Call> calls, Call call, Object tag) {
+    if (tag.equals(call.request().tag())) {
+      calls.add(call);
+    }
+  }
+
+  /** An asynchronous call managed by the dispatcher. */
+  interface AsyncCall {
+    Call call();
+
+    /** Returns the priority the call is queued with. */
+    CronetRequestPriority priority();
+
+    /**
+     * Starts executing the call. Once the call is done, {@link #finished(AsyncCall)} must be
+     * called. Invoked without holding the dispatcher's lock.
+     */
+    void start();
+
+    /**
+     * Fails the call after {@link #start()} threw. The dispatcher has already released the call's
+     * slot, so {@link #finished(AsyncCall)} mustn't be called.
+     */
+    void startFailed(RuntimeException e);
+  }
+
+  private static final class QueuedCall {
+    private final AsyncCall asyncCall;
+    private final String host;
+    private final CronetRequestPriority priority;
+    private final CronetTrafficClass trafficClass;
+    private final long sequenceNumber;
+
+    private QueuedCall(
+        AsyncCall asyncCall,
+        String host,
+        CronetRequestPriority priority,
+        CronetTrafficClass trafficClass,
+        long sequenceNumber) {
+      this.asyncCall = asyncCall;
+      this.host = host;
+      this.priority = priority;
+      this.trafficClass = trafficClass;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  /** A builder for {@link CronetDispatcher}. By default, calls aren't limited. */
+  public static final class Builder {
+    private int maxRequests = Integer.MAX_VALUE;
+    private int maxRequestsPerHost = Integer.MAX_VALUE;
+    private QueueOrder queueOrder = QueueOrder.FIFO;
+    @Nullable private AdaptiveConcurrencyLimit adaptiveLimit = null;
+    private boolean deferBackgroundCalls = false;
+
+    Builder() {}
+
+    /** Sets the maximum number of asynchronous calls to execute concurrently. */
+    public Builder setMaxRequests(int maxRequests) {
+      checkArgument(maxRequests > 0, "The maximum number of requests must be positive!");
+      this.maxRequests = maxRequests;
+      return this;
+    }
+
+    /** Sets the maximum number of asynchronous calls to execute concurrently for a single host. */
+    public Builder setMaxRequestsPerHost(int maxRequestsPerHost) {
+      checkArgument(
+          maxRequestsPerHost > 0, "The maximum number of requests per host must be positive!");
+      this.maxRequestsPerHost = maxRequestsPerHost;
+      return this;
+    }
+
+    /** Sets how the calls waiting for a free slot are ordered. */
+    public Builder setQueueOrder(QueueOrder queueOrder) {
+      this.queueOrder = checkNotNull(queueOrder);
+      return this;
+    }
+
+    /**
+     * Sets a limit which adjusts the maximum number of concurrent asynchronous calls to the
+     * observed latency. The limit set by {@link #setMaxRequests(int)} still applies as an upper
+     * bound.
+     */
+    public Builder setAdaptiveConcurrencyLimit(AdaptiveConcurrencyLimit adaptiveLimit) {
+      this.adaptiveLimit = checkNotNull(adaptiveLimit);
+      return this;
+    }
+
+    /**
+     * Sets whether queued {@link CronetTrafficClass#BACKGROUND background} calls should wait until
+     * no interactive call is running. Disabled by default.
+     *
+     * <p>Background calls which are already running aren't affected. Note that a steady stream of
+     * interactive calls can hold the background calls back indefinitely.
+     */
+    public Builder setBackgroundCallsDeferred(boolean deferBackgroundCalls) {
+      this.deferBackgroundCalls = deferBackgroundCalls;
+      return this;
+    }
+
+    public CronetDispatcher build() {
+      return new CronetDispatcher(
+          maxRequests, maxRequestsPerHost, queueOrder, adaptiveLimit, deferBackgroundCalls);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+import org.chromium.net.BidirectionalStream;
+import org.chromium.net.ExperimentalCronetEngine;
+import org.chromium.net.UrlResponseInfo;
+
+/**
+ * A full-duplex call backed by a Cronet {@link BidirectionalStream}.
+ *
+ * <p>Once {@link #start() started}, the request body and the response can be used concurrently,
+ * typically from two different threads:
+ *
+ * <pre>
+ *   CronetDuplexCall call = duplexCallFactory.newCall(requestWithoutBody);
+ *   call.start();
+ *
+ *   // Writer thread
+ *   BufferedSink requestBody = call.requestBody();
+ *   requestBody.write(frame).flush();
+ *   ...
+ *   requestBody.close(); // Half-closes the stream
+ *
+ *   // Reader thread
+ *   try (Response response = call.response()) {
+ *     BufferedSource responseBody = response.body().source();
+ *     ...
+ *   }
+ * </pre>
+ *
+ * <p>Data written to the request body is sent as soon as the sink is flushed. The request stream
+ * stays open until the request body is closed, so calls streaming their request body must always
+ * close it. Requests which already have a body aren't streamed: {@link #start()} sends the body
+ * and half-closes the stream, and {@link #requestBody()} can't be used.
+ *
+ * <p>The call timeout, if any, bounds the whole exchange. Once it elapses the stream is canceled
+ * and any pending or subsequent operation fails with a {@link CronetTimeoutException}.
+ */
+public final class CronetDuplexCall {
+  private static final String CONTENT_TYPE_HEADER_NAME = "Content-Type";
+
+  private final Request okHttpRequest;
+  private final ExperimentalCronetEngine cronetEngine;
+  private final ResponseConverter responseConverter;
+  private final BidirectionalStreamBridgeCallback callback;
+  private final int callTimeoutMillis;
+
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final AtomicBoolean canceled = new AtomicBoolean();
+
+  @Nullable private volatile BidirectionalStream stream;
+  private final ReentrantLock requestBodyLock = new ReentrantLock();
+
+  @GuardedBy("requestBodyLock")
+  @Nullable
+  private BufferedSink requestBody;
+
+  CronetDuplexCall(
+      Request okHttpRequest,
+      ExperimentalCronetEngine cronetEngine,
+      ResponseConverter responseConverter,
+      int readTimeoutMillis,
+      int writeTimeoutMillis,
+      int callTimeoutMillis,
+      TimingWheel timingWheel,
+      ByteBufferPool bufferPool) {
+    this.okHttpRequest = okHttpRequest;
+    this.cronetEngine = cronetEngine;
+    this.responseConverter = responseConverter;
+    this.callback =
+        new BidirectionalStreamBridgeCallback(
+            readTimeoutMillis, writeTimeoutMillis, timingWheel, bufferPool);
+    this.callTimeoutMillis = callTimeoutMillis;
+  }
+
+  public Request request() {
+    return okHttpRequest;
+  }
+
+  /**
+   * Starts the stream and sends the request headers. If the request has a body, also sends the
+   * body and half-closes the stream, blocking until the body has been handed over to the network
+   * stack.
+   */
+  public void start() throws IOException {
+    checkState(started.compareAndSet(false, true), "Already started");
+    Deadline deadline =
+        callTimeoutMillis == 0
+            ? Deadline.NONE
+            : Deadline.after(MILLISECONDS.toNanos(callTimeoutMillis));
+
+    BidirectionalStream.Builder builder =
+        cronetEngine.newBidirectionalStreamBuilder(
+            okHttpRequest.url().toString(), callback, MoreExecutors.directExecutor());
+    builder.setHttpMethod(okHttpRequest.method());
+    for (int i = 0; i < okHttpRequest.headers().size(); i++) {
+      builder.addHeader(okHttpRequest.headers().name(i), okHttpRequest.headers().value(i));
+    }
+
+    RequestBody body = okHttpRequest.body();
+    if (body != null && okHttpRequest.header(CONTENT_TYPE_HEADER_NAME) == null) {
+      MediaType contentType = body.contentType();
+      if (contentType != null) {
+        builder.addHeader(CONTENT_TYPE_HEADER_NAME, contentType.toString());
+      }
+    }
+
+    BidirectionalStream localStream = builder.build();
+    callback.setStream(localStream, deadline);
+    stream = localStream;
+
+    // See CronetCallFactory.CronetCall#startRequest for the reasoning behind checking twice.
+    if (canceled.get()) {
+      localStream.cancel();
+      return;
+    }
+    localStream.start();
+
+    if (body != null) {
+      // Nobody else is going to end the request stream, see requestBody().
+      requestBodyLock.lock();
+      try {
+        BufferedSink sink = Okio.buffer(callback.createRequestSink());
+        body.writeTo(sink);
+        sink.close();
+      } catch (IOException | RuntimeException e) {
+        localStream.cancel();
+        throw e;
+      } finally {
+        requestBodyLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns the sink for the request body. Flushing the sink sends the buffered data, closing it
+   * half-closes the stream. The sink must be closed once the whole body has been written, servers
+   * typically don't finish their response before.
+   *
+   * <p>The sink isn't thread safe and is meant to be used from a single thread. Writes block until
+   * the data has been handed over to the network stack.
+   *
+   * @throws IllegalStateException if the request has a body, which was already sent by {@link
+   *     #start()}
+   */
+  public BufferedSink requestBody() {
+    checkState(started.get(), "The call must be started first");
+    checkState(okHttpRequest.body() == null, "The request body has already been sent");
+    // Start() holds the lock while writing, a ReentrantLock doesn't pin virtual threads then.
+    requestBodyLock.lock();
+    try {
+      if (requestBody == null) {
+        requestBody = Okio.buffer(callback.createRequestSink());
+      }
+      return requestBody;
+    } finally {
+      requestBodyLock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the response headers and returns the response. The response body streams the data
+   * as the server sends it; closing it before it's exhausted cancels the call. The wait is bounded
+   * by the call timeout only.
+   */
+  public Response response() throws IOException {
+    checkState(started.get(), "The call must be started first");
+    UrlResponseInfo responseInfo = getFutureValue(callback.getUrlResponseInfo());
+    return responseConverter.toResponse(
+        okHttpRequest, responseInfo, callback.createResponseSource());
+  }
+
+  /**
+   * Returns the response trailers. Blocks until the response body has been fully read; servers
+   * which don't send trailers result in empty headers.
+   */
+  public Headers trailers() throws IOException {
+    checkState(started.get(), "The call must be started first");
+    return getFutureValue(callback.getTrailers());
+  }
+
+  public void cancel() {
+    if (!canceled.getAndSet(true)) {
+      BidirectionalStream localStream = stream;
+      if (localStream != null) {
+        localStream.cancel();
+      }
+    }
+  }
+
+  public boolean isCanceled() {
+    return canceled.get();
+  }
+
+  private static <T> T getFutureValue(Future<T> future) throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+}
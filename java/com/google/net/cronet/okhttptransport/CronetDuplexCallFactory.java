@@ -0,0 +1,153 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import javax.annotation.Nullable;
+import okhttp3.Request;
+import org.chromium.net.ExperimentalCronetEngine;
+
+/**
+ * Creates full-duplex calls backed by Cronet's {@link org.chromium.net.BidirectionalStream}.
+ *
+ * <p>Unlike calls created by {@link CronetCallFactory}, the request body of a duplex call is
+ * written while the response is being read, which is what gRPC-style streaming and long-lived
+ * upload/download channels need. Bidirectional streams are only supported over HTTP/2 and QUIC,
+ * and they don't follow redirects.
+ */
+public final class CronetDuplexCallFactory {
+
+  private final ExperimentalCronetEngine cronetEngine;
+  private final ResponseConverter responseConverter;
+  private final int readTimeoutMillis;
+  private final int writeTimeoutMillis;
+  private final int callTimeoutMillis;
+  private final TimingWheel timingWheel;
+  private final ByteBufferPool bufferPool;
+
+  private CronetDuplexCallFactory(
+      ExperimentalCronetEngine cronetEngine,
+      ResponseConverter responseConverter,
+      int readTimeoutMillis,
+      int writeTimeoutMillis,
+      int callTimeoutMillis,
+      TimingWheel timingWheel,
+      ByteBufferPool bufferPool) {
+    this.cronetEngine = cronetEngine;
+    this.responseConverter = responseConverter;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.writeTimeoutMillis = writeTimeoutMillis;
+    this.callTimeoutMillis = callTimeoutMillis;
+    this.timingWheel = timingWheel;
+    this.bufferPool = bufferPool;
+  }
+
+  public static Builder newBuilder(ExperimentalCronetEngine cronetEngine) {
+    return new Builder(cronetEngine);
+  }
+
+  /** Prepares the {@code request} to be executed as a duplex call. */
+  public CronetDuplexCall newCall(Request request) {
+    return new CronetDuplexCall(
+        request,
+        cronetEngine,
+        responseConverter,
+        readTimeoutMillis,
+        writeTimeoutMillis,
+        callTimeoutMillis,
+        timingWheel,
+        bufferPool);
+  }
+
+  public static final class Builder {
+    private static final int DEFAULT_READ_WRITE_TIMEOUT_MILLIS = 10000;
+
+    private final ExperimentalCronetEngine cronetEngine;
+    private int readTimeoutMillis = DEFAULT_READ_WRITE_TIMEOUT_MILLIS;
+    private int writeTimeoutMillis = DEFAULT_READ_WRITE_TIMEOUT_MILLIS;
+    private int callTimeoutMillis = 0; // No timeout
+    @Nullable private CronetTransportResources transportResources = null;
+
+    Builder(ExperimentalCronetEngine cronetEngine) {
+      this.cronetEngine = checkNotNull(cronetEngine);
+    }
+
+    /**
+     * Sets how long a single read of the response can take. Long-lived channels which can be idle
+     * for a while should set this to 0 (no timeout).
+     */
+    public Builder setReadTimeoutMillis(int readTimeoutMillis) {
+      checkArgument(readTimeoutMillis >= 0, "Read timeout mustn't be negative!");
+      this.readTimeoutMillis = readTimeoutMillis;
+      return this;
+    }
+
+    /** Sets how long a single write of the request can take. */
+    public Builder setWriteTimeoutMillis(int writeTimeoutMillis) {
+      checkArgument(writeTimeoutMillis >= 0, "Write timeout mustn't be negative!");
+      this.writeTimeoutMillis = writeTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Sets how long the whole exchange can take, from {@link CronetDuplexCall#start()} until both
+     * the request and the response are complete. Defaults to 0 (no timeout), which is what
+     * long-lived channels need.
+     */
+    public Builder setCallTimeoutMillis(int callTimeoutMillis) {
+      checkArgument(callTimeoutMillis >= 0, "Call timeout mustn't be negative!");
+      this.callTimeoutMillis = callTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Makes the calls take their frame buffers from the pool of the given resources, and arm their
+     * timeouts in the timer of the resources, shared with the call factories and interceptors using
+     * them. By default the buffers aren't pooled.
+     */
+    public Builder setTransportResources(CronetTransportResources transportResources) {
+      this.transportResources = checkNotNull(transportResources);
+      return this;
+    }
+
+    public CronetDuplexCallFactory build() {
+      ByteBufferPool bufferPool;
+      TimingWheel timingWheel = TimingWheel.shared();
+      if (transportResources != null) {
+        checkState(!transportResources.isClosed(), "The transport resources are closed!");
+        bufferPool = transportResources.responseBufferPool();
+        timingWheel = transportResources.timingWheel();
+      } else {
+        bufferPool =
+            new ByteBufferPool(
+                OkHttpBridgeRequestCallback.CRONET_BYTE_BUFFER_CAPACITY,
+                /* maxPooledBuffers= */ 0);
+      }
+      return new CronetDuplexCallFactory(
+          cronetEngine,
+          new ResponseConverter(),
+          readTimeoutMillis,
+          writeTimeoutMillis,
+          callTimeoutMillis,
+          timingWheel,
+          bufferPool);
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import okhttp3.Request;
+import org.chromium.net.CronetEngine;
+import org.chromium.net.CronetException;
+import org.chromium.net.UrlRequest;
+import org.chromium.net.UrlResponseInfo;
+
+/**
+ * A group of {@link CronetEngine} instances the requests of a single {@link CronetCallFactory} or
+ * {@link CronetInterceptor} are spread across.
+ *
+ * <p>Each Cronet engine has a single network thread. With many concurrent requests on a multi-core
+ * device, that thread can become the bottleneck, and sharding the traffic across several engines
+ * helps. Note that the engines don't share their connection pools, caches or cookies.
+ *
+ * <p>The number of requests each engine is handling is exposed for monitoring the balance.
+ */
+public final class CronetEnginePool {
+
+  /** How requests are assigned to the engines. */
+  public enum RoutingStrategy {
+    /**
+     * All the requests for a host go through the same engine. This preserves the connection
+     * reuse, HTTP/2 multiplexing in particular, but can be unbalanced if most of the traffic goes
+     * to a single host.
+     */
+    HOST_HASH,
+    /**
+     * Each request goes through the engine with the fewest requests in flight. This balances the
+     * load evenly at the cost of extra connections to each host.
+     */
+    LEAST_IN_FLIGHT
+  }
+
+  private final List<Shard> shards;
+  private final RoutingStrategy routingStrategy;
+
+  /** Whether the load of the engines is tracked. Not needed for single engine pools. */
+  private final boolean tracksLoad;
+
+  /** Rotates the first engine {@link RoutingStrategy#LEAST_IN_FLIGHT} considers to break ties. */
+  private final AtomicInteger nextShardIndex = new AtomicInteger();
+
+  private CronetEnginePool(
+      List<CronetEngine> engines, RoutingStrategy routingStrategy, boolean tracksLoad) {
+    this.shards = new ArrayList<>(engines.size());
+    for (CronetEngine engine : engines) {
+      shards.add(new Shard(engine));
+    }
+    this.routingStrategy = routingStrategy;
+    this.tracksLoad = tracksLoad;
+  }
+
+  /** Returns a pool backed by a single engine. */
+  static CronetEnginePool of(CronetEngine engine) {
+    List<CronetEngine> engines = new ArrayList<>(1);
+    engines.add(checkNotNull(engine));
+    return new CronetEnginePool(engines, RoutingStrategy.HOST_HASH, /* tracksLoad= */ false);
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Returns the number of engines in the pool. */
+  public int getEngineCount() {
+    return shards.size();
+  }
+
+  /** Returns the engine with the given index, in the order the engines were added in. */
+  public CronetEngine getEngine(int index) {
+    checkElementIndex(index, shards.size());
+    return shards.get(index).engine;
+  }
+
+  /** Returns the number of requests started on the given engine which haven't finished yet. */
+  public int getInFlightRequestCount(int index) {
+    checkElementIndex(index, shards.size());
+    return shards.get(index).inFlightRequests.get();
+  }
+
+  /** Returns the total number of requests started on the given engine. */
+  public long getStartedRequestCount(int index) {
+    checkElementIndex(index, shards.size());
+    return shards.get(index).startedRequests.get();
+  }
+
+  /**
+   * Picks the engine for the request. The request built by the caller must use the returned
+   * assignment's callback and be wrapped by {@link Assignment#track(UrlRequest)}.
+   */
+  Assignment assign(Request request, UrlRequest.Callback callback) {
+    Shard shard = selectShard(request);
+    if (!tracksLoad) {
+      return new Assignment(shard.engine, callback, /* tracker= */ null);
+    }
+    LoadTracker tracker = new LoadTracker(shard, callback);
+    return new Assignment(shard.engine, tracker, tracker);
+  }
+
+  private Shard selectShard(Request request) {
+    int shardCount = shards.size();
+    if (shardCount == 1) {
+      return shards.get(0);
+    }
+    switch (routingStrategy) {
+      case HOST_HASH:
+        return shards.get((request.url().host().hashCode() & Integer.MAX_VALUE) % shardCount);
+      case LEAST_IN_FLIGHT:
+        int firstIndex = (nextShardIndex.getAndIncrement() & Integer.MAX_VALUE) % shardCount;
+        Shard leastLoaded = null;
+        for (int i = 0; i < shardCount; i++) {
+          Shard shard = shards.get((firstIndex + i) % shardCount);
+          if (leastLoaded == null
+              || shard.inFlightRequests.get() < leastLoaded.inFlightRequests.get()) {
+            leastLoaded = shard;
+          }
+        }
+        return leastLoaded;
+    }
+    throw new AssertionError("The switch block above is exhaustive!");
+  }
+
+  /** The engine assigned to a single request. */
+  static final class Assignment {
+    private final CronetEngine engine;
+    private final UrlRequest.Callback callback;
+    @Nullable private final LoadTracker tracker;
+
+    private Assignment(
+        CronetEngine engine, UrlRequest.Callback callback, @Nullable LoadTracker tracker) {
+      this.engine = engine;
+      this.callback = callback;
+      this.tracker = tracker;
+    }
+
+    CronetEngine engine() {
+      return engine;
+    }
+
+    /** Returns the callback the request must be built with. */
+    UrlRequest.Callback callback() {
+      return callback;
+    }
+
+    /** Wraps the built request so that its load is accounted to the engine. */
+    UrlRequest track(UrlRequest request) {
+      if (tracker == null) {
+        return request;
+      }
+      tracker.request = request;
+      return tracker.trackedRequest;
+    }
+  }
+
+  private static final class Shard {
+    private final CronetEngine engine;
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AtomicLong startedRequests = new AtomicLong();
+
+    private Shard(CronetEngine engine) {
+      this.engine = engine;
+    }
+  }
+
+  /**
+   * Counts a request as in flight from the moment it's started until Cronet invokes one of the
+   * terminal callbacks. Requests which are never started aren't counted at all.
+   */
+  private static final class LoadTracker extends UrlRequest.Callback {
+    private final Shard shard;
+    private final UrlRequest.Callback delegate;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile UrlRequest request;
+
+    private final UrlRequest trackedRequest =
+        new UrlRequest() {
+          @Override
+          public void start() {
+            shard.inFlightRequests.incrementAndGet();
+            shard.startedRequests.incrementAndGet();
+            try {
+              request.start();
+            } catch (RuntimeException e) {
+              // No terminal callback follows a request which fails to start.
+              finish();
+              throw e;
+            }
+          }
+
+          @Override
+          public void followRedirect() {
+            request.followRedirect();
+          }
+
+          @Override
+          public void read(ByteBuffer buffer) {
+            request.read(buffer);
+          }
+
+          @Override
+          public void cancel() {
+            request.cancel();
+          }
+
+          @Override
+          public boolean isDone() {
+            return request.isDone();
+          }
+
+          @Override
+          public void getStatus(StatusListener listener) {
+            request.getStatus(listener);
+          }
+        };
+
+    private LoadTracker(Shard shard, UrlRequest.Callback delegate) {
+      this.shard = shard;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void onRedirectReceived(UrlRequest urlRequest, UrlResponseInfo info, String newUrl)
+        throws Exception {
+      delegate.onRedirectReceived(trackedRequest, info, newUrl);
+    }
+
+    @Override
+    public void onResponseStarted(UrlRequest urlRequest, UrlResponseInfo info) throws Exception {
+      delegate.onResponseStarted(trackedRequest, info);
+    }
+
+    @Override
+    public void onReadCompleted(UrlRequest urlRequest, UrlResponseInfo info, ByteBuffer byteBuffer)
+        throws Exception {
+      delegate.onReadCompleted(trackedRequest, info, byteBuffer);
+    }
+
+    @Override
+    public void onSucceeded(UrlRequest urlRequest, UrlResponseInfo info) {
+      finish();
+      delegate.onSucceeded(trackedRequest, info);
+    }
+
+    @Override
+    public void onFailed(UrlRequest urlRequest, UrlResponseInfo info, CronetException error) {
+      finish();
+      delegate.onFailed(trackedRequest, info, error);
+    }
+
+    @Override
+    public void onCanceled(UrlRequest urlRequest, UrlResponseInfo info) {
+      finish();
+      delegate.onCanceled(trackedRequest, info);
+    }
+
+    private void finish() {
+      if (!finished.getAndSet(true)) {
+        shard.inFlightRequests.decrementAndGet();
+      }
+    }
+  }
+
+  /** A builder for {@link CronetEnginePool}. */
+  public static final class Builder {
+    private final List<CronetEngine> engines = new ArrayList<>();
+    private RoutingStrategy routingStrategy = RoutingStrategy.HOST_HASH;
+
+    Builder() {}
+
+    /** Adds an engine to the pool. */
+    public Builder addEngine(CronetEngine engine) {
+      engines.add(checkNotNull(engine));
+      return this;
+    }
+
+    /**
+     * Sets how requests are assigned to the engines. Defaults to {@link RoutingStrategy#HOST_HASH}.
+     */
+    public Builder setRoutingStrategy(RoutingStrategy routingStrategy) {
+      this.routingStrategy = checkNotNull(routingStrategy);
+      return this;
+    }
+
+    public CronetEnginePool build() {
+      checkArgument(!engines.isEmpty(), "At least one engine must be added!");
+      return new CronetEnginePool(engines, routingStrategy, /* tracksLoad= */ true);
+    }
+  }
+}
@@ -20,20 +20,29 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import android.util.Log;
+import androidx.annotation.VisibleForTesting;
 import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestAndOkHttpResponse;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Interceptor;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Timeout;
 import org.chromium.net.CronetEngine;
 import org.chromium.net.UrlRequest;
 
@@ -61,39 +70,41 @@ public final class CronetInterceptor implements Interceptor, AutoCloseable {
 
   private final RequestResponseConverter converter;
   private final Map<Call, UrlRequest> activeCalls = new ConcurrentHashMap<>();
-  private final ScheduledExecutorService scheduledExecutor = new ScheduledThreadPoolExecutor(1);
+  private final ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1);
+
+  /**
+   * Calls created through {@link #wrapCallFactory}. Their cancellation is propagated straight
+   * away so they don't need to be polled. Weakly referenced as there's no guarantee the calls ever
+   * reach this interceptor.
+   */
+  @GuardedBy("cancellationAwareCalls")
+  private final Set<Call> cancellationAwareCalls =
+      Collections.newSetFromMap(new WeakHashMap<Call, Boolean>());
+
+  private final Object pollerLock = new Object();
+
+  /** Active calls which can only be canceled by polling {@link Call#isCanceled()}. */
+  @GuardedBy("pollerLock")
+  private final Map<Call, UrlRequest> polledCalls = new HashMap<>();
+
+  /** The periodic cancellation check, only scheduled while there are calls to poll. */
+  @GuardedBy("pollerLock")
+  @Nullable
+  private ScheduledFuture<?> pollerFuture;
 
   private CronetInterceptor(RequestResponseConverter converter) {
     this.converter = checkNotNull(converter);
 
-    // TODO(danstahr): There's no other way to know if the call is canceled but polling
-    //  (https://github.com/square/okhttp/issues/7164).
-    ScheduledFuture<?> unusedFuture =
-        scheduledExecutor.scheduleAtFixedRate(
-            () -> {
-              Iterator<Entry<Call, UrlRequest>> activeCallsIterator =
-                  activeCalls.entrySet().iterator();
-
-              while (activeCallsIterator.hasNext()) {
-                try {
-                  Entry<Call, UrlRequest> activeCall = activeCallsIterator.next();
-                  if (activeCall.getKey().isCanceled()) {
-                    activeCallsIterator.remove();
-                    activeCall.getValue().cancel();
-                  }
-                } catch (RuntimeException e) {
-                  Log.w(TAG, "Unable to propagate cancellation status", e);
-                }
-              }
-            },
-            CANCELLATION_CHECK_INTERVAL_MILLIS,
-            CANCELLATION_CHECK_INTERVAL_MILLIS,
-            MILLISECONDS);
+    // Let the polling thread die while there's nothing to poll.
+    scheduledExecutor.setKeepAliveTime(CANCELLATION_CHECK_INTERVAL_MILLIS, MILLISECONDS);
+    scheduledExecutor.allowCoreThreadTimeOut(true);
+    scheduledExecutor.setRemoveOnCancelPolicy(true);
   }
 
   @Override
   public Response intercept(Chain chain) throws IOException {
-    if (chain.call().isCanceled()) {
+    Call call = chain.call();
+    if (call.isCanceled()) {
       throw new IOException("Canceled");
     }
 
@@ -102,29 +113,136 @@ public final class CronetInterceptor implements Interceptor, AutoCloseable {
     CronetRequestAndOkHttpResponse requestAndOkHttpResponse =
         converter.convert(request, chain.readTimeoutMillis(), chain.writeTimeoutMillis());
 
-    activeCalls.put(chain.call(), requestAndOkHttpResponse.getRequest());
-
     try {
-      requestAndOkHttpResponse.getRequest().start();
-      return toInterceptorResponse(requestAndOkHttpResponse.getResponse(), chain.call());
+      trackCall(call, requestAndOkHttpResponse.getRequest());
+
+      // Same as in CronetCallFactory, check once again after the call is tracked so a concurrent
+      // cancel() either sees the request or is seen here.
+      if (call.isCanceled()) {
+        requestAndOkHttpResponse.getRequest().cancel();
+      } else {
+        requestAndOkHttpResponse.getRequest().start();
+      }
+      return toInterceptorResponse(requestAndOkHttpResponse.getResponse(), call);
     } catch (RuntimeException | IOException e) {
       // If the response is retrieved successfully the caller is responsible for closing
       // the response, which will remove it from the active calls map.
-      activeCalls.remove(chain.call());
+      untrackCall(call);
       throw e;
     }
   }
 
+  /**
+   * Wraps the given call factory (typically the {@link okhttp3.OkHttpClient} this interceptor is
+   * installed in) so that canceling the calls it creates cancels the underlying Cronet request
+   * immediately.
+   *
+   * <p>Calls which don't come from a wrapped factory are still canceled, but the cancellation is
+   * only noticed by a periodic check.
+   */
+  public Call.Factory wrapCallFactory(Call.Factory delegate) {
+    checkNotNull(delegate);
+    return request -> new CancellationAwareCall(delegate.newCall(request));
+  }
+
   /** Creates a {@link CronetInterceptor} builder. */
   public static Builder newBuilder(CronetEngine cronetEngine) {
     return new Builder(cronetEngine);
   }
 
+  /** Creates a builder of an interceptor which spreads its requests across the engine pool. */
+  public static Builder newBuilder(CronetEnginePool enginePool) {
+    return new Builder(enginePool);
+  }
+
+  /**
+   * Stops the periodic cancellation check. Calls which aren't created through {@link
+   * #wrapCallFactory} still go through afterwards, but canceling them no longer cancels the
+   * underlying Cronet request, which then runs until it completes or times out.
+   */
   @Override
   public void close() {
     scheduledExecutor.shutdown();
   }
 
+  private void trackCall(Call call, UrlRequest urlRequest) {
+    activeCalls.put(call, urlRequest);
+
+    boolean cancellationAware;
+    synchronized (cancellationAwareCalls) {
+      cancellationAware = cancellationAwareCalls.contains(call);
+    }
+    if (cancellationAware) {
+      return;
+    }
+
+    synchronized (pollerLock) {
+      // Shutting down the executor also stops a poller which is already scheduled. Once the
+      // interceptor is closed, the call simply isn't checked for cancellation.
+      if (scheduledExecutor.isShutdown()) {
+        return;
+      }
+      if (pollerFuture == null) {
+        // TODO(danstahr): There's no other way to know if the call is canceled but polling
+        //  (https://github.com/square/okhttp/issues/7164).
+        try {
+          pollerFuture =
+              scheduledExecutor.scheduleAtFixedRate(
+                  this::cancelPolledCalls,
+                  CANCELLATION_CHECK_INTERVAL_MILLIS,
+                  CANCELLATION_CHECK_INTERVAL_MILLIS,
+                  MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          // Closed concurrently.
+          return;
+        }
+      }
+      polledCalls.put(call, urlRequest);
+    }
+  }
+
+  @VisibleForTesting
+  int activeCallCount() {
+    return activeCalls.size();
+  }
+
+  private void untrackCall(Call call) {
+    activeCalls.remove(call);
+
+    synchronized (pollerLock) {
+      if (polledCalls.remove(call) != null && polledCalls.isEmpty() && pollerFuture != null) {
+        pollerFuture.cancel(false);
+        pollerFuture = null;
+      }
+    }
+  }
+
+  private void cancelPolledCalls() {
+    List<Call> canceledCalls = new ArrayList<>();
+    synchronized (pollerLock) {
+      for (Call call : polledCalls.keySet()) {
+        try {
+          if (call.isCanceled()) {
+            canceledCalls.add(call);
+          }
+        } catch (RuntimeException e) {
+          Log.w(TAG, "Unable to propagate cancellation status", e);
+        }
+      }
+    }
+    for (Call call : canceledCalls) {
+      cancelActiveRequest(call);
+    }
+  }
+
+  private void cancelActiveRequest(Call call) {
+    UrlRequest urlRequest = activeCalls.get(call);
+    untrackCall(call);
+    if (urlRequest != null) {
+      urlRequest.cancel();
+    }
+  }
+
   /** A builder for {@link CronetInterceptor}. */
   public static final class Builder
       extends RequestResponseConverterBasedBuilder<Builder, CronetInterceptor> {
@@ -133,6 +251,10 @@ public final class CronetInterceptor implements Interceptor, AutoCloseable {
       super(cronetEngine, Builder.class);
     }
 
+    Builder(CronetEnginePool enginePool) {
+      super(enginePool, Builder.class);
+    }
+
     /** Builds the interceptor. The same builder can be used to build multiple interceptors. */
     @Override
     CronetInterceptor build(RequestResponseConverter converter) {
@@ -163,7 +285,71 @@ public final class CronetInterceptor implements Interceptor, AutoCloseable {
 
     @Override
     void customCloseHook() {
-      activeCalls.remove(call);
+      untrackCall(call);
+    }
+  }
+
+  /** A call which notifies the interceptor as soon as it's canceled. */
+  private class CancellationAwareCall implements Call {
+    private final Call delegate;
+
+    private CancellationAwareCall(Call delegate) {
+      this.delegate = delegate;
+      synchronized (cancellationAwareCalls) {
+        cancellationAwareCalls.add(delegate);
+      }
+    }
+
+    @Override
+    public Request request() {
+      return delegate.request();
+    }
+
+    @Override
+    public Response execute() throws IOException {
+      return delegate.execute();
+    }
+
+    @Override
+    public void enqueue(Callback responseCallback) {
+      delegate.enqueue(
+          new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+              responseCallback.onFailure(CancellationAwareCall.this, e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+              responseCallback.onResponse(CancellationAwareCall.this, response);
+            }
+          });
+    }
+
+    @Override
+    public void cancel() {
+      delegate.cancel();
+      cancelActiveRequest(delegate);
+    }
+
+    @Override
+    public boolean isExecuted() {
+      return delegate.isExecuted();
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return delegate.isCanceled();
+    }
+
+    @Override
+    public Timeout timeout() {
+      return delegate.timeout();
+    }
+
+    @Override
+    public Call clone() {
+      return new CancellationAwareCall(delegate.clone());
     }
   }
 }
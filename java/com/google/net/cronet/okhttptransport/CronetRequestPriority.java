@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import okhttp3.Request;
+import org.chromium.net.UrlRequest;
+
+/**
+ * The priority of a request sent through the Cronet transport.
+ *
+ * <p>The priority is set by tagging the request:
+ *
+ * <pre>
+ *   Request request = new Request.Builder()
+ *       .url(url)
+ *       .tag(CronetRequestPriority.class, CronetRequestPriority.HIGHEST)
+ *       .build();
+ * </pre>
+ *
+ * <p>The priority is passed to Cronet, which uses it to order requests competing for the network,
+ * and it's also respected by {@link CronetDispatcher} when ordering queued calls. Requests without
+ * a priority tag have the {@link #LOWEST} priority if they're tagged as {@link
+ * CronetTrafficClass#BACKGROUND background} traffic, and the {@link #MEDIUM} priority, which is
+ * Cronet's default, otherwise.
+ */
+public enum CronetRequestPriority {
+  IDLE(UrlRequest.Builder.REQUEST_PRIORITY_IDLE),
+  LOWEST(UrlRequest.Builder.REQUEST_PRIORITY_LOWEST),
+  LOW(UrlRequest.Builder.REQUEST_PRIORITY_LOW),
+  MEDIUM(UrlRequest.Builder.REQUEST_PRIORITY_MEDIUM),
+  HIGHEST(UrlRequest.Builder.REQUEST_PRIORITY_HIGHEST);
+
+  private final int cronetPriority;
+
+  CronetRequestPriority(int cronetPriority) {
+    this.cronetPriority = cronetPriority;
+  }
+
+  /** Returns the matching {@code UrlRequest.Builder.REQUEST_PRIORITY_*} constant. */
+  int cronetPriority() {
+    return cronetPriority;
+  }
+
+  /**
+   * Returns the priority the request is tagged with, or the default priority of its traffic class
+   * if it isn't tagged.
+   */
+  static CronetRequestPriority of(Request request) {
+    CronetRequestPriority priority = request.tag(CronetRequestPriority.class);
+    if (priority != null) {
+      return priority;
+    }
+    return CronetTrafficClass.of(request) == CronetTrafficClass.BACKGROUND ? LOWEST : MEDIUM;
+  }
+}
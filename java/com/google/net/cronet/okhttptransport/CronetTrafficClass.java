@@ -0,0 +1,51 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import okhttp3.Request;
+
+/**
+ * The kind of traffic a request belongs to.
+ *
+ * <p>The traffic class is set by tagging the request:
+ *
+ * <pre>
+ *   Request request = new Request.Builder()
+ *       .url(url)
+ *       .tag(CronetTrafficClass.class, CronetTrafficClass.BACKGROUND)
+ *       .build();
+ * </pre>
+ *
+ * <p>Untagged requests are {@link #INTERACTIVE}. Background requests get a lower default {@link
+ * CronetRequestPriority}, can be {@link CronetDispatcher.Builder#setBackgroundCallsDeferred
+ * deferred} while interactive calls are running, can be {@link BandwidthLimits limited}, and can
+ * use separate threads and smaller buffers (see {@code setBackgroundTrafficIsolated} on the
+ * interceptor and call factory builders).
+ */
+public enum CronetTrafficClass {
+  /** Requests the user is waiting for. */
+  INTERACTIVE,
+  /** Prefetching, syncs and other requests the user isn't waiting for. */
+  BACKGROUND;
+
+  /** Returns the class the request is tagged with, or {@link #INTERACTIVE} if it isn't tagged. */
+  static CronetTrafficClass of(Request request) {
+    CronetTrafficClass trafficClass = request.tag(CronetTrafficClass.class);
+    return trafficClass != null ? trafficClass : INTERACTIVE;
+  }
+}
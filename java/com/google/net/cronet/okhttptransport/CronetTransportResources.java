@@ -0,0 +1,222 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The threads, buffers and timer used by the transport, shared by any number of {@link
+ * CronetCallFactory} and {@link CronetInterceptor} instances. {@link CronetDuplexCallFactory}
+ * instances can share the buffers and the timer.
+ *
+ * <p>By default, each call factory and interceptor creates its own thread pools, which are never
+ * shut down. Applications building several of them should create a single instance of this class
+ * instead, pass it to all the builders, and close it once the transport isn't needed anymore.
+ *
+ * <p>{@link CronetTrafficClass#BACKGROUND Background} requests of call factories and interceptors
+ * built with {@code setBackgroundTrafficIsolated(true)} use a separate single thread upload pool,
+ * a separate callback pool and smaller response buffers.
+ *
+ * <p>The idle threads of all the pools time out, so an unused instance doesn't hold any threads.
+ * The timeouts of the transport are enforced by a timer owned by the instance, which stops its
+ * thread when there's nothing to time out and for good once the instance is closed.
+ */
+public final class CronetTransportResources implements Closeable {
+  private final ExecutorService uploadDataProviderExecutor;
+  private final ExecutorService requestBodyReaderExecutor;
+  private final ExecutorService callbackExecutor;
+  private final ByteBufferPool responseBufferPool;
+  private final ExecutorService backgroundUploadDataProviderExecutor;
+  private final ExecutorService backgroundCallbackExecutor;
+  private final ByteBufferPool backgroundResponseBufferPool;
+  private final TimingWheel timingWheel;
+  private final long drainTimeoutMillis;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  private CronetTransportResources(Builder builder) {
+    ExecutorStrategy executorStrategy = builder.executorStrategy;
+    this.uploadDataProviderExecutor =
+        executorStrategy.newUploadDataProviderExecutor(
+            "CronetUploadDataProvider", builder.uploadDataProviderExecutorSize);
+    // There must always be enough executors to blocking-read the OkHttp request bodies, otherwise
+    // deadlocks can occur. Hence an unbounded executor.
+    this.requestBodyReaderExecutor =
+        executorStrategy.newBlockingTaskExecutor("CronetRequestBodyReader");
+    this.callbackExecutor = executorStrategy.newBlockingTaskExecutor("CronetCallback");
+    this.responseBufferPool =
+        new ByteBufferPool(
+            OkHttpBridgeRequestCallback.CRONET_BYTE_BUFFER_CAPACITY, builder.maxPooledBuffers);
+    this.backgroundUploadDataProviderExecutor =
+        executorStrategy.newUploadDataProviderExecutor(
+            "CronetBackgroundUploadDataProvider", /* size= */ 1);
+    this.backgroundCallbackExecutor =
+        executorStrategy.newBlockingTaskExecutor("CronetBackgroundCallback");
+    this.backgroundResponseBufferPool =
+        new ByteBufferPool(
+            OkHttpBridgeRequestCallback.BACKGROUND_BYTE_BUFFER_CAPACITY,
+            builder.maxPooledBuffers / 4);
+    this.timingWheel = TimingWheel.withWorkerThread("CronetTimingWheel");
+    this.drainTimeoutMillis = builder.drainTimeoutMillis;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  ExecutorService uploadDataProviderExecutor() {
+    return uploadDataProviderExecutor;
+  }
+
+  ExecutorService requestBodyReaderExecutor() {
+    return requestBodyReaderExecutor;
+  }
+
+  ExecutorService callbackExecutor() {
+    return callbackExecutor;
+  }
+
+  ByteBufferPool responseBufferPool() {
+    return responseBufferPool;
+  }
+
+  ExecutorService backgroundUploadDataProviderExecutor() {
+    return backgroundUploadDataProviderExecutor;
+  }
+
+  ExecutorService backgroundCallbackExecutor() {
+    return backgroundCallbackExecutor;
+  }
+
+  ByteBufferPool backgroundResponseBufferPool() {
+    return backgroundResponseBufferPool;
+  }
+
+  TimingWheel timingWheel() {
+    return timingWheel;
+  }
+
+  /** Returns whether {@link #close()} has been called. */
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  /**
+   * Releases the resources. No new work is accepted, the work in progress (uploads, response
+   * callbacks) is given up to the drain timeout to finish and is interrupted afterwards. The
+   * timeouts keep being enforced while the work drains, the timer is stopped last.
+   *
+   * <p>The call factories and interceptors using the resources mustn't be used after closing.
+   * This method blocks until the threads terminate or the drain timeout elapses.
+   */
+  @Override
+  public void close() {
+    if (closed.getAndSet(true)) {
+      return;
+    }
+    ExecutorService[] executors = {
+      callbackExecutor,
+      backgroundCallbackExecutor,
+      uploadDataProviderExecutor,
+      backgroundUploadDataProviderExecutor,
+      requestBodyReaderExecutor
+    };
+    for (ExecutorService executor : executors) {
+      executor.shutdown();
+    }
+
+    long deadlineNanos = System.nanoTime() + MILLISECONDS.toNanos(drainTimeoutMillis);
+    try {
+      for (ExecutorService executor : executors) {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0 || !executor.awaitTermination(remainingNanos, NANOSECONDS)) {
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // No-ops for the executors which already terminated.
+      for (ExecutorService executor : executors) {
+        executor.shutdownNow();
+      }
+      responseBufferPool.clear();
+      backgroundResponseBufferPool.clear();
+      timingWheel.stop();
+    }
+  }
+
+  /** A builder for {@link CronetTransportResources}. */
+  public static final class Builder {
+    private static final int DEFAULT_THREAD_POOL_SIZE = 4;
+    private static final int DEFAULT_MAX_POOLED_BUFFERS = 16;
+    private static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5000;
+
+    private int uploadDataProviderExecutorSize = DEFAULT_THREAD_POOL_SIZE;
+    private int maxPooledBuffers = DEFAULT_MAX_POOLED_BUFFERS;
+    private long drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+    private ExecutorStrategy executorStrategy = ExecutorStrategy.platformThreads();
+
+    Builder() {}
+
+    /**
+     * Sets the threads the executors use. Defaults to {@link ExecutorStrategy#platformThreads()}.
+     */
+    public Builder setExecutorStrategy(ExecutorStrategy executorStrategy) {
+      this.executorStrategy = checkNotNull(executorStrategy);
+      return this;
+    }
+
+    /**
+     * Sets the size of the upload data provider executor shared by all the users of the resources.
+     * Defaults to 4.
+     */
+    public Builder setUploadDataProviderExecutorSize(int size) {
+      checkArgument(size > 0, "The number of threads must be positive!");
+      this.uploadDataProviderExecutorSize = size;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of idle response body buffers (32 KiB each) kept for reuse. Defaults
+     * to 16, 0 disables the pooling.
+     */
+    public Builder setMaxPooledBuffers(int maxPooledBuffers) {
+      checkArgument(maxPooledBuffers >= 0, "The pool size mustn't be negative!");
+      this.maxPooledBuffers = maxPooledBuffers;
+      return this;
+    }
+
+    /** Sets how long {@link #close()} waits for the work in progress. Defaults to 5 seconds. */
+    public Builder setDrainTimeoutMillis(long drainTimeoutMillis) {
+      checkArgument(drainTimeoutMillis >= 0, "The drain timeout mustn't be negative!");
+      this.drainTimeoutMillis = drainTimeoutMillis;
+      return this;
+    }
+
+    public CronetTransportResources build() {
+      return new CronetTransportResources(this);
+    }
+  }
+}
@@ -17,16 +17,40 @@
 package com.google.net.cronet.okhttptransport;
 
 import androidx.annotation.Nullable;
+import java.io.IOException;
+import javax.annotation.concurrent.GuardedBy;
 import okhttp3.MediaType;
 import okhttp3.ResponseBody;
+import okio.Buffer;
 import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
 
 abstract class CronetTransportResponseBody extends ResponseBody {
 
   private final ResponseBody delegate;
 
+  /** Notified about the progress of reading the body, if anyone's interested. */
+  @Nullable private final BodyListener listener;
+
+  /** The source counting the bytes read, created on first use. Only used with a listener. */
+  @Nullable private BufferedSource observedSource;
+
+  /** The progress of reading the body. Only updated by the thread reading it. */
+  private long bytesRead;
+
+  private boolean bodyStarted;
+
+  @GuardedBy("this")
+  private boolean bodyEnded;
+
   protected CronetTransportResponseBody(ResponseBody delegate) {
+    this(delegate, null);
+  }
+
+  CronetTransportResponseBody(ResponseBody delegate, @Nullable BodyListener listener) {
     this.delegate = delegate;
+    this.listener = listener;
   }
 
   @Nullable
@@ -42,14 +66,71 @@ abstract class CronetTransportResponseBody extends ResponseBody {
 
   @Override
   public final BufferedSource source() {
-    return delegate.source();
+    if (listener == null) {
+      return delegate.source();
+    }
+    synchronized (this) {
+      if (observedSource == null) {
+        observedSource = Okio.buffer(new ObservingSource(delegate.source()));
+      }
+      return observedSource;
+    }
   }
 
   @Override
   public final void close() {
     delegate.close();
+    if (listener != null) {
+      endBody();
+    }
     customCloseHook();
   }
 
   abstract void customCloseHook();
+
+  private synchronized void endBody() {
+    if (!bodyEnded) {
+      bodyEnded = true;
+      listener.onBodyEnd(bytesRead);
+    }
+  }
+
+  /** Receives the events of reading the body. */
+  interface BodyListener {
+    /** Invoked when the body is first read from. */
+    void onBodyStart();
+
+    /** Invoked once the body is read in full or closed, whichever comes first. */
+    void onBodyEnd(long byteCount);
+
+    /** Invoked when reading the body fails. */
+    void onBodyFailed(IOException e);
+  }
+
+  private class ObservingSource extends ForwardingSource {
+    ObservingSource(BufferedSource delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+      if (!bodyStarted) {
+        bodyStarted = true;
+        listener.onBodyStart();
+      }
+      long read;
+      try {
+        read = super.read(sink, byteCount);
+      } catch (IOException e) {
+        listener.onBodyFailed(e);
+        throw e;
+      }
+      if (read == -1) {
+        endBody();
+      } else {
+        bytesRead += read;
+      }
+      return read;
+    }
+  }
 }
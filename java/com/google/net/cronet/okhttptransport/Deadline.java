@@ -0,0 +1,81 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.base.Ticker;
+
+/**
+ * The point in time by which a call must complete. Individual network operations of the call (each
+ * read, write and redirect) are only given the part of their timeout which fits before the
+ * deadline.
+ */
+final class Deadline {
+  /** A deadline which never expires. */
+  static final Deadline NONE = new Deadline(Ticker.systemTicker(), 0, /* hasDeadline= */ false);
+
+  private final Ticker ticker;
+  private final long deadlineNanos;
+  private final boolean hasDeadline;
+
+  private Deadline(Ticker ticker, long deadlineNanos, boolean hasDeadline) {
+    this.ticker = ticker;
+    this.deadlineNanos = deadlineNanos;
+    this.hasDeadline = hasDeadline;
+  }
+
+  /** Returns a deadline which expires {@code timeoutNanos} from now. */
+  static Deadline after(long timeoutNanos) {
+    return after(Ticker.systemTicker(), timeoutNanos);
+  }
+
+  static Deadline after(Ticker ticker, long timeoutNanos) {
+    return new Deadline(ticker, ticker.read() + timeoutNanos, /* hasDeadline= */ true);
+  }
+
+  /** Returns whether the deadline ever expires. */
+  boolean hasDeadline() {
+    return hasDeadline;
+  }
+
+  boolean isExpired() {
+    return hasDeadline && deadlineNanos - ticker.read() <= 0;
+  }
+
+  /** Returns the time left until the deadline, or {@link Long#MAX_VALUE} if there's none. */
+  long remainingNanos() {
+    return hasDeadline ? deadlineNanos - ticker.read() : Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns the timeout for an operation with the given timeout, shortened so that it doesn't run
+   * past the deadline. Like the timeouts, 0 means that the operation doesn't time out. Once the
+   * deadline is reached, the shortest possible timeout is returned, callers should check {@link
+   * #isExpired()} before starting the operation.
+   */
+  long clampTimeoutMillis(long timeoutMillis) {
+    if (!hasDeadline) {
+      return timeoutMillis;
+    }
+    long remainingNanos = remainingNanos();
+    // Round up, a timeout slightly past the deadline is better than none.
+    long remainingMillis = Math.max(1, (remainingNanos + MILLISECONDS.toNanos(1) - 1) / 1_000_000);
+    return timeoutMillis == 0 ? remainingMillis : Math.min(timeoutMillis, remainingMillis);
+  }
+}
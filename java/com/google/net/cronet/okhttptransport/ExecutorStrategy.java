@@ -0,0 +1,174 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import javax.annotation.Nullable;
+
+/**
+ * Defines the threads the blocking parts of the transport run on: the upload data providers
+ * waiting for the OkHttp request bodies, the tasks writing the request bodies, and the response
+ * callbacks of {@link CronetCallFactory}.
+ *
+ * <p>All of these spend most of their time waiting, so on a JVM with virtual threads (Java 21+),
+ * {@link #virtualThreads()} lets the transport run thousands of concurrent uploads without a
+ * thread for each of them. On Android, only {@link #platformThreads()} is available.
+ *
+ * <p>Applications with their own threading, for example a custom thread factory or pools
+ * instrumented for monitoring, can extend the class. The executors are owned by the transport:
+ * {@link CronetTransportResources#close()} shuts them down, so a strategy must return new executors
+ * rather than shared ones. The response callbacks can also be delivered on an executor of the
+ * application, see {@link CronetCallFactory.Builder#setCallbackExecutorService}.
+ */
+public abstract class ExecutorStrategy {
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+
+  protected ExecutorStrategy() {}
+
+  /**
+   * Creates an executor for tasks which block. The executor must never queue a task while all its
+   * threads are busy, as the tasks can wait for each other. A bounded pool leads to deadlocks.
+   */
+  protected abstract ExecutorService newBlockingTaskExecutor(String threadNamePrefix);
+
+  /**
+   * Creates the executor Cronet invokes the upload data providers on, running up to {@code size}
+   * tasks at a time. Strategies which make blocking cheap can ignore the size.
+   */
+  protected abstract ExecutorService newUploadDataProviderExecutor(
+      String threadNamePrefix, int size);
+
+  /**
+   * Returns a strategy which uses pools of platform threads. Idle threads are released after a
+   * minute. This is the default.
+   */
+  public static ExecutorStrategy platformThreads() {
+    return PlatformThreadsHolder.INSTANCE;
+  }
+
+  /**
+   * Returns a strategy which starts a virtual thread for each task.
+   *
+   * @throws UnsupportedOperationException if the runtime doesn't support virtual threads
+   * @see #isVirtualThreadSupported()
+   */
+  public static ExecutorStrategy virtualThreads() {
+    if (VirtualThreadsHolder.INSTANCE == null) {
+      throw new UnsupportedOperationException("Virtual threads aren't supported by the runtime");
+    }
+    return VirtualThreadsHolder.INSTANCE;
+  }
+
+  /** Returns whether the runtime supports virtual threads. */
+  public static boolean isVirtualThreadSupported() {
+    return VirtualThreadsHolder.INSTANCE != null;
+  }
+
+  private static ThreadFactory newPlatformThreadFactory(String threadNamePrefix) {
+    return new ThreadFactoryBuilder()
+        .setNameFormat(threadNamePrefix + "-%d")
+        .setDaemon(true)
+        .build();
+  }
+
+  private static class PlatformThreadsHolder {
+    private static final ExecutorStrategy INSTANCE =
+        new ExecutorStrategy() {
+          @Override
+          protected ExecutorService newBlockingTaskExecutor(String threadNamePrefix) {
+            return new ThreadPoolExecutor(
+                0,
+                Integer.MAX_VALUE,
+                IDLE_THREAD_TIMEOUT_SECONDS,
+                SECONDS,
+                new SynchronousQueue<>(),
+                newPlatformThreadFactory(threadNamePrefix));
+          }
+
+          @Override
+          protected ExecutorService newUploadDataProviderExecutor(
+              String threadNamePrefix, int size) {
+            ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                    size,
+                    size,
+                    IDLE_THREAD_TIMEOUT_SECONDS,
+                    SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    newPlatformThreadFactory(threadNamePrefix));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+          }
+        };
+  }
+
+  /**
+   * Holds the virtual thread strategy, or null if virtual threads aren't available. The Java 21
+   * APIs are accessed reflectively as the library is compiled against the Android SDK.
+   */
+  private static class VirtualThreadsHolder {
+    @Nullable private static final ExecutorStrategy INSTANCE = create();
+
+    @Nullable
+    private static ExecutorStrategy create() {
+      Method ofVirtual;
+      Method name;
+      Method factory;
+      Method newThreadPerTaskExecutor;
+      try {
+        ofVirtual = Thread.class.getMethod("ofVirtual");
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        name = builderClass.getMethod("name", String.class, long.class);
+        factory = builderClass.getMethod("factory");
+        newThreadPerTaskExecutor =
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      } catch (ReflectiveOperationException e) {
+        return null;
+      }
+
+      return new ExecutorStrategy() {
+        @Override
+        protected ExecutorService newBlockingTaskExecutor(String threadNamePrefix) {
+          try {
+            Object builder = name.invoke(ofVirtual.invoke(null), threadNamePrefix + "-", 0L);
+            return (ExecutorService)
+                newThreadPerTaskExecutor.invoke(null, (ThreadFactory) factory.invoke(builder));
+          } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Couldn't create a virtual thread executor", e);
+          }
+        }
+
+        @Override
+        protected ExecutorService newUploadDataProviderExecutor(String threadNamePrefix, int size) {
+          // Blocking a virtual thread is cheap, there's no point in limiting the uploads.
+          return newBlockingTaskExecutor(threadNamePrefix);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import javax.annotation.Nullable;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A {@link RequestBody} with the contents of a file.
+ *
+ * <p>This is equivalent to OkHttp's {@code RequestBody.create(MediaType, File)}, but the bridge can
+ * recognize it. Such bodies are uploaded straight from disk without being copied through OkHttp's
+ * buffers, and can be rewound by Cronet (for example when following 307 / 308 redirects).
+ */
+public final class FileRequestBody extends RequestBody implements ReplayableRequestBody {
+  @Nullable private final MediaType contentType;
+  private final File file;
+
+  private FileRequestBody(@Nullable MediaType contentType, File file) {
+    this.contentType = contentType;
+    this.file = checkNotNull(file);
+  }
+
+  /** Creates a request body which uploads the content of the given file. */
+  public static FileRequestBody create(@Nullable MediaType contentType, File file) {
+    return new FileRequestBody(contentType, file);
+  }
+
+  /** Returns the file whose contents are being uploaded. */
+  public File file() {
+    return file;
+  }
+
+  @Nullable
+  @Override
+  public MediaType contentType() {
+    return contentType;
+  }
+
+  /**
+   * Returns the current size of the file.
+   *
+   * @throws FileNotFoundException if the file doesn't exist or isn't a regular file, for which
+   *     {@link File#length()} would report an empty body
+   */
+  @Override
+  public long contentLength() throws IOException {
+    if (!file.isFile()) {
+      throw new FileNotFoundException(file + " doesn't exist or isn't a file");
+    }
+    return file.length();
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    try (Source source = Okio.source(file)) {
+      sink.writeAll(source);
+    }
+  }
+}
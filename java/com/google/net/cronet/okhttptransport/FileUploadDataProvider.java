@@ -0,0 +1,110 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.annotation.Nullable;
+import org.chromium.net.UploadDataProvider;
+import org.chromium.net.UploadDataSink;
+
+/**
+ * An {@link UploadDataProvider} which reads the body straight from a file.
+ *
+ * <p>The data is copied from the file channel directly to Cronet's buffers. Rewinding is supported
+ * by seeking back to the beginning of the file.
+ */
+final class FileUploadDataProvider extends UploadDataProvider {
+  private final File file;
+  private final long length;
+  private final boolean deleteOnClose;
+
+  /** The channel for reading the file, opened lazily on the first read. */
+  @Nullable private FileChannel channel;
+
+  /** The number of bytes read since the last rewind. */
+  private long position = 0;
+
+  FileUploadDataProvider(File file, long length, boolean deleteOnClose) {
+    this.file = file;
+    this.length = length;
+    this.deleteOnClose = deleteOnClose;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public void read(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) throws IOException {
+    if (position == length) {
+      // For known body length we shouldn't be called at all if there's no more data to read.
+      throw new IOException("The source has been exhausted but we expected more data!");
+    }
+    FileChannel localChannel = getChannel();
+    // Don't read past the advertised length even if the file has grown since.
+    int originalLimit = byteBuffer.limit();
+    if (byteBuffer.remaining() > length - position) {
+      byteBuffer.limit(byteBuffer.position() + (int) (length - position));
+    }
+    try {
+      while (byteBuffer.hasRemaining()) {
+        int bytesRead = localChannel.read(byteBuffer);
+        if (bytesRead == -1) {
+          throw new IOException(
+              "Expected " + length + " bytes from " + file + " but got " + position);
+        }
+        position += bytesRead;
+      }
+    } finally {
+      byteBuffer.limit(originalLimit);
+    }
+    uploadDataSink.onReadSucceeded(false);
+  }
+
+  @Override
+  public void rewind(UploadDataSink uploadDataSink) throws IOException {
+    getChannel().position(0);
+    position = 0;
+    uploadDataSink.onRewindSucceeded();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } finally {
+      if (deleteOnClose) {
+        file.delete();
+      }
+    }
+  }
+
+  private FileChannel getChannel() throws IOException {
+    // Cronet doesn't call the provider concurrently so a simple null check is sufficient.
+    if (channel == null) {
+      channel = new FileInputStream(file).getChannel();
+    }
+    return channel;
+  }
+}
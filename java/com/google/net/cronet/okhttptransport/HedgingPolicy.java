@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Configures hedging of requests made through the transport.
+ *
+ * <p>When hedging is enabled, a second, identical Cronet request is started if the first one
+ * hasn't received the response headers within a delay. Whichever of the two requests receives its
+ * headers first is used for the call and the other one is canceled. This cuts the tail latency
+ * caused by slow servers or connections at the cost of some extra traffic.
+ *
+ * <p>Only {@code GET} and {@code HEAD} requests are hedged, as they're idempotent and have no body
+ * which would have to be sent twice.
+ *
+ * <p>By default, the delay adapts to the observed time to first byte, so that only requests slower
+ * than 95% of the recent ones are hedged. The number of hedged requests is capped at a fraction of
+ * all the hedgeable requests.
+ */
+public final class HedgingPolicy {
+  private static final long DEFAULT_INITIAL_DELAY_MILLIS = 1000;
+  private static final long DEFAULT_MIN_DELAY_MILLIS = 10;
+  private static final double DEFAULT_DELAY_PERCENTILE = 0.95;
+  private static final double DEFAULT_MAX_HEDGED_FRACTION = 0.05;
+
+  private final long fixedDelayMillis;
+  private final long initialDelayMillis;
+  private final long minDelayMillis;
+  private final double delayPercentile;
+  private final double maxHedgedFraction;
+
+  private HedgingPolicy(Builder builder) {
+    this.fixedDelayMillis = builder.fixedDelayMillis;
+    this.initialDelayMillis = builder.initialDelayMillis;
+    this.minDelayMillis = builder.minDelayMillis;
+    this.delayPercentile = builder.delayPercentile;
+    this.maxHedgedFraction = builder.maxHedgedFraction;
+  }
+
+  /** Returns a policy with an adaptive delay which hedges at most 5% of the requests. */
+  public static HedgingPolicy adaptive() {
+    return newBuilder().build();
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Returns the fixed hedging delay, or 0 if the delay is adaptive. */
+  long fixedDelayMillis() {
+    return fixedDelayMillis;
+  }
+
+  /** Returns the adaptive delay used until enough requests have been observed. */
+  long initialDelayMillis() {
+    return initialDelayMillis;
+  }
+
+  /** Returns the lower bound of the adaptive delay. */
+  long minDelayMillis() {
+    return minDelayMillis;
+  }
+
+  /** Returns the percentile of the observed time to first byte used as the adaptive delay. */
+  double delayPercentile() {
+    return delayPercentile;
+  }
+
+  /** Returns the maximum fraction of the hedgeable requests which can be hedged. */
+  double maxHedgedFraction() {
+    return maxHedgedFraction;
+  }
+
+  /** Builder for {@link HedgingPolicy}. */
+  public static final class Builder {
+    private long fixedDelayMillis = 0; // Adaptive
+    private long initialDelayMillis = DEFAULT_INITIAL_DELAY_MILLIS;
+    private long minDelayMillis = DEFAULT_MIN_DELAY_MILLIS;
+    private double delayPercentile = DEFAULT_DELAY_PERCENTILE;
+    private double maxHedgedFraction = DEFAULT_MAX_HEDGED_FRACTION;
+
+    Builder() {}
+
+    /**
+     * Sets a fixed delay after which requests without response headers are hedged. By default, the
+     * delay is adaptive.
+     */
+    public Builder setFixedDelayMillis(long delayMillis) {
+      checkArgument(delayMillis > 0, "The delay must be positive!");
+      this.fixedDelayMillis = delayMillis;
+      return this;
+    }
+
+    /**
+     * Sets the delay used before enough requests have been observed to compute the adaptive delay.
+     * Defaults to 1 second.
+     */
+    public Builder setInitialDelayMillis(long delayMillis) {
+      checkArgument(delayMillis > 0, "The delay must be positive!");
+      this.initialDelayMillis = delayMillis;
+      return this;
+    }
+
+    /** Sets the lower bound of the adaptive delay. Defaults to 10 milliseconds. */
+    public Builder setMinDelayMillis(long delayMillis) {
+      checkArgument(delayMillis > 0, "The delay must be positive!");
+      this.minDelayMillis = delayMillis;
+      return this;
+    }
+
+    /**
+     * Sets the percentile of the observed time to first byte which is used as the adaptive delay.
+     * Defaults to 0.95.
+     */
+    public Builder setDelayPercentile(double percentile) {
+      checkArgument(percentile > 0 && percentile <= 1, "The percentile must be in (0, 1]!");
+      this.delayPercentile = percentile;
+      return this;
+    }
+
+    /**
+     * Sets the maximum fraction of the hedgeable requests which can be hedged, for example 0.05 to
+     * add at most 5% of extra requests. Defaults to 0.05.
+     */
+    public Builder setMaxHedgedFraction(double fraction) {
+      checkArgument(fraction > 0 && fraction <= 1, "The fraction must be in (0, 1]!");
+      this.maxHedgedFraction = fraction;
+      return this;
+    }
+
+    public HedgingPolicy build() {
+      return new HedgingPolicy(this);
+    }
+  }
+}
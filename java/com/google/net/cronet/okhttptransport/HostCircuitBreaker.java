@@ -0,0 +1,267 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.common.base.Ascii;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.concurrent.GuardedBy;
+import org.chromium.net.NetworkException;
+
+/** Fails requests to unhealthy hosts fast, as configured by a {@link CircuitBreakerPolicy}. */
+final class HostCircuitBreaker {
+  /** The number of circuits above which the healthy ones are dropped. */
+  private static final int MAX_CIRCUITS = 64;
+
+  @VisibleForTesting
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final CircuitBreakerPolicy policy;
+  private final Ticker ticker;
+  private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+  HostCircuitBreaker(CircuitBreakerPolicy policy) {
+    this(policy, Ticker.systemTicker());
+  }
+
+  HostCircuitBreaker(CircuitBreakerPolicy policy, Ticker ticker) {
+    this.policy = policy;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Returns a permit to send a request to the host, whose outcome must be reported to the permit.
+   *
+   * @throws CircuitBreakerOpenException if the host's circuit is open
+   */
+  Permit acquire(String host) throws CircuitBreakerOpenException {
+    String key = Ascii.toLowerCase(host);
+    Circuit circuit = circuits.get(key);
+    if (circuit == null) {
+      if (circuits.size() >= MAX_CIRCUITS) {
+        evictHealthyCircuits();
+      }
+      Circuit newCircuit = new Circuit();
+      circuit = circuits.putIfAbsent(key, newCircuit);
+      if (circuit == null) {
+        circuit = newCircuit;
+      }
+    }
+    boolean probe = circuit.acquire(host);
+    return new Permit(circuit, probe);
+  }
+
+  /**
+   * Drops the closed circuits without failures. Such a circuit is no different from a new one, so
+   * the host's health is unaffected, unless a request which is still running reports a failure to
+   * the evicted circuit while new requests use a new one.
+   */
+  private void evictHealthyCircuits() {
+    for (Iterator<Circuit> it = circuits.values().iterator(); it.hasNext(); ) {
+      if (it.next().isHealthy()) {
+        it.remove();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int circuitCount() {
+    return circuits.size();
+  }
+
+  @VisibleForTesting
+  State state(String host) {
+    Circuit circuit = circuits.get(Ascii.toLowerCase(host));
+    if (circuit == null) {
+      return State.CLOSED;
+    }
+    synchronized (circuit) {
+      return circuit.state;
+    }
+  }
+
+  /** Returns whether the failure suggests that the host is unhealthy. */
+  static boolean isHostFailure(Throwable t) {
+    if (t instanceof CronetTimeoutException) {
+      return true;
+    }
+    if (!(t instanceof NetworkException)) {
+      return false;
+    }
+    switch (((NetworkException) t).getErrorCode()) {
+      case NetworkException.ERROR_HOSTNAME_NOT_RESOLVED:
+      case NetworkException.ERROR_TIMED_OUT:
+      case NetworkException.ERROR_CONNECTION_CLOSED:
+      case NetworkException.ERROR_CONNECTION_TIMED_OUT:
+      case NetworkException.ERROR_CONNECTION_REFUSED:
+      case NetworkException.ERROR_CONNECTION_RESET:
+      case NetworkException.ERROR_ADDRESS_UNREACHABLE:
+      case NetworkException.ERROR_QUIC_PROTOCOL_FAILED:
+        return true;
+      default:
+        // Connectivity problems of the device and unknown errors.
+        return false;
+    }
+  }
+
+  /** The permission to send a single request. */
+  final class Permit {
+    private final Circuit circuit;
+    private final boolean probe;
+
+    private Permit(Circuit circuit, boolean probe) {
+      this.circuit = circuit;
+      this.probe = probe;
+    }
+
+    /**
+     * Reports the outcome of the request once the response headers arrive, or the request fails.
+     */
+    void observe(ListenableFuture<?> headersFuture) {
+      Futures.addCallback(
+          headersFuture,
+          new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+              onResponse();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              if (isHostFailure(t)) {
+                Permit.this.onFailure();
+              } else {
+                onUnrelatedOutcome();
+              }
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    void onResponse() {
+      circuit.onResponse(probe);
+    }
+
+    void onFailure() {
+      circuit.onFailure(probe);
+    }
+
+    /** Reports that the request was canceled or failed for reasons unrelated to the host. */
+    void onUnrelatedOutcome() {
+      circuit.release(probe);
+    }
+  }
+
+  private final class Circuit {
+    @GuardedBy("this")
+    private State state = State.CLOSED;
+
+    @GuardedBy("this")
+    private int consecutiveFailures;
+
+    @GuardedBy("this")
+    private long openedAtNanos;
+
+    @GuardedBy("this")
+    private int probesInFlight;
+
+    @GuardedBy("this")
+    private long lastProbeNanos;
+
+    /** Returns whether the request is a probe of a half-open circuit. */
+    synchronized boolean acquire(String host) throws CircuitBreakerOpenException {
+      long nowNanos = ticker.read();
+      long openDurationNanos = MILLISECONDS.toNanos(policy.openDurationMillis());
+      switch (state) {
+        case CLOSED:
+          return false;
+        case OPEN:
+          if (nowNanos - openedAtNanos < openDurationNanos) {
+            throw new CircuitBreakerOpenException(host);
+          }
+          state = State.HALF_OPEN;
+          probesInFlight = 0;
+          break;
+        case HALF_OPEN:
+          // Probes which never report back (for example requests which were never started)
+          // mustn't keep the circuit half-open forever.
+          if (nowNanos - lastProbeNanos >= openDurationNanos) {
+            probesInFlight = 0;
+          }
+          break;
+      }
+      if (probesInFlight >= policy.halfOpenProbes()) {
+        throw new CircuitBreakerOpenException(host);
+      }
+      probesInFlight++;
+      lastProbeNanos = nowNanos;
+      return true;
+    }
+
+    synchronized boolean isHealthy() {
+      return state == State.CLOSED && consecutiveFailures == 0;
+    }
+
+    synchronized void onResponse(boolean probe) {
+      if (probe || state == State.CLOSED) {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probesInFlight = 0;
+      }
+    }
+
+    synchronized void onFailure(boolean probe) {
+      if (probe) {
+        if (state == State.HALF_OPEN) {
+          open();
+        }
+        return;
+      }
+      if (state == State.CLOSED && ++consecutiveFailures >= policy.failureThreshold()) {
+        open();
+      }
+    }
+
+    synchronized void release(boolean probe) {
+      if (probe && probesInFlight > 0) {
+        probesInFlight--;
+      }
+    }
+
+    @GuardedBy("this")
+    private void open() {
+      state = State.OPEN;
+      openedAtNanos = ticker.read();
+      consecutiveFailures = 0;
+      probesInFlight = 0;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with logarithmic buckets.
+ *
+ * <p>Each power of two is split into {@link #SUB_BUCKETS} linear buckets, so the values are
+ * recorded with a relative error of at most 12.5%. Values above {@link #MAX_TRACKABLE_VALUE} fall
+ * into the last bucket.
+ *
+ * <p>To keep concurrent recording cheap, the counts are striped across several arrays, and a thread
+ * always records into the same stripe. Recording doesn't allocate or take locks. The stripes are
+ * only merged when a snapshot is taken, which isn't atomic with respect to concurrent recording.
+ */
+final class LogHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /** The highest power of two with its own buckets. */
+  private static final int MAX_EXPONENT = 36;
+
+  static final long MAX_TRACKABLE_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+  static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  /** The index of the sum of the recorded values, stored after the buckets. */
+  private static final int SUM_INDEX = BUCKET_COUNT;
+
+  private static final int STRIPE_COUNT =
+      Integer.highestOneBit(Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+  private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPE_COUNT];
+
+  LogHistogram() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new AtomicLongArray(BUCKET_COUNT + 1);
+    }
+  }
+
+  void record(long value) {
+    checkArgument(value >= 0, "The value mustn't be negative: %s", value);
+    AtomicLongArray stripe =
+        stripes[(int) Thread.currentThread().getId() & (STRIPE_COUNT - 1)];
+    stripe.incrementAndGet(bucketIndex(value));
+    stripe.addAndGet(SUM_INDEX, value);
+  }
+
+  /** Returns the merged counts of all the stripes. */
+  TransportMetrics.HistogramSnapshot snapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    long sum = 0;
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        counts[i] += stripe.get(i);
+      }
+      sum += stripe.get(SUM_INDEX);
+    }
+    return new TransportMetrics.HistogramSnapshot(counts, sum);
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    if (value > MAX_TRACKABLE_VALUE) {
+      return BUCKET_COUNT - 1;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Returns the highest value which falls into the bucket. */
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int subBucket = index % SUB_BUCKETS;
+    long lowerBound = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
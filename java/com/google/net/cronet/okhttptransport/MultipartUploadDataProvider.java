@@ -0,0 +1,331 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.chromium.net.UploadDataProvider;
+import org.chromium.net.UploadDataSink;
+
+/**
+ * An {@link UploadDataProvider} which assembles a {@link MultipartBody} from its parts.
+ *
+ * <p>OkHttp only exposes multipart bodies as an opaque stream. This provider splits the body into
+ * segments instead:
+ *
+ * <ul>
+ *   <li>the boundaries and part headers, which are precomputed into small buffers,
+ *   <li>the {@link FileRequestBody} parts, which are read straight from the files, and
+ *   <li>the remaining parts, which are materialized in memory once Cronet gets to them.
+ * </ul>
+ *
+ * The total length is known up front and the body can be rewound. The framing matches the one
+ * produced by {@link MultipartBody#writeTo}.
+ */
+final class MultipartUploadDataProvider extends UploadDataProvider {
+  private static final byte[] COLON_SPACE = {':', ' '};
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] DASH_DASH = {'-', '-'};
+
+  private final List<Segment> segments;
+  private final long length;
+
+  /** The index of the segment the next read starts from. */
+  private int currentSegment = 0;
+
+  private MultipartUploadDataProvider(List<Segment> segments, long length) {
+    this.segments = segments;
+    this.length = length;
+  }
+
+  /**
+   * Creates a provider for the given body, or returns null if the body isn't suitable.
+   *
+   * <p>That's the case if the length of any part isn't known in advance, or if the parts which
+   * would need to be held in memory are larger than {@code maxInMemoryBytes} in total.
+   */
+  @Nullable
+  static MultipartUploadDataProvider create(MultipartBody body, long maxInMemoryBytes)
+      throws IOException {
+    List<Segment> segments = new ArrayList<>();
+    long inMemoryBytes = 0;
+    byte[] boundary = body.boundary().getBytes(UTF_8);
+
+    Buffer framing = new Buffer();
+    for (MultipartBody.Part part : body.parts()) {
+      RequestBody partBody = part.body();
+      long partLength = partBody.contentLength();
+      if (partLength == -1) {
+        return null;
+      }
+
+      framing.write(DASH_DASH).write(boundary).write(CRLF);
+      Headers headers = part.headers();
+      if (headers != null) {
+        for (int i = 0; i < headers.size(); i++) {
+          framing.writeUtf8(headers.name(i)).write(COLON_SPACE).writeUtf8(headers.value(i));
+          framing.write(CRLF);
+        }
+      }
+      MediaType contentType = partBody.contentType();
+      if (contentType != null) {
+        framing.writeUtf8("Content-Type: ").writeUtf8(contentType.toString()).write(CRLF);
+      }
+      framing.writeUtf8("Content-Length: ").writeDecimalLong(partLength).write(CRLF);
+      framing.write(CRLF);
+
+      segments.add(new BufferSegment(framing));
+      framing = new Buffer();
+
+      if (partBody instanceof FileRequestBody) {
+        segments.add(new FileSegment(((FileRequestBody) partBody).file(), partLength));
+      } else {
+        inMemoryBytes += partLength;
+        if (inMemoryBytes > maxInMemoryBytes) {
+          return null;
+        }
+        segments.add(new InMemoryBodySegment(partBody, partLength));
+      }
+
+      framing.write(CRLF);
+    }
+    framing.write(DASH_DASH).write(boundary).write(DASH_DASH).write(CRLF);
+    segments.add(new BufferSegment(framing));
+
+    long length = 0;
+    for (Segment segment : segments) {
+      length += segment.length();
+    }
+    if (length != body.contentLength()) {
+      // We're out of sync with OkHttp's framing, play it safe.
+      return null;
+    }
+
+    return new MultipartUploadDataProvider(segments, length);
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public void read(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) throws IOException {
+    int positionBeforeRead = byteBuffer.position();
+    while (byteBuffer.hasRemaining() && currentSegment < segments.size()) {
+      Segment segment = segments.get(currentSegment);
+      segment.read(byteBuffer);
+      if (segment.isExhausted()) {
+        currentSegment++;
+      }
+    }
+    if (byteBuffer.position() == positionBeforeRead) {
+      // For known body length we shouldn't be called at all if there's no more data to read.
+      throw new IOException("The source has been exhausted but we expected more data!");
+    }
+    uploadDataSink.onReadSucceeded(false);
+  }
+
+  @Override
+  public void rewind(UploadDataSink uploadDataSink) throws IOException {
+    for (int i = 0; i <= currentSegment && i < segments.size(); i++) {
+      segments.get(i).rewind();
+    }
+    currentSegment = 0;
+    uploadDataSink.onRewindSucceeded();
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException firstException = null;
+    for (Segment segment : segments) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        if (firstException == null) {
+          firstException = e;
+        }
+      }
+    }
+    if (firstException != null) {
+      throw firstException;
+    }
+  }
+
+  /** A consecutive part of the multipart body. */
+  private abstract static class Segment {
+    abstract long length();
+
+    /** Copies as much of the segment as fits to the buffer. */
+    abstract void read(ByteBuffer byteBuffer) throws IOException;
+
+    abstract boolean isExhausted();
+
+    abstract void rewind() throws IOException;
+
+    void close() throws IOException {}
+  }
+
+  /** A segment whose data is known up front. */
+  private static class BufferSegment extends Segment {
+    private final Buffer data;
+    private Buffer remaining;
+
+    BufferSegment(Buffer data) {
+      this.data = data;
+      // Buffer.clone() shares the underlying segments so this doesn't copy the data.
+      this.remaining = data.clone();
+    }
+
+    @Override
+    long length() {
+      return data.size();
+    }
+
+    @Override
+    void read(ByteBuffer byteBuffer) throws IOException {
+      remaining.read(byteBuffer);
+    }
+
+    @Override
+    boolean isExhausted() {
+      return remaining.exhausted();
+    }
+
+    @Override
+    void rewind() {
+      remaining = data.clone();
+    }
+  }
+
+  /** A part body which is written to memory when Cronet first asks for it. */
+  private static final class InMemoryBodySegment extends Segment {
+    private final RequestBody body;
+    private final long length;
+    @Nullable private BufferSegment materialized;
+
+    InMemoryBodySegment(RequestBody body, long length) {
+      this.body = body;
+      this.length = length;
+    }
+
+    @Override
+    long length() {
+      return length;
+    }
+
+    @Override
+    void read(ByteBuffer byteBuffer) throws IOException {
+      if (materialized == null) {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        if (buffer.size() != length) {
+          throw new IOException("Expected " + length + " bytes but got " + buffer.size());
+        }
+        materialized = new BufferSegment(buffer);
+      }
+      materialized.read(byteBuffer);
+    }
+
+    @Override
+    boolean isExhausted() {
+      return length == 0 || (materialized != null && materialized.isExhausted());
+    }
+
+    @Override
+    void rewind() {
+      if (materialized != null) {
+        materialized.rewind();
+      }
+    }
+  }
+
+  /** A part body which is read straight from a file. */
+  private static final class FileSegment extends Segment {
+    private final File file;
+    private final long length;
+    @Nullable private FileChannel channel;
+    private long position = 0;
+
+    FileSegment(File file, long length) {
+      this.file = file;
+      this.length = length;
+    }
+
+    @Override
+    long length() {
+      return length;
+    }
+
+    @Override
+    void read(ByteBuffer byteBuffer) throws IOException {
+      if (channel == null) {
+        channel = new FileInputStream(file).getChannel();
+      }
+      // Don't read past the advertised length even if the file has grown since.
+      int originalLimit = byteBuffer.limit();
+      if (byteBuffer.remaining() > length - position) {
+        byteBuffer.limit(byteBuffer.position() + (int) (length - position));
+      }
+      try {
+        while (byteBuffer.hasRemaining()) {
+          int bytesRead = channel.read(byteBuffer);
+          if (bytesRead == -1) {
+            throw new IOException(
+                "Expected " + length + " bytes from " + file + " but got " + position);
+          }
+          position += bytesRead;
+        }
+      } finally {
+        byteBuffer.limit(originalLimit);
+      }
+    }
+
+    @Override
+    boolean isExhausted() {
+      return position == length;
+    }
+
+    @Override
+    void rewind() throws IOException {
+      if (channel != null) {
+        channel.position(0);
+      }
+      position = 0;
+    }
+
+    @Override
+    void close() throws IOException {
+      if (channel != null) {
+        channel.close();
+      }
+    }
+  }
+}
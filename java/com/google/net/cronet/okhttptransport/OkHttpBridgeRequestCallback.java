@@ -18,7 +18,6 @@ package com.google.net.cronet.okhttptransport;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -54,11 +53,22 @@ import org.chromium.net.UrlResponseInfo;
  */
 class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
 
+  private static final String CONTENT_LENGTH_HEADER_NAME = "Content-Length";
+
   /**
    * The byte buffer capacity for reading Cronet response bodies. Each response callback will
-   * allocate its own buffer of this size once the response starts being processed.
+   * acquire its own buffer of this size once the response starts being processed.
+   */
+  static final int CRONET_BYTE_BUFFER_CAPACITY = 32 * 1024;
+
+  /**
+   * The byte buffer capacity for reading the response bodies of background requests, when they're
+   * isolated from the interactive ones. Trades throughput for a smaller memory footprint.
    */
-  private static final int CRONET_BYTE_BUFFER_CAPACITY = 32 * 1024;
+  static final int BACKGROUND_BYTE_BUFFER_CAPACITY = 8 * 1024;
+
+  private static final ByteBufferPool UNPOOLED_BUFFERS =
+      new ByteBufferPool(CRONET_BYTE_BUFFER_CAPACITY, /* maxPooledBuffers= */ 0);
 
   /** A bridge between Cronet's asynchronous callbacks and OkHttp's blocking stream-like reads. */
   private final SettableFuture<Source> bodySourceFuture = SettableFuture.create();
@@ -81,28 +91,106 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
   /** The response headers. */
   private final SettableFuture<UrlResponseInfo> headersFuture = SettableFuture.create();
 
-  /** The read timeout as specified by OkHttp. * */
+  /** The read timeout as specified by OkHttp, or 0 for no timeout. * */
   private final long readTimeoutMillis;
 
+  /**
+   * Cancels the request if a read takes too long or the call deadline passes. Armed for the
+   * duration of each read.
+   */
+  private final OperationTimeout readTimeout;
+
   /** The previous responses as reported to {@link #onRedirectReceived}, from oldest to newest. * */
   private final List<UrlResponseInfo> urlResponseInfoChain = new ArrayList<>();
 
   private final RedirectStrategy redirectStrategy;
 
+  /** The pool the response body buffer is taken from and returned to once the body is done. */
+  private final ByteBufferPool bufferPool;
+
+  /** The deadline of the call, bounding each read and redirect. */
+  private final Deadline deadline;
+
+  /** Paces the reads of the response body. */
+  private final RequestThrottle throttle;
+
+  /**
+   * Responses whose body fits in this many bytes are read in full before the body source is
+   * handed over, 0 if the bodies are always streamed.
+   */
+  private final long prefetchLimitBytes;
+
+  /**
+   * The body read so far while prefetching, null if the body isn't being prefetched. Only
+   * accessed from the Cronet callbacks, which are never run concurrently.
+   */
+  @Nullable private Buffer prefetchedBody;
+
+  /** The buffer Cronet reads the prefetched body into. */
+  @Nullable private ByteBuffer prefetchBuffer;
+
+  /** The wall clock time at which the request was about to be sent. */
+  private final long requestSentAtMillis = System.currentTimeMillis();
+
+  /** The wall clock time at which the response headers were received. */
+  private volatile long responseReceivedAtMillis;
+
+  /** The metrics of the request's host, null if the metrics aren't recorded. */
+  @Nullable private final TransportMetrics.HostMetrics hostMetrics;
+
+  /**
+   * The metrics of the request's host and protocol, set once the response headers are received.
+   * Null if the metrics aren't recorded.
+   */
+  @Nullable private volatile TransportMetrics.Series series;
+
+  /** The {@link System#nanoTime()} the callback was created at, right before the request starts. */
+  private final long createdAtNanos = System.nanoTime();
+
+  /** The {@link System#nanoTime()} the response headers were received at. */
+  private long headersReceivedAtNanos;
+
+  /** The number of response body bytes received. Only updated from the Cronet callbacks. */
+  private long bodyBytesReceived;
+
+  /** Whether the outcome of the request has already been recorded in the metrics. */
+  private boolean outcomeRecorded;
+
   /** The request being processed. Set when the request is first seen by the callback. */
   private volatile UrlRequest request;
 
   OkHttpBridgeRequestCallback(long readTimeoutMillis, RedirectStrategy redirectStrategy) {
+    this(
+        readTimeoutMillis,
+        redirectStrategy,
+        TimingWheel.shared(),
+        UNPOOLED_BUFFERS,
+        Deadline.NONE,
+        RequestThrottle.UNLIMITED,
+        /* prefetchLimitBytes= */ 0,
+        /* hostMetrics= */ null);
+  }
+
+  OkHttpBridgeRequestCallback(
+      long readTimeoutMillis,
+      RedirectStrategy redirectStrategy,
+      TimingWheel timingWheel,
+      ByteBufferPool bufferPool,
+      Deadline deadline,
+      RequestThrottle throttle,
+      long prefetchLimitBytes,
+      @Nullable TransportMetrics.HostMetrics hostMetrics) {
     checkArgument(readTimeoutMillis >= 0);
+    checkArgument(prefetchLimitBytes >= 0);
 
-    // So that we don't have to special case infinity. Int.MAX_VALUE is ~infinity for all practical
-    // use cases.
-    if (readTimeoutMillis == 0) {
-      this.readTimeoutMillis = Integer.MAX_VALUE;
-    } else {
-      this.readTimeoutMillis = readTimeoutMillis;
-    }
+    this.readTimeoutMillis = readTimeoutMillis;
     this.redirectStrategy = redirectStrategy;
+    this.readTimeout = new OperationTimeout(timingWheel, () -> request.cancel());
+    this.bufferPool = bufferPool;
+    this.deadline = deadline;
+    this.throttle = throttle;
+    this.prefetchLimitBytes = prefetchLimitBytes;
+    this.hostMetrics = hostMetrics;
   }
 
   /** Returns the {@link UrlResponseInfo} for the request associated with this callback. */
@@ -120,6 +208,19 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
     return bodySourceFuture;
   }
 
+  /**
+   * Returns the time the request was sent at, approximated by the time the callback was created,
+   * which immediately precedes starting the request.
+   */
+  long getRequestSentAtMillis() {
+    return requestSentAtMillis;
+  }
+
+  /** Returns the time the response headers were received at, 0 if they weren't received yet. */
+  long getResponseReceivedAtMillis() {
+    return responseReceivedAtMillis;
+  }
+
   List<UrlResponseInfo> getUrlResponseInfoChain() {
     return Collections.unmodifiableList(urlResponseInfoChain);
   }
@@ -127,8 +228,13 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
   @Override
   public void onRedirectReceived(
       UrlRequest urlRequest, UrlResponseInfo urlResponseInfo, String nextUrl) {
+    request = urlRequest;
     // We shouldn't follow redirects - pass the given UrlResponseInfo as the ultimate result
     if (!redirectStrategy.followRedirects()) {
+      responseReceivedAtMillis = System.currentTimeMillis();
+      recordHeadersReceived(urlResponseInfo);
+      // The request is canceled below, but as far as the caller is concerned it succeeded.
+      recordOutcome(CallbackStep.ON_SUCCESS);
       checkState(headersFuture.set(urlResponseInfo));
       // Note: This might not match the content length headers but we have no way of accessing
       // the actual body with current Cronet's APIs (see RedirectStrategy).
@@ -137,6 +243,15 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
       return;
     }
 
+    // The call ran out of time, there's no point in starting another round trip.
+    if (deadline.isExpired()) {
+      readTimeout.expire();
+      IOException e = new CronetTimeoutException();
+      headersFuture.setException(e);
+      bodySourceFuture.setException(e);
+      return;
+    }
+
     // We should follow redirects and we haven't hit the cap yet
     urlResponseInfoChain.add(urlResponseInfo);
     if (urlResponseInfo.getUrlChain().size() <= redirectStrategy.numberOfRedirectsToFollow()) {
@@ -157,24 +272,142 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
   @Override
   public void onResponseStarted(UrlRequest urlRequest, UrlResponseInfo urlResponseInfo) {
     request = urlRequest;
+    responseReceivedAtMillis = System.currentTimeMillis();
+    recordHeadersReceived(urlResponseInfo);
 
     checkState(headersFuture.set(urlResponseInfo));
-    checkState(bodySourceFuture.set(new CronetBodySource()));
+    if (shouldPrefetch(urlResponseInfo)) {
+      // The body source is handed over once the whole body is in, or once it turns out to be too
+      // large. The reads are issued from the callbacks, they must not block.
+      prefetchedBody = new Buffer();
+      prefetchBuffer = bufferPool.acquire();
+      readPrefetch();
+      return;
+    }
+    checkState(bodySourceFuture.set(new CronetBodySource(bufferPool.acquire(), null)));
+  }
+
+  private boolean shouldPrefetch(UrlResponseInfo urlResponseInfo) {
+    if (prefetchLimitBytes == 0 || !throttle.isUnlimited()) {
+      return false;
+    }
+    List<String> contentLengths = urlResponseInfo.getAllHeaders().get(CONTENT_LENGTH_HEADER_NAME);
+    if (contentLengths == null || contentLengths.isEmpty()) {
+      // Chunked and streamed responses (server-sent events, long polling...) can take arbitrarily
+      // long to produce their body, holding them back could delay the response indefinitely.
+      return false;
+    }
+    try {
+      long contentLength = Long.parseLong(contentLengths.get(contentLengths.size() - 1));
+      // The decoded body can still turn out larger, the prefetch then falls back to streaming.
+      return contentLength >= 0 && contentLength <= prefetchLimitBytes;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private void readPrefetch() {
+    if (readTimeout.arm(deadline, readTimeoutMillis)) {
+      request.read(prefetchBuffer);
+    }
+  }
+
+  /** Stops prefetching, returns the prefetch buffer to the pool unless it's still needed. */
+  private void endPrefetch(boolean releaseBuffer) {
+    readTimeout.disarm();
+    if (releaseBuffer) {
+      bufferPool.release(prefetchBuffer);
+    }
+    prefetchBuffer = null;
+    prefetchedBody = null;
+  }
+
+  private void recordHeadersReceived(UrlResponseInfo urlResponseInfo) {
+    headersReceivedAtNanos = System.nanoTime();
+    if (hostMetrics != null) {
+      TransportMetrics.Series localSeries =
+          hostMetrics.series(urlResponseInfo.getNegotiatedProtocol());
+      localSeries.recordTimeToHeaders(headersReceivedAtNanos - createdAtNanos);
+      series = localSeries;
+    }
+  }
+
+  /** Records how the request ended, once. */
+  private void recordOutcome(CallbackStep step) {
+    if (hostMetrics == null || outcomeRecorded) {
+      return;
+    }
+    outcomeRecorded = true;
+    TransportMetrics.Series localSeries = series != null ? series : hostMetrics.series(null);
+    switch (step) {
+      case ON_SUCCESS:
+        localSeries.recordSucceeded();
+        localSeries.recordDownload(
+            bodyBytesReceived, System.nanoTime() - headersReceivedAtNanos);
+        return;
+      case ON_CANCELED:
+        if (readTimeout.hasTimedOut()) {
+          localSeries.recordFailed();
+        } else {
+          localSeries.recordCanceled();
+        }
+        return;
+      default:
+        localSeries.recordFailed();
+    }
   }
 
   @Override
   public void onReadCompleted(
       UrlRequest urlRequest, UrlResponseInfo urlResponseInfo, ByteBuffer byteBuffer) {
-    callbackResults.add(new CallbackResult(CallbackStep.ON_READ_COMPLETED, byteBuffer, null));
+    bodyBytesReceived += byteBuffer.position();
+    Buffer localPrefetchedBody = prefetchedBody;
+    if (localPrefetchedBody == null) {
+      callbackResults.add(new CallbackResult(CallbackStep.ON_READ_COMPLETED, byteBuffer, null));
+      return;
+    }
+
+    byteBuffer.flip();
+    try {
+      localPrefetchedBody.write(byteBuffer);
+    } catch (IOException e) {
+      throw new AssertionError("Writing to a Buffer doesn't throw!", e);
+    }
+    byteBuffer.clear();
+
+    if (localPrefetchedBody.size() > prefetchLimitBytes) {
+      // Too large to hold on to, stream the rest of the body from where the prefetch stopped.
+      ByteBuffer buffer = prefetchBuffer;
+      endPrefetch(/* releaseBuffer= */ false);
+      checkState(bodySourceFuture.set(new CronetBodySource(buffer, localPrefetchedBody)));
+      return;
+    }
+    readTimeout.disarm();
+    readPrefetch();
   }
 
   @Override
   public void onSucceeded(UrlRequest urlRequest, UrlResponseInfo urlResponseInfo) {
+    recordOutcome(CallbackStep.ON_SUCCESS);
+    Buffer localPrefetchedBody = prefetchedBody;
+    if (localPrefetchedBody != null) {
+      endPrefetch(/* releaseBuffer= */ true);
+      finished.set(true);
+      checkState(bodySourceFuture.set(localPrefetchedBody));
+      return;
+    }
     callbackResults.add(new CallbackResult(CallbackStep.ON_SUCCESS, null, null));
   }
 
   @Override
   public void onFailed(UrlRequest urlRequest, UrlResponseInfo urlResponseInfo, CronetException e) {
+    recordOutcome(CallbackStep.ON_FAILED);
+    if (prefetchedBody != null) {
+      endPrefetch(/* releaseBuffer= */ true);
+      checkState(bodySourceFuture.setException(e));
+      return;
+    }
+
     // If this was called before we start reading the body, the exception will
     // propagate in the future providing headers and the body wrapper.
     if (headersFuture.setException(e) && bodySourceFuture.setException(e)) {
@@ -189,26 +422,48 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
   @Override
   public void onCanceled(UrlRequest urlRequest, UrlResponseInfo responseInfo) {
     canceled.set(true);
+    recordOutcome(CallbackStep.ON_CANCELED);
+    if (prefetchedBody != null) {
+      endPrefetch(/* releaseBuffer= */ true);
+    }
     callbackResults.add(new CallbackResult(CallbackStep.ON_CANCELED, null, null));
 
     // If there's nobody listening it's possible that the cancellation happened before we even
     // received anything from the server. In that case inform the thread that's awaiting server
     // response about the cancellation as well. This becomes a no-op if the futures
     // were already set.
-    IOException e = new IOException("The request was canceled!");
+    IOException e =
+        readTimeout.hasTimedOut()
+            ? new CronetTimeoutException()
+            : new IOException("The request was canceled!");
     headersFuture.setException(e);
     bodySourceFuture.setException(e);
   }
 
   private class CronetBodySource implements Source {
 
-    private ByteBuffer buffer = ByteBuffer.allocateDirect(CRONET_BYTE_BUFFER_CAPACITY);
+    private ByteBuffer buffer;
+
+    /** The part of the body read while prefetching, served before reading any further. */
+    @Nullable private Buffer prefetched;
 
     /** Whether the close() method has been called. */
     private volatile boolean closed = false;
 
+    CronetBodySource(ByteBuffer buffer, @Nullable Buffer prefetched) {
+      this.buffer = buffer;
+      this.prefetched = prefetched;
+    }
+
     @Override
     public long read(Buffer sink, long byteCount) throws IOException {
+      if (readTimeout.hasTimedOut()) {
+        throw new CronetTimeoutException();
+      }
+      if (deadline.isExpired() && !finished.get()) {
+        readTimeout.expire();
+        throw new CronetTimeoutException();
+      }
       if (canceled.get()) {
         throw new IOException("The request was canceled!");
       }
@@ -218,6 +473,14 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
       checkArgument(byteCount >= 0, "byteCount < 0: %s", byteCount);
       checkState(!closed, "closed");
 
+      if (prefetched != null) {
+        long bytesRead = prefetched.read(sink, byteCount);
+        if (prefetched.exhausted()) {
+          prefetched = null;
+        }
+        return bytesRead;
+      }
+
       if (finished.get()) {
         return -1;
       }
@@ -225,42 +488,60 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
       if (byteCount < buffer.limit()) {
         buffer.limit((int) byteCount);
       }
-
+      // Cronet can't deliver more than what fits in the buffer, so limiting the buffer to the
+      // acquired budget paces the reads. The wait doesn't count towards the read timeout.
+      int grantedBytes = throttle.acquire(buffer.limit());
+      buffer.limit(grantedBytes);
+
+      if (!readTimeout.arm(deadline, readTimeoutMillis)) {
+        // The deadline passed while waiting for the budget.
+        throttle.release(grantedBytes);
+        throw new CronetTimeoutException();
+      }
       request.read(buffer);
 
+      TransportMetrics.Series localSeries = series;
+      long readStartNanos = localSeries != null ? System.nanoTime() : 0;
       CallbackResult result;
       try {
-        result = callbackResults.poll(readTimeoutMillis, MILLISECONDS);
+        result = callbackResults.take();
+        if (localSeries != null) {
+          localSeries.recordReadWait(System.nanoTime() - readStartNanos);
+        }
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
-        result = null;
-      }
-
-      if (result == null) {
-        // Either readResult.poll() was interrupted or it timed out.
         request.cancel();
         throw new CronetTimeoutException();
+      } finally {
+        readTimeout.disarm();
       }
 
       switch (result.callbackStep) {
-        // We null the buffer in final statuses to allow fast GC of the buffer even if the callback
-        // is still in use.
+        // We release the buffer in final statuses, Cronet doesn't touch it anymore. Nulling it
+        // also allows fast GC of the buffer even if the callback is still in use.
         case ON_FAILED:
+          throttle.release(grantedBytes);
           finished.set(true);
-          buffer = null;
+          releaseBuffer();
           throw new IOException(result.exception);
         case ON_SUCCESS:
+          throttle.release(grantedBytes);
           finished.set(true);
-          buffer = null;
+          releaseBuffer();
           return -1;
         case ON_CANCELED:
           // The canceled flag is already set by the onCanceled method
           // so not setting it here.
 
-          buffer = null;
+          throttle.release(grantedBytes);
+          releaseBuffer();
+          if (readTimeout.hasTimedOut()) {
+            throw new CronetTimeoutException();
+          }
           throw new IOException("The request was canceled!");
         case ON_READ_COMPLETED:
           result.buffer.flip();
+          throttle.release(grantedBytes - result.buffer.remaining());
           int bytesWritten = sink.write(result.buffer);
           result.buffer.clear();
           return bytesWritten;
@@ -269,6 +550,11 @@ class OkHttpBridgeRequestCallback extends UrlRequest.Callback {
       throw new AssertionError("The switch block above is exhaustive!");
     }
 
+    private void releaseBuffer() {
+      bufferPool.release(buffer);
+      buffer = null;
+    }
+
     @Override
     public Timeout timeout() {
       // TODO(danstahr): This should likely respect the OkHttp timeout somehow
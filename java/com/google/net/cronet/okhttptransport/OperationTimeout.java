@@ -0,0 +1,81 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+/**
+ * Cancels a Cronet request or stream when a blocking operation on it, typically a read or a write,
+ * takes too long or runs past the call deadline. At most one operation is timed at a time.
+ *
+ * <p>Whoever waits for the operation learns about the cancellation from Cronet's callback, and
+ * uses {@link #hasTimedOut()} to report it as a {@link CronetTimeoutException}.
+ */
+final class OperationTimeout extends TimingWheel.Entry {
+  private final TimingWheel timingWheel;
+  private final Runnable canceler;
+
+  private volatile boolean timedOut;
+
+  /**
+   * @param canceler cancels the request or stream, must be quick and non-blocking like any
+   *     timing wheel handler
+   */
+  OperationTimeout(TimingWheel timingWheel, Runnable canceler) {
+    this.timingWheel = timingWheel;
+    this.canceler = canceler;
+  }
+
+  /**
+   * Arms the timeout for an operation which can take up to {@code timeoutMillis}, 0 meaning no
+   * timeout, shortened so that it doesn't run past the deadline.
+   *
+   * @return false if the deadline has already passed, in which case the timeout expired straight
+   *     away and the operation mustn't be started
+   */
+  boolean arm(Deadline deadline, long timeoutMillis) {
+    if (deadline.isExpired()) {
+      expire();
+      return false;
+    }
+    long clampedTimeoutMillis = deadline.clampTimeoutMillis(timeoutMillis);
+    if (clampedTimeoutMillis != 0) {
+      timingWheel.schedule(this, clampedTimeoutMillis);
+    }
+    return true;
+  }
+
+  /** Disarms the timeout once the operation completed. */
+  void disarm() {
+    timingWheel.cancel(this);
+  }
+
+  /** Marks the operation as timed out and cancels the request or stream. */
+  void expire() {
+    timedOut = true;
+    canceler.run();
+  }
+
+  /** Returns whether the request or stream was canceled because the timeout expired. */
+  boolean hasTimedOut() {
+    return timedOut;
+  }
+
+  @Override
+  void onTimeout() {
+    expire();
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A marker interface for {@link RequestBody} implementations which can be written more than once.
+ *
+ * <p>Cronet needs to rewind the request body when following 307 / 308 redirects and when retrying
+ * requests internally. Rewinding bodies which are streamed from the application isn't possible in
+ * general and fails the request. By implementing this interface, the application declares that
+ * every call to {@link RequestBody#writeTo(BufferedSink)} produces the same bytes, so the bridge can
+ * replay the body by writing it again.
+ *
+ * <p>This is a counterpart of OkHttp 4's {@code RequestBody.isOneShot()}.
+ */
+public interface ReplayableRequestBody {}
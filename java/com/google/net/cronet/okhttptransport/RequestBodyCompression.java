@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableSet;
+import javax.annotation.Nullable;
+import okhttp3.Request;
+
+/**
+ * Defines which request bodies the Cronet OkHttp transport layer compresses before sending them.
+ *
+ * <p>Compressed bodies are encoded incrementally as Cronet uploads them, so the body is never held
+ * in memory twice. The {@code Content-Encoding} header is set accordingly and the {@code
+ * Content-Length} header is dropped as the compressed length isn't known in advance.
+ *
+ * <p>Individual requests can always opt in by tagging the request with the desired encoding:
+ *
+ * <pre>
+ *   Request request = new Request.Builder()
+ *       .url(url)
+ *       .post(body)
+ *       .tag(RequestBodyCompression.Encoding.class, RequestBodyCompression.Encoding.GZIP)
+ *       .build();
+ * </pre>
+ *
+ * <p>Requests which already have a {@code Content-Encoding} header are never compressed.
+ */
+public abstract class RequestBodyCompression {
+
+  /** The content codings the bridge can apply to request bodies. */
+  public enum Encoding {
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String headerValue;
+
+    Encoding(String headerValue) {
+      this.headerValue = headerValue;
+    }
+
+    /** Returns the value of the {@code Content-Encoding} header for this encoding. */
+    String headerValue() {
+      return headerValue;
+    }
+  }
+
+  /** Returns the encoding to apply to the body of the given request, or null to send it as is. */
+  @Nullable
+  abstract Encoding encodingFor(Request request);
+
+  /** Returns a strategy which only compresses requests tagged with an {@link Encoding}. */
+  public static RequestBodyCompression taggedRequestsOnly() {
+    return TaggedRequestsOnlyHolder.INSTANCE;
+  }
+
+  /**
+   * Returns a strategy which compresses requests to the given hosts using the given encoding, as
+   * well as requests tagged with an {@link Encoding}.
+   */
+  public static RequestBodyCompression forHosts(Encoding encoding, String... hosts) {
+    checkNotNull(encoding);
+    ImmutableSet.Builder<String> normalizedHosts = ImmutableSet.builder();
+    for (String host : hosts) {
+      normalizedHosts.add(Ascii.toLowerCase(host));
+    }
+    ImmutableSet<String> hostSet = normalizedHosts.build();
+
+    return new RequestBodyCompression() {
+      @Nullable
+      @Override
+      Encoding encodingFor(Request request) {
+        Encoding taggedEncoding = request.tag(Encoding.class);
+        if (taggedEncoding != null) {
+          return taggedEncoding;
+        }
+        // HttpUrl.host() is always lowercase
+        return hostSet.contains(request.url().host()) ? encoding : null;
+      }
+    };
+  }
+
+  private static class TaggedRequestsOnlyHolder {
+    private static final RequestBodyCompression INSTANCE =
+        new RequestBodyCompression() {
+          @Nullable
+          @Override
+          Encoding encodingFor(Request request) {
+            return request.tag(Encoding.class);
+          }
+        };
+  }
+
+  private RequestBodyCompression() {}
+}
@@ -24,4 +24,13 @@ import org.chromium.net.UploadDataProvider;
 interface RequestBodyConverter {
   UploadDataProvider convertRequestBody(RequestBody requestBody, int writeTimeoutMillis)
       throws IOException;
+
+  /**
+   * Like {@link #convertRequestBody(RequestBody, int)}, but the writes of the body also give up
+   * once the call deadline passes. Converters which don't wait for the body ignore the deadline.
+   */
+  default UploadDataProvider convertRequestBody(
+      RequestBody requestBody, int writeTimeoutMillis, Deadline deadline) throws IOException {
+    return convertRequestBody(requestBody, writeTimeoutMillis);
+  }
 }
@@ -16,8 +16,6 @@
 
 package com.google.net.cronet.okhttptransport;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-
 import androidx.annotation.VisibleForTesting;
 import com.google.common.base.Verify;
 import com.google.common.util.concurrent.FutureCallback;
@@ -25,46 +23,124 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.net.cronet.okhttptransport.UploadBodyDataBroker.ReadResult;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
+import okhttp3.MultipartBody;
 import okhttp3.RequestBody;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
 import org.chromium.net.UploadDataProvider;
 import org.chromium.net.UploadDataSink;
 
 final class RequestBodyConverterImpl implements RequestBodyConverter {
 
-  private static final long IN_MEMORY_BODY_LENGTH_THRESHOLD_BYTES = 1024 * 1024;
+  static final long DEFAULT_IN_MEMORY_BODY_LENGTH_THRESHOLD_BYTES = 1024 * 1024;
 
   private final InMemoryRequestBodyConverter inMemoryRequestBodyConverter;
   private final StreamingRequestBodyConverter streamingRequestBodyConverter;
 
+  /** The converter for bodies of unknown length. Streams them if not set. */
+  @Nullable private final SpillingRequestBodyConverter spillingRequestBodyConverter;
+
+  private final long inMemoryBodyLengthThresholdBytes;
+
   RequestBodyConverterImpl(
       InMemoryRequestBodyConverter inMemoryConverter,
       StreamingRequestBodyConverter streamingConverter) {
+    this(
+        inMemoryConverter,
+        streamingConverter,
+        /* spillingConverter= */ null,
+        DEFAULT_IN_MEMORY_BODY_LENGTH_THRESHOLD_BYTES);
+  }
+
+  RequestBodyConverterImpl(
+      InMemoryRequestBodyConverter inMemoryConverter,
+      StreamingRequestBodyConverter streamingConverter,
+      @Nullable SpillingRequestBodyConverter spillingConverter,
+      long inMemoryBodyLengthThresholdBytes) {
     this.inMemoryRequestBodyConverter = inMemoryConverter;
     this.streamingRequestBodyConverter = streamingConverter;
+    this.spillingRequestBodyConverter = spillingConverter;
+    this.inMemoryBodyLengthThresholdBytes = inMemoryBodyLengthThresholdBytes;
+  }
+
+  static RequestBodyConverterImpl create(
+      ExecutorService bodyReaderExecutor,
+      int replayBufferSizeBytes,
+      long inMemoryBodyLengthThresholdBytes,
+      @Nullable File spillDirectory) {
+    return create(
+        bodyReaderExecutor,
+        replayBufferSizeBytes,
+        inMemoryBodyLengthThresholdBytes,
+        spillDirectory,
+        TimingWheel.shared());
   }
 
-  static RequestBodyConverterImpl create(ExecutorService bodyReaderExecutor) {
+  static RequestBodyConverterImpl create(
+      ExecutorService bodyReaderExecutor,
+      int replayBufferSizeBytes,
+      long inMemoryBodyLengthThresholdBytes,
+      @Nullable File spillDirectory,
+      TimingWheel timingWheel) {
     return new RequestBodyConverterImpl(
-        new InMemoryRequestBodyConverter(), new StreamingRequestBodyConverter(bodyReaderExecutor));
+        new InMemoryRequestBodyConverter(inMemoryBodyLengthThresholdBytes),
+        new StreamingRequestBodyConverter(bodyReaderExecutor, replayBufferSizeBytes, timingWheel),
+        spillDirectory == null
+            ? null
+            : new SpillingRequestBodyConverter(
+                inMemoryBodyLengthThresholdBytes, spillDirectory, bodyReaderExecutor, timingWheel),
+        inMemoryBodyLengthThresholdBytes);
   }
 
   @Override
   public UploadDataProvider convertRequestBody(RequestBody requestBody, int writeTimeoutMillis)
       throws IOException {
+    return convertRequestBody(requestBody, writeTimeoutMillis, Deadline.NONE);
+  }
+
+  @Override
+  public UploadDataProvider convertRequestBody(
+      RequestBody requestBody, int writeTimeoutMillis, Deadline deadline) throws IOException {
+    if (requestBody instanceof FileRequestBody) {
+      FileRequestBody fileRequestBody = (FileRequestBody) requestBody;
+      return new FileUploadDataProvider(
+          fileRequestBody.file(), fileRequestBody.contentLength(), /* deleteOnClose= */ false);
+    }
+
+    if (requestBody instanceof MultipartBody) {
+      UploadDataProvider multipartProvider =
+          MultipartUploadDataProvider.create(
+              (MultipartBody) requestBody, inMemoryBodyLengthThresholdBytes);
+      if (multipartProvider != null) {
+        return multipartProvider;
+      }
+    }
+
     long contentLength = requestBody.contentLength();
-    if (contentLength == -1 || contentLength > IN_MEMORY_BODY_LENGTH_THRESHOLD_BYTES) {
-      return streamingRequestBodyConverter.convertRequestBody(requestBody, writeTimeoutMillis);
+    if (contentLength == -1 && spillingRequestBodyConverter != null) {
+      return spillingRequestBodyConverter.convertRequestBody(
+          requestBody, writeTimeoutMillis, deadline);
+    } else if (contentLength == -1 || contentLength > inMemoryBodyLengthThresholdBytes) {
+      return streamingRequestBodyConverter.convertRequestBody(
+          requestBody, writeTimeoutMillis, deadline);
     } else {
       return inMemoryRequestBodyConverter.convertRequestBody(requestBody, writeTimeoutMillis);
     }
@@ -85,27 +161,75 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
    * </ol>
    *
    * This is repeated until the entire body has been read.
+   *
+   * <p>Rewinding is supported for bodies implementing {@link ReplayableRequestBody}, which are
+   * written again from scratch. Other bodies can only be rewound if all the data sent to Cronet so
+   * far still fits in the replay buffer, if one is configured.
    */
   @VisibleForTesting
   static final class StreamingRequestBodyConverter implements RequestBodyConverter {
 
     private final ExecutorService readerExecutor;
+    private final int replayBufferSizeBytes;
+    private final TimingWheel timingWheel;
 
     StreamingRequestBodyConverter(ExecutorService readerExecutor) {
+      this(readerExecutor, 0);
+    }
+
+    StreamingRequestBodyConverter(ExecutorService readerExecutor, int replayBufferSizeBytes) {
+      this(readerExecutor, replayBufferSizeBytes, TimingWheel.shared());
+    }
+
+    StreamingRequestBodyConverter(
+        ExecutorService readerExecutor, int replayBufferSizeBytes, TimingWheel timingWheel) {
       this.readerExecutor = readerExecutor;
+      this.replayBufferSizeBytes = replayBufferSizeBytes;
+      this.timingWheel = timingWheel;
     }
 
     @Override
     public UploadDataProvider convertRequestBody(RequestBody requestBody, int writeTimeoutMillis) {
+      return convertRequestBody(requestBody, writeTimeoutMillis, Deadline.NONE);
+    }
+
+    @Override
+    public UploadDataProvider convertRequestBody(
+        RequestBody requestBody, int writeTimeoutMillis, Deadline deadline) {
       return new StreamingUploadDataProvider(
-          requestBody, new UploadBodyDataBroker(), readerExecutor, writeTimeoutMillis);
+          requestBody,
+          readerExecutor,
+          timingWheel,
+          writeTimeoutMillis,
+          deadline,
+          requestBody instanceof ReplayableRequestBody ? 0 : replayBufferSizeBytes);
     }
 
     private static class StreamingUploadDataProvider extends UploadDataProvider {
       private final RequestBody okHttpRequestBody;
-      private final UploadBodyDataBroker broker;
       private final ListeningExecutorService readTaskExecutor;
+      private final TimingWheel timingWheel;
       private final long writeTimeoutMillis;
+      private final Deadline deadline;
+      private final long replayBufferSizeBytes;
+
+      /** The body read Cronet is currently waiting for. */
+      @Nullable private volatile Future<ReadResult> pendingBodyRead;
+
+      /** Gives up on the pending body read if the OkHttp body doesn't provide data in time. */
+      private final TimingWheel.Entry writeTimeout =
+          new TimingWheel.Entry() {
+            @Override
+            void onTimeout() {
+              Future<ReadResult> localPendingBodyRead = pendingBodyRead;
+              if (localPendingBodyRead != null) {
+                localPendingBodyRead.cancel(false);
+              }
+            }
+          };
+
+      /** The broker for the current pass over the OkHttp body. Replaced when the body restarts. */
+      private UploadBodyDataBroker broker = new UploadBodyDataBroker();
 
       /** The future for the task that reads the OkHttp request body in the background. */
       private ListenableFuture<?> readTaskFuture;
@@ -113,22 +237,36 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
       /** The number of bytes we read from the OkHttp body thus far. */
       private long totalBytesReadFromOkHttp;
 
+      /** Whether the OkHttp body signalled that there is no more data. */
+      private boolean endOfBodyReached;
+
+      /**
+       * A copy of everything read from the OkHttp body thus far, or null if the body can't be
+       * replayed from memory (no replay buffer is configured, or the body outgrew it).
+       */
+      @Nullable private Buffer replayBuffer;
+
+      /** The part of {@link #replayBuffer} that should be sent again after a rewind. */
+      @Nullable private Buffer pendingReplay;
+
       private StreamingUploadDataProvider(
           RequestBody okHttpRequestBody,
-          UploadBodyDataBroker broker,
           ExecutorService readTaskExecutor,
-          long writeTimeoutMillis) {
+          TimingWheel timingWheel,
+          long writeTimeoutMillis,
+          Deadline deadline,
+          long replayBufferSizeBytes) {
         this.okHttpRequestBody = okHttpRequestBody;
-        this.broker = broker;
+        this.timingWheel = timingWheel;
+        this.replayBufferSizeBytes = replayBufferSizeBytes;
+        this.replayBuffer = replayBufferSizeBytes > 0 ? new Buffer() : null;
         if (readTaskExecutor instanceof ListeningExecutorService) {
           this.readTaskExecutor = (ListeningExecutorService) readTaskExecutor;
         } else {
           this.readTaskExecutor = MoreExecutors.listeningDecorator(readTaskExecutor);
         }
-
-        // So that we don't have to special case infinity. Int.MAX_VALUE is ~infinity for all
-        // practical use cases.
-        this.writeTimeoutMillis = writeTimeoutMillis == 0 ? Integer.MAX_VALUE : writeTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.deadline = deadline;
       }
 
       @Override
@@ -138,6 +276,11 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
 
       @Override
       public void read(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) throws IOException {
+        if (pendingReplay != null) {
+          readFromReplayBuffer(uploadDataSink, byteBuffer);
+          return;
+        }
+
         ensureReadTaskStarted();
 
         if (getLength() == -1) {
@@ -195,6 +338,7 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
         if (!readResult.equals(ReadResult.END_OF_BODY)) {
           throw prepareBodyTooLongException(getLength(), totalBytesReadFromOkHttp);
         }
+        endOfBodyReached = true;
 
         Verify.verify(
             filledByteBuffer.position() == 0,
@@ -206,19 +350,40 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
         uploadDataSink.onReadSucceeded(false);
       }
 
-      private void readUnknownBodyLength(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) {
+      private void readUnknownBodyLength(UploadDataSink uploadDataSink, ByteBuffer byteBuffer)
+          throws IOException {
         try {
           UploadBodyDataBroker.ReadResult readResult = readFromOkHttp(byteBuffer);
-          uploadDataSink.onReadSucceeded(readResult.equals(ReadResult.END_OF_BODY));
+          endOfBodyReached = readResult.equals(ReadResult.END_OF_BODY);
+          uploadDataSink.onReadSucceeded(endOfBodyReached);
         } catch (TimeoutException | ExecutionException e) {
           readTaskFuture.cancel(true);
           uploadDataSink.onReadError(new IOException(e));
         }
       }
 
+      /**
+       * Sends data that has been sent to Cronet before the last rewind. Once the replay is
+       * exhausted, reading continues from the OkHttp body where it left off.
+       */
+      private void readFromReplayBuffer(UploadDataSink uploadDataSink, ByteBuffer byteBuffer)
+          throws IOException {
+        pendingReplay.read(byteBuffer);
+        boolean replayExhausted = pendingReplay.exhausted();
+        if (replayExhausted) {
+          pendingReplay = null;
+        }
+        // Only unknown length bodies need to signal the last chunk explicitly. Cronet stops
+        // reading known length bodies on its own once it has received all of the data.
+        uploadDataSink.onReadSucceeded(getLength() == -1 && replayExhausted && endOfBodyReached);
+      }
+
       private void ensureReadTaskStarted() {
         // We don't expect concurrent calls so a simple flag is sufficient
         if (readTaskFuture == null) {
+          // The broker is replaced if the body is rewound, make sure that the task keeps
+          // writing to its own one.
+          UploadBodyDataBroker broker = this.broker;
           readTaskFuture =
               readTaskExecutor.submit(
                   (Callable<Void>)
@@ -246,16 +411,50 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
       }
 
       private ReadResult readFromOkHttp(ByteBuffer byteBuffer)
-          throws TimeoutException, ExecutionException {
+          throws IOException, TimeoutException, ExecutionException {
+        if (deadline.isExpired()) {
+          throw new TimeoutException();
+        }
         int positionBeforeRead = byteBuffer.position();
-        UploadBodyDataBroker.ReadResult readResult =
-            Uninterruptibles.getUninterruptibly(
-                broker.enqueueBodyRead(byteBuffer), writeTimeoutMillis, MILLISECONDS);
+        Future<ReadResult> bodyRead = broker.enqueueBodyRead(byteBuffer);
+        UploadBodyDataBroker.ReadResult readResult;
+        long timeoutMillis = deadline.clampTimeoutMillis(writeTimeoutMillis);
+        if (timeoutMillis != 0) {
+          pendingBodyRead = bodyRead;
+          timingWheel.schedule(writeTimeout, timeoutMillis);
+        }
+        try {
+          readResult = Uninterruptibles.getUninterruptibly(bodyRead);
+        } catch (CancellationException e) {
+          // Only the write timeout cancels the read.
+          throw new TimeoutException();
+        } finally {
+          timingWheel.cancel(writeTimeout);
+          pendingBodyRead = null;
+        }
         int bytesRead = byteBuffer.position() - positionBeforeRead;
         totalBytesReadFromOkHttp += bytesRead;
+        recordForReplay(byteBuffer, positionBeforeRead, bytesRead);
         return readResult;
       }
 
+      private void recordForReplay(ByteBuffer byteBuffer, int offset, int byteCount)
+          throws IOException {
+        if (replayBuffer == null || byteCount == 0) {
+          return;
+        }
+        if (replayBuffer.size() + byteCount > replayBufferSizeBytes) {
+          // Too large to replay, stop recording and release what we have.
+          replayBuffer.clear();
+          replayBuffer = null;
+          return;
+        }
+        ByteBuffer readBytes = byteBuffer.duplicate();
+        readBytes.position(offset);
+        readBytes.limit(offset + byteCount);
+        replayBuffer.write(readBytes);
+      }
+
       private static IOException prepareBodyTooLongException(
           long expectedLength, long minActualLength) {
         return new IOException(
@@ -264,8 +463,28 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
 
       @Override
       public void rewind(UploadDataSink uploadDataSink) {
-        // TODO(danstahr): OkHttp 4 can use isOneShot flag here and rewind safely.
-        uploadDataSink.onRewindError(new UnsupportedOperationException("Rewind is not supported!"));
+        if (readTaskFuture == null) {
+          // Nothing has been read yet, which is as good as being rewound.
+          pendingReplay = null;
+          uploadDataSink.onRewindSucceeded();
+        } else if (okHttpRequestBody instanceof ReplayableRequestBody) {
+          // Abandon the current pass over the body and start a fresh one on the next read.
+          readTaskFuture.cancel(true);
+          readTaskFuture = null;
+          broker = new UploadBodyDataBroker();
+          totalBytesReadFromOkHttp = 0;
+          endOfBodyReached = false;
+          uploadDataSink.onRewindSucceeded();
+        } else if (replayBuffer != null) {
+          // Buffer.clone() shares the underlying segments so this doesn't copy the data.
+          pendingReplay = replayBuffer.clone();
+          uploadDataSink.onRewindSucceeded();
+        } else {
+          uploadDataSink.onRewindError(
+              new UnsupportedOperationException(
+                  "Rewind is not supported for bodies which don't implement"
+                      + " ReplayableRequestBody and don't fit in the replay buffer!"));
+        }
       }
     }
   }
@@ -276,20 +495,32 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
    *
    * <p>This strategy shouldn't be used for large requests (and for requests with uncapped length)
    * to avoid OOM issues.
+   *
+   * <p>Since the entire body is held in memory, rewinding is always supported.
    */
   @VisibleForTesting
   static final class InMemoryRequestBodyConverter implements RequestBodyConverter {
 
+    private final long maxBodyLengthBytes;
+
+    InMemoryRequestBodyConverter() {
+      this(DEFAULT_IN_MEMORY_BODY_LENGTH_THRESHOLD_BYTES);
+    }
+
+    InMemoryRequestBodyConverter(long maxBodyLengthBytes) {
+      this.maxBodyLengthBytes = maxBodyLengthBytes;
+    }
+
     @Override
     public UploadDataProvider convertRequestBody(RequestBody requestBody, int writeTimeoutMillis)
         throws IOException {
 
       // content length is immutable by contract
       long length = requestBody.contentLength();
-      if (length < 0 || length > IN_MEMORY_BODY_LENGTH_THRESHOLD_BYTES) {
+      if (length < 0 || length > maxBodyLengthBytes) {
         throw new IOException(
             "Expected definite length less than "
-                + IN_MEMORY_BODY_LENGTH_THRESHOLD_BYTES
+                + maxBodyLengthBytes
                 + "but got "
                 + length);
       }
@@ -298,6 +529,9 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
         private volatile boolean isMaterialized = false;
         private final Buffer materializedBody = new Buffer();
 
+        /** The part of the materialized body that hasn't been sent to Cronet yet. */
+        private Buffer remainingBody;
+
         @Override
         public long getLength() {
           return length;
@@ -316,8 +550,9 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
               throw new IOException(
                   "Expected " + reportedLength + " bytes but got " + actualLength);
             }
+            remainingBody = materializedBody.clone();
           }
-          if (materializedBody.read(byteBuffer) == -1) {
+          if (remainingBody.read(byteBuffer) == -1) {
             // This should never happen - for known body length we shouldn't be called at all
             // if there's no more data to read.
             throw new IllegalStateException("The source has been exhausted but we expected more!");
@@ -327,10 +562,271 @@ final class RequestBodyConverterImpl implements RequestBodyConverter {
 
         @Override
         public void rewind(UploadDataSink uploadDataSink) {
-          // TODO(danstahr): OkHttp 4 can use isOneShot flag here and rewind safely.
-          uploadDataSink.onRewindError(new UnsupportedOperationException());
+          if (isMaterialized) {
+            // Buffer.clone() shares the underlying segments so this doesn't copy the data.
+            remainingBody = materializedBody.clone();
+          }
+          uploadDataSink.onRewindSucceeded();
         }
       };
     }
   }
+
+  /**
+   * Converts OkHttp's {@link RequestBody} of unknown length to Cronet's {@link UploadDataProvider}
+   * of known length by materializing the body first.
+   *
+   * <p>The body is kept in memory up to the given threshold. Larger bodies are spilled to a
+   * temporary file which is deleted once Cronet closes the provider. Either way, the body is sent
+   * with a {@code Content-Length} header rather than chunked, and it can be rewound.
+   *
+   * <p>The body is materialized on the body reader executor once Cronet first asks for the body
+   * length. Cronet's upload thread waits for it, but only as long as the write timeout allows
+   * between two writes of the body, and never past the call deadline.
+   */
+  @VisibleForTesting
+  static final class SpillingRequestBodyConverter implements RequestBodyConverter {
+    private final long inMemoryThresholdBytes;
+    private final File spillDirectory;
+    private final ExecutorService writerExecutor;
+    private final TimingWheel timingWheel;
+
+    SpillingRequestBodyConverter(
+        long inMemoryThresholdBytes,
+        File spillDirectory,
+        ExecutorService writerExecutor,
+        TimingWheel timingWheel) {
+      this.inMemoryThresholdBytes = inMemoryThresholdBytes;
+      this.spillDirectory = spillDirectory;
+      this.writerExecutor = writerExecutor;
+      this.timingWheel = timingWheel;
+    }
+
+    @Override
+    public UploadDataProvider convertRequestBody(RequestBody requestBody, int writeTimeoutMillis) {
+      return convertRequestBody(requestBody, writeTimeoutMillis, Deadline.NONE);
+    }
+
+    @Override
+    public UploadDataProvider convertRequestBody(
+        RequestBody requestBody, int writeTimeoutMillis, Deadline deadline) {
+      return new SpillingUploadDataProvider(requestBody, writeTimeoutMillis, deadline);
+    }
+
+    private final class SpillingUploadDataProvider extends UploadDataProvider {
+      private final RequestBody okHttpRequestBody;
+      private final long writeTimeoutMillis;
+      private final Deadline deadline;
+
+      /** Completed by the writer task, or failed by the write timeout or by closing. */
+      private final SettableFuture<SpillingSink> materialization = SettableFuture.create();
+
+      private final TimingWheel.Entry writeTimeout =
+          new TimingWheel.Entry() {
+            @Override
+            void onTimeout() {
+              materialization.setException(new TimeoutException());
+            }
+          };
+
+      /** The materialized body, if it fit in memory. */
+      @Nullable private Buffer materializedBody;
+
+      /** The part of {@link #materializedBody} that hasn't been sent to Cronet yet. */
+      @Nullable private Buffer remainingBody;
+
+      /** The provider for the body spilled to disk, if it didn't fit in memory. */
+      @Nullable private FileUploadDataProvider spilledBody;
+
+      private boolean writerStarted;
+
+      private SpillingUploadDataProvider(
+          RequestBody okHttpRequestBody, long writeTimeoutMillis, Deadline deadline) {
+        this.okHttpRequestBody = okHttpRequestBody;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.deadline = deadline;
+      }
+
+      @Override
+      public long getLength() throws IOException {
+        ensureMaterialized();
+        return spilledBody != null ? spilledBody.getLength() : materializedBody.size();
+      }
+
+      @Override
+      public void read(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) throws IOException {
+        ensureMaterialized();
+        if (spilledBody != null) {
+          spilledBody.read(uploadDataSink, byteBuffer);
+          return;
+        }
+        if (remainingBody.read(byteBuffer) == -1) {
+          // This should never happen - for known body length we shouldn't be called at all
+          // if there's no more data to read.
+          throw new IllegalStateException("The source has been exhausted but we expected more!");
+        }
+        uploadDataSink.onReadSucceeded(false);
+      }
+
+      @Override
+      public void rewind(UploadDataSink uploadDataSink) throws IOException {
+        ensureMaterialized();
+        if (spilledBody != null) {
+          spilledBody.rewind(uploadDataSink);
+          return;
+        }
+        // Buffer.clone() shares the underlying segments so this doesn't copy the data.
+        remainingBody = materializedBody.clone();
+        uploadDataSink.onRewindSucceeded();
+      }
+
+      @Override
+      public void close() throws IOException {
+        // Stops a writer which is still running, it discards what it has written.
+        materialization.setException(new IOException("The upload data provider is closed"));
+        if (spilledBody != null) {
+          spilledBody.close();
+        }
+      }
+
+      private void ensureMaterialized() throws IOException {
+        // We're not expecting any concurrent calls here so a simple null check should be
+        // sufficient.
+        if (materializedBody != null || spilledBody != null) {
+          return;
+        }
+        if (!writerStarted) {
+          startWriter();
+          writerStarted = true;
+        }
+
+        SpillingSink spillingSink;
+        try {
+          spillingSink = Uninterruptibles.getUninterruptibly(materialization);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+        } finally {
+          timingWheel.cancel(writeTimeout);
+        }
+
+        if (spillingSink.spillFile != null) {
+          spilledBody =
+              new FileUploadDataProvider(
+                  spillingSink.spillFile, spillingSink.size, /* deleteOnClose= */ true);
+        } else {
+          materializedBody = spillingSink.memory;
+          remainingBody = materializedBody.clone();
+        }
+      }
+
+      private void startWriter() throws IOException {
+        if (deadline.isExpired()) {
+          throw new IOException(new TimeoutException());
+        }
+        SpillingSink spillingSink = new SpillingSink(materialization, this::armWriteTimeout);
+        armWriteTimeout();
+        try {
+          writerExecutor.execute(
+              () -> {
+                try {
+                  BufferedSink bufferedSink = Okio.buffer(spillingSink);
+                  okHttpRequestBody.writeTo(bufferedSink);
+                  bufferedSink.close();
+                } catch (IOException | RuntimeException e) {
+                  spillingSink.discard();
+                  materialization.setException(e);
+                  return;
+                }
+                if (!materialization.set(spillingSink)) {
+                  // Timed out or closed in the meantime, nobody is going to read the body.
+                  spillingSink.discard();
+                }
+              });
+        } catch (RejectedExecutionException e) {
+          timingWheel.cancel(writeTimeout);
+          throw new IOException("Unable to write the request body", e);
+        }
+      }
+
+      /** (Re)starts the timeout, which only fires if the body isn't written to in time. */
+      private void armWriteTimeout() {
+        long timeoutMillis = deadline.clampTimeoutMillis(writeTimeoutMillis);
+        if (timeoutMillis != 0) {
+          timingWheel.schedule(writeTimeout, timeoutMillis);
+        }
+      }
+    }
+
+    /** A sink which keeps the data in memory until it outgrows the threshold. */
+    private final class SpillingSink implements Sink {
+      private final Buffer memory = new Buffer();
+
+      /** Once done, nothing written to the sink is going to be read. */
+      private final Future<?> materialization;
+
+      private final Runnable onWrite;
+      private long size;
+      @Nullable private File spillFile;
+      @Nullable private Sink spillFileSink;
+
+      SpillingSink(Future<?> materialization, Runnable onWrite) {
+        this.materialization = materialization;
+        this.onWrite = onWrite;
+      }
+
+      @Override
+      public void write(Buffer source, long byteCount) throws IOException {
+        if (materialization.isDone()) {
+          throw new InterruptedIOException("The request body is no longer needed");
+        }
+        onWrite.run();
+        size += byteCount;
+        if (spillFileSink == null && size > inMemoryThresholdBytes) {
+          spillFile = File.createTempFile("cronet-upload", ".tmp", spillDirectory);
+          spillFileSink = Okio.sink(spillFile);
+          spillFileSink.write(memory, memory.size());
+        }
+        if (spillFileSink != null) {
+          spillFileSink.write(source, byteCount);
+        } else {
+          memory.write(source, byteCount);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        if (spillFileSink != null) {
+          spillFileSink.flush();
+        }
+      }
+
+      @Override
+      public Timeout timeout() {
+        return Timeout.NONE;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (spillFileSink != null) {
+          spillFileSink.close();
+        }
+      }
+
+      /** Releases everything written so far after a failure. */
+      void discard() {
+        memory.clear();
+        try {
+          close();
+        } catch (IOException e) {
+          // Ignored, we're only cleaning up.
+        }
+        if (spillFile != null) {
+          spillFile.delete();
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,584 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestAndOkHttpResponse;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestFactory;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.ResponseSupplier;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.chromium.net.UrlRequest;
+
+/**
+ * Lets concurrent identical GET requests share a single Cronet request.
+ *
+ * <p>Requests are identical if they have the same URL, the same headers and the same read timeout.
+ * The first request creates a "flight" which later requests can join until any of the participants
+ * starts reading the response body. Every participant gets its own {@link UrlRequest} handle and
+ * its own response whose body is fanned out from a buffer shared by the flight. Bytes are dropped
+ * from the buffer as soon as all participants have read them. The buffer holds at most {@value
+ * #MAX_BUFFERED_BYTES} bytes past the slowest participant: a participant falling further behind
+ * the fastest one is detached from the flight and its body fails, so that a stalled reader can't
+ * make the flight buffer the whole response.
+ *
+ * <p>Calls with a deadline aren't coalesced, the shared request would otherwise be bounded by the
+ * deadline of whichever call created it.
+ *
+ * <p>Canceling a handle only fails that participant. The underlying Cronet request is canceled
+ * once all participants have either canceled or closed their response body early.
+ */
+final class RequestCoalescer {
+
+  private static final long UPSTREAM_READ_SIZE = 8192;
+
+  /** How far the participants of a flight can drift apart while reading the body. */
+  static final long MAX_BUFFERED_BYTES = 1024 * 1024;
+
+  @GuardedBy("this")
+  private final Map<Key, Flight> joinableFlights = new HashMap<>();
+
+  /** Returns whether requests like this one can share a Cronet request. */
+  static boolean isCoalescable(Request request, Deadline deadline) {
+    return request.method().equals("GET") && request.body() == null && !deadline.hasDeadline();
+  }
+
+  /**
+   * Joins an in-flight request identical to {@code request}, or creates a new flight using {@code
+   * requestFactory} if there's none. The factory is only invoked for the first request of each
+   * flight, so it's given the same read timeout by all of them.
+   */
+  CronetRequestAndOkHttpResponse convert(
+      Request request, int readTimeoutMillis, CronetRequestFactory requestFactory)
+      throws IOException {
+    checkArgument(request.method().equals("GET") && request.body() == null);
+    Key key = new Key(request, readTimeoutMillis);
+
+    Flight flight;
+    Participant participant;
+    synchronized (this) {
+      flight = joinableFlights.get(key);
+      if (flight == null) {
+        flight = new Flight(key);
+        joinableFlights.put(key, flight);
+      }
+      participant = flight.join(request);
+    }
+
+    try {
+      flight.ensureInitialized(requestFactory, request);
+    } catch (IOException | RuntimeException e) {
+      participant.release();
+      throw e;
+    }
+    return new CronetRequestAndOkHttpResponse(participant, participant);
+  }
+
+  /** Stops new requests from joining the flight. */
+  private synchronized void seal(Flight flight) {
+    if (joinableFlights.get(flight.key) == flight) {
+      joinableFlights.remove(flight.key);
+    }
+  }
+
+  private static final class Key {
+    private final String url;
+    private final Headers headers;
+    private final int readTimeoutMillis;
+
+    private Key(Request request, int readTimeoutMillis) {
+      this.url = request.url().toString();
+      this.headers = request.headers();
+      this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return url.equals(other.url)
+          && headers.equals(other.headers)
+          && readTimeoutMillis == other.readTimeoutMillis;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * url.hashCode() + headers.hashCode()) + readTimeoutMillis;
+    }
+  }
+
+  /** A Cronet request shared by one or more participants. */
+  private final class Flight {
+    private final Key key;
+    private final SharedBody sharedBody = new SharedBody();
+
+    // Guarded by the coalescer.
+    private int participantCount;
+    private boolean started;
+
+    // Set once by the first participant, before it's handed out.
+    private CronetRequestAndOkHttpResponse sharedRequest;
+    private ListenableFuture<Response> sharedResponse;
+    @Nullable private Exception initializationFailure;
+
+    private Flight(Key key) {
+      this.key = key;
+    }
+
+    @GuardedBy("RequestCoalescer.this")
+    private Participant join(Request request) {
+      participantCount++;
+      return new Participant(this, request, sharedBody.newCursor());
+    }
+
+    private synchronized void ensureInitialized(
+        CronetRequestFactory requestFactory, Request request) throws IOException {
+      if (initializationFailure instanceof IOException) {
+        throw (IOException) initializationFailure;
+      }
+      if (initializationFailure != null) {
+        throw new IOException("Unable to create the shared request", initializationFailure);
+      }
+      if (sharedRequest != null) {
+        return;
+      }
+      try {
+        sharedRequest = requestFactory.create(request);
+      } catch (IOException | RuntimeException e) {
+        // Fail everyone who joined in the meantime too, rather than have them try again.
+        initializationFailure = e;
+        seal(this);
+        throw e;
+      }
+      sharedResponse =
+          Futures.transform(
+              sharedRequest.getResponseAsync(),
+              response -> {
+                sharedBody.setUpstream(response.body().source());
+                return response;
+              },
+              MoreExecutors.directExecutor());
+    }
+
+    private void start() {
+      synchronized (RequestCoalescer.this) {
+        if (started) {
+          return;
+        }
+        started = true;
+      }
+      sharedRequest.getRequest().start();
+    }
+
+    private void release() {
+      synchronized (RequestCoalescer.this) {
+        participantCount--;
+        if (participantCount > 0) {
+          return;
+        }
+        seal(this);
+      }
+      if (sharedBody.isComplete()) {
+        return;
+      }
+      // Nobody is interested in the rest of the response anymore.
+      if (sharedRequest != null) {
+        sharedRequest.getRequest().cancel();
+      }
+      sharedBody.closeUpstream();
+    }
+  }
+
+  /** A single request taking part in a flight. */
+  private final class Participant extends UrlRequest implements ResponseSupplier {
+    private final Flight flight;
+    private final Request request;
+    private final SharedBody.Cursor cursor;
+    private final SettableFuture<Response> response = SettableFuture.create();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final AtomicBoolean listening = new AtomicBoolean();
+
+    private Participant(Flight flight, Request request, SharedBody.Cursor cursor) {
+      this.flight = flight;
+      this.request = request;
+      this.cursor = cursor;
+      cursor.participant = this;
+    }
+
+    @Override
+    public void start() {
+      listenForSharedResponse();
+      flight.start();
+    }
+
+    @Override
+    public void cancel() {
+      response.setException(new IOException("The request was canceled!"));
+      cursor.cancel();
+      release();
+    }
+
+    @Override
+    public boolean isDone() {
+      return response.isDone() && (released.get() || flight.sharedRequest.getRequest().isDone());
+    }
+
+    @Override
+    public void followRedirect() {
+      throw new UnsupportedOperationException("Redirects are handled by the shared request");
+    }
+
+    @Override
+    public void read(ByteBuffer buffer) {
+      throw new UnsupportedOperationException("The body is read from the response");
+    }
+
+    @Override
+    public void getStatus(StatusListener listener) {
+      flight.sharedRequest.getRequest().getStatus(listener);
+    }
+
+    @Override
+    public Response getResponse() throws IOException {
+      listenForSharedResponse();
+      try {
+        return Uninterruptibles.getUninterruptibly(response);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+    }
+
+    @Override
+    public ListenableFuture<Response> getResponseFuture() {
+      listenForSharedResponse();
+      return response;
+    }
+
+    private void listenForSharedResponse() {
+      if (listening.getAndSet(true)) {
+        return;
+      }
+      Futures.addCallback(
+          flight.sharedResponse,
+          new FutureCallback<Response>() {
+            @Override
+            public void onSuccess(Response sharedResponse) {
+              ResponseBody sharedBody = sharedResponse.body();
+              Response participantResponse =
+                  sharedResponse
+                      .newBuilder()
+                      .request(request)
+                      .body(
+                          ResponseBody.create(
+                              sharedBody.contentType(),
+                              sharedBody.contentLength(),
+                              Okio.buffer(cursor)))
+                      .build();
+              if (!response.set(participantResponse)) {
+                // Canceled in the meantime.
+                cursor.close();
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              response.setException(t);
+              release();
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    private void release() {
+      if (!released.getAndSet(true)) {
+        flight.release();
+      }
+    }
+  }
+
+  /**
+   * The response body of a flight. Each participant reads it through its own cursor; the bytes
+   * are kept until every open cursor has read them.
+   *
+   * <p>One participant at a time reads from the upstream, without holding the lock, so the others
+   * can keep reading what's already buffered. Participants which caught up wait for that read.
+   */
+  private final class SharedBody {
+    /**
+     * Guards the buffer and the cursors. Participants wait for the upstream on its condition, which
+     * unlike waiting on a monitor doesn't pin virtual threads to their carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signaled whenever an upstream read completes. */
+    private final Condition upstreamReadDone = lock.newCondition();
+
+    @GuardedBy("lock")
+    private final Buffer buffer = new Buffer();
+
+    @GuardedBy("lock")
+    private final List<Cursor> openCursors = new ArrayList<>();
+
+    /** The offset in the body of the first byte in {@link #buffer}. */
+    @GuardedBy("lock")
+    private long bufferOffset;
+
+    /** Whether a participant is currently reading from the upstream. */
+    @GuardedBy("lock")
+    private boolean upstreamReading;
+
+    /** The failure of the upstream, reported to every participant reaching it. */
+    @GuardedBy("lock")
+    @Nullable
+    private IOException upstreamFailure;
+
+    private volatile boolean upstreamExhausted;
+
+    @Nullable private volatile Source upstream;
+
+    private Cursor newCursor() {
+      Cursor cursor = new Cursor();
+      lock.lock();
+      try {
+        openCursors.add(cursor);
+      } finally {
+        lock.unlock();
+      }
+      return cursor;
+    }
+
+    private boolean isComplete() {
+      return upstreamExhausted;
+    }
+
+    private void setUpstream(Source upstream) {
+      this.upstream = upstream;
+    }
+
+    private void closeUpstream() {
+      Source localUpstream = upstream;
+      if (localUpstream != null) {
+        try {
+          localUpstream.close();
+        } catch (IOException e) {
+          // Nothing to do, the body isn't needed anymore.
+        }
+      }
+    }
+
+    private long read(Cursor cursor, Buffer sink, long byteCount) throws IOException {
+      while (true) {
+        lock.lock();
+        try {
+          while (true) {
+            if (cursor.canceled) {
+              throw new IOException("The request was canceled!");
+            }
+            if (cursor.detached) {
+              throw new IOException("Fell too far behind the other readers of the response");
+            }
+            long available = bufferOffset + buffer.size() - cursor.offset;
+            if (available > 0) {
+              long toCopy = Math.min(available, byteCount);
+              buffer.copyTo(sink, cursor.offset - bufferOffset, toCopy);
+              cursor.offset += toCopy;
+              discardReadBytes();
+              return toCopy;
+            }
+            if (upstreamFailure != null) {
+              throw upstreamFailure;
+            }
+            if (upstreamExhausted) {
+              return -1;
+            }
+            if (!upstreamReading) {
+              break;
+            }
+            try {
+              upstreamReadDone.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException();
+            }
+          }
+          upstreamReading = true;
+        } finally {
+          lock.unlock();
+        }
+        readUpstream();
+      }
+    }
+
+    /** Reads the next part of the body into the buffer. Only called by one cursor at a time. */
+    private void readUpstream() {
+      Buffer chunk = new Buffer();
+      long read = 0;
+      IOException failure = null;
+      try {
+        read = upstream.read(chunk, UPSTREAM_READ_SIZE);
+      } catch (IOException e) {
+        failure = e;
+      } finally {
+        lock.lock();
+        try {
+          upstreamReading = false;
+          if (failure != null) {
+            upstreamFailure = failure;
+          } else if (read == -1) {
+            upstreamExhausted = true;
+          } else {
+            buffer.write(chunk, read);
+            detachLaggingCursors();
+          }
+          upstreamReadDone.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    /** Detaches the cursors more than {@link #MAX_BUFFERED_BYTES} behind the end of the buffer. */
+    @GuardedBy("lock")
+    private void detachLaggingCursors() {
+      long minOffset = bufferOffset + buffer.size() - MAX_BUFFERED_BYTES;
+      if (minOffset <= bufferOffset) {
+        return;
+      }
+      for (Iterator<Cursor> cursors = openCursors.iterator(); cursors.hasNext(); ) {
+        Cursor cursor = cursors.next();
+        if (cursor.offset < minOffset) {
+          cursor.detached = true;
+          cursors.remove();
+        }
+      }
+      discardReadBytes();
+    }
+
+    private void close(Cursor cursor) {
+      lock.lock();
+      try {
+        openCursors.remove(cursor);
+        discardReadBytes();
+        // Wakes the cursor up if it's waiting for the upstream.
+        upstreamReadDone.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @GuardedBy("lock")
+    private void discardReadBytes() {
+      long minOffset = Long.MAX_VALUE;
+      for (Cursor cursor : openCursors) {
+        minOffset = Math.min(minOffset, cursor.offset);
+      }
+      // Everything can go if there are no open cursors left.
+      long discardable = Math.min(minOffset - bufferOffset, buffer.size());
+      if (discardable > 0) {
+        try {
+          buffer.skip(discardable);
+        } catch (EOFException e) {
+          throw new AssertionError("Only buffered bytes are discarded", e);
+        }
+        bufferOffset += discardable;
+      }
+    }
+
+    private final class Cursor implements Source {
+      private Participant participant;
+      private long offset;
+      private volatile boolean canceled;
+
+      @GuardedBy("lock")
+      private boolean detached;
+
+      private boolean closed;
+      private boolean sealed;
+
+      @Override
+      public long read(Buffer sink, long byteCount) throws IOException {
+        checkArgument(byteCount >= 0, "byteCount < 0: %s", byteCount);
+        checkState(!closed, "closed");
+        if (canceled) {
+          throw new IOException("The request was canceled!");
+        }
+        if (!sealed) {
+          // Once a participant starts reading, the beginning of the body might be discarded so
+          // latecomers can't join anymore. Not done under the body's lock to keep the lock order.
+          seal(participant.flight);
+          sealed = true;
+        }
+        long read = SharedBody.this.read(this, sink, byteCount);
+        if (read == -1) {
+          participant.release();
+        }
+        return read;
+      }
+
+      @Override
+      public Timeout timeout() {
+        return Timeout.NONE;
+      }
+
+      private void cancel() {
+        canceled = true;
+        SharedBody.this.close(this);
+      }
+
+      @Override
+      public void close() {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        SharedBody.this.close(this);
+        participant.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestAndOkHttpResponse;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestFactory;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.ResponseSupplier;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.chromium.net.UrlRequest;
+
+/**
+ * Hedges requests according to a {@link HedgingPolicy}.
+ *
+ * <p>Each hedgeable request is wrapped in a {@link UrlRequest} which starts the primary Cronet
+ * request straight away and arms a timeout on the {@link TimingWheel}. If the timeout fires before
+ * the primary request receives its response headers, and the budget allows, the hedge is created
+ * and started on the executor. The first response wins, the other request is canceled.
+ *
+ * <p>The budget works like a token bucket: every hedgeable request deposits {@link
+ * HedgingPolicy#maxHedgedFraction()} of a token and every hedge takes a whole one. The bucket
+ * holds at most {@link #MAX_BUDGET_HEDGES} tokens so that a long quiet period doesn't allow a
+ * burst of hedges.
+ */
+final class RequestHedger {
+  /** The number of most recent time to first byte samples the adaptive delay is computed from. */
+  private static final int SAMPLE_WINDOW_SIZE = 128;
+
+  /** The number of samples needed before the initial delay is replaced by the adaptive one. */
+  private static final int MIN_SAMPLES = 20;
+
+  /** The number of new samples after which the adaptive delay is recomputed. */
+  private static final int RECOMPUTE_INTERVAL = 16;
+
+  /** The budget is kept in fixed point to allow fractions of a hedge. */
+  private static final long BUDGET_UNITS_PER_HEDGE = 1000;
+
+  private static final long MAX_BUDGET_HEDGES = 10;
+
+  private final TimingWheel timingWheel;
+  private final Executor executor;
+  private final Ticker ticker;
+  private final long fixedDelayMillis;
+  private final long minDelayMillis;
+  private final double delayPercentile;
+  private final long budgetUnitsPerRequest;
+  private final AtomicLong budgetUnits = new AtomicLong();
+
+  @GuardedBy("this")
+  private final long[] timeToFirstByteNanos = new long[SAMPLE_WINDOW_SIZE];
+
+  @GuardedBy("this")
+  private int sampleCount;
+
+  @GuardedBy("this")
+  private int nextSampleIndex;
+
+  @GuardedBy("this")
+  private int samplesSinceRecompute;
+
+  @GuardedBy("this")
+  private long adaptiveDelayMillis;
+
+  RequestHedger(HedgingPolicy policy, TimingWheel timingWheel, Executor executor) {
+    this(policy, timingWheel, executor, Ticker.systemTicker());
+  }
+
+  RequestHedger(
+      HedgingPolicy policy, TimingWheel timingWheel, Executor executor, Ticker ticker) {
+    this.timingWheel = timingWheel;
+    this.executor = executor;
+    this.ticker = ticker;
+    this.fixedDelayMillis = policy.fixedDelayMillis();
+    this.minDelayMillis = policy.minDelayMillis();
+    this.delayPercentile = policy.delayPercentile();
+    this.budgetUnitsPerRequest =
+        Math.max(1, Math.round(policy.maxHedgedFraction() * BUDGET_UNITS_PER_HEDGE));
+    this.adaptiveDelayMillis = policy.initialDelayMillis();
+  }
+
+  /** Returns whether the request is safe to send twice. */
+  static boolean isHedgeable(Request request) {
+    return (request.method().equals("GET") || request.method().equals("HEAD"))
+        && request.body() == null;
+  }
+
+  /**
+   * Wraps the Cronet request created by {@code requestFactory} so that it's hedged if it's slow.
+   * The factory is invoked again for the hedge, on the executor.
+   */
+  CronetRequestAndOkHttpResponse convert(Request request, CronetRequestFactory requestFactory)
+      throws IOException {
+    checkArgument(isHedgeable(request));
+    depositBudget();
+    HedgedRequest hedgedRequest =
+        new HedgedRequest(request, requestFactory, requestFactory.create(request));
+    return new CronetRequestAndOkHttpResponse(hedgedRequest, hedgedRequest);
+  }
+
+  /** Returns the delay after which a request without response headers is hedged. */
+  long currentDelayMillis() {
+    if (fixedDelayMillis > 0) {
+      return fixedDelayMillis;
+    }
+    synchronized (this) {
+      return adaptiveDelayMillis;
+    }
+  }
+
+  private void recordTimeToFirstByte(long nanos) {
+    if (fixedDelayMillis > 0) {
+      return;
+    }
+    synchronized (this) {
+      timeToFirstByteNanos[nextSampleIndex] = nanos;
+      nextSampleIndex = (nextSampleIndex + 1) % SAMPLE_WINDOW_SIZE;
+      sampleCount = Math.min(sampleCount + 1, SAMPLE_WINDOW_SIZE);
+      samplesSinceRecompute++;
+
+      if (sampleCount < MIN_SAMPLES || samplesSinceRecompute < RECOMPUTE_INTERVAL) {
+        return;
+      }
+      samplesSinceRecompute = 0;
+      // The window is only partially filled until SAMPLE_WINDOW_SIZE samples are recorded, but
+      // it's always filled from the start.
+      long[] sorted = Arrays.copyOf(timeToFirstByteNanos, sampleCount);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(delayPercentile * sampleCount) - 1;
+      adaptiveDelayMillis =
+          Math.max(minDelayMillis, NANOSECONDS.toMillis(sorted[Math.max(0, index)]));
+    }
+  }
+
+  private void depositBudget() {
+    depositBudgetUnits(budgetUnitsPerRequest);
+  }
+
+  /** Returns the token of a hedge which was never started. */
+  private void refundBudget() {
+    depositBudgetUnits(BUDGET_UNITS_PER_HEDGE);
+  }
+
+  private void depositBudgetUnits(long units) {
+    long maxUnits = MAX_BUDGET_HEDGES * BUDGET_UNITS_PER_HEDGE;
+    while (true) {
+      long current = budgetUnits.get();
+      if (current >= maxUnits
+          || budgetUnits.compareAndSet(current, Math.min(maxUnits, current + units))) {
+        return;
+      }
+    }
+  }
+
+  private boolean tryAcquireBudget() {
+    while (true) {
+      long current = budgetUnits.get();
+      if (current < BUDGET_UNITS_PER_HEDGE) {
+        return false;
+      }
+      if (budgetUnits.compareAndSet(current, current - BUDGET_UNITS_PER_HEDGE)) {
+        return true;
+      }
+    }
+  }
+
+  private final class HedgedRequest extends UrlRequest implements ResponseSupplier {
+    private final Request request;
+    private final CronetRequestFactory requestFactory;
+    private final CronetRequestAndOkHttpResponse primary;
+    private final SettableFuture<Response> response = SettableFuture.create();
+
+    private final TimingWheel.Entry hedgeTimeout =
+        new TimingWheel.Entry() {
+          @Override
+          void onTimeout() {
+            // Creating the hedge might block, keep it off the wheel's thread.
+            try {
+              executor.execute(HedgedRequest.this::startHedge);
+            } catch (RejectedExecutionException e) {
+              // The primary request is still in flight, just don't hedge it.
+            }
+          }
+        };
+
+    @GuardedBy("this")
+    @Nullable
+    private CronetRequestAndOkHttpResponse hedge;
+
+    /** The number of started requests which haven't failed yet. */
+    @GuardedBy("this")
+    private int attemptsInFlight;
+
+    @GuardedBy("this")
+    private boolean canceled;
+
+    /** The failure of the first request to fail, reported if the other one fails too. */
+    @GuardedBy("this")
+    @Nullable
+    private Throwable firstFailure;
+
+    private HedgedRequest(
+        Request request,
+        CronetRequestFactory requestFactory,
+        CronetRequestAndOkHttpResponse primary) {
+      this.request = request;
+      this.requestFactory = requestFactory;
+      this.primary = primary;
+    }
+
+    @Override
+    public void start() {
+      synchronized (this) {
+        if (canceled) {
+          return;
+        }
+        attemptsInFlight++;
+        listenForResponse(primary, ticker.read());
+        primary.getRequest().start();
+      }
+      timingWheel.schedule(hedgeTimeout, currentDelayMillis());
+    }
+
+    private void startHedge() {
+      // Checked before taking the token too, so requests which are already over don't drain the
+      // budget.
+      if (!shouldHedge() || !tryAcquireBudget()) {
+        return;
+      }
+
+      CronetRequestAndOkHttpResponse attempt;
+      try {
+        attempt = requestFactory.create(request);
+      } catch (IOException | RuntimeException e) {
+        // The primary request is still in flight, just don't hedge it.
+        refundBudget();
+        return;
+      }
+
+      synchronized (this) {
+        if (shouldHedge()) {
+          long startNanos = ticker.read();
+          try {
+            attempt.getRequest().start();
+            hedge = attempt;
+            attemptsInFlight++;
+            listenForResponse(attempt, startNanos);
+            return;
+          } catch (RuntimeException e) {
+            // For example if the engine has been shut down. No callback is going to report it,
+            // and the primary request is still in flight.
+          }
+        }
+      }
+      // The request finished while the hedge was being created, or the hedge couldn't start.
+      refundBudget();
+      attempt.discard();
+    }
+
+    private synchronized boolean shouldHedge() {
+      return !canceled && attemptsInFlight > 0 && !response.isDone();
+    }
+
+    private void listenForResponse(CronetRequestAndOkHttpResponse attempt, long startNanos) {
+      Futures.addCallback(
+          attempt.getResponseAsync(),
+          new FutureCallback<Response>() {
+            @Override
+            public void onSuccess(Response attemptResponse) {
+              recordTimeToFirstByte(ticker.read() - startNanos);
+              if (response.set(attemptResponse)) {
+                timingWheel.cancel(hedgeTimeout);
+                cancelOtherAttempt(attempt);
+              } else if (attemptResponse.body() != null) {
+                // Lost the race, closing the body cancels the Cronet request.
+                attemptResponse.close();
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              Throwable failure;
+              synchronized (HedgedRequest.this) {
+                attemptsInFlight--;
+                if (firstFailure == null) {
+                  firstFailure = t;
+                }
+                if (attemptsInFlight > 0) {
+                  // Wait for the other request.
+                  return;
+                }
+                failure = firstFailure;
+              }
+              timingWheel.cancel(hedgeTimeout);
+              response.setException(failure);
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    private void cancelOtherAttempt(CronetRequestAndOkHttpResponse winner) {
+      CronetRequestAndOkHttpResponse loser;
+      synchronized (this) {
+        loser = winner == primary ? hedge : primary;
+      }
+      if (loser != null) {
+        loser.getRequest().cancel();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      CronetRequestAndOkHttpResponse hedgeToCancel;
+      synchronized (this) {
+        canceled = true;
+        hedgeToCancel = hedge;
+      }
+      timingWheel.cancel(hedgeTimeout);
+      primary.getRequest().cancel();
+      if (hedgeToCancel != null) {
+        hedgeToCancel.getRequest().cancel();
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      CronetRequestAndOkHttpResponse hedgeToCheck;
+      synchronized (this) {
+        hedgeToCheck = hedge;
+      }
+      return response.isDone()
+          && primary.getRequest().isDone()
+          && (hedgeToCheck == null || hedgeToCheck.getRequest().isDone());
+    }
+
+    @Override
+    public void followRedirect() {
+      throw new UnsupportedOperationException("Redirects are handled by the hedged requests");
+    }
+
+    @Override
+    public void read(ByteBuffer buffer) {
+      throw new UnsupportedOperationException("The body is read from the response");
+    }
+
+    @Override
+    public void getStatus(StatusListener listener) {
+      primary.getRequest().getStatus(listener);
+    }
+
+    @Override
+    public Response getResponse() throws IOException {
+      try {
+        return Uninterruptibles.getUninterruptibly(response);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    @Override
+    public ListenableFuture<Response> getResponseFuture() {
+      return response;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Executor;
+import okhttp3.Request;
+import org.chromium.net.RequestFinishedInfo;
+
+/**
+ * Receives the timing metrics of each Cronet request sent through the transport.
+ *
+ * <p>Once a Cronet request finishes, Cronet reports the time spent in each of its phases (DNS
+ * lookup, connection, TLS handshake, sending the request and waiting for the first byte) as
+ * {@link RequestFinishedInfo.Metrics}. The listener receives them along with the OkHttp request
+ * the Cronet request was made for. Requests which are retried or hedged are reported once for
+ * each Cronet request sent.
+ *
+ * <p>The metrics are only available for engines which support {@link
+ * org.chromium.net.ExperimentalUrlRequest.Builder#setRequestFinishedListener}, which includes the
+ * native and Play Services Cronet implementations.
+ */
+public abstract class RequestMetricsListener {
+  private final Executor executor;
+
+  /** Creates a listener which is notified on the given executor. */
+  protected RequestMetricsListener(Executor executor) {
+    this.executor = checkNotNull(executor);
+  }
+
+  /** Invoked once the Cronet request made for {@code request} finished. */
+  public abstract void onRequestFinished(Request request, RequestFinishedInfo requestInfo);
+
+  /** Returns the Cronet listener reporting the finished Cronet request made for the request. */
+  final RequestFinishedInfo.Listener forRequest(Request request) {
+    return new RequestFinishedInfo.Listener(executor) {
+      @Override
+      public void onRequestFinished(RequestFinishedInfo requestInfo) {
+        RequestMetricsListener.this.onRequestFinished(request, requestInfo);
+      }
+    };
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Ascii;
+import javax.annotation.Nullable;
+import okhttp3.Request;
+
+/**
+ * Determines the priority of the requests sent through the Cronet transport.
+ *
+ * <p>Cronet passes the priority on to HTTP/2 and QUIC stream prioritization, so that, for example,
+ * loads of visible content can be given {@link CronetRequestPriority#HIGHEST} and prefetches {@link
+ * CronetRequestPriority#IDLE}. Requests the extractor has no priority for fall back to their
+ * {@link CronetRequestPriority} tag, and then to the default priority of their traffic class.
+ *
+ * <p>The priority also orders the calls queued in the {@link CronetDispatcher} of a call factory
+ * using the extractor.
+ */
+public abstract class RequestPriorityExtractor {
+
+  /** Returns the priority of the request, or null if the extractor doesn't determine it. */
+  @Nullable
+  public abstract CronetRequestPriority extract(Request request);
+
+  /**
+   * Returns the name of the request header the priority is read from, which is removed from the
+   * request before it's sent. Null if no header should be removed.
+   */
+  @Nullable
+  String strippedHeaderName() {
+    return null;
+  }
+
+  /** Returns the priority of the request, falling back to the tag and traffic class default. */
+  final CronetRequestPriority priorityOf(Request request) {
+    CronetRequestPriority priority = extract(request);
+    return priority != null ? priority : CronetRequestPriority.of(request);
+  }
+
+  /** Returns an extractor which only uses the {@link CronetRequestPriority} tags. */
+  public static RequestPriorityExtractor fromTag() {
+    return FromTagHolder.INSTANCE;
+  }
+
+  /**
+   * Returns an extractor which reads the priority from the given request header. The header value
+   * is the case insensitive name of a {@link CronetRequestPriority} constant, such as {@code
+   * highest} or {@code idle}. Unknown values are ignored. The header is never sent to the server.
+   */
+  public static RequestPriorityExtractor fromHeader(String headerName) {
+    checkNotNull(headerName);
+    return new RequestPriorityExtractor() {
+      @Nullable
+      @Override
+      public CronetRequestPriority extract(Request request) {
+        String value = request.header(headerName);
+        if (value == null) {
+          return null;
+        }
+        try {
+          return CronetRequestPriority.valueOf(Ascii.toUpperCase(value.trim()));
+        } catch (IllegalArgumentException e) {
+          return null;
+        }
+      }
+
+      @Override
+      String strippedHeaderName() {
+        return headerName;
+      }
+    };
+  }
+
+  private static class FromTagHolder {
+    private static final RequestPriorityExtractor INSTANCE =
+        new RequestPriorityExtractor() {
+          @Nullable
+          @Override
+          public CronetRequestPriority extract(Request request) {
+            return request.tag(CronetRequestPriority.class);
+          }
+        };
+  }
+}
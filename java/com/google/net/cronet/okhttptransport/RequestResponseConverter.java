@@ -16,40 +16,86 @@
 
 package com.google.net.cronet.okhttptransport;
 
+import com.google.common.base.Ascii;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import org.chromium.net.CronetEngine;
+import org.chromium.net.ExperimentalUrlRequest;
+import org.chromium.net.UploadDataProvider;
 import org.chromium.net.UrlRequest;
 
 /** Converts OkHttp requests to Cronet requests. */
 final class RequestResponseConverter {
   private static final String CONTENT_LENGTH_HEADER_NAME = "Content-Length";
   private static final String CONTENT_TYPE_HEADER_NAME = "Content-Type";
+  private static final String CONTENT_ENCODING_HEADER_NAME = "Content-Encoding";
   private static final String CONTENT_TYPE_HEADER_DEFAULT_VALUE = "application/octet-stream";
 
-  private final CronetEngine cronetEngine;
+  private final CronetEnginePool enginePool;
   private final Executor uploadDataProviderExecutor;
   private final ResponseConverter responseConverter;
+  private final ByteBufferPool responseBufferPool;
+  private final Executor backgroundUploadDataProviderExecutor;
+  private final ByteBufferPool backgroundResponseBufferPool;
+  private final long responsePrefetchBytes;
   private final RequestBodyConverter requestBodyConverter;
   private final RedirectStrategy redirectStrategy;
+  private final RequestPriorityExtractor priorityExtractor;
+  private final RequestBodyCompression requestBodyCompression;
+  @Nullable private final RequestCoalescer requestCoalescer;
+  @Nullable private final RequestHedger requestHedger;
+  @Nullable private final RequestRetrier requestRetrier;
+  @Nullable private final BandwidthLimits bandwidthLimits;
+  @Nullable private final HostCircuitBreaker circuitBreaker;
+  @Nullable private final RequestMetricsListener metricsListener;
+  @Nullable private final TransportMetrics transportMetrics;
+  private final TimingWheel timingWheel;
 
   RequestResponseConverter(
-      CronetEngine cronetEngine,
+      CronetEnginePool enginePool,
       Executor uploadDataProviderExecutor,
       RequestBodyConverter requestBodyConverter,
       ResponseConverter responseConverter,
-      RedirectStrategy redirectStrategy) {
-    this.cronetEngine = cronetEngine;
+      ByteBufferPool responseBufferPool,
+      Executor backgroundUploadDataProviderExecutor,
+      ByteBufferPool backgroundResponseBufferPool,
+      long responsePrefetchBytes,
+      RedirectStrategy redirectStrategy,
+      RequestPriorityExtractor priorityExtractor,
+      RequestBodyCompression requestBodyCompression,
+      @Nullable RequestCoalescer requestCoalescer,
+      @Nullable RequestHedger requestHedger,
+      @Nullable RequestRetrier requestRetrier,
+      @Nullable BandwidthLimits bandwidthLimits,
+      @Nullable HostCircuitBreaker circuitBreaker,
+      @Nullable RequestMetricsListener metricsListener,
+      @Nullable TransportMetrics transportMetrics,
+      TimingWheel timingWheel) {
+    this.enginePool = enginePool;
     this.uploadDataProviderExecutor = uploadDataProviderExecutor;
     this.requestBodyConverter = requestBodyConverter;
     this.responseConverter = responseConverter;
+    this.responseBufferPool = responseBufferPool;
+    this.backgroundUploadDataProviderExecutor = backgroundUploadDataProviderExecutor;
+    this.backgroundResponseBufferPool = backgroundResponseBufferPool;
+    this.responsePrefetchBytes = responsePrefetchBytes;
     this.redirectStrategy = redirectStrategy;
+    this.priorityExtractor = priorityExtractor;
+    this.requestBodyCompression = requestBodyCompression;
+    this.requestCoalescer = requestCoalescer;
+    this.requestHedger = requestHedger;
+    this.requestRetrier = requestRetrier;
+    this.bandwidthLimits = bandwidthLimits;
+    this.circuitBreaker = circuitBreaker;
+    this.metricsListener = metricsListener;
+    this.transportMetrics = transportMetrics;
+    this.timingWheel = timingWheel;
   }
 
   /**
@@ -72,26 +118,139 @@ final class RequestResponseConverter {
    */
   CronetRequestAndOkHttpResponse convert(
       Request okHttpRequest, int readTimeoutMillis, int writeTimeoutMillis) throws IOException {
+    return convert(okHttpRequest, readTimeoutMillis, writeTimeoutMillis, Deadline.NONE);
+  }
+
+  /**
+   * Like {@link #convert(Request, int, int)}, but each read, write and redirect of the request is
+   * only given the part of its timeout that's left until the call deadline.
+   */
+  CronetRequestAndOkHttpResponse convert(
+      Request okHttpRequest, int readTimeoutMillis, int writeTimeoutMillis, Deadline deadline)
+      throws IOException {
+    if (requestCoalescer != null && RequestCoalescer.isCoalescable(okHttpRequest, deadline)) {
+      return requestCoalescer.convert(
+          okHttpRequest,
+          readTimeoutMillis,
+          request ->
+              convertWithoutCoalescing(request, readTimeoutMillis, writeTimeoutMillis, deadline));
+    }
+    return convertWithoutCoalescing(
+        okHttpRequest, readTimeoutMillis, writeTimeoutMillis, deadline);
+  }
+
+  private CronetRequestAndOkHttpResponse convertWithoutCoalescing(
+      Request okHttpRequest, int readTimeoutMillis, int writeTimeoutMillis, Deadline deadline)
+      throws IOException {
+    if (requestRetrier != null && RequestRetrier.isRetryable(okHttpRequest)) {
+      return requestRetrier.convert(
+          okHttpRequest,
+          deadline,
+          request ->
+              convertWithoutRetries(request, readTimeoutMillis, writeTimeoutMillis, deadline));
+    }
+    return convertWithoutRetries(okHttpRequest, readTimeoutMillis, writeTimeoutMillis, deadline);
+  }
+
+  private CronetRequestAndOkHttpResponse convertWithoutRetries(
+      Request okHttpRequest, int readTimeoutMillis, int writeTimeoutMillis, Deadline deadline)
+      throws IOException {
+    if (requestHedger != null && RequestHedger.isHedgeable(okHttpRequest)) {
+      return requestHedger.convert(
+          okHttpRequest,
+          request ->
+              convertSingleRequest(request, readTimeoutMillis, writeTimeoutMillis, deadline));
+    }
+    return convertSingleRequest(okHttpRequest, readTimeoutMillis, writeTimeoutMillis, deadline);
+  }
+
+  private CronetRequestAndOkHttpResponse convertSingleRequest(
+      Request okHttpRequest, int readTimeoutMillis, int writeTimeoutMillis, Deadline deadline)
+      throws IOException {
+    // Taken first so that calls to an unhealthy host fail fast, before the request body is
+    // converted.
+    HostCircuitBreaker.Permit permit =
+        circuitBreaker != null ? circuitBreaker.acquire(okHttpRequest.url().host()) : null;
+    try {
+      return buildSingleRequest(
+          okHttpRequest, readTimeoutMillis, writeTimeoutMillis, deadline, permit);
+    } catch (IOException | RuntimeException e) {
+      if (permit != null) {
+        // The request is never started, so it says nothing about the host.
+        permit.onUnrelatedOutcome();
+      }
+      throw e;
+    }
+  }
+
+  private CronetRequestAndOkHttpResponse buildSingleRequest(
+      Request okHttpRequest,
+      int readTimeoutMillis,
+      int writeTimeoutMillis,
+      Deadline deadline,
+      @Nullable HostCircuitBreaker.Permit permit)
+      throws IOException {
+    RequestThrottle throttle =
+        bandwidthLimits != null
+            ? bandwidthLimits.throttleFor(okHttpRequest)
+            : RequestThrottle.UNLIMITED;
+    boolean background = CronetTrafficClass.of(okHttpRequest) == CronetTrafficClass.BACKGROUND;
+    TransportMetrics.HostMetrics hostMetrics =
+        transportMetrics != null ? transportMetrics.forHost(okHttpRequest.url().host()) : null;
 
     OkHttpBridgeRequestCallback callback =
-        new OkHttpBridgeRequestCallback(readTimeoutMillis, redirectStrategy);
+        new OkHttpBridgeRequestCallback(
+            readTimeoutMillis,
+            redirectStrategy,
+            timingWheel,
+            background ? backgroundResponseBufferPool : responseBufferPool,
+            deadline,
+            throttle,
+            responsePrefetchBytes,
+            hostMetrics);
 
     // The OkHttp request callback methods are lightweight, the heavy lifting is done by OkHttp /
     // app owned threads. Use a direct executor to avoid extra thread hops.
+    CronetEnginePool.Assignment assignment = enginePool.assign(okHttpRequest, callback);
     UrlRequest.Builder builder =
-        cronetEngine
+        assignment
+            .engine()
             .newUrlRequestBuilder(
-                okHttpRequest.url().toString(), callback, MoreExecutors.directExecutor())
+                okHttpRequest.url().toString(),
+                assignment.callback(),
+                MoreExecutors.directExecutor())
             .allowDirectExecutor();
 
     builder.setHttpMethod(okHttpRequest.method());
+    if (metricsListener != null && builder instanceof ExperimentalUrlRequest.Builder) {
+      ((ExperimentalUrlRequest.Builder) builder)
+          .setRequestFinishedListener(metricsListener.forRequest(okHttpRequest));
+    }
+    builder.setPriority(priorityExtractor.priorityOf(okHttpRequest).cronetPriority());
+    String priorityHeaderName = priorityExtractor.strippedHeaderName();
+
+    RequestBody body = okHttpRequest.body();
+    UploadDataProvider uploadDataProvider = null;
+    RequestBodyCompression.Encoding bodyEncoding = getBodyEncoding(okHttpRequest);
+    if (bodyEncoding != null) {
+      body = CompressedRequestBody.create(body, bodyEncoding);
+      builder.addHeader(CONTENT_ENCODING_HEADER_NAME, bodyEncoding.headerValue());
+    }
 
     for (int i = 0; i < okHttpRequest.headers().size(); i++) {
+      if (bodyEncoding != null
+          && Ascii.equalsIgnoreCase(okHttpRequest.headers().name(i), CONTENT_LENGTH_HEADER_NAME)) {
+        // The length of the compressed body isn't known in advance.
+        continue;
+      }
+      if (priorityHeaderName != null
+          && Ascii.equalsIgnoreCase(okHttpRequest.headers().name(i), priorityHeaderName)) {
+        // Only meant for the transport.
+        continue;
+      }
       builder.addHeader(okHttpRequest.headers().name(i), okHttpRequest.headers().value(i));
     }
 
-    RequestBody body = okHttpRequest.body();
-
     if (body != null) {
       if (okHttpRequest.header(CONTENT_LENGTH_HEADER_NAME) == null && body.contentLength() != -1) {
         builder.addHeader(CONTENT_LENGTH_HEADER_NAME, String.valueOf(body.contentLength()));
@@ -106,14 +265,57 @@ final class RequestResponseConverter {
           builder.addHeader(CONTENT_TYPE_HEADER_NAME, CONTENT_TYPE_HEADER_DEFAULT_VALUE);
         } // else use the header
 
-        builder.setUploadDataProvider(
-            requestBodyConverter.convertRequestBody(body, writeTimeoutMillis),
-            uploadDataProviderExecutor);
+        Executor uploadExecutor =
+            background ? backgroundUploadDataProviderExecutor : uploadDataProviderExecutor;
+        uploadDataProvider =
+            throttle.throttle(
+                requestBodyConverter.convertRequestBody(body, writeTimeoutMillis, deadline),
+                uploadExecutor,
+                timingWheel);
+        if (hostMetrics != null) {
+          uploadDataProvider =
+              TimedUploadDataProvider.wrap(uploadDataProvider, hostMetrics.series(null));
+        }
+        builder.setUploadDataProvider(uploadDataProvider, uploadExecutor);
       }
     }
 
+    UrlRequest request = assignment.track(builder.build());
+
+    // Done last so that the permit isn't released twice if anything above fails.
+    if (permit != null) {
+      permit.observe(callback.getUrlResponseInfo());
+    }
+
+    UploadDataProvider providerToDiscard = uploadDataProvider;
     return new CronetRequestAndOkHttpResponse(
-        builder.build(), createResponseSupplier(okHttpRequest, callback));
+        request,
+        createResponseSupplier(okHttpRequest, callback),
+        () -> {
+          if (permit != null) {
+            permit.onUnrelatedOutcome();
+          }
+          if (providerToDiscard != null) {
+            try {
+              providerToDiscard.close();
+            } catch (IOException e) {
+              // Nothing to do, the body isn't going to be sent.
+            }
+          }
+        });
+  }
+
+  /** Returns the encoding the request body should be compressed with, if any. */
+  @Nullable
+  private RequestBodyCompression.Encoding getBodyEncoding(Request okHttpRequest)
+      throws IOException {
+    RequestBody body = okHttpRequest.body();
+    if (body == null
+        || body.contentLength() == 0
+        || okHttpRequest.header(CONTENT_ENCODING_HEADER_NAME) != null) {
+      return null;
+    }
+    return requestBodyCompression.encodingFor(okHttpRequest);
   }
 
   private ResponseSupplier createResponseSupplier(
@@ -131,8 +333,16 @@ final class RequestResponseConverter {
     };
   }
 
+  /**
+   * Creates a single Cronet request for an OkHttp request. Used by the layers which can turn one
+   * OkHttp request into several Cronet requests, or the other way around.
+   */
+  interface CronetRequestFactory {
+    CronetRequestAndOkHttpResponse create(Request request) throws IOException;
+  }
+
   /** A {@link Future} like holder for OkHttp's {@link Response}. */
-  private interface ResponseSupplier {
+  interface ResponseSupplier {
     Response getResponse() throws IOException;
 
     ListenableFuture<Response> getResponseFuture();
@@ -142,10 +352,17 @@ final class RequestResponseConverter {
   static final class CronetRequestAndOkHttpResponse {
     private final UrlRequest request;
     private final ResponseSupplier responseSupplier;
+    private final Runnable discarder;
 
     CronetRequestAndOkHttpResponse(UrlRequest request, ResponseSupplier responseSupplier) {
+      this(request, responseSupplier, () -> {});
+    }
+
+    CronetRequestAndOkHttpResponse(
+        UrlRequest request, ResponseSupplier responseSupplier, Runnable discarder) {
       this.request = request;
       this.responseSupplier = responseSupplier;
+      this.discarder = discarder;
     }
 
     public UrlRequest getRequest() {
@@ -159,5 +376,13 @@ final class RequestResponseConverter {
     public ListenableFuture<Response> getResponseAsync() {
       return responseSupplier.getResponseFuture();
     }
+
+    /**
+     * Releases what's held for a request which is never going to be started, such as its upload
+     * data provider. Canceling doesn't do that, Cronet ignores requests which haven't started.
+     */
+    void discard() {
+      discarder.run();
+    }
   }
 }
@@ -18,9 +18,13 @@ package com.google.net.cronet.okhttptransport;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+import androidx.annotation.VisibleForTesting;
+import java.io.File;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Nullable;
 import org.chromium.net.CronetEngine;
 import org.chromium.net.UploadDataProvider;
 
@@ -29,16 +33,37 @@ abstract class RequestResponseConverterBasedBuilder<
     ObjectBeingBuiltT> {
   private static final int DEFAULT_THREAD_POOL_SIZE = 4;
 
-  private final CronetEngine cronetEngine;
+  private final CronetEnginePool enginePool;
   private int uploadDataProviderExecutorSize = DEFAULT_THREAD_POOL_SIZE;
+  private int requestBodyReplayBufferSize = 0;
+  private long inMemoryRequestBodyThreshold =
+      RequestBodyConverterImpl.DEFAULT_IN_MEMORY_BODY_LENGTH_THRESHOLD_BYTES;
+  @Nullable private File requestBodySpillDirectory = null;
   // Not setting the default straight away to lazy initialize the object if it ends up not being
   // used.
   private RedirectStrategy redirectStrategy = null;
+  private RequestPriorityExtractor priorityExtractor = RequestPriorityExtractor.fromTag();
+  private RequestBodyCompression requestBodyCompression = null;
+  private boolean requestCoalescingEnabled = false;
+  @Nullable private HedgingPolicy hedgingPolicy = null;
+  @Nullable private RetryPolicy retryPolicy = null;
+  @Nullable private BandwidthLimits bandwidthLimits = null;
+  @Nullable private CircuitBreakerPolicy circuitBreakerPolicy = null;
+  @Nullable private RequestMetricsListener metricsListener = null;
+  @Nullable private TransportMetrics transportMetrics = null;
+  private boolean backgroundTrafficIsolated = false;
+  @Nullable private CronetTransportResources transportResources = null;
+  private ExecutorStrategy executorStrategy = ExecutorStrategy.platformThreads();
+  @Nullable private TimingWheel timingWheel;
   private final SubBuilderT castedThis;
 
-  @SuppressWarnings("unchecked") // checked as a precondition
   RequestResponseConverterBasedBuilder(CronetEngine cronetEngine, Class<SubBuilderT> clazz) {
-    this.cronetEngine = checkNotNull(cronetEngine);
+    this(CronetEnginePool.of(cronetEngine), clazz);
+  }
+
+  @SuppressWarnings("unchecked") // checked as a precondition
+  RequestResponseConverterBasedBuilder(CronetEnginePool enginePool, Class<SubBuilderT> clazz) {
+    this.enginePool = checkNotNull(enginePool);
     checkArgument(this.getClass().equals(clazz));
     castedThis = (SubBuilderT) this;
   }
@@ -55,6 +80,51 @@ abstract class RequestResponseConverterBasedBuilder<
     return castedThis;
   }
 
+  /**
+   * Sets the maximum number of bytes of a streamed request body kept in memory so that the body can
+   * be sent again if Cronet needs to rewind it (for example when following 307 / 308 redirects).
+   * Disabled (set to 0) by default.
+   *
+   * <p>This only affects bodies which are too large to be held in memory in their entirety, and
+   * which don't implement {@link ReplayableRequestBody}. Rewinding such a body fails the request if
+   * more than {@code sizeBytes} bytes of it have been read.
+   */
+  public final SubBuilderT setRequestBodyReplayBufferSize(int sizeBytes) {
+    checkArgument(sizeBytes >= 0, "The replay buffer size mustn't be negative!");
+    requestBodyReplayBufferSize = sizeBytes;
+    return castedThis;
+  }
+
+  /**
+   * Sets the size of the largest request body which is read into memory in its entirety before
+   * being sent. Larger bodies are streamed from the application, which requires an extra thread
+   * for each upload. Defaults to 1 MiB.
+   */
+  public final SubBuilderT setInMemoryRequestBodyThreshold(long thresholdBytes) {
+    checkArgument(thresholdBytes >= 0, "The threshold mustn't be negative!");
+    inMemoryRequestBodyThreshold = thresholdBytes;
+    return castedThis;
+  }
+
+  /**
+   * Enables buffering of request bodies of unknown length, spilling them to temporary files in the
+   * given directory once they outgrow the in-memory threshold.
+   *
+   * <p>By default, bodies of unknown length are streamed from the application and sent using
+   * chunked transfer encoding. With buffering enabled, the body is written out first and then
+   * uploaded with a {@code Content-Length} header, which is often faster for large bodies. The
+   * buffered body can also be rewound by Cronet. On the flip side, the upload doesn't start until
+   * the application has written the entire body. The write timeout still applies to each write of
+   * the body.
+   *
+   * @see #setInMemoryRequestBodyThreshold(long)
+   */
+  public final SubBuilderT setRequestBodySpillDirectory(File directory) {
+    checkNotNull(directory);
+    this.requestBodySpillDirectory = directory;
+    return castedThis;
+  }
+
   /**
    * Sets the strategy for following redirects.
    *
@@ -67,22 +137,278 @@ abstract class RequestResponseConverterBasedBuilder<
     return castedThis;
   }
 
+  /**
+   * Sets how the priority of requests is determined. By default, requests are prioritized by their
+   * {@link CronetRequestPriority} tag. Call factories also use it to order the calls queued in
+   * their {@link CronetDispatcher}.
+   */
+  public final SubBuilderT setPriorityExtractor(RequestPriorityExtractor priorityExtractor) {
+    checkNotNull(priorityExtractor);
+    this.priorityExtractor = priorityExtractor;
+    return castedThis;
+  }
+
+  final RequestPriorityExtractor priorityExtractor() {
+    return priorityExtractor;
+  }
+
+  /**
+   * Sets the strategy for compressing request bodies. By default, only requests tagged with a
+   * {@link RequestBodyCompression.Encoding} are compressed.
+   */
+  public final SubBuilderT setRequestBodyCompression(
+      RequestBodyCompression requestBodyCompression) {
+    checkNotNull(requestBodyCompression);
+    this.requestBodyCompression = requestBodyCompression;
+    return castedThis;
+  }
+
+  /**
+   * Sets whether concurrent identical GET requests should share a single Cronet request. Requests
+   * are identical if they have the same URL, headers and read timeout. Calls with a call timeout
+   * are never coalesced. Disabled by default.
+   *
+   * <p>Each call still gets its own response and canceling a call doesn't affect the others. The
+   * shared response body is buffered until all the calls have read it, so a slow reader holds
+   * memory for the others.
+   */
+  public final SubBuilderT setRequestCoalescingEnabled(boolean requestCoalescingEnabled) {
+    this.requestCoalescingEnabled = requestCoalescingEnabled;
+    return castedThis;
+  }
+
+  /**
+   * Enables hedging of slow {@code GET} and {@code HEAD} requests according to the given policy.
+   * Disabled by default.
+   *
+   * @see HedgingPolicy
+   */
+  public final SubBuilderT setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+    checkNotNull(hedgingPolicy);
+    this.hedgingPolicy = hedgingPolicy;
+    return castedThis;
+  }
+
+  /**
+   * Enables retries of idempotent requests which fail with transient network errors before the
+   * response headers are received. Disabled by default.
+   *
+   * @see RetryPolicy
+   */
+  public final SubBuilderT setRetryPolicy(RetryPolicy retryPolicy) {
+    checkNotNull(retryPolicy);
+    this.retryPolicy = retryPolicy;
+    return castedThis;
+  }
+
+  /**
+   * Limits the bandwidth used by the requests, for example per traffic class or per host.
+   * Unlimited by default.
+   *
+   * @see BandwidthLimits
+   */
+  public final SubBuilderT setBandwidthLimits(BandwidthLimits bandwidthLimits) {
+    checkNotNull(bandwidthLimits);
+    this.bandwidthLimits = bandwidthLimits;
+    return castedThis;
+  }
+
+  /**
+   * Enables a per-host circuit breaker which fails calls to unhealthy hosts immediately with a
+   * {@link CircuitBreakerOpenException}. Disabled by default.
+   *
+   * @see CircuitBreakerPolicy
+   */
+  public final SubBuilderT setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+    checkNotNull(circuitBreakerPolicy);
+    this.circuitBreakerPolicy = circuitBreakerPolicy;
+    return castedThis;
+  }
+
+  /**
+   * Sets a listener which receives the timing metrics (DNS, connect, TLS, send and time to first
+   * byte) of every Cronet request once it finishes.
+   */
+  public final SubBuilderT setRequestMetricsListener(RequestMetricsListener metricsListener) {
+    checkNotNull(metricsListener);
+    this.metricsListener = metricsListener;
+    return castedThis;
+  }
+
+  /**
+   * Sets the registry recording the latency and throughput histograms of the requests. The same
+   * registry can be shared by several interceptors and call factories. Disabled by default.
+   */
+  public final SubBuilderT setTransportMetrics(TransportMetrics transportMetrics) {
+    checkNotNull(transportMetrics);
+    this.transportMetrics = transportMetrics;
+    return castedThis;
+  }
+
+  @Nullable
+  final TransportMetrics transportMetrics() {
+    return transportMetrics;
+  }
+
+  /**
+   * Sets whether requests tagged as {@link CronetTrafficClass#BACKGROUND background} traffic should
+   * use their own threads and buffers. Disabled by default.
+   *
+   * <p>When enabled, background uploads are served by a separate single thread, and background
+   * response bodies are read into smaller buffers from a separate pool. Call factories also
+   * deliver the responses of background calls on separate threads. This keeps prefetching and
+   * syncs from holding up the resources used by the requests the user is waiting for.
+   */
+  public final SubBuilderT setBackgroundTrafficIsolated(boolean backgroundTrafficIsolated) {
+    this.backgroundTrafficIsolated = backgroundTrafficIsolated;
+    return castedThis;
+  }
+
+  final boolean backgroundTrafficIsolated() {
+    return backgroundTrafficIsolated;
+  }
+
+  /** Sets the wheel all the timeouts are armed in, so that tests can advance it by hand. */
+  @VisibleForTesting
+  final SubBuilderT setTimingWheel(TimingWheel timingWheel) {
+    this.timingWheel = checkNotNull(timingWheel);
+    return castedThis;
+  }
+
+  /**
+   * Returns the wheel the timeouts are armed in: the one set for tests, otherwise the one owned by
+   * the shared resources, otherwise the process-wide one.
+   */
+  final TimingWheel timingWheel() {
+    if (timingWheel != null) {
+      return timingWheel;
+    }
+    return transportResources != null ? transportResources.timingWheel() : TimingWheel.shared();
+  }
+
+  /**
+   * Sets the threads and buffers to use, shared with other call factories and interceptors. By
+   * default, each built object creates its own thread pools, which are never shut down.
+   *
+   * <p>The upload data provider executor size configured on the resources takes precedence over
+   * {@link #setUploadDataProviderExecutorSize(int)}.
+   */
+  public final SubBuilderT setTransportResources(CronetTransportResources transportResources) {
+    checkNotNull(transportResources);
+    this.transportResources = transportResources;
+    return castedThis;
+  }
+
+  /**
+   * Sets the threads the blocking work of the transport runs on, for example {@link
+   * ExecutorStrategy#virtualThreads()}. Defaults to {@link ExecutorStrategy#platformThreads()}.
+   * Ignored if {@link #setTransportResources shared resources} are used, configure the strategy
+   * on the resources instead.
+   */
+  public final SubBuilderT setExecutorStrategy(ExecutorStrategy executorStrategy) {
+    checkNotNull(executorStrategy);
+    this.executorStrategy = executorStrategy;
+    return castedThis;
+  }
+
+  final ExecutorStrategy executorStrategy() {
+    return executorStrategy;
+  }
+
+  /** Returns the shared resources, or null if the built object should create its own. */
+  @Nullable
+  final CronetTransportResources transportResources() {
+    return transportResources;
+  }
+
+  /**
+   * Returns the size up to which response bodies are read in full before the response is handed
+   * over, 0 to always stream them.
+   */
+  long responsePrefetchBytes() {
+    return 0;
+  }
+
   abstract ObjectBeingBuiltT build(RequestResponseConverter converter);
 
   public final ObjectBeingBuiltT build() {
     if (redirectStrategy == null) {
       redirectStrategy = RedirectStrategy.defaultStrategy();
     }
+    if (requestBodyCompression == null) {
+      requestBodyCompression = RequestBodyCompression.taggedRequestsOnly();
+    }
+
+    Executor uploadDataProviderExecutor;
+    ExecutorService requestBodyReaderExecutor;
+    ByteBufferPool responseBufferPool;
+    if (transportResources != null) {
+      checkState(!transportResources.isClosed(), "The transport resources are closed!");
+      uploadDataProviderExecutor = transportResources.uploadDataProviderExecutor();
+      requestBodyReaderExecutor = transportResources.requestBodyReaderExecutor();
+      responseBufferPool = transportResources.responseBufferPool();
+    } else {
+      uploadDataProviderExecutor =
+          executorStrategy.newUploadDataProviderExecutor(
+              "CronetUploadDataProvider", uploadDataProviderExecutorSize);
+      // There must always be enough executors to blocking-read the OkHttp request bodies
+      // otherwise deadlocks can occur.
+      requestBodyReaderExecutor =
+          executorStrategy.newBlockingTaskExecutor("CronetRequestBodyReader");
+      responseBufferPool =
+          new ByteBufferPool(
+              OkHttpBridgeRequestCallback.CRONET_BYTE_BUFFER_CAPACITY, /* maxPooledBuffers= */ 0);
+    }
+
+    Executor backgroundUploadDataProviderExecutor = uploadDataProviderExecutor;
+    ByteBufferPool backgroundResponseBufferPool = responseBufferPool;
+    if (backgroundTrafficIsolated && transportResources != null) {
+      backgroundUploadDataProviderExecutor =
+          transportResources.backgroundUploadDataProviderExecutor();
+      backgroundResponseBufferPool = transportResources.backgroundResponseBufferPool();
+    } else if (backgroundTrafficIsolated) {
+      backgroundUploadDataProviderExecutor =
+          executorStrategy.newUploadDataProviderExecutor(
+              "CronetBackgroundUploadDataProvider", /* size= */ 1);
+      backgroundResponseBufferPool =
+          new ByteBufferPool(
+              OkHttpBridgeRequestCallback.BACKGROUND_BYTE_BUFFER_CAPACITY,
+              /* maxPooledBuffers= */ 0);
+    }
+
+    TimingWheel timingWheel = timingWheel();
+    // Creating a hedge might block on the engine, like reading a request body does.
+    RequestHedger hedger =
+        hedgingPolicy != null
+            ? new RequestHedger(hedgingPolicy, timingWheel, requestBodyReaderExecutor)
+            : null;
 
     RequestResponseConverter converter =
         new RequestResponseConverter(
-            cronetEngine,
-            Executors.newFixedThreadPool(uploadDataProviderExecutorSize),
-            // There must always be enough executors to blocking-read the OkHttp request bodies
-            // otherwise deadlocks can occur.
-            RequestBodyConverterImpl.create(Executors.newCachedThreadPool()),
+            enginePool,
+            uploadDataProviderExecutor,
+            RequestBodyConverterImpl.create(
+                requestBodyReaderExecutor,
+                requestBodyReplayBufferSize,
+                inMemoryRequestBodyThreshold,
+                requestBodySpillDirectory,
+                timingWheel),
             new ResponseConverter(),
-            redirectStrategy);
+            responseBufferPool,
+            backgroundUploadDataProviderExecutor,
+            backgroundResponseBufferPool,
+            responsePrefetchBytes(),
+            redirectStrategy,
+            priorityExtractor,
+            requestBodyCompression,
+            requestCoalescingEnabled ? new RequestCoalescer() : null,
+            hedger,
+            retryPolicy != null ? new RequestRetrier(retryPolicy, timingWheel) : null,
+            bandwidthLimits,
+            circuitBreakerPolicy != null ? new HostCircuitBreaker(circuitBreakerPolicy) : null,
+            metricsListener,
+            transportMetrics,
+            timingWheel);
 
     return build(converter);
   }
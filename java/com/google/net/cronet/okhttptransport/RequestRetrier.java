@@ -0,0 +1,288 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestAndOkHttpResponse;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestFactory;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.ResponseSupplier;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.concurrent.GuardedBy;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.chromium.net.NetworkException;
+import org.chromium.net.UrlRequest;
+
+/**
+ * Retries requests according to a {@link RetryPolicy}.
+ *
+ * <p>Each retryable request is wrapped in a {@link UrlRequest} which starts one Cronet request at
+ * a time. If an attempt fails with a retryable error, a new Cronet request is created and started
+ * on the {@link TimingWheel} thread once the backoff elapses.
+ */
+final class RequestRetrier {
+  private static final ImmutableSet<String> IDEMPOTENT_METHODS =
+      ImmutableSet.of("GET", "HEAD", "OPTIONS", "PUT", "DELETE");
+
+  private final RetryPolicy policy;
+  private final TimingWheel timingWheel;
+  private final Random random;
+
+  RequestRetrier(RetryPolicy policy, TimingWheel timingWheel) {
+    this(policy, timingWheel, new Random());
+  }
+
+  RequestRetrier(RetryPolicy policy, TimingWheel timingWheel, Random random) {
+    this.policy = policy;
+    this.timingWheel = timingWheel;
+    this.random = random;
+  }
+
+  /** Returns whether the request is safe to send again. */
+  static boolean isRetryable(Request request) {
+    RequestBody body = request.body();
+    return IDEMPOTENT_METHODS.contains(request.method())
+        && (body == null || body instanceof ReplayableRequestBody);
+  }
+
+  /** Returns whether the failure is transient and the request can be sent again straight away. */
+  static boolean isRetryableFailure(Throwable t) {
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof NetworkException) {
+        return ((NetworkException) cause).immediatelyRetryable();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wraps the Cronet request created by {@code requestFactory} so that it's retried if it fails
+   * with a transient error. The factory is invoked again for each retry, on the timing wheel
+   * thread.
+   */
+  CronetRequestAndOkHttpResponse convert(
+      Request request, Deadline deadline, CronetRequestFactory requestFactory)
+      throws IOException {
+    checkArgument(isRetryable(request));
+    RetryingRequest retryingRequest =
+        new RetryingRequest(request, deadline, requestFactory, requestFactory.create(request));
+    return new CronetRequestAndOkHttpResponse(retryingRequest, retryingRequest);
+  }
+
+  /** Returns the backoff before the given retry, counted from 1. */
+  private long backoffMillis(int retry) {
+    long bound = policy.backoffBoundMillis(retry);
+    long half = bound / 2;
+    synchronized (random) {
+      return half + (long) (random.nextDouble() * (bound - half));
+    }
+  }
+
+  private final class RetryingRequest extends UrlRequest implements ResponseSupplier {
+    private final Request request;
+    private final Deadline deadline;
+    private final CronetRequestFactory requestFactory;
+    private final SettableFuture<Response> response = SettableFuture.create();
+
+    private final TimingWheel.Entry retryTimer =
+        new TimingWheel.Entry() {
+          @Override
+          void onTimeout() {
+            startRetry();
+          }
+        };
+
+    @GuardedBy("this")
+    private CronetRequestAndOkHttpResponse attempt;
+
+    /** Whether the current attempt has been started and hasn't failed yet. */
+    @GuardedBy("this")
+    private boolean attemptInFlight;
+
+    @GuardedBy("this")
+    private int retries;
+
+    @GuardedBy("this")
+    private boolean canceled;
+
+    private RetryingRequest(
+        Request request,
+        Deadline deadline,
+        CronetRequestFactory requestFactory,
+        CronetRequestAndOkHttpResponse firstAttempt) {
+      this.request = request;
+      this.deadline = deadline;
+      this.requestFactory = requestFactory;
+      this.attempt = firstAttempt;
+    }
+
+    @Override
+    public void start() {
+      synchronized (this) {
+        if (canceled) {
+          return;
+        }
+        startAttempt(attempt);
+      }
+    }
+
+    @GuardedBy("this")
+    private void startAttempt(CronetRequestAndOkHttpResponse newAttempt) {
+      attempt = newAttempt;
+      attemptInFlight = true;
+      listenForResponse(newAttempt);
+      try {
+        newAttempt.getRequest().start();
+      } catch (RuntimeException e) {
+        // For example if the engine has been shut down. No callback is going to report it.
+        attemptInFlight = false;
+        response.setException(e);
+        throw e;
+      }
+    }
+
+    private void startRetry() {
+      CronetRequestAndOkHttpResponse newAttempt;
+      try {
+        newAttempt = requestFactory.create(request);
+      } catch (IOException | RuntimeException e) {
+        response.setException(e);
+        return;
+      }
+      synchronized (this) {
+        if (!canceled) {
+          try {
+            startAttempt(newAttempt);
+          } catch (RuntimeException e) {
+            // Already reported through the response.
+          }
+          return;
+        }
+      }
+      // Canceled while the retry was being created.
+      newAttempt.discard();
+    }
+
+    private void listenForResponse(CronetRequestAndOkHttpResponse listenedAttempt) {
+      Futures.addCallback(
+          listenedAttempt.getResponseAsync(),
+          new FutureCallback<Response>() {
+            @Override
+            public void onSuccess(Response attemptResponse) {
+              response.set(attemptResponse);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              long backoffMillis;
+              synchronized (RetryingRequest.this) {
+                attemptInFlight = false;
+                if (canceled || retries >= policy.maxRetries() || !isRetryableFailure(t)) {
+                  response.setException(t);
+                  return;
+                }
+                retries++;
+                backoffMillis = backoffMillis(retries);
+                if (deadline.remainingNanos() <= MILLISECONDS.toNanos(backoffMillis)) {
+                  // The retry couldn't finish in time.
+                  response.setException(t);
+                  return;
+                }
+              }
+              timingWheel.schedule(retryTimer, Math.max(1, backoffMillis));
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public void cancel() {
+      CronetRequestAndOkHttpResponse attemptToCancel;
+      boolean waitingForRetry;
+      synchronized (this) {
+        canceled = true;
+        attemptToCancel = attempt;
+        waitingForRetry = !attemptInFlight && !response.isDone();
+      }
+      timingWheel.cancel(retryTimer);
+      attemptToCancel.getRequest().cancel();
+      if (waitingForRetry) {
+        // There's no Cronet request which would report the cancellation.
+        response.setException(new IOException("The request was canceled!"));
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      CronetRequestAndOkHttpResponse attemptToCheck;
+      synchronized (this) {
+        attemptToCheck = attempt;
+      }
+      return response.isDone() && attemptToCheck.getRequest().isDone();
+    }
+
+    @Override
+    public void followRedirect() {
+      throw new UnsupportedOperationException("Redirects are handled by the retried requests");
+    }
+
+    @Override
+    public void read(ByteBuffer buffer) {
+      throw new UnsupportedOperationException("The body is read from the response");
+    }
+
+    @Override
+    public void getStatus(StatusListener listener) {
+      CronetRequestAndOkHttpResponse attemptToCheck;
+      synchronized (this) {
+        attemptToCheck = attempt;
+      }
+      attemptToCheck.getRequest().getStatus(listener);
+    }
+
+    @Override
+    public Response getResponse() throws IOException {
+      try {
+        return Uninterruptibles.getUninterruptibly(response);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    @Override
+    public ListenableFuture<Response> getResponseFuture() {
+      return response;
+    }
+  }
+}
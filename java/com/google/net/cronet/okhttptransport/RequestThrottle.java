@@ -0,0 +1,276 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.chromium.net.UploadDataProvider;
+import org.chromium.net.UploadDataSink;
+
+/**
+ * Paces the bytes transferred by a single request according to all the token buckets which apply
+ * to it. Each read or write first acquires tokens and then transfers at most that many bytes, the
+ * tokens which end up unused are returned.
+ */
+final class RequestThrottle {
+  /** A throttle which never blocks. */
+  static final RequestThrottle UNLIMITED = new RequestThrottle(ImmutableList.of());
+
+  private final ImmutableList<TokenBucket> buckets;
+
+  RequestThrottle(List<TokenBucket> buckets) {
+    this.buckets = ImmutableList.copyOf(buckets);
+  }
+
+  boolean isUnlimited() {
+    return buckets.isEmpty();
+  }
+
+  /**
+   * Blocks until the request can transfer some bytes and returns how many, at most {@code
+   * maxBytes}. Only used by the response body reads, which block the reading thread anyway.
+   */
+  int acquire(int maxBytes) throws InterruptedIOException {
+    if (maxBytes == 0 || isUnlimited()) {
+      return maxBytes;
+    }
+    long[] grants = new long[buckets.size()];
+    long granted = maxBytes;
+    try {
+      for (int i = 0; i < buckets.size(); i++) {
+        granted = buckets.get(i).acquire(granted);
+        grants[i] = granted;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      releaseExcess(grants, 0);
+      throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+    }
+    // The later buckets might have granted less than the earlier ones.
+    releaseExcess(grants, granted);
+    return (int) granted;
+  }
+
+  /**
+   * Takes up to {@code maxBytes} without blocking. Returns the number of bytes the request can
+   * transfer, 0 if any of the buckets doesn't have a reasonable amount available.
+   */
+  int tryAcquire(int maxBytes) {
+    if (maxBytes == 0 || isUnlimited()) {
+      return maxBytes;
+    }
+    long[] grants = new long[buckets.size()];
+    long granted = maxBytes;
+    for (int i = 0; i < buckets.size(); i++) {
+      granted = buckets.get(i).tryAcquire(granted);
+      if (granted == 0) {
+        releaseExcess(grants, 0);
+        return 0;
+      }
+      grants[i] = granted;
+    }
+    releaseExcess(grants, granted);
+    return (int) granted;
+  }
+
+  /** Returns how long it takes until {@link #tryAcquire} with the same argument succeeds. */
+  long nanosUntilAvailable(int maxBytes) {
+    long waitNanos = 0;
+    for (TokenBucket bucket : buckets) {
+      waitNanos = Math.max(waitNanos, bucket.nanosUntilAvailable(maxBytes));
+    }
+    return waitNanos;
+  }
+
+  /** Returns tokens which were acquired, but not used for transferring bytes. */
+  void release(int unusedBytes) {
+    if (unusedBytes <= 0) {
+      return;
+    }
+    for (TokenBucket bucket : buckets) {
+      bucket.release(unusedBytes);
+    }
+  }
+
+  private void releaseExcess(long[] grants, long usedBytes) {
+    for (int i = 0; i < grants.length; i++) {
+      if (grants[i] > usedBytes) {
+        buckets.get(i).release(grants[i] - usedBytes);
+      }
+    }
+  }
+
+  /**
+   * Returns a provider which paces the reads of the given provider. A read which has to wait for
+   * the budget doesn't block the upload thread, it's retried on {@code executor} once the budget is
+   * likely to be available.
+   */
+  UploadDataProvider throttle(
+      UploadDataProvider uploadDataProvider, Executor executor, TimingWheel timingWheel) {
+    if (isUnlimited()) {
+      return uploadDataProvider;
+    }
+    return new ThrottledUploadDataProvider(uploadDataProvider, executor, timingWheel);
+  }
+
+  private final class ThrottledUploadDataProvider extends UploadDataProvider {
+    private final UploadDataProvider delegate;
+    private final Executor executor;
+    private final TimingWheel timingWheel;
+    private final DeferredRead deferredRead = new DeferredRead();
+    private volatile boolean closed;
+
+    ThrottledUploadDataProvider(
+        UploadDataProvider delegate, Executor executor, TimingWheel timingWheel) {
+      this.delegate = delegate;
+      this.executor = executor;
+      this.timingWheel = timingWheel;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+      return delegate.getLength();
+    }
+
+    @Override
+    public void read(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) throws IOException {
+      int granted = tryAcquire(byteBuffer.remaining());
+      if (granted == 0 && byteBuffer.hasRemaining()) {
+        deferredRead.schedule(uploadDataSink, byteBuffer);
+        return;
+      }
+
+      ThrottledUploadDataSink throttledSink =
+          new ThrottledUploadDataSink(uploadDataSink, byteBuffer, granted);
+      try {
+        delegate.read(throttledSink, byteBuffer);
+      } catch (IOException | RuntimeException e) {
+        throttledSink.settle(granted);
+        throw e;
+      }
+    }
+
+    @Override
+    public void rewind(UploadDataSink uploadDataSink) throws IOException {
+      delegate.rewind(uploadDataSink);
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      timingWheel.cancel(deferredRead);
+      delegate.close();
+    }
+
+    /** A read waiting for the budget. Cronet never has more than one read in flight. */
+    private final class DeferredRead extends TimingWheel.Entry {
+      // Written before the entry is armed and read after it times out, the wheel's lock orders
+      // the accesses.
+      private UploadDataSink uploadDataSink;
+      private ByteBuffer byteBuffer;
+
+      void schedule(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) {
+        this.uploadDataSink = uploadDataSink;
+        this.byteBuffer = byteBuffer;
+        long waitNanos = nanosUntilAvailable(byteBuffer.remaining());
+        timingWheel.schedule(this, Math.max(1, NANOSECONDS.toMillis(waitNanos + 999_999)));
+      }
+
+      @Override
+      void onTimeout() {
+        // The delegate might block, keep it off the wheel's thread.
+        try {
+          executor.execute(this::retry);
+        } catch (RejectedExecutionException e) {
+          uploadDataSink.onReadError(new IOException("Unable to resume the upload", e));
+        }
+      }
+
+      private void retry() {
+        if (closed) {
+          return;
+        }
+        try {
+          read(uploadDataSink, byteBuffer);
+        } catch (IOException | RuntimeException e) {
+          uploadDataSink.onReadError(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Limits the buffer to the granted bytes for the duration of a read of the delegate, then returns
+   * the unused tokens and restores the limit.
+   */
+  private final class ThrottledUploadDataSink extends UploadDataSink {
+    private final UploadDataSink delegate;
+    private final ByteBuffer byteBuffer;
+    private final int granted;
+    private final int positionBeforeRead;
+    private final int originalLimit;
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    ThrottledUploadDataSink(UploadDataSink delegate, ByteBuffer byteBuffer, int granted) {
+      this.delegate = delegate;
+      this.byteBuffer = byteBuffer;
+      this.granted = granted;
+      this.positionBeforeRead = byteBuffer.position();
+      this.originalLimit = byteBuffer.limit();
+      byteBuffer.limit(positionBeforeRead + granted);
+    }
+
+    /** Returns the unused tokens and the buffer's limit, unless it's been done already. */
+    void settle(int unusedBytes) {
+      if (settled.compareAndSet(false, true)) {
+        release(unusedBytes);
+        byteBuffer.limit(originalLimit);
+      }
+    }
+
+    @Override
+    public void onReadSucceeded(boolean finalChunk) {
+      settle(granted - (byteBuffer.position() - positionBeforeRead));
+      delegate.onReadSucceeded(finalChunk);
+    }
+
+    @Override
+    public void onReadError(Exception exception) {
+      settle(granted);
+      delegate.onReadError(exception);
+    }
+
+    @Override
+    public void onRewindSucceeded() {
+      delegate.onRewindSucceeded();
+    }
+
+    @Override
+    public void onRewindError(Exception exception) {
+      delegate.onRewindError(exception);
+    }
+  }
+}
@@ -42,6 +42,8 @@ import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
 import okio.Okio;
 import okio.Source;
 import org.chromium.net.UrlResponseInfo;
@@ -71,7 +73,9 @@ final class ResponseConverter {
   Response toResponse(Request request, OkHttpBridgeRequestCallback callback) throws IOException {
     UrlResponseInfo cronetResponseInfo = getFutureValue(callback.getUrlResponseInfo());
     Response.Builder responseBuilder =
-        createResponse(request, cronetResponseInfo, getFutureValue(callback.getBodySource()));
+        createResponse(request, cronetResponseInfo, getFutureValue(callback.getBodySource()))
+            .sentRequestAtMillis(callback.getRequestSentAtMillis())
+            .receivedResponseAtMillis(callback.getResponseReceivedAtMillis());
 
     List<UrlResponseInfo> redirectResponseInfos = callback.getUrlResponseInfoChain();
     List<String> urlChain = cronetResponseInfo.getUrlChain();
@@ -98,6 +102,15 @@ final class ResponseConverter {
     return responseBuilder.build();
   }
 
+  /**
+   * Creates an OkHttp's Response for a bidirectional stream. Streams don't follow redirects, so
+   * there's no chain of prior responses to convert.
+   */
+  Response toResponse(Request request, UrlResponseInfo cronetResponseInfo, Source bodySource)
+      throws IOException {
+    return createResponse(request, cronetResponseInfo, bodySource).build();
+  }
+
   ListenableFuture<Response> toResponseAsync(
       Request request, OkHttpBridgeRequestCallback callback) {
     return Futures.whenAllComplete(callback.getUrlResponseInfo(), callback.getBodySource())
@@ -208,10 +221,20 @@ final class ResponseConverter {
           "HTTP " + httpStatusCode + " had non-zero Content-Length: " + contentLengthString);
     }
 
+    // Bodies which were read in full are served from memory as they are.
+    BufferedSource bufferedSource =
+        bodySource instanceof Buffer ? (Buffer) bodySource : Okio.buffer(bodySource);
     return ResponseBody.create(
-        contentType != null ? MediaType.parse(contentType) : null,
-        contentLength,
-        Okio.buffer(bodySource));
+        contentType != null ? MediaType.parse(contentType) : null, contentLength, bufferedSource);
+  }
+
+  /**
+   * Returns whether the whole body of the response has already been received, so that reading it
+   * never blocks.
+   */
+  static boolean isBodyReceived(Response response) {
+    ResponseBody body = response.body();
+    return body != null && body.source() instanceof Buffer;
   }
 
   /** Converts Cronet's negotiated protocol string to OkHttp's {@link Protocol}. */
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Configures automatic retries of requests which fail because of transient network errors, for
+ * example because the device switched networks.
+ *
+ * <p>A request is only retried if:
+ *
+ * <ul>
+ *   <li>its method is idempotent and it either has no body, or its body is a {@link
+ *       ReplayableRequestBody},
+ *   <li>it failed before the response headers were received, and
+ *   <li>Cronet reports the failure as {@link
+ *       org.chromium.net.NetworkException#immediatelyRetryable() immediately retryable}.
+ * </ul>
+ *
+ * <p>Retries are delayed by an exponential backoff with jitter. A retry which wouldn't start
+ * before the call deadline isn't attempted and the call fails with the last error.
+ */
+public final class RetryPolicy {
+  private static final int DEFAULT_MAX_RETRIES = 2;
+  private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+  private static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+  private static final double DEFAULT_BACKOFF_MULTIPLIER = 2;
+
+  private final int maxRetries;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final double backoffMultiplier;
+
+  private RetryPolicy(Builder builder) {
+    this.maxRetries = builder.maxRetries;
+    this.initialBackoffMillis = builder.initialBackoffMillis;
+    this.maxBackoffMillis = builder.maxBackoffMillis;
+    this.backoffMultiplier = builder.backoffMultiplier;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Returns the maximum number of retries of a single request. */
+  int maxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Returns the upper bound of the backoff before the given retry, counted from 1. The actual
+   * backoff is picked at random between half of the bound and the bound.
+   */
+  long backoffBoundMillis(int retry) {
+    double bound = initialBackoffMillis * Math.pow(backoffMultiplier, retry - 1);
+    return (long) Math.min(maxBackoffMillis, bound);
+  }
+
+  /** Builder for {@link RetryPolicy}. */
+  public static final class Builder {
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private double backoffMultiplier = DEFAULT_BACKOFF_MULTIPLIER;
+
+    Builder() {}
+
+    /** Sets the maximum number of retries of a single request. Defaults to 2. */
+    public Builder setMaxRetries(int maxRetries) {
+      checkArgument(maxRetries > 0, "The number of retries must be positive!");
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /** Sets the backoff before the first retry. Defaults to 100 milliseconds. */
+    public Builder setInitialBackoffMillis(long initialBackoffMillis) {
+      checkArgument(initialBackoffMillis > 0, "The backoff must be positive!");
+      this.initialBackoffMillis = initialBackoffMillis;
+      return this;
+    }
+
+    /** Sets the upper bound of the backoff. Defaults to 2 seconds. */
+    public Builder setMaxBackoffMillis(long maxBackoffMillis) {
+      checkArgument(maxBackoffMillis > 0, "The backoff must be positive!");
+      this.maxBackoffMillis = maxBackoffMillis;
+      return this;
+    }
+
+    /** Sets the factor the backoff grows by with each retry. Defaults to 2. */
+    public Builder setBackoffMultiplier(double backoffMultiplier) {
+      checkArgument(backoffMultiplier >= 1, "The multiplier must be at least 1!");
+      this.backoffMultiplier = backoffMultiplier;
+      return this;
+    }
+
+    public RetryPolicy build() {
+      return new RetryPolicy(this);
+    }
+  }
+}
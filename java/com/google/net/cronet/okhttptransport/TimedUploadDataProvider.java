@@ -0,0 +1,96 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.chromium.net.UploadDataProvider;
+import org.chromium.net.UploadDataSink;
+
+/**
+ * Records how long Cronet waits for each chunk of a request body. For streamed bodies, this is
+ * the time the {@link UploadBodyDataBroker} waits for the application to write the chunk.
+ *
+ * <p>Cronet never has more than one read in flight, so a single sink is reused for all of them and
+ * timing a read doesn't allocate.
+ */
+final class TimedUploadDataProvider extends UploadDataProvider {
+  private final UploadDataProvider delegate;
+  private final TransportMetrics.Series series;
+  private final TimingSink timingSink = new TimingSink();
+
+  private TimedUploadDataProvider(UploadDataProvider delegate, TransportMetrics.Series series) {
+    this.delegate = delegate;
+    this.series = series;
+  }
+
+  static UploadDataProvider wrap(UploadDataProvider delegate, TransportMetrics.Series series) {
+    return new TimedUploadDataProvider(delegate, series);
+  }
+
+  @Override
+  public long getLength() throws IOException {
+    return delegate.getLength();
+  }
+
+  @Override
+  public void read(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) throws IOException {
+    timingSink.sink = uploadDataSink;
+    timingSink.readStartNanos = System.nanoTime();
+    delegate.read(timingSink, byteBuffer);
+  }
+
+  @Override
+  public void rewind(UploadDataSink uploadDataSink) throws IOException {
+    timingSink.sink = uploadDataSink;
+    delegate.rewind(timingSink);
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  private final class TimingSink extends UploadDataSink {
+    // Set before each read or rewind, which happen one at a time. Volatile as the delegate may
+    // complete the read on another thread.
+    private volatile UploadDataSink sink;
+    private volatile long readStartNanos;
+
+    @Override
+    public void onReadSucceeded(boolean finalChunk) {
+      series.recordUploadChunkWait(System.nanoTime() - readStartNanos);
+      sink.onReadSucceeded(finalChunk);
+    }
+
+    @Override
+    public void onReadError(Exception exception) {
+      sink.onReadError(exception);
+    }
+
+    @Override
+    public void onRewindSucceeded() {
+      sink.onRewindSucceeded();
+    }
+
+    @Override
+    public void onRewindError(Exception exception) {
+      sink.onRewindError(exception);
+    }
+  }
+}
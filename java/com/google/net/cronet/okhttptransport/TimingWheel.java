@@ -0,0 +1,297 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A hashed timing wheel used for the call, read and write timeouts of the transport.
+ *
+ * <p>Deadlines are rounded up to the next tick and hashed into a fixed number of buckets. Each
+ * bucket is an intrusive doubly linked list of {@link Entry entries}, so scheduling and canceling a
+ * timeout is O(1) and doesn't allocate. The owners of timeouts embed an entry which they arm and
+ * disarm as many times as they need.
+ *
+ * <p>A single daemon thread advances the wheel. It's only started once something is scheduled and
+ * it finishes as soon as there are no pending timeouts. A wheel owned by {@link
+ * CronetTransportResources} is {@link #stop() stopped} when the resources are closed.
+ */
+final class TimingWheel {
+  private static final String TAG = "TimingWheel";
+
+  private static final long DEFAULT_TICK_MILLIS = 10;
+  private static final int DEFAULT_BUCKET_COUNT = 512;
+
+  private final Ticker ticker;
+  private final long tickNanos;
+  private final Entry[] buckets;
+  private final int bucketMask;
+  private final long startNanos;
+  @Nullable private final ThreadFactory workerThreadFactory;
+
+  /** The last tick for which all the expired entries were processed. */
+  @GuardedBy("this")
+  private long currentTick;
+
+  @GuardedBy("this")
+  private int pendingCount;
+
+  @GuardedBy("this")
+  @Nullable
+  private Thread worker;
+
+  @GuardedBy("this")
+  private boolean stopped;
+
+  /**
+   * Creates a timing wheel.
+   *
+   * @param workerThreadFactory the factory of the thread advancing the wheel, or null if the wheel
+   *     is advanced manually by calling {@link #expireTimeouts()}
+   */
+  TimingWheel(
+      Ticker ticker,
+      long tickMillis,
+      int bucketCount,
+      @Nullable ThreadFactory workerThreadFactory) {
+    checkArgument(tickMillis > 0, "The tick must be positive!");
+    checkArgument(
+        bucketCount > 0 && Integer.bitCount(bucketCount) == 1,
+        "The number of buckets must be a power of two!");
+    this.ticker = ticker;
+    this.tickNanos = MILLISECONDS.toNanos(tickMillis);
+    this.buckets = new Entry[bucketCount];
+    this.bucketMask = bucketCount - 1;
+    this.startNanos = ticker.read();
+    this.workerThreadFactory = workerThreadFactory;
+  }
+
+  /** Creates a timing wheel advanced by a daemon thread with the given name. */
+  static TimingWheel withWorkerThread(String threadName) {
+    return new TimingWheel(
+        Ticker.systemTicker(),
+        DEFAULT_TICK_MILLIS,
+        DEFAULT_BUCKET_COUNT,
+        new ThreadFactoryBuilder().setNameFormat(threadName).setDaemon(true).build());
+  }
+
+  /**
+   * Returns the timing wheel shared by all the transport instances which don't use {@link
+   * CronetTransportResources}.
+   */
+  static TimingWheel shared() {
+    return SharedInstanceHolder.INSTANCE;
+  }
+
+  /**
+   * Arms the entry to time out after the given delay. If the entry is already armed, it's
+   * rescheduled.
+   */
+  void schedule(Entry entry, long delayMillis) {
+    checkArgument(delayMillis > 0, "The delay must be positive!");
+    synchronized (this) {
+      if (entry.isScheduled()) {
+        unlink(entry);
+      }
+
+      long elapsedNanos = ticker.read() - startNanos + MILLISECONDS.toNanos(delayMillis);
+      // Round up so that the entry never expires early.
+      long deadlineTick = (elapsedNanos + tickNanos - 1) / tickNanos;
+      entry.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+
+      int bucketIndex = (int) (entry.deadlineTick & bucketMask);
+      entry.bucketIndex = bucketIndex;
+      entry.prev = null;
+      entry.next = buckets[bucketIndex];
+      if (entry.next != null) {
+        entry.next.prev = entry;
+      }
+      buckets[bucketIndex] = entry;
+      pendingCount++;
+
+      if (worker == null && workerThreadFactory != null && !stopped) {
+        startWorker();
+      }
+    }
+  }
+
+  /**
+   * Stops the thread advancing the wheel. The pending timeouts are dropped and the ones armed
+   * afterwards never fire.
+   */
+  void stop() {
+    Thread workerToInterrupt;
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      for (int i = 0; i < buckets.length; i++) {
+        while (buckets[i] != null) {
+          unlink(buckets[i]);
+        }
+      }
+      workerToInterrupt = worker;
+    }
+    if (workerToInterrupt != null) {
+      workerToInterrupt.interrupt();
+    }
+  }
+
+  /** Returns the number of armed entries. */
+  @VisibleForTesting
+  synchronized int pendingCount() {
+    return pendingCount;
+  }
+
+  /** Disarms the entry. This is a no-op if the entry isn't armed. */
+  synchronized void cancel(Entry entry) {
+    if (entry.isScheduled()) {
+      unlink(entry);
+    }
+  }
+
+  /**
+   * Processes all the ticks that have elapsed since the last call, and notifies the entries which
+   * timed out. The notifications happen outside of the wheel's lock.
+   *
+   * @return the number of entries that timed out
+   */
+  int expireTimeouts() {
+    List<Entry> expired = Collections.emptyList();
+    synchronized (this) {
+      long nowTick = (ticker.read() - startNanos) / tickNanos;
+      // Visiting each bucket once is enough even if the wheel fell behind by more than a turn.
+      long lastTickToVisit = Math.min(nowTick, currentTick + buckets.length);
+      for (long tick = currentTick + 1; tick <= lastTickToVisit; tick++) {
+        Entry entry = buckets[(int) (tick & bucketMask)];
+        while (entry != null) {
+          Entry next = entry.next;
+          if (entry.deadlineTick <= nowTick) {
+            unlink(entry);
+            if (expired.isEmpty()) {
+              expired = new ArrayList<>();
+            }
+            expired.add(entry);
+          }
+          entry = next;
+        }
+      }
+      currentTick = Math.max(currentTick, nowTick);
+    }
+
+    // The entries can be rescheduled by their owners as soon as the lock is released, so they
+    // mustn't be chained through their own links here.
+    for (Entry entry : expired) {
+      try {
+        entry.onTimeout();
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Timeout handler failed", e);
+      }
+    }
+    return expired.size();
+  }
+
+  @GuardedBy("this")
+  private void unlink(Entry entry) {
+    if (entry.prev != null) {
+      entry.prev.next = entry.next;
+    } else {
+      buckets[entry.bucketIndex] = entry.next;
+    }
+    if (entry.next != null) {
+      entry.next.prev = entry.prev;
+    }
+    entry.prev = null;
+    entry.next = null;
+    entry.bucketIndex = Entry.NOT_SCHEDULED;
+    pendingCount--;
+  }
+
+  @GuardedBy("this")
+  private void startWorker() {
+    worker = workerThreadFactory.newThread(this::runWorker);
+    worker.start();
+  }
+
+  private void runWorker() {
+    while (true) {
+      synchronized (this) {
+        if (pendingCount == 0 || stopped) {
+          worker = null;
+          return;
+        }
+      }
+      try {
+        MILLISECONDS.sleep(Math.max(1, tickNanos / 1_000_000));
+      } catch (InterruptedException e) {
+        // Fire what's already due and hand the rest over to a new worker, so that no timeout is
+        // stranded until something else is scheduled.
+        expireTimeouts();
+        synchronized (this) {
+          worker = null;
+          if (pendingCount > 0 && !stopped) {
+            startWorker();
+          }
+        }
+        Thread.currentThread().interrupt();
+        return;
+      }
+      expireTimeouts();
+    }
+  }
+
+  /**
+   * A timeout which can be armed in a {@link TimingWheel}. An entry can only be armed in a single
+   * wheel at a time.
+   */
+  abstract static class Entry {
+    private static final int NOT_SCHEDULED = -1;
+
+    // All guarded by the wheel the entry is scheduled in.
+    @Nullable private Entry prev;
+    @Nullable private Entry next;
+    private long deadlineTick;
+    private int bucketIndex = NOT_SCHEDULED;
+
+    private boolean isScheduled() {
+      return bucketIndex != NOT_SCHEDULED;
+    }
+
+    /**
+     * Invoked on the wheel's thread once the entry times out. Implementations should be quick and
+     * non-blocking, typically canceling a request.
+     */
+    abstract void onTimeout();
+  }
+
+  private static class SharedInstanceHolder {
+    private static final TimingWheel INSTANCE = withWorkerThread("CronetTimingWheel");
+  }
+}
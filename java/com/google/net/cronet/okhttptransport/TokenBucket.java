@@ -0,0 +1,136 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.base.Ticker;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A token bucket limiting the rate of transferred bytes. The bucket holds at most one second worth
+ * of bytes, so that an idle bucket allows a short burst.
+ */
+final class TokenBucket {
+  /**
+   * The smallest number of bytes a blocked caller waits for, so that slow buckets are drained in
+   * reasonably sized chunks rather than a byte at a time.
+   */
+  private static final long MIN_GRANT_BYTES = 4 * 1024;
+
+  private final Ticker ticker;
+  private final long bytesPerSecond;
+  private final long capacityBytes;
+
+  @GuardedBy("this")
+  private long availableBytes;
+
+  @GuardedBy("this")
+  private long lastRefillNanos;
+
+  TokenBucket(long bytesPerSecond) {
+    this(bytesPerSecond, Ticker.systemTicker());
+  }
+
+  TokenBucket(long bytesPerSecond, Ticker ticker) {
+    checkArgument(bytesPerSecond > 0, "The rate must be positive!");
+    this.ticker = ticker;
+    this.bytesPerSecond = bytesPerSecond;
+    this.capacityBytes = bytesPerSecond;
+    this.availableBytes = capacityBytes;
+    this.lastRefillNanos = ticker.read();
+  }
+
+  /**
+   * Takes up to {@code maxBytes} from the bucket, blocking until a reasonable amount is available.
+   * Returns the number of bytes taken, which is always positive.
+   */
+  long acquire(long maxBytes) throws InterruptedException {
+    checkArgument(maxBytes > 0);
+    while (true) {
+      long waitNanos;
+      synchronized (this) {
+        long granted = tryAcquire(maxBytes);
+        if (granted > 0) {
+          return granted;
+        }
+        waitNanos = nanosUntilAvailable(maxBytes);
+      }
+      Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+    }
+  }
+
+  /**
+   * Takes up to {@code maxBytes} from the bucket without blocking. Returns the number of bytes
+   * taken, 0 if less than a reasonable amount is available.
+   */
+  synchronized long tryAcquire(long maxBytes) {
+    refill();
+    if (availableBytes < minGrant(maxBytes)) {
+      return 0;
+    }
+    long granted = Math.min(maxBytes, availableBytes);
+    availableBytes -= granted;
+    return granted;
+  }
+
+  /** Returns bytes which were acquired, but not transferred, to the bucket. */
+  synchronized void release(long bytes) {
+    availableBytes = Math.min(capacityBytes, availableBytes + bytes);
+  }
+
+  /** Whether the bucket refilled completely, which makes it no different from a new one. */
+  synchronized boolean isFull() {
+    refill();
+    return availableBytes >= capacityBytes;
+  }
+
+  /** Returns how long it takes until {@link #tryAcquire} with the same argument succeeds. */
+  synchronized long nanosUntilAvailable(long maxBytes) {
+    refill();
+    long missingBytes = minGrant(maxBytes) - availableBytes;
+    if (missingBytes <= 0) {
+      return 0;
+    }
+    long sinceRefillNanos = ticker.read() - lastRefillNanos;
+    return Math.max(1, (long) Math.ceil(missingBytes * 1e9 / bytesPerSecond) - sinceRefillNanos);
+  }
+
+  private long minGrant(long maxBytes) {
+    return Math.min(maxBytes, Math.min(MIN_GRANT_BYTES, capacityBytes));
+  }
+
+  @GuardedBy("this")
+  private void refill() {
+    long nowNanos = ticker.read();
+    long elapsedNanos = nowNanos - lastRefillNanos;
+    if (elapsedNanos >= SECONDS.toNanos(1)) {
+      availableBytes = capacityBytes;
+      lastRefillNanos = nowNanos;
+      return;
+    }
+    long refilledBytes = (long) (elapsedNanos * (double) bytesPerSecond / 1e9);
+    if (refilledBytes == 0) {
+      return;
+    }
+    availableBytes = Math.min(capacityBytes, availableBytes + refilledBytes);
+    // Keep the fraction of a byte which has been refilled already for the next time.
+    lastRefillNanos += (long) (refilledBytes * 1e9 / bytesPerSecond);
+  }
+}
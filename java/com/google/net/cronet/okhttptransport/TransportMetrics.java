@@ -0,0 +1,351 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * A registry of latency and throughput metrics of the requests sent through the transport.
+ *
+ * <p>The metrics are broken down by host and by the protocol Cronet negotiated with it. The
+ * following is recorded for each host and protocol:
+ *
+ * <ul>
+ *   <li>the time calls wait in the {@link CronetDispatcher} queue,
+ *   <li>the time to the response headers,
+ *   <li>the time each read of the response body waits for Cronet,
+ *   <li>the time Cronet waits for each chunk of a request body,
+ *   <li>the download throughput of each response body, in bytes per second,
+ *   <li>the number of requests which succeeded, failed and were canceled.
+ * </ul>
+ *
+ * <p>Waiting in the queue and uploading the request body happen before the protocol is known, so
+ * they're recorded under the {@link #UNKNOWN_PROTOCOL unknown protocol}, as are requests which
+ * fail before receiving a response. The latencies are in microseconds.
+ *
+ * <p>Recording is lock-free and doesn't allocate once a host and protocol have been seen. To bound
+ * the memory used, hosts seen after the first {@value #MAX_HOSTS} are recorded together under
+ * {@link #OTHER_HOSTS}. A registry can be shared by several interceptors and call factories.
+ */
+public final class TransportMetrics {
+  /** The protocol of the metrics recorded before the protocol is known. */
+  public static final String UNKNOWN_PROTOCOL = "unknown";
+
+  /** The host the metrics of hosts over the limit are recorded under. */
+  public static final String OTHER_HOSTS = "*";
+
+  private static final int MAX_HOSTS = 64;
+
+  private final ConcurrentMap<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+
+  private TransportMetrics() {}
+
+  public static TransportMetrics create() {
+    return new TransportMetrics();
+  }
+
+  /** Returns the metrics of the host, creating them if it hasn't been seen yet. */
+  HostMetrics forHost(String host) {
+    HostMetrics hostMetrics = hosts.get(host);
+    if (hostMetrics != null) {
+      return hostMetrics;
+    }
+    if (hosts.size() >= MAX_HOSTS) {
+      host = OTHER_HOSTS;
+      hostMetrics = hosts.get(host);
+      if (hostMetrics != null) {
+        return hostMetrics;
+      }
+    }
+    HostMetrics newHostMetrics = new HostMetrics(host);
+    hostMetrics = hosts.putIfAbsent(host, newHostMetrics);
+    return hostMetrics != null ? hostMetrics : newHostMetrics;
+  }
+
+  /** Returns a point in time view of all the metrics. Cheap enough to be taken periodically. */
+  public Snapshot snapshot() {
+    ImmutableList.Builder<SeriesSnapshot> series = ImmutableList.builder();
+    for (HostMetrics hostMetrics : hosts.values()) {
+      for (Series protocolSeries : hostMetrics.protocols.values()) {
+        series.add(protocolSeries.snapshot());
+      }
+    }
+    return new Snapshot(series.build());
+  }
+
+  /** The metrics of a single host, broken down by protocol. */
+  static final class HostMetrics {
+    private final String host;
+    private final ConcurrentMap<String, Series> protocols = new ConcurrentHashMap<>();
+
+    private HostMetrics(String host) {
+      this.host = host;
+    }
+
+    /** Returns the metrics of the protocol, or of the unknown protocol if it's null or empty. */
+    Series series(@Nullable String protocol) {
+      if (protocol == null || protocol.isEmpty()) {
+        protocol = UNKNOWN_PROTOCOL;
+      }
+      Series series = protocols.get(protocol);
+      if (series != null) {
+        return series;
+      }
+      Series newSeries = new Series(host, protocol);
+      series = protocols.putIfAbsent(protocol, newSeries);
+      return series != null ? series : newSeries;
+    }
+  }
+
+  /** The metrics of a single host and protocol. */
+  static final class Series {
+    private final String host;
+    private final String protocol;
+    private final LogHistogram queueWait = new LogHistogram();
+    private final LogHistogram timeToHeaders = new LogHistogram();
+    private final LogHistogram readWait = new LogHistogram();
+    private final LogHistogram uploadChunkWait = new LogHistogram();
+    private final LogHistogram bytesPerSecond = new LogHistogram();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong canceled = new AtomicLong();
+
+    private Series(String host, String protocol) {
+      this.host = host;
+      this.protocol = protocol;
+    }
+
+    void recordQueueWait(long nanos) {
+      queueWait.record(NANOSECONDS.toMicros(nanos));
+    }
+
+    void recordTimeToHeaders(long nanos) {
+      timeToHeaders.record(NANOSECONDS.toMicros(nanos));
+    }
+
+    void recordReadWait(long nanos) {
+      readWait.record(NANOSECONDS.toMicros(nanos));
+    }
+
+    void recordUploadChunkWait(long nanos) {
+      uploadChunkWait.record(NANOSECONDS.toMicros(nanos));
+    }
+
+    /** Records the throughput of a response body, unless it's too short to be meaningful. */
+    void recordDownload(long bytes, long nanos) {
+      if (bytes > 0 && nanos > 0) {
+        bytesPerSecond.record((long) ((double) bytes * SECONDS.toNanos(1) / nanos));
+      }
+    }
+
+    void recordSucceeded() {
+      succeeded.incrementAndGet();
+    }
+
+    void recordFailed() {
+      failed.incrementAndGet();
+    }
+
+    void recordCanceled() {
+      canceled.incrementAndGet();
+    }
+
+    private SeriesSnapshot snapshot() {
+      return new SeriesSnapshot(
+          host,
+          protocol,
+          queueWait.snapshot(),
+          timeToHeaders.snapshot(),
+          readWait.snapshot(),
+          uploadChunkWait.snapshot(),
+          bytesPerSecond.snapshot(),
+          succeeded.get(),
+          failed.get(),
+          canceled.get());
+    }
+  }
+
+  /** A point in time view of the metrics of all the hosts and protocols. */
+  public static final class Snapshot {
+    private final ImmutableList<SeriesSnapshot> series;
+
+    private Snapshot(ImmutableList<SeriesSnapshot> series) {
+      this.series = series;
+    }
+
+    /** Returns the metrics of each host and protocol which has been seen. */
+    public ImmutableList<SeriesSnapshot> series() {
+      return series;
+    }
+
+    /** Returns the metrics of the host and protocol, or null if they haven't been seen. */
+    @Nullable
+    public SeriesSnapshot series(String host, String protocol) {
+      for (SeriesSnapshot snapshot : series) {
+        if (snapshot.host.equals(host) && snapshot.protocol.equals(protocol)) {
+          return snapshot;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** A point in time view of the metrics of a single host and protocol. */
+  public static final class SeriesSnapshot {
+    private final String host;
+    private final String protocol;
+    private final HistogramSnapshot queueWaitMicros;
+    private final HistogramSnapshot timeToHeadersMicros;
+    private final HistogramSnapshot readWaitMicros;
+    private final HistogramSnapshot uploadChunkWaitMicros;
+    private final HistogramSnapshot bytesPerSecond;
+    private final long succeeded;
+    private final long failed;
+    private final long canceled;
+
+    private SeriesSnapshot(
+        String host,
+        String protocol,
+        HistogramSnapshot queueWaitMicros,
+        HistogramSnapshot timeToHeadersMicros,
+        HistogramSnapshot readWaitMicros,
+        HistogramSnapshot uploadChunkWaitMicros,
+        HistogramSnapshot bytesPerSecond,
+        long succeeded,
+        long failed,
+        long canceled) {
+      this.host = host;
+      this.protocol = protocol;
+      this.queueWaitMicros = queueWaitMicros;
+      this.timeToHeadersMicros = timeToHeadersMicros;
+      this.readWaitMicros = readWaitMicros;
+      this.uploadChunkWaitMicros = uploadChunkWaitMicros;
+      this.bytesPerSecond = bytesPerSecond;
+      this.succeeded = succeeded;
+      this.failed = failed;
+      this.canceled = canceled;
+    }
+
+    public String host() {
+      return host;
+    }
+
+    /** Returns the protocol negotiated by Cronet, such as {@code h2} or {@code h3}. */
+    public String protocol() {
+      return protocol;
+    }
+
+    public HistogramSnapshot queueWaitMicros() {
+      return queueWaitMicros;
+    }
+
+    public HistogramSnapshot timeToHeadersMicros() {
+      return timeToHeadersMicros;
+    }
+
+    public HistogramSnapshot readWaitMicros() {
+      return readWaitMicros;
+    }
+
+    public HistogramSnapshot uploadChunkWaitMicros() {
+      return uploadChunkWaitMicros;
+    }
+
+    public HistogramSnapshot bytesPerSecond() {
+      return bytesPerSecond;
+    }
+
+    public long succeeded() {
+      return succeeded;
+    }
+
+    public long failed() {
+      return failed;
+    }
+
+    public long canceled() {
+      return canceled;
+    }
+  }
+
+  /** A point in time view of a histogram. */
+  public static final class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+
+    HistogramSnapshot(long[] counts, long sum) {
+      this.counts = counts;
+      this.sum = sum;
+      long localCount = 0;
+      for (long bucketCount : counts) {
+        localCount += bucketCount;
+      }
+      this.count = localCount;
+    }
+
+    /** Returns the number of recorded values. */
+    public long count() {
+      return count;
+    }
+
+    /** Returns the mean of the recorded values, or 0 if there are none. */
+    public double mean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below which the given percentile of the recorded values falls, for example
+     * {@code valueAtPercentile(99)} for the 99th percentile. The value is rounded up to the bucket
+     * boundary, so it may exceed the real one by up to 12.5%. Returns 0 if there are no values.
+     */
+    public long valueAtPercentile(double percentile) {
+      checkArgument(percentile >= 0 && percentile <= 100, "The percentile must be in [0, 100]!");
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return LogHistogram.bucketUpperBound(i);
+        }
+      }
+      return LogHistogram.bucketUpperBound(counts.length - 1);
+    }
+
+    /** Returns the upper bound of the highest recorded value, or 0 if there are none. */
+    public long max() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] != 0) {
+          return LogHistogram.bucketUpperBound(i);
+        }
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class AdaptiveConcurrencyLimitTest {
+
+  private final AdaptiveConcurrencyLimit underTest =
+      AdaptiveConcurrencyLimit.newBuilder()
+          .setInitialLimit(16)
+          .setMinLimit(2)
+          .setMaxLimit(64)
+          .setSmoothing(1)
+          .build();
+
+  @Test
+  public void testStableLatency_limitGrows() {
+    underTest.onSample(MILLISECONDS.toNanos(100), 16, /* successful= */ true);
+    underTest.onSample(MILLISECONDS.toNanos(100), 20, /* successful= */ true);
+
+    assertThat(underTest.getLimit()).isEqualTo(24);
+    assertThat(underTest.getBaselineRttMillis()).isEqualTo(100);
+  }
+
+  @Test
+  public void testGrowingLatency_limitShrinks() {
+    underTest.onSample(MILLISECONDS.toNanos(100), 16, /* successful= */ true);
+    underTest.onSample(MILLISECONDS.toNanos(400), 20, /* successful= */ true);
+
+    // 20 * 0.5 (the lowest gradient) + sqrt(20)
+    assertThat(underTest.getLimit()).isEqualTo(14);
+    assertThat(underTest.getLastRttMillis()).isEqualTo(400);
+  }
+
+  @Test
+  public void testUnderusedLimit_doesNotGrow() {
+    underTest.onSample(MILLISECONDS.toNanos(100), 1, /* successful= */ true);
+
+    assertThat(underTest.getLimit()).isEqualTo(16);
+  }
+
+  @Test
+  public void testFailures_backOffToMinimum() {
+    for (int i = 0; i < 100; i++) {
+      underTest.onSample(0, 16, /* successful= */ false);
+    }
+
+    assertThat(underTest.getLimit()).isEqualTo(2);
+    assertThat(underTest.getSampleCount()).isEqualTo(100);
+  }
+}
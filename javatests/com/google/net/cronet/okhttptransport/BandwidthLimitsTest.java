@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import okhttp3.Request;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class BandwidthLimitsTest {
+
+  private static final int BYTES_PER_SECOND = 100 * 1024;
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void testTrafficClassLimit_onlyThrottlesLimitedClasses() {
+    BandwidthLimits limits =
+        BandwidthLimits.newBuilder()
+            .setTrafficClassLimit(CronetTrafficClass.BACKGROUND, BYTES_PER_SECOND)
+            .build();
+    Request interactive = request("example.com");
+    Request background =
+        interactive
+            .newBuilder()
+            .tag(CronetTrafficClass.class, CronetTrafficClass.BACKGROUND)
+            .build();
+
+    assertThat(limits.throttleFor(interactive).isUnlimited()).isTrue();
+    assertThat(limits.throttleFor(background).isUnlimited()).isFalse();
+  }
+
+  @Test
+  public void testHostLimit_caseInsensitiveAndShared() {
+    BandwidthLimits limits =
+        BandwidthLimits.newBuilder()
+            .setHostLimit("Example.com", BYTES_PER_SECOND)
+            .setTicker(ticker)
+            .build();
+
+    assertThat(limits.throttleFor(request("other.com")).isUnlimited()).isTrue();
+    assertThat(limits.throttleFor(request("EXAMPLE.com")).tryAcquire(BYTES_PER_SECOND))
+        .isEqualTo(BYTES_PER_SECOND);
+    assertThat(limits.throttleFor(request("example.com")).tryAcquire(BYTES_PER_SECOND))
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void testDefaultHostLimit_separateBudgetPerHost() {
+    BandwidthLimits limits =
+        BandwidthLimits.newBuilder()
+            .setDefaultHostLimit(BYTES_PER_SECOND)
+            .setTicker(ticker)
+            .build();
+
+    assertThat(limits.throttleFor(request("a.com")).tryAcquire(BYTES_PER_SECOND))
+        .isEqualTo(BYTES_PER_SECOND);
+    assertThat(limits.throttleFor(request("b.com")).tryAcquire(BYTES_PER_SECOND))
+        .isEqualTo(BYTES_PER_SECOND);
+    assertThat(limits.throttleFor(request("a.com")).tryAcquire(BYTES_PER_SECOND)).isEqualTo(0);
+  }
+
+  @Test
+  public void testDefaultHostLimit_idleBucketsEvicted() {
+    BandwidthLimits limits =
+        BandwidthLimits.newBuilder()
+            .setDefaultHostLimit(BYTES_PER_SECOND)
+            .setTicker(ticker)
+            .build();
+    for (int i = 0; i < 64; i++) {
+      limits.throttleFor(request("host" + i + ".com")).tryAcquire(BYTES_PER_SECOND);
+    }
+    assertThat(limits.defaultHostBucketCount()).isEqualTo(64);
+
+    // None of the buckets is idle, so they're all kept.
+    limits.throttleFor(request("busy.com")).tryAcquire(BYTES_PER_SECOND);
+    assertThat(limits.defaultHostBucketCount()).isEqualTo(65);
+
+    ticker.advanceMillis(1000);
+    limits.throttleFor(request("new.com"));
+
+    assertThat(limits.defaultHostBucketCount()).isEqualTo(1);
+  }
+
+  private static Request request(String host) {
+    return new Request.Builder().url("https://" + host + "/").build();
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
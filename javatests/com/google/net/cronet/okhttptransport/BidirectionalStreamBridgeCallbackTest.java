@@ -0,0 +1,295 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.chromium.net.BidirectionalStream;
+import org.chromium.net.CronetException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class BidirectionalStreamBridgeCallbackTest {
+  private static final int NO_TIMEOUT = 0;
+
+  @Rule public Timeout globalTimeout = Timeout.seconds(5);
+
+  private final ByteBufferPool bufferPool = new ByteBufferPool(1024, /* maxPooledBuffers= */ 4);
+
+  @Test
+  public void testReadResponseFrames() throws Exception {
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(NO_TIMEOUT, NO_TIMEOUT);
+    FakeBidirectionalStream stream =
+        new FakeBidirectionalStream(underTest, ImmutableList.of("Hello ", "from ", "Cronet!"));
+    underTest.setStream(stream);
+
+    BufferedSource source = Okio.buffer(underTest.createResponseSource());
+
+    assertThat(source.readUtf8()).isEqualTo("Hello from Cronet!");
+    assertThat(stream.canceled).isFalse();
+  }
+
+  @Test
+  public void testWriteRequestFrames_closeHalfClosesStream() throws Exception {
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(NO_TIMEOUT, NO_TIMEOUT);
+    FakeBidirectionalStream stream = new FakeBidirectionalStream(underTest, ImmutableList.of());
+    underTest.setStream(stream);
+    underTest.onStreamReady(stream);
+
+    BufferedSink sink = Okio.buffer(underTest.createRequestSink());
+    sink.writeUtf8("first frame").flush();
+
+    assertThat(stream.written.readUtf8()).isEqualTo("first frame");
+    assertThat(stream.endOfStreamWritten).isFalse();
+
+    sink.writeUtf8("last frame").close();
+
+    assertThat(stream.written.readUtf8()).isEqualTo("last frame");
+    assertThat(stream.endOfStreamWritten).isTrue();
+  }
+
+  @Test
+  public void testWrite_streamNeverReady_timesOut() throws Exception {
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(NO_TIMEOUT, 100);
+    FakeBidirectionalStream stream = new FakeBidirectionalStream(underTest, ImmutableList.of());
+    underTest.setStream(stream);
+
+    BufferedSink sink = Okio.buffer(underTest.createRequestSink());
+
+    assertThrows(CronetTimeoutException.class, () -> sink.writeUtf8("frame").flush());
+    assertThat(stream.canceled).isTrue();
+  }
+
+  @Test
+  public void testCanceled_failsBothDirections() throws Exception {
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(NO_TIMEOUT, NO_TIMEOUT);
+    FakeBidirectionalStream stream = new FakeBidirectionalStream(underTest, ImmutableList.of());
+    underTest.setStream(stream);
+    underTest.onStreamReady(stream);
+
+    underTest.onCanceled(stream, null);
+
+    assertThrows(IOException.class, () -> Okio.buffer(underTest.createResponseSource()).readUtf8());
+    assertThrows(
+        IOException.class, () -> Okio.buffer(underTest.createRequestSink()).writeUtf8("x").flush());
+    assertThrows(IOException.class, () -> underTest.getTrailers().get());
+  }
+
+  @Test
+  public void testFailed_readAndWriteRethrowFailureInsteadOfCallingStream() throws Exception {
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(NO_TIMEOUT, NO_TIMEOUT);
+    FakeBidirectionalStream stream =
+        new FakeBidirectionalStream(underTest, ImmutableList.of("Hello ", "from ", "Cronet!"));
+    underTest.setStream(stream);
+    underTest.onStreamReady(stream);
+    CronetException failure = new CronetException("Connection reset", null) {};
+
+    BufferedSource source = Okio.buffer(underTest.createResponseSource());
+    assertThat(source.readUtf8(6)).isEqualTo("Hello ");
+    stream.done = true;
+    underTest.onFailed(stream, null, failure);
+
+    IOException readException = assertThrows(IOException.class, source::readUtf8);
+    IOException writeException =
+        assertThrows(
+            IOException.class,
+            () -> Okio.buffer(underTest.createRequestSink()).writeUtf8("x").flush());
+
+    assertThat(readException).hasCauseThat().isSameInstanceAs(failure);
+    assertThat(writeException).isSameInstanceAs(readException);
+  }
+
+  @Test
+  public void testDeadlinePassed_streamCanceledAndOperationsTimeOut() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    TimingWheel timingWheel = new TimingWheel(ticker, 10, 64, /* workerThreadFactory= */ null);
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(NO_TIMEOUT, NO_TIMEOUT, timingWheel, bufferPool);
+    FakeBidirectionalStream stream = new FakeBidirectionalStream(underTest, ImmutableList.of());
+    underTest.setStream(stream, Deadline.after(ticker, MILLISECONDS.toNanos(100)));
+
+    ticker.advanceMillis(100);
+    timingWheel.expireTimeouts();
+
+    assertThat(stream.canceled).isTrue();
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> underTest.getUrlResponseInfo().get());
+    assertThat(e).hasCauseThat().isInstanceOf(CronetTimeoutException.class);
+    assertThrows(
+        CronetTimeoutException.class,
+        () -> Okio.buffer(underTest.createResponseSource()).readUtf8());
+    assertThrows(
+        CronetTimeoutException.class,
+        () -> Okio.buffer(underTest.createRequestSink()).writeUtf8("x").flush());
+  }
+
+  @Test
+  public void testRead_timesOutWhenNoFrameArrives() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    TimingWheel timingWheel = new TimingWheel(ticker, 10, 64, /* workerThreadFactory= */ null);
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(100, NO_TIMEOUT, timingWheel, bufferPool);
+    FakeBidirectionalStream stream = new FakeBidirectionalStream(underTest, ImmutableList.of());
+    stream.holdReads = true;
+    underTest.setStream(stream);
+    BufferedSource source = Okio.buffer(underTest.createResponseSource());
+
+    Thread expirer =
+        new Thread(
+            () -> {
+              while (timingWheel.pendingCount() == 0) {
+                Thread.yield();
+              }
+              ticker.advanceMillis(100);
+              timingWheel.expireTimeouts();
+            });
+    expirer.start();
+
+    assertThrows(CronetTimeoutException.class, source::readUtf8);
+    expirer.join();
+    assertThat(stream.canceled).isTrue();
+  }
+
+  @Test
+  public void testResponseFullyRead_bufferReturnedToPool() throws Exception {
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(
+            NO_TIMEOUT, NO_TIMEOUT, TimingWheel.shared(), bufferPool);
+    FakeBidirectionalStream stream =
+        new FakeBidirectionalStream(underTest, ImmutableList.of("Hello"));
+    underTest.setStream(stream);
+
+    assertThat(Okio.buffer(underTest.createResponseSource()).readUtf8()).isEqualTo("Hello");
+
+    assertThat(bufferPool.pooledBufferCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSucceeded_deadlineDisarmed() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    TimingWheel timingWheel = new TimingWheel(ticker, 10, 64, /* workerThreadFactory= */ null);
+    BidirectionalStreamBridgeCallback underTest =
+        new BidirectionalStreamBridgeCallback(NO_TIMEOUT, NO_TIMEOUT, timingWheel, bufferPool);
+    FakeBidirectionalStream stream = new FakeBidirectionalStream(underTest, ImmutableList.of());
+    underTest.setStream(stream, Deadline.after(ticker, MILLISECONDS.toNanos(100)));
+    assertThat(timingWheel.pendingCount()).isEqualTo(1);
+
+    underTest.onSucceeded(stream, null);
+
+    assertThat(timingWheel.pendingCount()).isEqualTo(0);
+  }
+
+  /**
+   * A stream which completes reads and writes synchronously. Like Cronet, rejects reads and writes
+   * once it's done and reports cancellations to the callback.
+   */
+  private static class FakeBidirectionalStream extends BidirectionalStream {
+    private final BidirectionalStreamBridgeCallback callback;
+    private final Queue<String> responseFrames;
+    private final Buffer written = new Buffer();
+    private boolean endOfStreamWritten;
+    private volatile boolean canceled;
+    private volatile boolean done;
+    private boolean holdReads;
+
+    FakeBidirectionalStream(
+        BidirectionalStreamBridgeCallback callback, ImmutableList<String> responseFrames) {
+      this.callback = callback;
+      this.responseFrames = new ArrayDeque<>(responseFrames);
+    }
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void read(ByteBuffer buffer) {
+      checkState(!done, "The stream is done");
+      if (holdReads) {
+        return;
+      }
+      String frame = responseFrames.poll();
+      if (frame != null) {
+        buffer.put(frame.getBytes(UTF_8));
+      }
+      callback.onReadCompleted(this, null, buffer, responseFrames.isEmpty());
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, boolean endOfStream) {
+      checkState(!done, "The stream is done");
+      while (buffer.hasRemaining()) {
+        written.writeByte(buffer.get());
+      }
+      endOfStreamWritten = endOfStream;
+      callback.onWriteCompleted(this, null, buffer, endOfStream);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void cancel() {
+      canceled = true;
+      if (!done) {
+        done = true;
+        callback.onCanceled(this, null);
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ByteBufferPoolTest {
+
+  @Test
+  public void testReleasedBuffer_isReusedCleared() {
+    ByteBufferPool underTest = new ByteBufferPool(16, 2);
+    ByteBuffer buffer = underTest.acquire();
+    buffer.put((byte) 1).limit(4);
+
+    underTest.release(buffer);
+    ByteBuffer reused = underTest.acquire();
+
+    assertThat(reused).isSameInstanceAs(buffer);
+    assertThat(reused.position()).isEqualTo(0);
+    assertThat(reused.limit()).isEqualTo(16);
+  }
+
+  @Test
+  public void testFullPool_dropsBuffers() {
+    ByteBufferPool underTest = new ByteBufferPool(16, 1);
+
+    underTest.release(underTest.acquire());
+    underTest.release(ByteBuffer.allocateDirect(16));
+
+    assertThat(underTest.pooledBufferCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPoolingDisabled() {
+    ByteBufferPool underTest = new ByteBufferPool(16, 0);
+    ByteBuffer buffer = underTest.acquire();
+
+    underTest.release(buffer);
+
+    assertThat(underTest.pooledBufferCount()).isEqualTo(0);
+    assertThat(underTest.acquire()).isNotSameInstanceAs(buffer);
+  }
+}
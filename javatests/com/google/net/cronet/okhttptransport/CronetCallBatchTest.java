@@ -0,0 +1,230 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Timeout;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CronetCallBatchTest {
+
+  private final List<FakeCall> enqueuedCalls = new ArrayList<>();
+  private final Call.Factory callFactory = FakeCall::new;
+
+  @Test
+  public void testConcurrencyLimit() {
+    CronetCallBatch batch = newBatch(/* callCount= */ 5).setMaxConcurrentCalls(2).build();
+    batch.start();
+
+    assertThat(enqueuedCalls).hasSize(2);
+
+    enqueuedCalls.get(0).respond();
+    assertThat(enqueuedCalls).hasSize(3);
+
+    enqueuedCalls.get(2).fail();
+    enqueuedCalls.get(1).respond();
+    assertThat(enqueuedCalls).hasSize(5);
+  }
+
+  @Test
+  public void testNext_completionOrder() throws Exception {
+    CronetCallBatch batch = newBatch(/* callCount= */ 3).build();
+    batch.start();
+
+    enqueuedCalls.get(2).respond();
+    enqueuedCalls.get(0).fail();
+    enqueuedCalls.get(1).respond();
+
+    CronetCallBatch.Completion first = batch.next();
+    assertThat(first.call()).isSameInstanceAs(enqueuedCalls.get(2));
+    assertThat(first.getResponse().code()).isEqualTo(200);
+
+    CronetCallBatch.Completion second = batch.next();
+    assertThat(second.call()).isSameInstanceAs(enqueuedCalls.get(0));
+    assertThat(second.isSuccessful()).isFalse();
+    assertThrows(IOException.class, second::getResponse);
+
+    assertThat(batch.next().call()).isSameInstanceAs(enqueuedCalls.get(1));
+    assertThat(batch.next()).isNull();
+  }
+
+  @Test
+  public void testCallback() {
+    List<String> outcomes = new ArrayList<>();
+    CronetCallBatch batch =
+        newBatch(/* callCount= */ 2)
+            .setCallback(
+                new Callback() {
+                  @Override
+                  public void onResponse(Call call, Response response) {
+                    outcomes.add("response " + call.request().url());
+                  }
+
+                  @Override
+                  public void onFailure(Call call, IOException e) {
+                    outcomes.add("failure " + call.request().url());
+                  }
+                })
+            .build();
+    batch.start();
+
+    enqueuedCalls.get(1).fail();
+    enqueuedCalls.get(0).respond();
+
+    assertThat(outcomes)
+        .containsExactly("failure https://example.com/1", "response https://example.com/0")
+        .inOrder();
+    assertThrows(IllegalStateException.class, batch::next);
+  }
+
+  @Test
+  public void testCancel_cancelsUnfinishedCalls() throws Exception {
+    CronetCallBatch batch = newBatch(/* callCount= */ 4).setMaxConcurrentCalls(2).build();
+    batch.start();
+    enqueuedCalls.get(0).respond();
+
+    batch.cancel();
+
+    // The completed call is left alone, the running ones are canceled and the pending one is
+    // never sent.
+    List<Call> calls = batch.calls();
+    assertThat(calls.get(0).isCanceled()).isFalse();
+    assertThat(calls.get(1).isCanceled()).isTrue();
+    assertThat(calls.get(2).isCanceled()).isTrue();
+    assertThat(calls.get(3).isCanceled()).isTrue();
+    assertThat(enqueuedCalls).hasSize(3);
+
+    assertThat(batch.next().isSuccessful()).isTrue();
+    assertThat(batch.next().isSuccessful()).isFalse();
+    assertThat(batch.next().isSuccessful()).isFalse();
+    CronetCallBatch.Completion unsent = batch.next();
+    assertThat(unsent.call()).isSameInstanceAs(calls.get(3));
+    assertThrows(IOException.class, unsent::getResponse);
+    assertThat(batch.next()).isNull();
+  }
+
+  @Test
+  public void testTimeout_sharedDeadline() {
+    CronetCallBatch batch = newBatch(/* callCount= */ 2).setTimeout(10, SECONDS).build();
+    batch.start();
+
+    long deadline = batch.calls().get(0).timeout().deadlineNanoTime();
+    assertThat(batch.calls().get(1).timeout().deadlineNanoTime()).isEqualTo(deadline);
+    assertThat(deadline - System.nanoTime()).isAtMost(SECONDS.toNanos(10));
+  }
+
+  private CronetCallBatch.Builder newBatch(int callCount) {
+    CronetCallBatch.Builder builder = new CronetCallBatch.Builder(callFactory);
+    for (int i = 0; i < callCount; i++) {
+      builder.addRequest(new Request.Builder().url("https://example.com/" + i).build());
+    }
+    return builder;
+  }
+
+  private class FakeCall implements Call {
+    private final Request request;
+    private final Timeout timeout = new Timeout();
+    private Callback responseCallback;
+    private boolean canceled;
+
+    private FakeCall(Request request) {
+      this.request = request;
+    }
+
+    void respond() {
+      try {
+        responseCallback.onResponse(
+            this,
+            new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_2)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(MediaType.parse("text/plain"), "body"))
+                .build());
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    void fail() {
+      responseCallback.onFailure(this, new IOException("Failed"));
+    }
+
+    @Override
+    public Request request() {
+      return request;
+    }
+
+    @Override
+    public Response execute() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void enqueue(Callback responseCallback) {
+      this.responseCallback = responseCallback;
+      enqueuedCalls.add(this);
+    }
+
+    @Override
+    public void cancel() {
+      boolean wasCanceled = canceled;
+      canceled = true;
+      if (!wasCanceled && responseCallback != null) {
+        fail();
+      }
+    }
+
+    @Override
+    public boolean isExecuted() {
+      return responseCallback != null;
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return canceled;
+    }
+
+    @Override
+    public Timeout timeout() {
+      return timeout;
+    }
+
+    @Override
+    public Call clone() {
+      return new FakeCall(request);
+    }
+  }
+}
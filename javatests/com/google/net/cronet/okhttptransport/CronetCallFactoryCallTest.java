@@ -16,6 +16,8 @@
 
 package com.google.net.cronet.okhttptransport;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.net.cronet.testing.CronetEngineTestAppRule;
 import okhttp3.Call;
@@ -65,4 +67,26 @@ public class CronetCallFactoryCallTest extends CallTest {
         .assertBody("")
         .assertCode(302);
   }
+
+  @Test
+  public void enginePool_leastInFlight_spreadsRequests() throws Exception {
+    server.enqueue(new MockResponse().setBody("A"));
+    server.enqueue(new MockResponse().setBody("B"));
+
+    CronetEnginePool enginePool =
+        CronetEnginePool.newBuilder()
+            .addEngine(engineRule.getEngine())
+            .addEngine(engineRule.getEngine())
+            .setRoutingStrategy(CronetEnginePool.RoutingStrategy.LEAST_IN_FLIGHT)
+            .build();
+    underTest = CronetCallFactory.newBuilder(enginePool).build();
+
+    executeSynchronously("/a").assertBody("A");
+    executeSynchronously("/b").assertBody("B");
+
+    assertThat(enginePool.getStartedRequestCount(0)).isEqualTo(1);
+    assertThat(enginePool.getStartedRequestCount(1)).isEqualTo(1);
+    assertThat(enginePool.getInFlightRequestCount(0)).isEqualTo(0);
+    assertThat(enginePool.getInFlightRequestCount(1)).isEqualTo(0);
+  }
 }
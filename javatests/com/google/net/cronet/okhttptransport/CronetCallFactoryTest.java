@@ -0,0 +1,634 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.EventListener;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import org.chromium.net.NetworkException;
+import org.chromium.net.RequestFinishedInfo;
+import org.chromium.net.UploadDataSink;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CronetCallFactoryTest {
+
+  private final FakeCronetEngine engine = new FakeCronetEngine();
+  private final ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+  private final ExecutorService testExecutor = Executors.newCachedThreadPool();
+  private final FakeTicker ticker = new FakeTicker();
+  /** Only advanced by hand, none of the timeouts armed in it fires on its own. */
+  private final TimingWheel timingWheel =
+      new TimingWheel(ticker, /* tickMillis= */ 10, /* bucketCount= */ 8, null);
+  private final List<RecordingEventListener> eventListeners =
+      Collections.synchronizedList(new ArrayList<>());
+  private final EventListener.Factory eventListenerFactory =
+      call -> {
+        RecordingEventListener eventListener = new RecordingEventListener();
+        eventListeners.add(eventListener);
+        return eventListener;
+      };
+
+  @After
+  public void tearDown() {
+    callbackExecutor.shutdownNow();
+    testExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testInlineCallbackDelivery_onlyForResponsesReceivedInFull() throws Exception {
+    engine.setStartHandler(
+        request -> {
+          if (request.url().endsWith("/small")) {
+            request.respond(FakeUrlResponseInfo.ok("Content-Length", "5"), "small");
+          } else {
+            request.respond(FakeUrlResponseInfo.ok(), "streamed");
+          }
+        });
+    AtomicInteger inlineDeliveries = new AtomicInteger();
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setCallbackExecutorService(callbackExecutor)
+            .setInlineCallbackDelivery(
+                64,
+                command -> {
+                  inlineDeliveries.incrementAndGet();
+                  command.run();
+                })
+            .build();
+
+    RecordingCallback small = enqueue(underTest, "https://example.com/small");
+
+    // The fake engine completes the response while the call is being enqueued.
+    assertThat(inlineDeliveries.get()).isEqualTo(1);
+    assertThat(small.deliveredOn).isSameInstanceAs(Thread.currentThread());
+    assertThat(small.awaitResponse().body().string()).isEqualTo("small");
+
+    RecordingCallback streamed = enqueue(underTest, "https://example.com/streamed");
+    Response streamedResponse = streamed.awaitResponse();
+
+    assertThat(inlineDeliveries.get()).isEqualTo(1);
+    assertThat(streamed.deliveredOn).isNotSameInstanceAs(Thread.currentThread());
+    assertThat(streamedResponse.body().string()).isEqualTo("streamed");
+  }
+
+  @Test
+  public void testEvents_execute() throws Exception {
+    engine.setStartHandler(request -> request.respond(FakeUrlResponseInfo.ok(), "Hello"));
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine).setEventListenerFactory(eventListenerFactory).build();
+
+    Response response =
+        underTest.newCall(new Request.Builder().url("https://example.com/").build()).execute();
+    assertThat(response.body().string()).isEqualTo("Hello");
+
+    assertThat(eventListeners.get(0).events)
+        .containsExactly(
+            "callStart",
+            "responseHeadersStart",
+            "responseHeadersEnd",
+            "responseBodyStart",
+            "responseBodyEnd",
+            "callEnd")
+        .inOrder();
+  }
+
+  @Test
+  public void testEvents_responseDeliveredBeforeStartReturns() throws Exception {
+    // The response is delivered inline, from within UrlRequest.start().
+    engine.setStartHandler(
+        request -> request.respond(FakeUrlResponseInfo.ok("Content-Length", "5"), "Hello"));
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setEventListenerFactory(eventListenerFactory)
+            .setInlineCallbackDelivery(64)
+            .build();
+
+    Response response = enqueue(underTest, "https://example.com/").awaitResponse();
+    assertThat(response.body().string()).isEqualTo("Hello");
+
+    assertThat(eventListeners.get(0).events)
+        .containsExactly(
+            "callStart",
+            "responseHeadersStart",
+            "responseHeadersEnd",
+            "responseBodyStart",
+            "responseBodyEnd",
+            "callEnd")
+        .inOrder();
+  }
+
+  @Test
+  public void testEvents_responseHeadersStartReportedOnceRequestStarted() throws Exception {
+    List<String> eventsBeforeStart = new ArrayList<>();
+    engine.setStartHandler(
+        request -> {
+          eventsBeforeStart.addAll(eventListeners.get(0).events);
+          request.respond(FakeUrlResponseInfo.ok(), "Hello");
+        });
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine).setEventListenerFactory(eventListenerFactory).build();
+
+    Response response =
+        underTest.newCall(new Request.Builder().url("https://example.com/").build()).execute();
+    assertThat(response.body().string()).isEqualTo("Hello");
+
+    assertThat(eventsBeforeStart).containsExactly("callStart");
+    assertThat(eventListeners.get(0).events)
+        .containsExactly(
+            "callStart",
+            "responseHeadersStart",
+            "responseHeadersEnd",
+            "responseBodyStart",
+            "responseBodyEnd",
+            "callEnd")
+        .inOrder();
+  }
+
+  @Test
+  public void testEvents_startThrowsRuntimeException_callFailedReported() throws Exception {
+    engine.setStartHandler(
+        request -> {
+          throw new IllegalStateException("The engine is shut down");
+        });
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine).setEventListenerFactory(eventListenerFactory).build();
+    Call call = underTest.newCall(new Request.Builder().url("https://example.com/").build());
+
+    assertThrows(IllegalStateException.class, call::execute);
+
+    assertThat(eventListeners.get(0).events).containsExactly("callStart", "callFailed").inOrder();
+  }
+
+  @Test
+  public void testEvents_conversionFailure() throws Exception {
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setCallbackExecutorService(callbackExecutor)
+            .setEventListenerFactory(eventListenerFactory)
+            .build();
+    Request request =
+        new Request.Builder().url("https://example.com/").post(new FailingRequestBody()).build();
+    RecordingCallback callback = new RecordingCallback();
+
+    underTest.newCall(request).enqueue(callback);
+
+    assertThat(callback.awaitFailure()).hasMessageThat().isEqualTo("Broken body");
+    assertThat(engine.requests()).isEmpty();
+    assertThat(eventListeners.get(0).events).containsExactly("callStart", "callFailed").inOrder();
+  }
+
+  @Test
+  public void testCircuitBreakerOpen_failsFastWithoutConvertingBody() throws Exception {
+    engine.setStartHandler(
+        request ->
+            request.fail(new FakeNetworkException(NetworkException.ERROR_CONNECTION_REFUSED)));
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setCircuitBreakerPolicy(
+                CircuitBreakerPolicy.newBuilder()
+                    .setFailureThreshold(1)
+                    .setOpenDurationMillis(60_000)
+                    .build())
+            .build();
+    Call failing = underTest.newCall(new Request.Builder().url("https://example.com/").build());
+    assertThrows(IOException.class, failing::execute);
+
+    // The body would fail the conversion if it were ever looked at.
+    Request request =
+        new Request.Builder().url("https://example.com/").post(new FailingRequestBody()).build();
+    Call call = underTest.newCall(request);
+
+    assertThrows(CircuitBreakerOpenException.class, call::execute);
+    assertThat(engine.requests()).hasSize(1);
+  }
+
+  @Test
+  public void testRequestMetricsListener_attachedToExperimentalRequests() throws Exception {
+    engine.setStartHandler(request -> request.respond(FakeUrlResponseInfo.ok(), "Hello"));
+    List<Request> reportedRequests = new ArrayList<>();
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setRequestMetricsListener(
+                new RequestMetricsListener(MoreExecutors.directExecutor()) {
+                  @Override
+                  public void onRequestFinished(Request request, RequestFinishedInfo requestInfo) {
+                    reportedRequests.add(request);
+                  }
+                })
+            .build();
+    Request request = new Request.Builder().url("https://example.com/").build();
+    underTest.newCall(request).execute().close();
+
+    RequestFinishedInfo.Listener listener = engine.requests().get(0).requestFinishedListener();
+    assertThat(listener).isNotNull();
+    assertThat(listener.getExecutor()).isSameInstanceAs(MoreExecutors.directExecutor());
+
+    // Only the OkHttp request is added to what Cronet reports.
+    listener.onRequestFinished(/* requestInfo= */ null);
+
+    assertThat(reportedRequests).containsExactly(request);
+  }
+
+  @Test
+  public void testEvents_canceledWhileQueued() throws Exception {
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setCallbackExecutorService(callbackExecutor)
+            .setDispatcher(CronetDispatcher.newBuilder().setMaxRequests(1).build())
+            .setEventListenerFactory(eventListenerFactory)
+            .build();
+    enqueue(underTest, "https://example.com/running");
+    Call queuedCall = underTest.newCall(new Request.Builder().url("https://example.com/").build());
+    RecordingCallback queued = new RecordingCallback();
+    queuedCall.enqueue(queued);
+
+    queuedCall.cancel();
+
+    assertThat(queued.awaitFailure()).hasMessageThat().isEqualTo("Canceled");
+    assertThat(engine.requests()).hasSize(1);
+    assertThat(eventListeners.get(1).events).containsExactly("callStart", "callFailed").inOrder();
+  }
+
+  @Test
+  public void testEvents_deadlineExpiredWhileQueued() throws Exception {
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setCallbackExecutorService(callbackExecutor)
+            .setDispatcher(CronetDispatcher.newBuilder().setMaxRequests(1).build())
+            .setEventListenerFactory(eventListenerFactory)
+            .build();
+    enqueue(underTest, "https://example.com/running");
+    Call queuedCall =
+        underTest.newCall(new Request.Builder().url("https://example.com/queued").build());
+    queuedCall.timeout().timeout(50, MILLISECONDS);
+    RecordingCallback queued = new RecordingCallback();
+    queuedCall.enqueue(queued);
+
+    assertThat(queued.awaitFailure()).isInstanceOf(InterruptedIOException.class);
+    // Free the slot, the expired call mustn't be started or failed again.
+    engine.requests().get(0).respond(FakeUrlResponseInfo.ok(), "Hello");
+
+    assertThat(engine.requests()).hasSize(1);
+    assertThat(eventListeners.get(1).events).containsExactly("callStart", "callFailed").inOrder();
+  }
+
+  @Test
+  public void testDeadline_expiredWhileQueued_callNotStarted() throws Exception {
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setCallbackExecutorService(callbackExecutor)
+            .setDispatcher(CronetDispatcher.newBuilder().setMaxRequests(1).build())
+            .setTimingWheel(timingWheel)
+            .build();
+    enqueue(underTest, "https://example.com/running");
+    Call queuedCall =
+        underTest.newCall(new Request.Builder().url("https://example.com/queued").build());
+    queuedCall.timeout().timeout(20, MILLISECONDS);
+    RecordingCallback queued = new RecordingCallback();
+    queuedCall.enqueue(queued);
+
+    // The call timeout never fires, the deadline is only noticed once the call leaves the queue.
+    Thread.sleep(50);
+    engine.requests().get(0).respond(FakeUrlResponseInfo.ok(), "Hello");
+
+    assertThat(queued.awaitFailure()).hasMessageThat().isEqualTo("timeout");
+    assertThat(queuedCall.isCanceled()).isTrue();
+    assertThat(engine.requests()).hasSize(1);
+    assertThat(timingWheel.pendingCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDeadline_readTimeoutClampedToRemainingTime() throws Exception {
+    engine.setStartHandler(
+        request -> request.holdReads().respond(FakeUrlResponseInfo.ok(), "Hello"));
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setReadTimeoutMillis(60_000)
+            .setTimingWheel(timingWheel)
+            .build();
+    Call call = underTest.newCall(new Request.Builder().url("https://example.com/").build());
+    call.timeout().timeout(1, SECONDS);
+
+    Response response = call.execute();
+    Future<String> body = testExecutor.submit(() -> response.body().string());
+    // The call timeout and the timeout of the pending read.
+    awaitPendingTimeouts(2);
+
+    ticker.advanceMillis(1010);
+
+    // The read timeout would only fire after a minute if it wasn't clamped.
+    assertThat(timingWheel.expireTimeouts()).isEqualTo(2);
+    ExecutionException e = assertThrows(ExecutionException.class, () -> body.get(5, SECONDS));
+    assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+  }
+
+  @Test
+  public void testDeadline_writeTimeoutClampedToRemainingTime() throws Exception {
+    CountDownLatch bodyReleased = new CountDownLatch(1);
+    engine.setStartHandler(
+        request ->
+            testExecutor.execute(
+                () -> {
+                  try {
+                    request
+                        .uploadDataProvider()
+                        .read(new IgnoringUploadDataSink(), ByteBuffer.allocateDirect(16));
+                  } catch (IOException e) {
+                    // The call fails either way.
+                  }
+                }));
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setCallbackExecutorService(callbackExecutor)
+            .setWriteTimeoutMillis(60_000)
+            .setTimingWheel(timingWheel)
+            .build();
+    Call call =
+        underTest.newCall(
+            new Request.Builder()
+                .url("https://example.com/")
+                .post(new BlockedRequestBody(bodyReleased))
+                .build());
+    call.timeout().timeout(1, SECONDS);
+    RecordingCallback callback = new RecordingCallback();
+
+    try {
+      call.enqueue(callback);
+      // The call timeout and the timeout of the upload waiting for the body.
+      awaitPendingTimeouts(2);
+
+      ticker.advanceMillis(1010);
+
+      // The write timeout would only fire after a minute if it wasn't clamped.
+      assertThat(timingWheel.expireTimeouts()).isEqualTo(2);
+      assertThat(callback.awaitFailure()).isInstanceOf(IOException.class);
+    } finally {
+      bodyReleased.countDown();
+    }
+  }
+
+  @Test
+  public void testPriorityExtractor_headerStrippedAndPrioritySet() throws Exception {
+    engine.setStartHandler(request -> request.respond(FakeUrlResponseInfo.ok(), "Hello"));
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setPriorityExtractor(RequestPriorityExtractor.fromHeader("X-Priority"))
+            .build();
+    Request request =
+        new Request.Builder()
+            .url("https://example.com/")
+            .header("X-Priority", "highest")
+            .header("X-Other", "kept")
+            .build();
+
+    underTest.newCall(request).execute().close();
+
+    FakeUrlRequest sentRequest = engine.requests().get(0);
+    assertThat(sentRequest.header("X-Priority")).isNull();
+    assertThat(sentRequest.header("X-Other")).isEqualTo("kept");
+    assertThat(sentRequest.priority()).isEqualTo(CronetRequestPriority.HIGHEST.cronetPriority());
+  }
+
+  @Test
+  public void testPriorityExtractor_ordersDispatcherQueue() throws Exception {
+    CronetCallFactory underTest =
+        CronetCallFactory.newBuilder(engine)
+            .setCallbackExecutorService(callbackExecutor)
+            .setDispatcher(
+                CronetDispatcher.newBuilder()
+                    .setMaxRequests(1)
+                    .setQueueOrder(CronetDispatcher.QueueOrder.PRIORITY)
+                    .build())
+            .setPriorityExtractor(RequestPriorityExtractor.fromHeader("X-Priority"))
+            .build();
+    enqueue(underTest, "https://example.com/running");
+    for (String priority : new String[] {"idle", "highest"}) {
+      underTest
+          .newCall(
+              new Request.Builder()
+                  .url("https://example.com/" + priority)
+                  .header("X-Priority", priority)
+                  .build())
+          .enqueue(new RecordingCallback());
+    }
+
+    engine.requests().get(0).respond(FakeUrlResponseInfo.ok(), "Hello");
+
+    long deadlineNanos = System.nanoTime() + SECONDS.toNanos(5);
+    while (engine.requests().size() < 2 && System.nanoTime() < deadlineNanos) {
+      Thread.sleep(5);
+    }
+    assertThat(engine.requests().get(1).url()).isEqualTo("https://example.com/highest");
+  }
+
+  private void awaitPendingTimeouts(int count) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + SECONDS.toNanos(5);
+    while (timingWheel.pendingCount() < count && System.nanoTime() < deadlineNanos) {
+      Thread.sleep(5);
+    }
+    assertThat(timingWheel.pendingCount()).isEqualTo(count);
+  }
+
+  private static RecordingCallback enqueue(Call.Factory callFactory, String url) {
+    RecordingCallback callback = new RecordingCallback();
+    callFactory.newCall(new Request.Builder().url(url).build()).enqueue(callback);
+    return callback;
+  }
+
+  private static class RecordingCallback implements Callback {
+    private final SettableFuture<Response> response = SettableFuture.create();
+    private volatile Thread deliveredOn;
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      deliveredOn = Thread.currentThread();
+      this.response.set(response);
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      deliveredOn = Thread.currentThread();
+      response.setException(e);
+    }
+
+    Response awaitResponse() throws Exception {
+      return response.get(5, SECONDS);
+    }
+
+    IOException awaitFailure() throws Exception {
+      ExecutionException e =
+          assertThrows(ExecutionException.class, () -> response.get(5, SECONDS));
+      return (IOException) e.getCause();
+    }
+  }
+
+  private static class RecordingEventListener extends EventListener {
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void callStart(Call call) {
+      events.add("callStart");
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+      events.add("responseHeadersStart");
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+      events.add("responseHeadersEnd");
+    }
+
+    @Override
+    public void responseBodyStart(Call call) {
+      events.add("responseBodyStart");
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+      events.add("responseBodyEnd");
+    }
+
+    @Override
+    public void callEnd(Call call) {
+      events.add("callEnd");
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+      events.add("callFailed");
+    }
+  }
+
+  private static class FakeNetworkException extends NetworkException {
+    private final int errorCode;
+
+    FakeNetworkException(int errorCode) {
+      super("Error " + errorCode, null);
+      this.errorCode = errorCode;
+    }
+
+    @Override
+    public int getErrorCode() {
+      return errorCode;
+    }
+
+    @Override
+    public int getCronetInternalErrorCode() {
+      return 0;
+    }
+
+    @Override
+    public boolean immediatelyRetryable() {
+      return false;
+    }
+  }
+
+  private static class FailingRequestBody extends RequestBody {
+    @Override
+    public MediaType contentType() {
+      return null;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+      throw new IOException("Broken body");
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+      throw new IOException("Broken body");
+    }
+  }
+
+  private static class BlockedRequestBody extends RequestBody {
+    private final CountDownLatch released;
+
+    BlockedRequestBody(CountDownLatch released) {
+      this.released = released;
+    }
+
+    @Override
+    public MediaType contentType() {
+      return null;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+      Uninterruptibles.awaitUninterruptibly(released);
+      sink.writeUtf8("Hello");
+    }
+  }
+
+  private static class IgnoringUploadDataSink extends UploadDataSink {
+    @Override
+    public void onReadSucceeded(boolean finalChunk) {}
+
+    @Override
+    public void onReadError(Exception exception) {}
+
+    @Override
+    public void onRewindSucceeded() {}
+
+    @Override
+    public void onRewindError(Exception exception) {}
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Timeout;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CronetDispatcherTest {
+
+  private final List<String> startedUrls = new ArrayList<>();
+  private final List<String> failedUrls = new ArrayList<>();
+
+  @Test
+  public void testGlobalLimit() {
+    CronetDispatcher underTest = CronetDispatcher.newBuilder().setMaxRequests(2).build();
+    FakeAsyncCall first = enqueue(underTest, newRequest("https://a.com/1"));
+    enqueue(underTest, newRequest("https://b.com/2"));
+    enqueue(underTest, newRequest("https://c.com/3"));
+
+    assertThat(startedUrls).containsExactly("https://a.com/1", "https://b.com/2").inOrder();
+    assertThat(underTest.runningCallsCount()).isEqualTo(2);
+    assertThat(underTest.queuedCallsCount()).isEqualTo(1);
+
+    underTest.finished(first);
+
+    assertThat(startedUrls)
+        .containsExactly("https://a.com/1", "https://b.com/2", "https://c.com/3")
+        .inOrder();
+    assertThat(underTest.queuedCallsCount()).isEqualTo(0);
+    assertThat(underTest.peakQueuedCallsCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPerHostLimit_otherHostsNotBlocked() {
+    CronetDispatcher underTest = CronetDispatcher.newBuilder().setMaxRequestsPerHost(1).build();
+    FakeAsyncCall first = enqueue(underTest, newRequest("https://a.com/1"));
+    enqueue(underTest, newRequest("https://a.com/2"));
+    enqueue(underTest, newRequest("https://b.com/3"));
+
+    assertThat(startedUrls).containsExactly("https://a.com/1", "https://b.com/3").inOrder();
+
+    underTest.finished(first);
+
+    assertThat(startedUrls)
+        .containsExactly("https://a.com/1", "https://b.com/3", "https://a.com/2")
+        .inOrder();
+  }
+
+  @Test
+  public void testPriorityQueue_startsHighestPriorityFirst() {
+    CronetDispatcher underTest =
+        CronetDispatcher.newBuilder()
+            .setMaxRequests(1)
+            .setQueueOrder(CronetDispatcher.QueueOrder.PRIORITY)
+            .build();
+    FakeAsyncCall running = enqueue(underTest, newRequest("https://a.com/running"));
+    enqueue(underTest, newRequest("https://a.com/low", CronetRequestPriority.LOW));
+    enqueue(underTest, newRequest("https://a.com/medium"));
+    enqueue(underTest, newRequest("https://a.com/highest", CronetRequestPriority.HIGHEST));
+
+    assertThat(underTest.queuedCallsCount(CronetRequestPriority.LOW)).isEqualTo(1);
+    assertThat(underTest.queuedCallsCount(CronetRequestPriority.HIGHEST)).isEqualTo(1);
+
+    underTest.finished(running);
+
+    assertThat(startedUrls)
+        .containsExactly("https://a.com/running", "https://a.com/highest")
+        .inOrder();
+    assertThat(underTest.queuedCallsCount(CronetRequestPriority.HIGHEST)).isEqualTo(0);
+  }
+
+  @Test
+  public void testAdaptiveLimit_startsQueuedCallsWhenLimitGrows() {
+    CronetDispatcher underTest =
+        CronetDispatcher.newBuilder()
+            .setAdaptiveConcurrencyLimit(
+                AdaptiveConcurrencyLimit.newBuilder().setInitialLimit(2).setSmoothing(1).build())
+            .build();
+    enqueue(underTest, newRequest("https://a.com/1"));
+    enqueue(underTest, newRequest("https://a.com/2"));
+    enqueue(underTest, newRequest("https://a.com/3"));
+
+    assertThat(startedUrls).hasSize(2);
+
+    underTest.responseReceived(MILLISECONDS.toNanos(100), /* successful= */ true);
+
+    assertThat(underTest.currentMaxRequests()).isEqualTo(3);
+    assertThat(startedUrls).hasSize(3);
+  }
+
+  @Test
+  public void testDeferredBackgroundCalls_waitForInteractiveCalls() {
+    CronetDispatcher underTest =
+        CronetDispatcher.newBuilder().setBackgroundCallsDeferred(true).build();
+    FakeAsyncCall interactive = enqueue(underTest, newRequest("https://a.com/interactive"));
+    enqueue(underTest, newBackgroundRequest("https://a.com/sync"));
+
+    assertThat(startedUrls).containsExactly("https://a.com/interactive");
+    assertThat(underTest.queuedCallsCount()).isEqualTo(1);
+
+    underTest.finished(interactive);
+
+    assertThat(startedUrls)
+        .containsExactly("https://a.com/interactive", "https://a.com/sync")
+        .inOrder();
+  }
+
+  @Test
+  public void testPriorityQueue_backgroundCallsHaveLowestPriority() {
+    CronetDispatcher underTest =
+        CronetDispatcher.newBuilder()
+            .setMaxRequests(1)
+            .setQueueOrder(CronetDispatcher.QueueOrder.PRIORITY)
+            .build();
+    FakeAsyncCall running = enqueue(underTest, newRequest("https://a.com/running"));
+    enqueue(underTest, newBackgroundRequest("https://a.com/sync"));
+    enqueue(underTest, newRequest("https://a.com/low", CronetRequestPriority.LOW));
+
+    assertThat(underTest.queuedCallsCount(CronetRequestPriority.LOWEST)).isEqualTo(1);
+
+    underTest.finished(running);
+
+    assertThat(startedUrls).containsExactly("https://a.com/running", "https://a.com/low").inOrder();
+  }
+
+  @Test
+  public void testCancelAll_cancelsQueuedAndRunningCallsWithTag() {
+    CronetDispatcher underTest = CronetDispatcher.newBuilder().setMaxRequests(1).build();
+    FakeAsyncCall running =
+        enqueue(underTest, new Request.Builder().url("https://a.com/1").tag("screen").build());
+    FakeAsyncCall queued =
+        enqueue(underTest, new Request.Builder().url("https://a.com/2").tag("screen").build());
+    FakeAsyncCall other =
+        enqueue(underTest, new Request.Builder().url("https://a.com/3").tag("other").build());
+
+    underTest.cancelAll("screen");
+
+    assertThat(running.call.isCanceled()).isTrue();
+    assertThat(queued.call.isCanceled()).isTrue();
+    assertThat(other.call.isCanceled()).isFalse();
+  }
+
+  @Test
+  public void testRemoveQueued() {
+    CronetDispatcher underTest = CronetDispatcher.newBuilder().setMaxRequests(1).build();
+    FakeAsyncCall running = enqueue(underTest, newRequest("https://a.com/1"));
+    FakeAsyncCall queued = enqueue(underTest, newRequest("https://a.com/2"));
+
+    assertThat(underTest.removeQueued(running)).isFalse();
+    assertThat(underTest.removeQueued(queued)).isTrue();
+    assertThat(underTest.queuedCallsCount()).isEqualTo(0);
+
+    underTest.finished(running);
+
+    assertThat(startedUrls).containsExactly("https://a.com/1");
+  }
+
+  @Test
+  public void testStartThrows_releasesSlotAndStartsNextCalls() {
+    CronetDispatcher underTest =
+        CronetDispatcher.newBuilder().setMaxRequests(1).setMaxRequestsPerHost(1).build();
+    FakeAsyncCall running = enqueue(underTest, newRequest("https://a.com/1"));
+    FakeAsyncCall broken = new FakeAsyncCall(new FakeCall(newRequest("https://b.com/2")));
+    broken.startException = new IllegalStateException("Boom");
+    underTest.enqueue(broken);
+    enqueue(underTest, newRequest("https://b.com/3"));
+
+    // Doesn't throw, even though it starts the broken call.
+    underTest.finished(running);
+
+    assertThat(failedUrls).containsExactly("https://b.com/2");
+    assertThat(startedUrls).containsExactly("https://a.com/1", "https://b.com/3").inOrder();
+    assertThat(underTest.runningCallsCount()).isEqualTo(1);
+    assertThat(underTest.queuedCallsCount()).isEqualTo(0);
+  }
+
+  private FakeAsyncCall enqueue(CronetDispatcher dispatcher, Request request) {
+    FakeAsyncCall asyncCall = new FakeAsyncCall(new FakeCall(request));
+    dispatcher.enqueue(asyncCall);
+    return asyncCall;
+  }
+
+  private static Request newRequest(String url) {
+    return new Request.Builder().url(url).build();
+  }
+
+  private static Request newRequest(String url, CronetRequestPriority priority) {
+    return new Request.Builder().url(url).tag(CronetRequestPriority.class, priority).build();
+  }
+
+  private static Request newBackgroundRequest(String url) {
+    return new Request.Builder()
+        .url(url)
+        .tag(CronetTrafficClass.class, CronetTrafficClass.BACKGROUND)
+        .build();
+  }
+
+  private class FakeAsyncCall implements CronetDispatcher.AsyncCall {
+    private final FakeCall call;
+    private RuntimeException startException;
+
+    private FakeAsyncCall(FakeCall call) {
+      this.call = call;
+    }
+
+    @Override
+    public Call call() {
+      return call;
+    }
+
+    @Override
+    public CronetRequestPriority priority() {
+      return CronetRequestPriority.of(call.request());
+    }
+
+    @Override
+    public void start() {
+      if (startException != null) {
+        throw startException;
+      }
+      startedUrls.add(call.request().url().toString());
+    }
+
+    @Override
+    public void startFailed(RuntimeException e) {
+      assertThat(e).isSameInstanceAs(startException);
+      failedUrls.add(call.request().url().toString());
+    }
+  }
+
+  private static class FakeCall implements Call {
+    private final Request request;
+    private boolean canceled;
+
+    private FakeCall(Request request) {
+      this.request = request;
+    }
+
+    @Override
+    public Request request() {
+      return request;
+    }
+
+    @Override
+    public Response execute() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void enqueue(Callback responseCallback) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cancel() {
+      canceled = true;
+    }
+
+    @Override
+    public boolean isExecuted() {
+      return true;
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return canceled;
+    }
+
+    @Override
+    public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override
+    public Call clone() {
+      return new FakeCall(request);
+    }
+  }
+}
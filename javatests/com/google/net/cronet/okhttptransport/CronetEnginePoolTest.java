@@ -0,0 +1,96 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.ByteBuffer;
+import okhttp3.Request;
+import org.chromium.net.CronetException;
+import org.chromium.net.UrlRequest;
+import org.chromium.net.UrlResponseInfo;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CronetEnginePoolTest {
+  private static final String URL = "https://example.com/";
+
+  private final FakeCronetEngine engine = new FakeCronetEngine();
+  private final CronetEnginePool underTest =
+      CronetEnginePool.newBuilder().addEngine(engine).build();
+
+  @Test
+  public void testStartedRequest_inFlightUntilFinished() {
+    UrlRequest request = newTrackedRequest();
+
+    request.start();
+
+    assertThat(underTest.getInFlightRequestCount(0)).isEqualTo(1);
+    assertThat(underTest.getStartedRequestCount(0)).isEqualTo(1);
+
+    engine.requests().get(0).cancel();
+
+    assertThat(underTest.getInFlightRequestCount(0)).isEqualTo(0);
+  }
+
+  @Test
+  public void testStartThrows_notLeftInFlight() {
+    engine.setStartHandler(
+        request -> {
+          throw new IllegalStateException("The engine is shut down");
+        });
+    UrlRequest request = newTrackedRequest();
+
+    assertThrows(IllegalStateException.class, request::start);
+
+    assertThat(underTest.getInFlightRequestCount(0)).isEqualTo(0);
+  }
+
+  private UrlRequest newTrackedRequest() {
+    CronetEnginePool.Assignment assignment =
+        underTest.assign(new Request.Builder().url(URL).build(), new NoOpCallback());
+    return assignment.track(
+        assignment
+            .engine()
+            .newUrlRequestBuilder(URL, assignment.callback(), MoreExecutors.directExecutor())
+            .build());
+  }
+
+  private static class NoOpCallback extends UrlRequest.Callback {
+    @Override
+    public void onRedirectReceived(UrlRequest request, UrlResponseInfo info, String newUrl) {}
+
+    @Override
+    public void onResponseStarted(UrlRequest request, UrlResponseInfo info) {}
+
+    @Override
+    public void onReadCompleted(UrlRequest request, UrlResponseInfo info, ByteBuffer byteBuffer) {}
+
+    @Override
+    public void onSucceeded(UrlRequest request, UrlResponseInfo info) {}
+
+    @Override
+    public void onFailed(UrlRequest request, UrlResponseInfo info, CronetException error) {}
+
+    @Override
+    public void onCanceled(UrlRequest request, UrlResponseInfo info) {}
+  }
+}
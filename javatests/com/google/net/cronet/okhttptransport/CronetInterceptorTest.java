@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CronetInterceptorTest {
+  private static final Request REQUEST = new Request.Builder().url("https://example.com/").build();
+
+  private final FakeCronetEngine engine = new FakeCronetEngine();
+  private final CronetInterceptor interceptor = CronetInterceptor.newBuilder(engine).build();
+  private final OkHttpClient client =
+      new OkHttpClient.Builder().addInterceptor(interceptor).build();
+
+  @After
+  public void tearDown() {
+    interceptor.close();
+  }
+
+  @Test
+  public void testWrappedCallFactory_cancelCancelsRequestImmediately() throws Exception {
+    SettableFuture<FakeUrlRequest> startedRequest = SettableFuture.create();
+    engine.setStartHandler(startedRequest::set);
+    SettableFuture<IOException> failure = SettableFuture.create();
+
+    Call call = interceptor.wrapCallFactory(client).newCall(REQUEST);
+    call.enqueue(
+        new Callback() {
+          @Override
+          public void onFailure(Call call, IOException e) {
+            failure.set(e);
+          }
+
+          @Override
+          public void onResponse(Call call, Response response) {
+            response.close();
+          }
+        });
+    FakeUrlRequest request = startedRequest.get(5, SECONDS);
+    assertThat(request.isCanceled()).isFalse();
+
+    call.cancel();
+
+    // No waiting for the periodic cancellation check.
+    assertThat(request.isCanceled()).isTrue();
+    assertThat(call.isCanceled()).isTrue();
+    assertThat(failure.get(5, SECONDS)).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  public void testWrappedCallFactory_responseDelivered() throws Exception {
+    engine.setStartHandler(request -> request.respond(FakeUrlResponseInfo.ok(), "Hello"));
+
+    Response response = interceptor.wrapCallFactory(client).newCall(REQUEST).execute();
+
+    assertThat(response.body().string()).isEqualTo("Hello");
+  }
+
+  @Test
+  public void testClosed_polledCallStillGoesThrough() throws Exception {
+    engine.setStartHandler(request -> request.respond(FakeUrlResponseInfo.ok(), "Hello"));
+    interceptor.close();
+
+    try (Response response = client.newCall(REQUEST).execute()) {
+      assertThat(response.body().string()).isEqualTo("Hello");
+    }
+
+    assertThat(engine.requests()).hasSize(1);
+    assertThat(interceptor.activeCallCount()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CronetTransportResourcesTest {
+
+  @Test
+  public void testClose_drainsRunningWork() throws Exception {
+    CronetTransportResources underTest = CronetTransportResources.newBuilder().build();
+    AtomicBoolean completed = new AtomicBoolean();
+    CountDownLatch started = new CountDownLatch(1);
+    underTest
+        .callbackExecutor()
+        .execute(
+            () -> {
+              started.countDown();
+              sleepUninterruptibly(100);
+              completed.set(true);
+            });
+    started.await();
+
+    underTest.close();
+
+    assertThat(completed.get()).isTrue();
+    assertThat(underTest.isClosed()).isTrue();
+    assertThrows(
+        RejectedExecutionException.class,
+        () -> underTest.uploadDataProviderExecutor().execute(() -> {}));
+  }
+
+  @Test
+  public void testClose_stopsTimingWheel() {
+    CronetTransportResources underTest = CronetTransportResources.newBuilder().build();
+    TimingWheel.Entry entry =
+        new TimingWheel.Entry() {
+          @Override
+          void onTimeout() {}
+        };
+    underTest.timingWheel().schedule(entry, 60_000);
+    assertThat(underTest.timingWheel().pendingCount()).isEqualTo(1);
+
+    underTest.close();
+
+    assertThat(underTest.timingWheel().pendingCount()).isEqualTo(0);
+    assertThat(underTest.timingWheel()).isNotSameInstanceAs(TimingWheel.shared());
+  }
+
+  @Test
+  public void testClose_interruptsWorkAfterDrainTimeout() throws Exception {
+    CronetTransportResources underTest =
+        CronetTransportResources.newBuilder().setDrainTimeoutMillis(50).build();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    underTest
+        .requestBodyReaderExecutor()
+        .execute(
+            () -> {
+              started.countDown();
+              try {
+                Thread.sleep(60_000);
+              } catch (InterruptedException e) {
+                interrupted.countDown();
+              }
+            });
+    started.await();
+
+    underTest.close();
+
+    interrupted.await();
+  }
+
+  private static void sleepUninterruptibly(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
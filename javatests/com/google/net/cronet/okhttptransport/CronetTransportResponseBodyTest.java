@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CronetTransportResponseBodyTest {
+  private static final MediaType TEXT = MediaType.parse("text/plain");
+
+  private final List<String> events = new ArrayList<>();
+  private int closeHookCalls;
+
+  @Test
+  public void testReadToEnd_reportsBodyEvents() throws Exception {
+    ResponseBody underTest = newBody(ResponseBody.create(TEXT, "Hello!"));
+
+    assertThat(underTest.string()).isEqualTo("Hello!");
+
+    assertThat(events).containsExactly("start", "end 6").inOrder();
+    assertThat(closeHookCalls).isEqualTo(1);
+  }
+
+  @Test
+  public void testCloseWithoutReading_reportsEnd() {
+    ResponseBody underTest = newBody(ResponseBody.create(TEXT, "Hello!"));
+
+    underTest.close();
+    underTest.close();
+
+    assertThat(events).containsExactly("end 0");
+  }
+
+  @Test
+  public void testReadFailure_reported() {
+    ResponseBody underTest =
+        newBody(ResponseBody.create(TEXT, -1, Okio.buffer(new FailingSource())));
+
+    assertThrows(IOException.class, underTest::string);
+
+    assertThat(events).containsExactly("start", "failed", "end 0").inOrder();
+  }
+
+  @Test
+  public void testNoListener_sourceNotWrapped() {
+    ResponseBody delegate = ResponseBody.create(TEXT, "Hello!");
+    ResponseBody underTest =
+        new CronetTransportResponseBody(delegate) {
+          @Override
+          void customCloseHook() {}
+        };
+
+    assertThat(underTest.source()).isSameInstanceAs(delegate.source());
+  }
+
+  private ResponseBody newBody(ResponseBody delegate) {
+    return new CronetTransportResponseBody(
+        delegate,
+        new CronetTransportResponseBody.BodyListener() {
+          @Override
+          public void onBodyStart() {
+            events.add("start");
+          }
+
+          @Override
+          public void onBodyEnd(long byteCount) {
+            events.add("end " + byteCount);
+          }
+
+          @Override
+          public void onBodyFailed(IOException e) {
+            events.add("failed");
+          }
+        }) {
+      @Override
+      void customCloseHook() {
+        closeHookCalls++;
+      }
+    };
+  }
+
+  private static class FailingSource implements Source {
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+      throw new IOException("Failed");
+    }
+
+    @Override
+    public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
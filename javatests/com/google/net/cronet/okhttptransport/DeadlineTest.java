@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class DeadlineTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void testNone_neverExpiresAndKeepsTimeouts() {
+    assertThat(Deadline.NONE.isExpired()).isFalse();
+    assertThat(Deadline.NONE.clampTimeoutMillis(0)).isEqualTo(0);
+    assertThat(Deadline.NONE.clampTimeoutMillis(500)).isEqualTo(500);
+  }
+
+  @Test
+  public void testClamp_shorterTimeoutIsKept() {
+    Deadline underTest = Deadline.after(ticker, MILLISECONDS.toNanos(1000));
+
+    assertThat(underTest.clampTimeoutMillis(300)).isEqualTo(300);
+  }
+
+  @Test
+  public void testClamp_usesRemainingBudget() {
+    Deadline underTest = Deadline.after(ticker, MILLISECONDS.toNanos(1000));
+
+    ticker.advanceMillis(800);
+
+    assertThat(underTest.clampTimeoutMillis(300)).isEqualTo(200);
+    // No timeout is bounded by the deadline as well.
+    assertThat(underTest.clampTimeoutMillis(0)).isEqualTo(200);
+  }
+
+  @Test
+  public void testExpiry() {
+    Deadline underTest = Deadline.after(ticker, MILLISECONDS.toNanos(100));
+
+    ticker.advanceMillis(99);
+    assertThat(underTest.isExpired()).isFalse();
+
+    ticker.advanceMillis(1);
+    assertThat(underTest.isExpired()).isTrue();
+    assertThat(underTest.clampTimeoutMillis(0)).isEqualTo(1);
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assume.assumeTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ExecutorStrategyTest {
+  private static final int NO_TIMEOUT = 0;
+
+  @Test
+  public void testPlatformThreads_namedDaemonThreads() throws Exception {
+    ExecutorService executor =
+        ExecutorStrategy.platformThreads().newBlockingTaskExecutor("CronetTest");
+    try {
+      Thread thread = executor.submit(Thread::currentThread).get();
+
+      assertThat(thread.getName()).startsWith("CronetTest-");
+      assertThat(thread.isDaemon()).isTrue();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testCustomStrategy_usedByTransportResources() throws Exception {
+    List<String> createdExecutors = new ArrayList<>();
+    ExecutorStrategy strategy =
+        new ExecutorStrategy() {
+          @Override
+          protected ExecutorService newBlockingTaskExecutor(String threadNamePrefix) {
+            createdExecutors.add(threadNamePrefix);
+            return ExecutorStrategy.platformThreads().newBlockingTaskExecutor(threadNamePrefix);
+          }
+
+          @Override
+          protected ExecutorService newUploadDataProviderExecutor(
+              String threadNamePrefix, int size) {
+            createdExecutors.add(threadNamePrefix);
+            return ExecutorStrategy.platformThreads()
+                .newUploadDataProviderExecutor(threadNamePrefix, size);
+          }
+        };
+
+    CronetTransportResources resources =
+        CronetTransportResources.newBuilder().setExecutorStrategy(strategy).build();
+    resources.close();
+
+    assertThat(createdExecutors)
+        .containsExactly(
+            "CronetUploadDataProvider",
+            "CronetRequestBodyReader",
+            "CronetCallback",
+            "CronetBackgroundUploadDataProvider",
+            "CronetBackgroundCallback");
+    assertThat(resources.callbackExecutor().isShutdown()).isTrue();
+  }
+
+  /**
+   * Runs far more streaming uploads at once than there are carrier threads (the BUILD target
+   * limits the virtual thread scheduler to 2). Every body blocks until all of them have started
+   * writing, so the test only passes if none of the blocked uploads holds on to a carrier.
+   */
+  @Test
+  public void testVirtualThreads_thousandsOfConcurrentStreamingUploads() throws Exception {
+    assumeTrue(ExecutorStrategy.isVirtualThreadSupported());
+    int uploadCount = 2000;
+    ExecutorStrategy strategy = ExecutorStrategy.virtualThreads();
+    ExecutorService bodyWriters = strategy.newBlockingTaskExecutor("BodyWriter");
+    ExecutorService uploadDataProviders = strategy.newUploadDataProviderExecutor("Upload", 4);
+    RequestBodyConverterImpl.StreamingRequestBodyConverter underTest =
+        new RequestBodyConverterImpl.StreamingRequestBodyConverter(bodyWriters);
+    CountDownLatch allWriting = new CountDownLatch(uploadCount);
+
+    List<Future<byte[]>> uploads = new ArrayList<>();
+    for (int i = 0; i < uploadCount; i++) {
+      RequestBody body = new BlockingRequestBody(allWriting);
+      uploads.add(
+          uploadDataProviders.submit(
+              () ->
+                  new RequestBodyTestReader(underTest.convertRequestBody(body, NO_TIMEOUT), 64)
+                      .readAll()
+                      .getBody()));
+    }
+
+    for (Future<byte[]> upload : uploads) {
+      assertThat(new String(upload.get(60, SECONDS), UTF_8)).isEqualTo("before-after");
+    }
+    bodyWriters.shutdown();
+    uploadDataProviders.shutdown();
+  }
+
+  /** A streamed body which waits for the latch halfway through. */
+  private static class BlockingRequestBody extends RequestBody {
+    private final CountDownLatch allWriting;
+
+    private BlockingRequestBody(CountDownLatch allWriting) {
+      this.allWriting = allWriting;
+    }
+
+    @Override
+    public MediaType contentType() {
+      return null;
+    }
+
+    @Override
+    public long contentLength() {
+      return -1;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+      sink.writeUtf8("before-").flush();
+      allWriting.countDown();
+      try {
+        allWriting.await();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      sink.writeUtf8("after");
+    }
+  }
+}
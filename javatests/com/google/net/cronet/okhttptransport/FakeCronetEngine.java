@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandlerFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.chromium.net.CronetEngine;
+import org.chromium.net.UrlRequest;
+
+/**
+ * A Cronet engine which never touches the network. The requests it builds are {@link
+ * FakeUrlRequest}s, which the test drives either from a {@link FakeUrlRequest.StartHandler} or
+ * after the fact through {@link #requests()}.
+ */
+final class FakeCronetEngine extends CronetEngine {
+  private final List<FakeUrlRequest> requests = Collections.synchronizedList(new ArrayList<>());
+  private volatile FakeUrlRequest.StartHandler startHandler = request -> {};
+
+  /** Sets what happens when a request is started. By default, nothing does. */
+  void setStartHandler(FakeUrlRequest.StartHandler startHandler) {
+    this.startHandler = startHandler;
+  }
+
+  /** Returns the requests built so far, in the order they were built in. */
+  List<FakeUrlRequest> requests() {
+    synchronized (requests) {
+      return new ArrayList<>(requests);
+    }
+  }
+
+  @Override
+  public UrlRequest.Builder newUrlRequestBuilder(
+      String url, UrlRequest.Callback callback, Executor executor) {
+    return new FakeUrlRequest.Builder(
+        url, callback, request -> startHandler.onStart(request), requests);
+  }
+
+  @Override
+  public String getVersionString() {
+    return "Fake";
+  }
+
+  @Override
+  public void shutdown() {}
+
+  @Override
+  public void startNetLogToFile(String fileName, boolean logAll) {}
+
+  @Override
+  public void stopNetLog() {}
+
+  @Override
+  public byte[] getGlobalMetricsDeltas() {
+    return new byte[0];
+  }
+
+  @Override
+  public URLConnection openConnection(URL url) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public URLStreamHandlerFactory createURLStreamHandlerFactory() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.chromium.net.CronetException;
+import org.chromium.net.ExperimentalUrlRequest;
+import org.chromium.net.RequestFinishedInfo;
+import org.chromium.net.UploadDataProvider;
+import org.chromium.net.UrlRequest;
+import org.chromium.net.UrlResponseInfo;
+
+/**
+ * A {@link UrlRequest} whose response is scripted by the test. The callback is invoked
+ * synchronously, on the thread driving the request.
+ *
+ * <p>Reads are served from the body passed to {@link #respond} as soon as they're issued, unless
+ * {@link #holdReads()} was called, in which case they wait for {@link #completePendingRead()}.
+ */
+final class FakeUrlRequest extends ExperimentalUrlRequest {
+  /** Invoked when a request built by a {@link FakeCronetEngine} is started. */
+  interface StartHandler {
+    void onStart(FakeUrlRequest request);
+  }
+
+  private final String url;
+  private final UrlRequest.Callback callback;
+  private final String method;
+  private final List<Map.Entry<String, String>> headers;
+  private final int priority;
+  private final UploadDataProvider uploadDataProvider;
+  private final RequestFinishedInfo.Listener requestFinishedListener;
+  private final StartHandler startHandler;
+
+  private final Deque<byte[]> bodyChunks = new ArrayDeque<>();
+  private UrlResponseInfo responseInfo;
+  private boolean holdReads;
+  private ByteBuffer pendingRead;
+  private volatile boolean started;
+  private volatile boolean canceled;
+  private volatile boolean done;
+  private volatile int readCount;
+
+  /** Creates a request which isn't built by an engine, for driving a callback directly. */
+  FakeUrlRequest(UrlRequest.Callback callback) {
+    this(
+        "https://example.com/",
+        callback,
+        "GET",
+        Collections.<Map.Entry<String, String>>emptyList(),
+        Builder.REQUEST_PRIORITY_MEDIUM,
+        null,
+        null,
+        request -> {});
+  }
+
+  private FakeUrlRequest(
+      String url,
+      UrlRequest.Callback callback,
+      String method,
+      List<Map.Entry<String, String>> headers,
+      int priority,
+      UploadDataProvider uploadDataProvider,
+      RequestFinishedInfo.Listener requestFinishedListener,
+      StartHandler startHandler) {
+    this.url = url;
+    this.callback = callback;
+    this.method = method;
+    this.headers = headers;
+    this.priority = priority;
+    this.uploadDataProvider = uploadDataProvider;
+    this.requestFinishedListener = requestFinishedListener;
+    this.startHandler = startHandler;
+  }
+
+  String url() {
+    return url;
+  }
+
+  String method() {
+    return method;
+  }
+
+  /** Returns the last value of the header, or null if the request doesn't have it. */
+  String header(String name) {
+    String value = null;
+    for (Map.Entry<String, String> header : headers) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        value = header.getValue();
+      }
+    }
+    return value;
+  }
+
+  List<Map.Entry<String, String>> headers() {
+    return Collections.unmodifiableList(headers);
+  }
+
+  int priority() {
+    return priority;
+  }
+
+  UploadDataProvider uploadDataProvider() {
+    return uploadDataProvider;
+  }
+
+  RequestFinishedInfo.Listener requestFinishedListener() {
+    return requestFinishedListener;
+  }
+
+  boolean isStarted() {
+    return started;
+  }
+
+  boolean isCanceled() {
+    return canceled;
+  }
+
+  /** Returns the number of reads issued so far. */
+  int readCount() {
+    return readCount;
+  }
+
+  /** Keeps the reads pending until {@link #completePendingRead()} is called. */
+  FakeUrlRequest holdReads() {
+    holdReads = true;
+    return this;
+  }
+
+  /** Delivers the response headers, the body is served to the subsequent reads chunk by chunk. */
+  void respond(UrlResponseInfo responseInfo, String... bodyChunks) {
+    this.responseInfo = responseInfo;
+    for (String chunk : bodyChunks) {
+      this.bodyChunks.add(chunk.getBytes(UTF_8));
+    }
+    try {
+      callback.onResponseStarted(this, responseInfo);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Completes the pending read with the next chunk of the body. */
+  void completePendingRead() {
+    ByteBuffer buffer = pendingRead;
+    if (buffer == null) {
+      throw new IllegalStateException("No read is pending!");
+    }
+    pendingRead = null;
+    serveRead(buffer);
+  }
+
+  /** Fails the request. */
+  void fail(CronetException e) {
+    done = true;
+    callback.onFailed(this, responseInfo, e);
+  }
+
+  @Override
+  public void start() {
+    started = true;
+    startHandler.onStart(this);
+  }
+
+  @Override
+  public void followRedirect() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void read(ByteBuffer buffer) {
+    readCount++;
+    if (holdReads) {
+      pendingRead = buffer;
+      return;
+    }
+    serveRead(buffer);
+  }
+
+  private void serveRead(ByteBuffer buffer) {
+    byte[] chunk = bodyChunks.pollFirst();
+    if (chunk == null) {
+      done = true;
+      callback.onSucceeded(this, responseInfo);
+      return;
+    }
+    int length = Math.min(chunk.length, buffer.remaining());
+    buffer.put(chunk, 0, length);
+    if (length < chunk.length) {
+      bodyChunks.addFirst(Arrays.copyOfRange(chunk, length, chunk.length));
+    }
+    try {
+      callback.onReadCompleted(this, responseInfo, buffer);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void cancel() {
+    canceled = true;
+    if (!done) {
+      done = true;
+      callback.onCanceled(this, responseInfo);
+    }
+  }
+
+  @Override
+  public boolean isDone() {
+    return done;
+  }
+
+  @Override
+  public void getStatus(StatusListener listener) {}
+
+  /** Builds {@link FakeUrlRequest}s, recording what the transport set on them. */
+  static final class Builder extends ExperimentalUrlRequest.Builder {
+    private final String url;
+    private final UrlRequest.Callback callback;
+    private final StartHandler startHandler;
+    private final List<FakeUrlRequest> builtRequests;
+    private final List<Map.Entry<String, String>> headers = new ArrayList<>();
+    private String method = "GET";
+    private int priority = REQUEST_PRIORITY_MEDIUM;
+    private UploadDataProvider uploadDataProvider;
+    private RequestFinishedInfo.Listener requestFinishedListener;
+
+    Builder(
+        String url,
+        UrlRequest.Callback callback,
+        StartHandler startHandler,
+        List<FakeUrlRequest> builtRequests) {
+      this.url = url;
+      this.callback = callback;
+      this.startHandler = startHandler;
+      this.builtRequests = builtRequests;
+    }
+
+    @Override
+    public Builder setHttpMethod(String method) {
+      this.method = method;
+      return this;
+    }
+
+    @Override
+    public Builder addHeader(String header, String value) {
+      headers.add(new SimpleImmutableEntry<>(header, value));
+      return this;
+    }
+
+    @Override
+    public Builder disableCache() {
+      return this;
+    }
+
+    @Override
+    public Builder setPriority(int priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    @Override
+    public Builder setUploadDataProvider(UploadDataProvider uploadDataProvider, Executor executor) {
+      this.uploadDataProvider = uploadDataProvider;
+      return this;
+    }
+
+    @Override
+    public Builder allowDirectExecutor() {
+      return this;
+    }
+
+    @Override
+    public Builder setRequestFinishedListener(RequestFinishedInfo.Listener listener) {
+      this.requestFinishedListener = listener;
+      return this;
+    }
+
+    @Override
+    public FakeUrlRequest build() {
+      FakeUrlRequest request =
+          new FakeUrlRequest(
+              url,
+              callback,
+              method,
+              new ArrayList<>(headers),
+              priority,
+              uploadDataProvider,
+              requestFinishedListener,
+              startHandler);
+      builtRequests.add(request);
+      return request;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** A {@link org.chromium.net.UrlResponseInfo} with a fixed status code, protocol and headers. */
+final class FakeUrlResponseInfo extends org.chromium.net.UrlResponseInfo {
+  private final String url;
+  private final int httpStatusCode;
+  private final String negotiatedProtocol;
+  private final List<Map.Entry<String, String>> headers = new ArrayList<>();
+
+  /**
+   * Creates a response info.
+   *
+   * @param headerNamesAndValues alternating header names and values
+   */
+  FakeUrlResponseInfo(
+      String url, int httpStatusCode, String negotiatedProtocol, String... headerNamesAndValues) {
+    if (headerNamesAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Header names and values must come in pairs!");
+    }
+    this.url = url;
+    this.httpStatusCode = httpStatusCode;
+    this.negotiatedProtocol = negotiatedProtocol;
+    for (int i = 0; i < headerNamesAndValues.length; i += 2) {
+      headers.add(new SimpleImmutableEntry<>(headerNamesAndValues[i], headerNamesAndValues[i + 1]));
+    }
+  }
+
+  /** Creates a successful HTTP/2 response info. */
+  static FakeUrlResponseInfo ok(String... headerNamesAndValues) {
+    return new FakeUrlResponseInfo("https://example.com/", 200, "h2", headerNamesAndValues);
+  }
+
+  @Override
+  public String getUrl() {
+    return url;
+  }
+
+  @Override
+  public List<String> getUrlChain() {
+    return Collections.singletonList(url);
+  }
+
+  @Override
+  public int getHttpStatusCode() {
+    return httpStatusCode;
+  }
+
+  @Override
+  public String getHttpStatusText() {
+    return "";
+  }
+
+  @Override
+  public List<Map.Entry<String, String>> getAllHeadersAsList() {
+    return Collections.unmodifiableList(headers);
+  }
+
+  @Override
+  public Map<String, List<String>> getAllHeaders() {
+    // Cronet's header map is case insensitive as well.
+    Map<String, List<String>> headersMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (Map.Entry<String, String> header : headers) {
+      List<String> values = headersMap.get(header.getKey());
+      if (values == null) {
+        values = new ArrayList<>();
+        headersMap.put(header.getKey(), values);
+      }
+      values.add(header.getValue());
+    }
+    return headersMap;
+  }
+
+  @Override
+  public boolean wasCached() {
+    return false;
+  }
+
+  @Override
+  public String getNegotiatedProtocol() {
+    return negotiatedProtocol;
+  }
+
+  @Override
+  public String getProxyServer() {
+    return ":0";
+  }
+
+  @Override
+  public long getReceivedByteCount() {
+    return 0;
+  }
+}
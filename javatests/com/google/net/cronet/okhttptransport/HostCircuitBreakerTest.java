@@ -0,0 +1,183 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.net.cronet.okhttptransport.HostCircuitBreaker.State;
+import java.io.IOException;
+import org.chromium.net.NetworkException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class HostCircuitBreakerTest {
+  private static final String HOST = "example.com";
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final HostCircuitBreaker underTest =
+      new HostCircuitBreaker(
+          CircuitBreakerPolicy.newBuilder()
+              .setFailureThreshold(3)
+              .setOpenDurationMillis(1000)
+              .build(),
+          ticker);
+
+  @Test
+  public void testConsecutiveFailures_openCircuit() throws Exception {
+    fail(HOST, 2);
+    assertThat(underTest.state(HOST)).isEqualTo(State.CLOSED);
+
+    fail(HOST, 1);
+
+    assertThat(underTest.state(HOST)).isEqualTo(State.OPEN);
+    CircuitBreakerOpenException e =
+        assertThrows(CircuitBreakerOpenException.class, () -> underTest.acquire(HOST));
+    assertThat(e.getHost()).isEqualTo(HOST);
+    // Other hosts aren't affected.
+    underTest.acquire("other.com");
+  }
+
+  @Test
+  public void testResponse_resetsFailureCount() throws Exception {
+    fail(HOST, 2);
+    underTest.acquire(HOST).onResponse();
+    fail(HOST, 2);
+
+    assertThat(underTest.state(HOST)).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  public void testHalfOpen_successfulProbeClosesCircuit() throws Exception {
+    fail(HOST, 3);
+    ticker.advanceMillis(1000);
+
+    HostCircuitBreaker.Permit probe = underTest.acquire(HOST);
+    // Only one probe at a time.
+    assertThrows(CircuitBreakerOpenException.class, () -> underTest.acquire(HOST));
+
+    probe.onResponse();
+
+    assertThat(underTest.state(HOST)).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  public void testHalfOpen_failedProbeReopensCircuit() throws Exception {
+    fail(HOST, 3);
+    ticker.advanceMillis(1000);
+
+    underTest.acquire(HOST).onFailure();
+
+    assertThat(underTest.state(HOST)).isEqualTo(State.OPEN);
+    assertThrows(CircuitBreakerOpenException.class, () -> underTest.acquire(HOST));
+  }
+
+  @Test
+  public void testObserve_onlyHostFailuresCount() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      SettableFuture<Object> headers = SettableFuture.create();
+      underTest.acquire(HOST).observe(headers);
+      headers.setException(new FakeNetworkException(NetworkException.ERROR_NETWORK_CHANGED));
+    }
+    assertThat(underTest.state(HOST)).isEqualTo(State.CLOSED);
+
+    for (int i = 0; i < 3; i++) {
+      SettableFuture<Object> headers = SettableFuture.create();
+      underTest.acquire(HOST).observe(headers);
+      headers.setException(new FakeNetworkException(NetworkException.ERROR_CONNECTION_REFUSED));
+    }
+    assertThat(underTest.state(HOST)).isEqualTo(State.OPEN);
+  }
+
+  @Test
+  public void testManyHosts_healthyCircuitsEvicted() throws Exception {
+    fail(HOST, 3);
+    fail("degraded.com", 1);
+    for (int i = 0; i < 100; i++) {
+      underTest.acquire("host" + i + ".com").onResponse();
+    }
+
+    assertThat(underTest.circuitCount()).isAtMost(64);
+    assertThat(underTest.state(HOST)).isEqualTo(State.OPEN);
+    // The failure count of a host which isn't healthy is kept too.
+    fail("degraded.com", 2);
+    assertThat(underTest.state("degraded.com")).isEqualTo(State.OPEN);
+  }
+
+  @Test
+  public void testIsHostFailure() {
+    assertThat(HostCircuitBreaker.isHostFailure(new CronetTimeoutException())).isTrue();
+    assertThat(
+            HostCircuitBreaker.isHostFailure(
+                new FakeNetworkException(NetworkException.ERROR_CONNECTION_TIMED_OUT)))
+        .isTrue();
+    assertThat(
+            HostCircuitBreaker.isHostFailure(
+                new FakeNetworkException(NetworkException.ERROR_INTERNET_DISCONNECTED)))
+        .isFalse();
+    assertThat(HostCircuitBreaker.isHostFailure(new IOException("Canceled"))).isFalse();
+  }
+
+  private void fail(String host, int times) throws Exception {
+    for (int i = 0; i < times; i++) {
+      underTest.acquire(host).onFailure();
+    }
+  }
+
+  private static class FakeNetworkException extends NetworkException {
+    private final int errorCode;
+
+    FakeNetworkException(int errorCode) {
+      super("Error " + errorCode, null);
+      this.errorCode = errorCode;
+    }
+
+    @Override
+    public int getErrorCode() {
+      return errorCode;
+    }
+
+    @Override
+    public int getCronetInternalErrorCode() {
+      return 0;
+    }
+
+    @Override
+    public boolean immediatelyRetryable() {
+      return false;
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import org.chromium.net.CronetException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class OkHttpBridgeRequestCallbackTest {
+  private static final int NO_TIMEOUT = 0;
+  private static final long PREFETCH_LIMIT_BYTES = 8;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final TimingWheel timingWheel =
+      new TimingWheel(ticker, /* tickMillis= */ 10, /* bucketCount= */ 8, null);
+  private final ByteBufferPool bufferPool = new ByteBufferPool(1024, /* maxPooledBuffers= */ 4);
+  private final TransportMetrics metrics = TransportMetrics.create();
+
+  @Test
+  public void testPrefetch_smallBody_servedFromMemory() throws Exception {
+    OkHttpBridgeRequestCallback underTest = newCallback(NO_TIMEOUT, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest request = new FakeUrlRequest(underTest);
+
+    request.respond(FakeUrlResponseInfo.ok("Content-Length", "8"), "Hell", "o!!!");
+
+    assertThat(underTest.getBodySource().isDone()).isTrue();
+    Source source = underTest.getBodySource().get();
+    assertThat(source).isInstanceOf(Buffer.class);
+    assertThat(Okio.buffer(source).readUtf8()).isEqualTo("Hello!!!");
+    // Two chunks and the read which found the end of the body.
+    assertThat(request.readCount()).isEqualTo(3);
+    assertThat(bufferPool.pooledBufferCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPrefetch_noContentLength_streamed() throws Exception {
+    OkHttpBridgeRequestCallback underTest = newCallback(NO_TIMEOUT, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest request = new FakeUrlRequest(underTest);
+
+    request.respond(FakeUrlResponseInfo.ok(), "data: 1\n\n");
+
+    assertThat(underTest.getBodySource().isDone()).isTrue();
+    assertThat(request.readCount()).isEqualTo(0);
+    Source source = underTest.getBodySource().get();
+    assertThat(source).isNotInstanceOf(Buffer.class);
+    assertThat(Okio.buffer(source).readUtf8()).isEqualTo("data: 1\n\n");
+  }
+
+  @Test
+  public void testPrefetch_invalidOrLargeContentLength_streamed() throws Exception {
+    OkHttpBridgeRequestCallback invalidLength = newCallback(NO_TIMEOUT, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest invalidLengthRequest = new FakeUrlRequest(invalidLength);
+    OkHttpBridgeRequestCallback largeLength = newCallback(NO_TIMEOUT, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest largeLengthRequest = new FakeUrlRequest(largeLength);
+
+    invalidLengthRequest.respond(FakeUrlResponseInfo.ok("Content-Length", "eight"), "Hello");
+    largeLengthRequest.respond(FakeUrlResponseInfo.ok("Content-Length", "9"), "Hello!!!!");
+
+    assertThat(invalidLengthRequest.readCount()).isEqualTo(0);
+    assertThat(invalidLength.getBodySource().get()).isNotInstanceOf(Buffer.class);
+    assertThat(largeLengthRequest.readCount()).isEqualTo(0);
+    assertThat(largeLength.getBodySource().get()).isNotInstanceOf(Buffer.class);
+  }
+
+  @Test
+  public void testPrefetch_bodyGrowsPastLimit_streamsTheRest() throws Exception {
+    OkHttpBridgeRequestCallback underTest = newCallback(NO_TIMEOUT, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest request = new FakeUrlRequest(underTest);
+
+    // The declared length is that of the encoded body, the decoded one is larger.
+    request.respond(FakeUrlResponseInfo.ok("Content-Length", "6"), "12345", "6789", "0");
+
+    assertThat(underTest.getBodySource().isDone()).isTrue();
+    assertThat(request.readCount()).isEqualTo(2);
+    Source source = underTest.getBodySource().get();
+    assertThat(source).isNotInstanceOf(Buffer.class);
+    assertThat(Okio.buffer(source).readUtf8()).isEqualTo("1234567890");
+    assertThat(request.readCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void testPrefetch_canceled_releasesBufferAndFails() throws Exception {
+    OkHttpBridgeRequestCallback underTest = newCallback(NO_TIMEOUT, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest request = new FakeUrlRequest(underTest).holdReads();
+    request.respond(FakeUrlResponseInfo.ok("Content-Length", "5"), "Hello");
+
+    assertThat(underTest.getBodySource().isDone()).isFalse();
+    request.cancel();
+
+    Throwable failure = getFailure(underTest);
+    assertThat(failure).isInstanceOf(IOException.class);
+    assertThat(failure).isNotInstanceOf(CronetTimeoutException.class);
+    assertThat(bufferPool.pooledBufferCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPrefetch_failed_releasesBufferAndFails() throws Exception {
+    OkHttpBridgeRequestCallback underTest = newCallback(NO_TIMEOUT, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest request = new FakeUrlRequest(underTest).holdReads();
+    request.respond(FakeUrlResponseInfo.ok("Content-Length", "5"), "Hello");
+    CronetException e = new CronetException("Connection reset", null) {};
+
+    request.fail(e);
+
+    assertThat(getFailure(underTest)).isSameInstanceAs(e);
+    assertThat(bufferPool.pooledBufferCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPrefetch_readTimeout_failsWithTimeoutException() throws Exception {
+    OkHttpBridgeRequestCallback underTest = newCallback(100, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest request = new FakeUrlRequest(underTest).holdReads();
+    request.respond(FakeUrlResponseInfo.ok("Content-Length", "5"), "Hello");
+
+    ticker.advanceMillis(200);
+    timingWheel.expireTimeouts();
+
+    assertThat(request.isCanceled()).isTrue();
+    assertThat(getFailure(underTest)).isInstanceOf(CronetTimeoutException.class);
+    assertThat(bufferPool.pooledBufferCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testThrottledRead_requestsOnlyGrantedBytes() throws Exception {
+    // The bucket holds less than a buffer, so it limits the reads.
+    TokenBucket bucket = new TokenBucket(/* bytesPerSecond= */ 512, ticker);
+    OkHttpBridgeRequestCallback underTest =
+        newCallback(
+            NO_TIMEOUT, PREFETCH_LIMIT_BYTES, new RequestThrottle(ImmutableList.of(bucket)));
+    FakeUrlRequest request = new FakeUrlRequest(underTest);
+    request.respond(FakeUrlResponseInfo.ok(), Strings.repeat("a", 600));
+    Source source = underTest.getBodySource().get();
+    Buffer sink = new Buffer();
+
+    assertThat(source.read(sink, 8192)).isEqualTo(512);
+    assertThat(bucket.tryAcquire(1)).isEqualTo(0);
+
+    ticker.advanceMillis(1000);
+    assertThat(source.read(sink, 8192)).isEqualTo(88);
+    // The part of the grant Cronet didn't fill is returned.
+    assertThat(bucket.tryAcquire(512)).isEqualTo(0);
+    assertThat(bucket.tryAcquire(424)).isEqualTo(424);
+  }
+
+  @Test
+  public void testMetrics_succeeded_recordsLatenciesUnderNegotiatedProtocol() throws Exception {
+    OkHttpBridgeRequestCallback underTest = newMetricsCallback(NO_TIMEOUT, /* prefetch= */ 0);
+    FakeUrlRequest request = new FakeUrlRequest(underTest);
+
+    request.respond(FakeUrlResponseInfo.ok(), "Hello", " world");
+    assertThat(Okio.buffer(underTest.getBodySource().get()).readUtf8()).isEqualTo("Hello world");
+
+    TransportMetrics.SeriesSnapshot series = metrics.snapshot().series("example.com", "h2");
+    assertThat(series.timeToHeadersMicros().count()).isEqualTo(1);
+    // Two chunks and the read which found the end of the body.
+    assertThat(series.readWaitMicros().count()).isEqualTo(3);
+    assertThat(series.succeeded()).isEqualTo(1);
+    assertThat(series.failed()).isEqualTo(0);
+    assertThat(series.canceled()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMetrics_failedBeforeHeaders_recordedUnderUnknownProtocol() {
+    OkHttpBridgeRequestCallback underTest = newMetricsCallback(NO_TIMEOUT, /* prefetch= */ 0);
+    FakeUrlRequest request = new FakeUrlRequest(underTest);
+
+    request.fail(new CronetException("Connection refused", null) {});
+
+    TransportMetrics.Snapshot snapshot = metrics.snapshot();
+    assertThat(snapshot.series("example.com", "h2")).isNull();
+    TransportMetrics.SeriesSnapshot series =
+        snapshot.series("example.com", TransportMetrics.UNKNOWN_PROTOCOL);
+    assertThat(series.failed()).isEqualTo(1);
+    assertThat(series.timeToHeadersMicros().count()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMetrics_canceledAndTimedOutCountedApart() throws Exception {
+    OkHttpBridgeRequestCallback canceled = newMetricsCallback(100, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest canceledRequest = new FakeUrlRequest(canceled).holdReads();
+    OkHttpBridgeRequestCallback timedOut = newMetricsCallback(100, PREFETCH_LIMIT_BYTES);
+    FakeUrlRequest timedOutRequest = new FakeUrlRequest(timedOut).holdReads();
+    canceledRequest.respond(FakeUrlResponseInfo.ok("Content-Length", "5"), "Hello");
+    timedOutRequest.respond(FakeUrlResponseInfo.ok("Content-Length", "5"), "Hello");
+
+    canceledRequest.cancel();
+    ticker.advanceMillis(200);
+    timingWheel.expireTimeouts();
+
+    assertThat(timedOutRequest.isCanceled()).isTrue();
+    TransportMetrics.SeriesSnapshot series = metrics.snapshot().series("example.com", "h2");
+    assertThat(series.canceled()).isEqualTo(1);
+    // Running out of time is a failure, not something the application asked for.
+    assertThat(series.failed()).isEqualTo(1);
+    assertThat(series.succeeded()).isEqualTo(0);
+  }
+
+  private OkHttpBridgeRequestCallback newMetricsCallback(
+      long readTimeoutMillis, long prefetchLimitBytes) {
+    return newCallback(
+        readTimeoutMillis,
+        prefetchLimitBytes,
+        RequestThrottle.UNLIMITED,
+        metrics.forHost("example.com"));
+  }
+
+  private OkHttpBridgeRequestCallback newCallback(long readTimeoutMillis, long prefetchLimitBytes) {
+    return newCallback(readTimeoutMillis, prefetchLimitBytes, RequestThrottle.UNLIMITED);
+  }
+
+  private OkHttpBridgeRequestCallback newCallback(
+      long readTimeoutMillis, long prefetchLimitBytes, RequestThrottle throttle) {
+    return newCallback(readTimeoutMillis, prefetchLimitBytes, throttle, /* hostMetrics= */ null);
+  }
+
+  private OkHttpBridgeRequestCallback newCallback(
+      long readTimeoutMillis,
+      long prefetchLimitBytes,
+      RequestThrottle throttle,
+      @Nullable TransportMetrics.HostMetrics hostMetrics) {
+    return new OkHttpBridgeRequestCallback(
+        readTimeoutMillis,
+        RedirectStrategy.defaultStrategy(),
+        timingWheel,
+        bufferPool,
+        Deadline.NONE,
+        throttle,
+        prefetchLimitBytes,
+        hostMetrics);
+  }
+
+  private static Throwable getFailure(OkHttpBridgeRequestCallback callback) {
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> callback.getBodySource().get());
+    return e.getCause();
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -18,16 +18,36 @@ package com.google.net.cronet.okhttptransport;
 
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertThrows;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
 import okhttp3.MediaType;
+import okhttp3.MultipartBody;
 import okhttp3.RequestBody;
+import okio.Buffer;
 import okio.BufferedSink;
 import okio.ByteString;
+import okio.Okio;
+import org.chromium.net.UploadDataProvider;
+import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
@@ -55,8 +75,23 @@ public class RequestBodyConverterTest {
         }
       };
 
+  private static final RequestBody UNKNOWN_LENGTH_REPLAYABLE_REQUEST_BODY =
+      new ReplayableArbitraryContentLengthRequestBody() {
+        @Override
+        public long contentLength() {
+          return -1;
+        }
+      };
+
   @Rule public Timeout globalTimeout = Timeout.seconds(5);
 
+  private final ExecutorService writerExecutor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    writerExecutor.shutdownNow();
+  }
+
   @Test
   public void testInMemory_knownLength() throws Exception {
     RequestBodyConverter underTest = new RequestBodyConverterImpl.InMemoryRequestBodyConverter();
@@ -117,6 +152,18 @@ public class RequestBodyConverterTest {
                 + KNOWN_LENGTH_REQUEST_BODY.contentLength());
   }
 
+  @Test
+  public void testInMemory_rewind() throws Exception {
+    RequestBodyConverter underTest = new RequestBodyConverterImpl.InMemoryRequestBodyConverter();
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(
+            underTest.convertRequestBody(KNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT));
+
+    testReader.readAll().rewind();
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
+  }
+
   @Test
   public void testStreaming_unknownLength() throws Exception {
     RequestBodyConverter underTest =
@@ -189,6 +236,317 @@ public class RequestBodyConverterTest {
                 + KNOWN_LENGTH_REQUEST_BODY.contentLength());
   }
 
+  @Test
+  public void testStreaming_replayableBody_rewind() throws Exception {
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.StreamingRequestBodyConverter(
+            Executors.newSingleThreadExecutor());
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(
+            underTest.convertRequestBody(UNKNOWN_LENGTH_REPLAYABLE_REQUEST_BODY, NO_TIMEOUT));
+
+    testReader.readAll().rewind();
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
+  }
+
+  @Test
+  public void testStreaming_oneShotBody_rewindWithoutReplayBuffer_fails() throws Exception {
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.StreamingRequestBodyConverter(
+            Executors.newSingleThreadExecutor());
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(
+            underTest.convertRequestBody(UNKNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT));
+
+    testReader.readAll();
+
+    ExecutionException exception = assertThrows(ExecutionException.class, testReader::rewind);
+    assertThat(exception).hasCauseThat().isInstanceOf(UnsupportedOperationException.class);
+  }
+
+  @Test
+  public void testStreaming_oneShotBody_unknownLength_rewindFromReplayBuffer() throws Exception {
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.StreamingRequestBodyConverter(
+            Executors.newSingleThreadExecutor(), BODY_CONTENT.length());
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(
+            underTest.convertRequestBody(UNKNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT));
+
+    testReader.readAll().rewind();
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
+  }
+
+  @Test
+  public void testStreaming_oneShotBody_knownLength_rewindFromReplayBuffer() throws Exception {
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.StreamingRequestBodyConverter(
+            Executors.newSingleThreadExecutor(), BODY_CONTENT.length());
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(
+            underTest.convertRequestBody(KNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT));
+
+    testReader.readAll().rewind();
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
+  }
+
+  @Test
+  public void testStreaming_oneShotBody_exceedingReplayBuffer_rewindFails() throws Exception {
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.StreamingRequestBodyConverter(
+            Executors.newSingleThreadExecutor(), BODY_CONTENT.length() - 1);
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(
+            underTest.convertRequestBody(UNKNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT));
+
+    testReader.readAll();
+
+    assertThrows(ExecutionException.class, testReader::rewind);
+  }
+
+  @Test
+  public void testFile_rewind() throws Exception {
+    File file = File.createTempFile("RequestBodyConverterTest", ".txt");
+    file.deleteOnExit();
+    try (BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+      sink.writeString(VERY_LONG_BODY_CONTENT, UTF_8);
+    }
+
+    RequestBodyConverter underTest = RequestBodyConverterImpl.create(null, 0, 0, null);
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(
+            underTest.convertRequestBody(FileRequestBody.create(UTF_8_TEXT, file), NO_TIMEOUT));
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(VERY_LONG_BODY_CONTENT);
+
+    testReader.rewind();
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(VERY_LONG_BODY_CONTENT);
+  }
+
+  @Test
+  public void testFile_grownAfterConversion_onlyAdvertisedLengthUploaded() throws Exception {
+    File file = File.createTempFile("RequestBodyConverterTest", ".txt");
+    file.deleteOnExit();
+    try (BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+      sink.writeString(VERY_LONG_BODY_CONTENT, UTF_8);
+    }
+
+    RequestBodyConverter underTest = RequestBodyConverterImpl.create(null, 0, 0, null);
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(
+            underTest.convertRequestBody(FileRequestBody.create(UTF_8_TEXT, file), NO_TIMEOUT));
+    try (BufferedSink sink =
+        Okio.buffer(Okio.sink(new FileOutputStream(file, /* append= */ true)))) {
+      sink.writeString("Appended later", UTF_8);
+    }
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(VERY_LONG_BODY_CONTENT);
+  }
+
+  @Test
+  public void testFile_missing_throws() throws Exception {
+    File file = new File(System.getProperty("java.io.tmpdir"), "RequestBodyConverterTest.missing");
+    file.delete();
+
+    RequestBodyConverter underTest = RequestBodyConverterImpl.create(null, 0, 0, null);
+
+    assertThrows(
+        FileNotFoundException.class,
+        () -> underTest.convertRequestBody(FileRequestBody.create(UTF_8_TEXT, file), NO_TIMEOUT));
+  }
+
+  @Test
+  public void testStreaming_gzipCompressedBody() throws Exception {
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.StreamingRequestBodyConverter(
+            Executors.newSingleThreadExecutor());
+    RequestBody compressedBody =
+        CompressedRequestBody.create(
+            KNOWN_LENGTH_REQUEST_BODY, RequestBodyCompression.Encoding.GZIP);
+    RequestBodyTestReader testReader =
+        new RequestBodyTestReader(underTest.convertRequestBody(compressedBody, NO_TIMEOUT));
+
+    byte[] compressed = testReader.readAll().getBody();
+
+    assertThat(compressed.length).isLessThan(BODY_CONTENT.length());
+    try (InputStream uncompressed = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      assertThat(Okio.buffer(Okio.source(uncompressed)).readUtf8()).isEqualTo(BODY_CONTENT);
+    }
+  }
+
+  @Test
+  public void testCompressedBody_replayableOnlyIfOriginalIs() {
+    assertThat(
+            CompressedRequestBody.create(
+                UNKNOWN_LENGTH_REPLAYABLE_REQUEST_BODY, RequestBodyCompression.Encoding.DEFLATE))
+        .isInstanceOf(ReplayableRequestBody.class);
+    assertThat(
+            CompressedRequestBody.create(
+                UNKNOWN_LENGTH_REQUEST_BODY, RequestBodyCompression.Encoding.DEFLATE))
+        .isNotInstanceOf(ReplayableRequestBody.class);
+  }
+
+  @Test
+  public void testSpilling_unknownLength_fitsInMemory() throws Exception {
+    File spillDirectory = createTempDirectory();
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.SpillingRequestBodyConverter(
+            BODY_CONTENT.length(), spillDirectory, writerExecutor, TimingWheel.shared());
+    UploadDataProvider provider =
+        underTest.convertRequestBody(UNKNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT);
+    RequestBodyTestReader testReader = new RequestBodyTestReader(provider);
+
+    assertThat(provider.getLength()).isEqualTo(BODY_CONTENT.length());
+    assertThat(spillDirectory.list()).isEmpty();
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
+
+    testReader.rewind();
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
+  }
+
+  @Test
+  public void testSpilling_unknownLength_spillsToDisk() throws Exception {
+    File spillDirectory = createTempDirectory();
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.SpillingRequestBodyConverter(
+            BODY_CONTENT.length() - 1, spillDirectory, writerExecutor, TimingWheel.shared());
+    UploadDataProvider provider =
+        underTest.convertRequestBody(UNKNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT);
+    RequestBodyTestReader testReader = new RequestBodyTestReader(provider);
+
+    assertThat(provider.getLength()).isEqualTo(BODY_CONTENT.length());
+    assertThat(spillDirectory.list()).hasLength(1);
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
+
+    testReader.rewind();
+
+    assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
+
+    provider.close();
+
+    assertThat(spillDirectory.list()).isEmpty();
+  }
+
+  @Test
+  public void testSpilling_stalledBody_failsAfterWriteTimeout() throws Exception {
+    File spillDirectory = createTempDirectory();
+    FakeTicker ticker = new FakeTicker();
+    TimingWheel timingWheel = new TimingWheel(ticker, /* tickMillis= */ 10, 8, null);
+    CountDownLatch firstWriteDone = new CountDownLatch(1);
+    CountDownLatch bodyReleased = new CountDownLatch(1);
+    RequestBodyConverter underTest =
+        new RequestBodyConverterImpl.SpillingRequestBodyConverter(
+            /* inMemoryThresholdBytes= */ 1, spillDirectory, writerExecutor, timingWheel);
+    UploadDataProvider provider =
+        underTest.convertRequestBody(
+            new ArbitraryContentLengthRequestBody() {
+              @Override
+              public long contentLength() {
+                return -1;
+              }
+
+              @Override
+              public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeUtf8("Hello");
+                sink.flush();
+                firstWriteDone.countDown();
+                Uninterruptibles.awaitUninterruptibly(bodyReleased);
+                sink.writeUtf8(" world");
+              }
+            },
+            /* writeTimeoutMillis= */ 100);
+    FutureTask<Long> getLength = new FutureTask<>(provider::getLength);
+    new Thread(getLength).start();
+    // The timeout is restarted by each write, wait for the last one before the body stalls.
+    firstWriteDone.await();
+
+    ticker.advanceMillis(100);
+    timingWheel.expireTimeouts();
+
+    ExecutionException e = assertThrows(ExecutionException.class, getLength::get);
+    assertThat(e).hasCauseThat().hasCauseThat().isInstanceOf(TimeoutException.class);
+
+    // The writer gives up on its next write and removes what it spilled.
+    bodyReleased.countDown();
+    writerExecutor.shutdown();
+    writerExecutor.awaitTermination(5, SECONDS);
+    assertThat(spillDirectory.list()).isEmpty();
+  }
+
+  @Test
+  public void testDelegating_unknownLength_handledBySpilling() throws Exception {
+    RequestBodyConverterImpl underTest =
+        RequestBodyConverterImpl.create(
+            Executors.newSingleThreadExecutor(),
+            /* replayBufferSizeBytes= */ 0,
+            BODY_CONTENT.length(),
+            createTempDirectory());
+
+    UploadDataProvider provider =
+        underTest.convertRequestBody(UNKNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT);
+
+    assertThat(provider.getLength()).isEqualTo(BODY_CONTENT.length());
+    assertThat(new String(new RequestBodyTestReader(provider).readAll().getBody(), UTF_8))
+        .isEqualTo(BODY_CONTENT);
+  }
+
+  @Test
+  public void testDelegating_aboveCustomThreshold_handledByStreaming() throws Exception {
+    RequestBodyConverterImpl underTest =
+        RequestBodyConverterImpl.create(
+            Executors.newSingleThreadExecutor(),
+            /* replayBufferSizeBytes= */ 0,
+            BODY_CONTENT.length() - 1,
+            /* spillDirectory= */ null);
+
+    UploadDataProvider provider =
+        underTest.convertRequestBody(KNOWN_LENGTH_REQUEST_BODY, NO_TIMEOUT);
+
+    // Out of all the providers, only the streaming one fails to rewind one-shot bodies
+    assertThat(new String(new RequestBodyTestReader(provider).readAll().getBody(), UTF_8))
+        .isEqualTo(BODY_CONTENT);
+    assertThrows(ExecutionException.class, new RequestBodyTestReader(provider)::rewind);
+  }
+
+  @Test
+  public void testMultipart_matchesOkHttpFraming() throws Exception {
+    File file = File.createTempFile("RequestBodyConverterTest", ".txt");
+    file.deleteOnExit();
+    try (BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+      sink.writeString(VERY_LONG_BODY_CONTENT, UTF_8);
+    }
+    MultipartBody multipartBody =
+        new MultipartBody.Builder()
+            .setType(MultipartBody.FORM)
+            .addFormDataPart("title", "Lorem ipsum")
+            .addFormDataPart("photo", "photo.txt", FileRequestBody.create(UTF_8_TEXT, file))
+            .addFormDataPart("description", BODY_CONTENT)
+            .build();
+    Buffer expectedBody = new Buffer();
+    multipartBody.writeTo(expectedBody);
+
+    RequestBodyConverter underTest =
+        RequestBodyConverterImpl.create(
+            null,
+            /* replayBufferSizeBytes= */ 0,
+            BODY_CONTENT.length() * 2,
+            /* spillDirectory= */ null);
+    UploadDataProvider provider = underTest.convertRequestBody(multipartBody, NO_TIMEOUT);
+    RequestBodyTestReader testReader = new RequestBodyTestReader(provider);
+
+    assertThat(provider.getLength()).isEqualTo(expectedBody.size());
+    assertThat(ByteString.of(testReader.readAll().getBody())).isEqualTo(expectedBody.snapshot());
+
+    testReader.rewind();
+
+    assertThat(ByteString.of(testReader.readAll().getBody())).isEqualTo(expectedBody.snapshot());
+  }
+
   @Test
   public void testDelegating_long_handledByStreaming() throws Exception {
     RequestBodyConverterImpl underTest =
@@ -231,6 +589,14 @@ public class RequestBodyConverterTest {
     assertThat(new String(testReader.readAll().getBody(), UTF_8)).isEqualTo(BODY_CONTENT);
   }
 
+  private static File createTempDirectory() throws IOException {
+    File directory = File.createTempFile("RequestBodyConverterTest", "");
+    directory.delete();
+    directory.mkdir();
+    directory.deleteOnExit();
+    return directory;
+  }
+
   private abstract static class ArbitraryContentLengthRequestBody extends RequestBody {
     @Override
     public abstract long contentLength() throws IOException;
@@ -245,4 +611,20 @@ public class RequestBodyConverterTest {
       sink.writeString(BODY_CONTENT, UTF_8);
     }
   }
+
+  private abstract static class ReplayableArbitraryContentLengthRequestBody
+      extends ArbitraryContentLengthRequestBody implements ReplayableRequestBody {}
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
 }
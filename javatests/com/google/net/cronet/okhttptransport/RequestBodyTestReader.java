@@ -30,12 +30,19 @@ import org.chromium.net.UploadDataSink;
 final class RequestBodyTestReader {
 
   private final UploadDataProvider providerUnderTest;
-  private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+  private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+  private final ByteBuffer buffer;
   private final ByteArrayOutputStream bodyBytesRead = new ByteArrayOutputStream();
   private final WritableByteChannel bodyBytesChannel = Channels.newChannel(bodyBytesRead);
 
   RequestBodyTestReader(UploadDataProvider providerUnderTest) {
+    this(providerUnderTest, DEFAULT_BUFFER_SIZE);
+  }
+
+  RequestBodyTestReader(UploadDataProvider providerUnderTest, int bufferSize) {
     this.providerUnderTest = providerUnderTest;
+    this.buffer = ByteBuffer.allocateDirect(bufferSize);
   }
 
   RequestBodyTestReader readAll() throws Exception {
@@ -47,6 +54,15 @@ final class RequestBodyTestReader {
     return this;
   }
 
+  /** Rewinds the provider and discards the body bytes read so far. */
+  RequestBodyTestReader rewind() throws Exception {
+    TestReadDataSink sink = new TestReadDataSink();
+    providerUnderTest.rewind(sink);
+    sink.waitForResult();
+    bodyBytesRead.reset();
+    return this;
+  }
+
   byte[] getBody() {
     return bodyBytesRead.toByteArray();
   }
@@ -104,13 +120,12 @@ final class RequestBodyTestReader {
 
     @Override
     public void onRewindSucceeded() {
-      throw new UnsupportedOperationException();
-
+      result.set(false);
     }
 
     @Override
     public void onRewindError(Exception e) {
-      throw new UnsupportedOperationException();
+      result.setException(e);
     }
   }
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestAndOkHttpResponse;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestFactory;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.ResponseSupplier;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+import org.chromium.net.UrlRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RequestCoalescerTest {
+  private static final String URL = "https://example.com/config";
+  private static final String BODY = Strings.repeat("Shared body content. ", 2000);
+  private static final int READ_TIMEOUT_MILLIS = 10_000;
+
+  private final RequestCoalescer underTest = new RequestCoalescer();
+  private final List<FakeFlight> flights = new ArrayList<>();
+
+  @Test
+  public void testIdenticalRequests_shareCronetRequest() throws Exception {
+    CronetRequestAndOkHttpResponse first = convert(newRequest());
+    CronetRequestAndOkHttpResponse second = convert(newRequest());
+    first.getRequest().start();
+    second.getRequest().start();
+    ListenableFuture<Response> secondResponse = second.getResponseAsync();
+
+    assertThat(flights).hasSize(1);
+    assertThat(flights.get(0).urlRequest.startCount).isEqualTo(1);
+
+    flights.get(0).completeResponse();
+
+    assertThat(first.getResponse().body().string()).isEqualTo(BODY);
+    assertThat(secondResponse.get().body().string()).isEqualTo(BODY);
+    assertThat(flights.get(0).urlRequest.canceled).isFalse();
+  }
+
+  @Test
+  public void testDifferentHeaders_notCoalesced() throws Exception {
+    convert(newRequest());
+    convert(newRequest().newBuilder().header("Accept-Language", "cs").build());
+
+    assertThat(flights).hasSize(2);
+  }
+
+  @Test
+  public void testCancelingOneParticipant_othersUnaffected() throws Exception {
+    CronetRequestAndOkHttpResponse first = convert(newRequest());
+    CronetRequestAndOkHttpResponse second = convert(newRequest());
+    first.getRequest().start();
+    second.getRequest().start();
+
+    first.getRequest().cancel();
+    flights.get(0).completeResponse();
+
+    assertThrows(IOException.class, first::getResponse);
+    assertThat(second.getResponse().body().string()).isEqualTo(BODY);
+    assertThat(flights.get(0).urlRequest.canceled).isFalse();
+  }
+
+  @Test
+  public void testCancelingAllParticipants_cancelsCronetRequest() throws Exception {
+    CronetRequestAndOkHttpResponse first = convert(newRequest());
+    CronetRequestAndOkHttpResponse second = convert(newRequest());
+    first.getRequest().start();
+    second.getRequest().start();
+
+    first.getRequest().cancel();
+    second.getRequest().cancel();
+
+    assertThat(flights.get(0).urlRequest.canceled).isTrue();
+  }
+
+  @Test
+  public void testLatecomer_afterBodyReadStarted_getsOwnRequest() throws Exception {
+    CronetRequestAndOkHttpResponse first = convert(newRequest());
+    first.getRequest().start();
+    flights.get(0).completeResponse();
+    BufferedSource firstBody = first.getResponse().body().source();
+    firstBody.readByte();
+
+    convert(newRequest());
+
+    assertThat(flights).hasSize(2);
+  }
+
+  @Test
+  public void testDifferentReadTimeouts_notCoalesced() throws Exception {
+    convert(newRequest());
+    underTest.convert(newRequest(), READ_TIMEOUT_MILLIS * 2, this::createFlight);
+
+    assertThat(flights).hasSize(2);
+  }
+
+  @Test
+  public void testCallWithDeadline_notCoalescable() {
+    assertThat(RequestCoalescer.isCoalescable(newRequest(), Deadline.NONE)).isTrue();
+    assertThat(RequestCoalescer.isCoalescable(newRequest(), Deadline.after(SECONDS.toNanos(10))))
+        .isFalse();
+  }
+
+  @Test
+  public void testFactoryThrowsRuntimeException_waitingParticipantFails() throws Exception {
+    CountDownLatch factoryEntered = new CountDownLatch(1);
+    CountDownLatch factoryReleased = new CountDownLatch(1);
+    AtomicInteger factoryCalls = new AtomicInteger();
+    CronetRequestFactory failingFactory =
+        request -> {
+          factoryCalls.incrementAndGet();
+          factoryEntered.countDown();
+          Uninterruptibles.awaitUninterruptibly(factoryReleased);
+          throw new IllegalStateException("The engine is shut down");
+        };
+    Callable<CronetRequestAndOkHttpResponse> convert =
+        () -> underTest.convert(newRequest(), READ_TIMEOUT_MILLIS, failingFactory);
+    FutureTask<CronetRequestAndOkHttpResponse> first = new FutureTask<>(convert);
+    FutureTask<CronetRequestAndOkHttpResponse> second = new FutureTask<>(convert);
+    new Thread(first).start();
+    factoryEntered.await();
+    Thread secondThread = new Thread(second);
+    secondThread.start();
+    // Joined the flight and waiting for the first participant to create the shared request.
+    while (secondThread.getState() != Thread.State.BLOCKED) {
+      Thread.sleep(1);
+    }
+
+    factoryReleased.countDown();
+
+    ExecutionException firstFailure = assertThrows(ExecutionException.class, first::get);
+    assertThat(firstFailure).hasCauseThat().isInstanceOf(IllegalStateException.class);
+    ExecutionException secondFailure = assertThrows(ExecutionException.class, second::get);
+    assertThat(secondFailure).hasCauseThat().isInstanceOf(IOException.class);
+    assertThat(secondFailure.getCause()).hasCauseThat().isInstanceOf(IllegalStateException.class);
+    assertThat(factoryCalls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLaggingParticipant_detachedOnceTooFarBehind() throws Exception {
+    CronetRequestAndOkHttpResponse fast = convert(newRequest());
+    CronetRequestAndOkHttpResponse slow = convert(newRequest());
+    fast.getRequest().start();
+    slow.getRequest().start();
+    long bodySize = 2 * RequestCoalescer.MAX_BUFFERED_BYTES;
+    Buffer body = new Buffer().write(new byte[(int) bodySize]);
+    flights.get(0).completeResponse(ResponseBody.create(null, bodySize, body));
+    BufferedSource slowBody = slow.getResponse().body().source();
+
+    assertThat(fast.getResponse().body().bytes().length).isEqualTo((int) bodySize);
+
+    IOException e = assertThrows(IOException.class, slowBody::readByte);
+    assertThat(e).hasMessageThat().contains("Fell too far behind");
+    assertThat(flights.get(0).urlRequest.canceled).isFalse();
+  }
+
+  @Test
+  public void testUpstreamReadInProgress_bufferedBytesStillServed() throws Exception {
+    CountDownLatch upstreamBlocked = new CountDownLatch(1);
+    CountDownLatch upstreamReleased = new CountDownLatch(1);
+    Source upstream =
+        new ForwardingSource(new Buffer().writeUtf8("Hello")) {
+          @Override
+          public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read == -1) {
+              upstreamBlocked.countDown();
+              Uninterruptibles.awaitUninterruptibly(upstreamReleased);
+            }
+            return read;
+          }
+        };
+    CronetRequestAndOkHttpResponse first = convert(newRequest());
+    CronetRequestAndOkHttpResponse second = convert(newRequest());
+    first.getRequest().start();
+    second.getRequest().start();
+    flights.get(0).completeResponse(ResponseBody.create(null, -1, Okio.buffer(upstream)));
+    BufferedSource firstBody = first.getResponse().body().source();
+    BufferedSource secondBody = second.getResponse().body().source();
+    assertThat(firstBody.readUtf8(5)).isEqualTo("Hello");
+
+    FutureTask<Boolean> firstExhausted = new FutureTask<>(firstBody::exhausted);
+    new Thread(firstExhausted).start();
+    upstreamBlocked.await();
+    FutureTask<String> secondRead = new FutureTask<>(() -> secondBody.readUtf8(5));
+    new Thread(secondRead).start();
+
+    try {
+      assertThat(secondRead.get(5, SECONDS)).isEqualTo("Hello");
+    } finally {
+      upstreamReleased.countDown();
+    }
+    assertThat(firstExhausted.get(5, SECONDS)).isTrue();
+    assertThat(secondBody.exhausted()).isTrue();
+  }
+
+  private CronetRequestAndOkHttpResponse convert(Request request) throws IOException {
+    return underTest.convert(request, READ_TIMEOUT_MILLIS, this::createFlight);
+  }
+
+  private static Request newRequest() {
+    return new Request.Builder().url(URL).build();
+  }
+
+  private CronetRequestAndOkHttpResponse createFlight(Request request) {
+    FakeFlight flight = new FakeFlight(request);
+    flights.add(flight);
+    return new CronetRequestAndOkHttpResponse(flight.urlRequest, flight);
+  }
+
+  private static class FakeFlight implements ResponseSupplier {
+    private final Request request;
+    private final FakeUrlRequest urlRequest = new FakeUrlRequest();
+    private final SettableFuture<Response> response = SettableFuture.create();
+
+    private FakeFlight(Request request) {
+      this.request = request;
+    }
+
+    void completeResponse() {
+      completeResponse(ResponseBody.create(MediaType.parse("text/plain"), BODY));
+    }
+
+    void completeResponse(ResponseBody body) {
+      response.set(
+          new Response.Builder()
+              .request(request)
+              .protocol(Protocol.HTTP_2)
+              .code(200)
+              .message("OK")
+              .body(body)
+              .build());
+    }
+
+    @Override
+    public Response getResponse() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<Response> getResponseFuture() {
+      return response;
+    }
+  }
+
+  private static class FakeUrlRequest extends UrlRequest {
+    private int startCount;
+    private boolean canceled;
+
+    @Override
+    public void start() {
+      startCount++;
+    }
+
+    @Override
+    public void followRedirect() {}
+
+    @Override
+    public void read(ByteBuffer buffer) {}
+
+    @Override
+    public void cancel() {
+      canceled = true;
+    }
+
+    @Override
+    public boolean isDone() {
+      return false;
+    }
+
+    @Override
+    public void getStatus(StatusListener listener) {}
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestAndOkHttpResponse;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.ResponseSupplier;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.chromium.net.UrlRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RequestHedgerTest {
+  private static final String URL = "https://example.com/";
+  private static final long TICK_MILLIS = 10;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final TimingWheel timingWheel =
+      new TimingWheel(ticker, TICK_MILLIS, 64, /* workerThreadFactory= */ null);
+  private final List<FakeAttempt> attempts = new ArrayList<>();
+  private Executor executor = MoreExecutors.directExecutor();
+
+  @Test
+  public void testSlowRequest_hedgeWins() throws Exception {
+    RequestHedger underTest = createHedger(HedgingPolicy.newBuilder().setFixedDelayMillis(100));
+    fillBudget(underTest);
+    CronetRequestAndOkHttpResponse hedged = underTest.convert(newRequest(), this::createAttempt);
+    hedged.getRequest().start();
+
+    advanceMillis(90);
+    assertThat(attempts).hasSize(1);
+
+    advanceMillis(10);
+    assertThat(attempts).hasSize(2);
+    assertThat(attempts.get(1).urlRequest.started).isTrue();
+
+    attempts.get(1).completeResponse();
+
+    assertThat(hedged.getResponse().body().string()).isEqualTo("hedge");
+    assertThat(attempts.get(0).urlRequest.canceled).isTrue();
+  }
+
+  @Test
+  public void testFastRequest_notHedged() throws Exception {
+    RequestHedger underTest = createHedger(HedgingPolicy.newBuilder().setFixedDelayMillis(100));
+    fillBudget(underTest);
+    CronetRequestAndOkHttpResponse hedged = underTest.convert(newRequest(), this::createAttempt);
+    hedged.getRequest().start();
+
+    attempts.get(0).completeResponse();
+    advanceMillis(200);
+
+    assertThat(attempts).hasSize(1);
+    assertThat(hedged.getResponse().body().string()).isEqualTo("primary");
+  }
+
+  @Test
+  public void testBothFail_firstFailureReported() throws Exception {
+    RequestHedger underTest = createHedger(HedgingPolicy.newBuilder().setFixedDelayMillis(100));
+    fillBudget(underTest);
+    CronetRequestAndOkHttpResponse hedged = underTest.convert(newRequest(), this::createAttempt);
+    hedged.getRequest().start();
+    advanceMillis(100);
+
+    attempts.get(0).response.setException(new IOException("primary"));
+    assertThat(hedged.getResponseAsync().isDone()).isFalse();
+    attempts.get(1).response.setException(new IOException("hedge"));
+
+    IOException e = assertThrows(IOException.class, hedged::getResponse);
+    assertThat(e).hasMessageThat().isEqualTo("primary");
+  }
+
+  @Test
+  public void testBudgetExhausted_notHedged() throws Exception {
+    RequestHedger underTest =
+        createHedger(
+            HedgingPolicy.newBuilder().setFixedDelayMillis(100).setMaxHedgedFraction(0.5));
+
+    // Three requests only make up for one and a half hedges.
+    underTest.convert(newRequest(), this::createAttempt).getRequest().start();
+    underTest.convert(newRequest(), this::createAttempt).getRequest().start();
+    CronetRequestAndOkHttpResponse third = underTest.convert(newRequest(), this::createAttempt);
+    third.getRequest().start();
+    advanceMillis(100);
+
+    assertThat(attempts).hasSize(4);
+  }
+
+  @Test
+  public void testAdaptiveDelay_followsTimeToFirstByte() throws Exception {
+    RequestHedger underTest =
+        createHedger(HedgingPolicy.newBuilder().setInitialDelayMillis(1000));
+    assertThat(underTest.currentDelayMillis()).isEqualTo(1000);
+
+    for (int i = 1; i <= 20; i++) {
+      CronetRequestAndOkHttpResponse hedged = underTest.convert(newRequest(), this::createAttempt);
+      hedged.getRequest().start();
+      ticker.advanceMillis(i * 10);
+      attempts.get(attempts.size() - 1).completeResponse();
+    }
+
+    // The 95th percentile of 10, 20, ..., 200 ms.
+    assertThat(underTest.currentDelayMillis()).isEqualTo(190);
+  }
+
+  @Test
+  public void testCancel_cancelsBothRequests() throws Exception {
+    RequestHedger underTest = createHedger(HedgingPolicy.newBuilder().setFixedDelayMillis(100));
+    fillBudget(underTest);
+    CronetRequestAndOkHttpResponse hedged = underTest.convert(newRequest(), this::createAttempt);
+    hedged.getRequest().start();
+    advanceMillis(100);
+
+    hedged.getRequest().cancel();
+
+    assertThat(attempts.get(0).urlRequest.canceled).isTrue();
+    assertThat(attempts.get(1).urlRequest.canceled).isTrue();
+  }
+
+  @Test
+  public void testHedgeFactoryThrows_budgetRefunded() throws Exception {
+    RequestHedger underTest =
+        createHedger(
+            HedgingPolicy.newBuilder().setFixedDelayMillis(100).setMaxHedgedFraction(0.5));
+    // Two requests afford a single hedge.
+    underTest.convert(newRequest(), this::createAttempt);
+    attempts.clear();
+    CronetRequestAndOkHttpResponse first =
+        underTest.convert(
+            newRequest(),
+            request -> {
+              if (!attempts.isEmpty()) {
+                throw new IllegalStateException("The engine is shut down");
+              }
+              return createAttempt(request);
+            });
+    first.getRequest().start();
+    advanceMillis(100);
+    assertThat(attempts).hasSize(1);
+    assertThat(first.getResponseAsync().isDone()).isFalse();
+
+    CronetRequestAndOkHttpResponse second = underTest.convert(newRequest(), this::createAttempt);
+    second.getRequest().start();
+    advanceMillis(100);
+
+    assertThat(attempts).hasSize(3);
+    assertThat(attempts.get(2).urlRequest.started).isTrue();
+  }
+
+  @Test
+  public void testHedgeFailsToStart_budgetRefundedAndPrimaryFailureReported() throws Exception {
+    RequestHedger underTest =
+        createHedger(
+            HedgingPolicy.newBuilder().setFixedDelayMillis(100).setMaxHedgedFraction(0.5));
+    // Two requests afford a single hedge.
+    underTest.convert(newRequest(), this::createAttempt);
+    attempts.clear();
+    CronetRequestAndOkHttpResponse first =
+        underTest.convert(
+            newRequest(),
+            request -> {
+              CronetRequestAndOkHttpResponse attempt = createAttempt(request);
+              if (attempts.size() == 2) {
+                attempts.get(1).urlRequest.startFailure =
+                    new IllegalStateException("The engine is shut down");
+              }
+              return attempt;
+            });
+    first.getRequest().start();
+    advanceMillis(100);
+
+    assertThat(attempts).hasSize(2);
+    assertThat(attempts.get(1).discarded).isTrue();
+    // Only the primary request is in flight, its failure fails the call.
+    attempts.get(0).response.setException(new IOException("Connection reset"));
+    IOException e = assertThrows(IOException.class, first::getResponse);
+    assertThat(e).hasMessageThat().isEqualTo("Connection reset");
+
+    CronetRequestAndOkHttpResponse second = underTest.convert(newRequest(), this::createAttempt);
+    second.getRequest().start();
+    advanceMillis(100);
+
+    assertThat(attempts).hasSize(4);
+    assertThat(attempts.get(3).urlRequest.started).isTrue();
+  }
+
+  @Test
+  public void testExecutorRejectsHedge_primaryStillInFlight() throws Exception {
+    executor =
+        command -> {
+          throw new RejectedExecutionException("Shut down");
+        };
+    RequestHedger underTest = createHedger(HedgingPolicy.newBuilder().setFixedDelayMillis(100));
+    fillBudget(underTest);
+    CronetRequestAndOkHttpResponse hedged = underTest.convert(newRequest(), this::createAttempt);
+    hedged.getRequest().start();
+
+    advanceMillis(100);
+    assertThat(attempts).hasSize(1);
+
+    attempts.get(0).completeResponse();
+    assertThat(hedged.getResponse().body().string()).isEqualTo("primary");
+  }
+
+  @Test
+  public void testHedge_createdOnExecutor() throws Exception {
+    List<Runnable> tasks = new ArrayList<>();
+    executor = tasks::add;
+    RequestHedger underTest = createHedger(HedgingPolicy.newBuilder().setFixedDelayMillis(100));
+    fillBudget(underTest);
+    CronetRequestAndOkHttpResponse hedged = underTest.convert(newRequest(), this::createAttempt);
+    hedged.getRequest().start();
+
+    advanceMillis(100);
+    assertThat(attempts).hasSize(1);
+    assertThat(tasks).hasSize(1);
+
+    tasks.get(0).run();
+    assertThat(attempts).hasSize(2);
+    assertThat(attempts.get(1).urlRequest.started).isTrue();
+  }
+
+  private RequestHedger createHedger(HedgingPolicy.Builder policy) {
+    return new RequestHedger(policy.build(), timingWheel, executor, ticker);
+  }
+
+  /** Converts enough requests to afford a hedge, without starting them. */
+  private void fillBudget(RequestHedger underTest) throws IOException {
+    for (int i = 0; i < 20; i++) {
+      underTest.convert(newRequest(), this::createAttempt);
+    }
+    attempts.clear();
+  }
+
+  private void advanceMillis(long millis) {
+    ticker.advanceMillis(millis);
+    timingWheel.expireTimeouts();
+  }
+
+  private static Request newRequest() {
+    return new Request.Builder().url(URL).build();
+  }
+
+  private CronetRequestAndOkHttpResponse createAttempt(Request request) {
+    FakeAttempt attempt = new FakeAttempt(request, attempts.isEmpty() ? "primary" : "hedge");
+    attempts.add(attempt);
+    return new CronetRequestAndOkHttpResponse(
+        attempt.urlRequest, attempt, () -> attempt.discarded = true);
+  }
+
+  private static class FakeAttempt implements ResponseSupplier {
+    private final Request request;
+    private final String body;
+    private final FakeUrlRequest urlRequest = new FakeUrlRequest();
+    private final SettableFuture<Response> response = SettableFuture.create();
+    private boolean discarded;
+
+    private FakeAttempt(Request request, String body) {
+      this.request = request;
+      this.body = body;
+    }
+
+    void completeResponse() {
+      response.set(
+          new Response.Builder()
+              .request(request)
+              .protocol(Protocol.HTTP_2)
+              .code(200)
+              .message("OK")
+              .body(ResponseBody.create(MediaType.parse("text/plain"), body))
+              .build());
+    }
+
+    @Override
+    public Response getResponse() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<Response> getResponseFuture() {
+      return response;
+    }
+  }
+
+  private static class FakeUrlRequest extends UrlRequest {
+    private boolean started;
+    private boolean canceled;
+    private RuntimeException startFailure;
+
+    @Override
+    public void start() {
+      if (startFailure != null) {
+        throw startFailure;
+      }
+      started = true;
+    }
+
+    @Override
+    public void followRedirect() {}
+
+    @Override
+    public void read(ByteBuffer buffer) {}
+
+    @Override
+    public void cancel() {
+      canceled = true;
+    }
+
+    @Override
+    public boolean isDone() {
+      return false;
+    }
+
+    @Override
+    public void getStatus(StatusListener listener) {}
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
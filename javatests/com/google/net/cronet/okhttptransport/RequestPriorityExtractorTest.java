@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import okhttp3.Request;
+import org.chromium.net.UrlRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RequestPriorityExtractorTest {
+  private static final String URL = "https://example.com/";
+  private static final String HEADER_NAME = "X-Priority";
+
+  @Test
+  public void testFromTag() {
+    RequestPriorityExtractor underTest = RequestPriorityExtractor.fromTag();
+
+    Request tagged =
+        new Request.Builder()
+            .url(URL)
+            .tag(CronetRequestPriority.class, CronetRequestPriority.HIGHEST)
+            .build();
+
+    assertThat(underTest.priorityOf(tagged).cronetPriority())
+        .isEqualTo(UrlRequest.Builder.REQUEST_PRIORITY_HIGHEST);
+    assertThat(underTest.priorityOf(new Request.Builder().url(URL).build()))
+        .isEqualTo(CronetRequestPriority.MEDIUM);
+    assertThat(underTest.strippedHeaderName()).isNull();
+  }
+
+  @Test
+  public void testFromHeader() {
+    RequestPriorityExtractor underTest = RequestPriorityExtractor.fromHeader(HEADER_NAME);
+
+    assertThat(underTest.priorityOf(withHeader("highest")).cronetPriority())
+        .isEqualTo(UrlRequest.Builder.REQUEST_PRIORITY_HIGHEST);
+    assertThat(underTest.priorityOf(withHeader(" IDLE ")).cronetPriority())
+        .isEqualTo(UrlRequest.Builder.REQUEST_PRIORITY_IDLE);
+    assertThat(underTest.priorityOf(withHeader("Low")))
+        .isEqualTo(CronetRequestPriority.LOW);
+    assertThat(underTest.strippedHeaderName()).isEqualTo(HEADER_NAME);
+  }
+
+  @Test
+  public void testFromHeader_unknownValue_fallsBackToTag() {
+    RequestPriorityExtractor underTest = RequestPriorityExtractor.fromHeader(HEADER_NAME);
+
+    Request request =
+        withHeader("urgent")
+            .newBuilder()
+            .tag(CronetRequestPriority.class, CronetRequestPriority.LOWEST)
+            .build();
+
+    assertThat(underTest.extract(request)).isNull();
+    assertThat(underTest.priorityOf(request)).isEqualTo(CronetRequestPriority.LOWEST);
+  }
+
+  @Test
+  public void testMissingPriority_backgroundDefault() {
+    RequestPriorityExtractor underTest = RequestPriorityExtractor.fromHeader(HEADER_NAME);
+
+    Request request =
+        new Request.Builder()
+            .url(URL)
+            .tag(CronetTrafficClass.class, CronetTrafficClass.BACKGROUND)
+            .build();
+
+    assertThat(underTest.priorityOf(request)).isEqualTo(CronetRequestPriority.LOWEST);
+  }
+
+  private static Request withHeader(String value) {
+    return new Request.Builder().url(URL).header(HEADER_NAME, value).build();
+  }
+}
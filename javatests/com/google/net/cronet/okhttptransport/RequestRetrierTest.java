@@ -0,0 +1,308 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.CronetRequestAndOkHttpResponse;
+import com.google.net.cronet.okhttptransport.RequestResponseConverter.ResponseSupplier;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.chromium.net.NetworkException;
+import org.chromium.net.UrlRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RequestRetrierTest {
+  private static final String URL = "https://example.com/";
+  private static final long TICK_MILLIS = 10;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final TimingWheel timingWheel =
+      new TimingWheel(ticker, TICK_MILLIS, 64, /* workerThreadFactory= */ null);
+  private final List<FakeAttempt> attempts = new ArrayList<>();
+  private CronetRequestAndOkHttpResponse retried;
+  private final RequestRetrier underTest =
+      new RequestRetrier(
+          RetryPolicy.newBuilder().setMaxRetries(2).setInitialBackoffMillis(100).build(),
+          timingWheel,
+          new Random(0));
+
+  @Test
+  public void testIsRetryable() {
+    assertThat(RequestRetrier.isRetryable(newRequest())).isTrue();
+    assertThat(
+            RequestRetrier.isRetryable(
+                newRequest().newBuilder().post(RequestBody.create(null, "body")).build()))
+        .isFalse();
+    assertThat(
+            RequestRetrier.isRetryable(
+                newRequest().newBuilder().put(RequestBody.create(null, "body")).build()))
+        .isFalse();
+  }
+
+  @Test
+  public void testTransientFailure_retriedAfterBackoff() throws Exception {
+    CronetRequestAndOkHttpResponse retried =
+        underTest.convert(newRequest(), Deadline.NONE, this::createAttempt);
+    retried.getRequest().start();
+
+    attempts.get(0).response.setException(networkException(/* retryable= */ true));
+    assertThat(attempts).hasSize(1);
+
+    // The first backoff is between 50 and 100 ms.
+    advanceMillis(100);
+    assertThat(attempts).hasSize(2);
+    assertThat(attempts.get(1).urlRequest.started).isTrue();
+
+    attempts.get(1).completeResponse();
+
+    assertThat(retried.getResponse().code()).isEqualTo(200);
+  }
+
+  @Test
+  public void testPermanentFailure_notRetried() throws Exception {
+    CronetRequestAndOkHttpResponse retried =
+        underTest.convert(newRequest(), Deadline.NONE, this::createAttempt);
+    retried.getRequest().start();
+
+    attempts.get(0).response.setException(networkException(/* retryable= */ false));
+    advanceMillis(1000);
+
+    assertThat(attempts).hasSize(1);
+    assertThrows(NetworkException.class, retried::getResponse);
+  }
+
+  @Test
+  public void testRetriesExhausted_lastFailureReported() throws Exception {
+    CronetRequestAndOkHttpResponse retried =
+        underTest.convert(newRequest(), Deadline.NONE, this::createAttempt);
+    retried.getRequest().start();
+
+    for (int i = 0; i < 3; i++) {
+      attempts.get(i).response.setException(networkException(/* retryable= */ true));
+      advanceMillis(1000);
+    }
+
+    assertThat(attempts).hasSize(3);
+    assertThrows(NetworkException.class, retried::getResponse);
+  }
+
+  @Test
+  public void testDeadline_capsRetries() throws Exception {
+    Deadline deadline = Deadline.after(ticker, MILLISECONDS.toNanos(40));
+    CronetRequestAndOkHttpResponse retried =
+        underTest.convert(newRequest(), deadline, this::createAttempt);
+    retried.getRequest().start();
+
+    attempts.get(0).response.setException(networkException(/* retryable= */ true));
+    advanceMillis(1000);
+
+    assertThat(attempts).hasSize(1);
+    assertThrows(NetworkException.class, retried::getResponse);
+  }
+
+  @Test
+  public void testCancelDuringBackoff_failsWithoutRetry() throws Exception {
+    CronetRequestAndOkHttpResponse retried =
+        underTest.convert(newRequest(), Deadline.NONE, this::createAttempt);
+    retried.getRequest().start();
+    attempts.get(0).response.setException(networkException(/* retryable= */ true));
+
+    retried.getRequest().cancel();
+    advanceMillis(1000);
+
+    assertThat(attempts).hasSize(1);
+    IOException e = assertThrows(IOException.class, retried::getResponse);
+    assertThat(e).hasMessageThat().contains("canceled");
+  }
+
+  @Test
+  public void testRetryFailsToStart_failureReported() throws Exception {
+    CronetRequestAndOkHttpResponse retried =
+        underTest.convert(
+            newRequest(),
+            Deadline.NONE,
+            request -> {
+              CronetRequestAndOkHttpResponse attempt = createAttempt(request);
+              if (attempts.size() == 2) {
+                attempts.get(1).urlRequest.startFailure =
+                    new IllegalStateException("The engine is shut down");
+              }
+              return attempt;
+            });
+    retried.getRequest().start();
+    attempts.get(0).response.setException(networkException(/* retryable= */ true));
+
+    advanceMillis(100);
+
+    assertThat(attempts).hasSize(2);
+    IOException e = assertThrows(IOException.class, retried::getResponse);
+    assertThat(e).hasCauseThat().isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void testCanceledWhileRetryCreated_retryDiscarded() throws Exception {
+    retried =
+        underTest.convert(
+            newRequest(),
+            Deadline.NONE,
+            request -> {
+              CronetRequestAndOkHttpResponse attempt = createAttempt(request);
+              if (attempts.size() == 2) {
+                retried.getRequest().cancel();
+              }
+              return attempt;
+            });
+    retried.getRequest().start();
+    attempts.get(0).response.setException(networkException(/* retryable= */ true));
+
+    advanceMillis(100);
+
+    assertThat(attempts).hasSize(2);
+    assertThat(attempts.get(1).urlRequest.started).isFalse();
+    assertThat(attempts.get(1).discarded).isTrue();
+    assertThrows(IOException.class, retried::getResponse);
+  }
+
+  private void advanceMillis(long millis) {
+    ticker.advanceMillis(millis);
+    timingWheel.expireTimeouts();
+  }
+
+  private static Request newRequest() {
+    return new Request.Builder().url(URL).build();
+  }
+
+  private static NetworkException networkException(boolean retryable) {
+    return new NetworkException("Network changed", null) {
+      @Override
+      public int getErrorCode() {
+        return retryable ? ERROR_NETWORK_CHANGED : ERROR_CONNECTION_REFUSED;
+      }
+
+      @Override
+      public int getCronetInternalErrorCode() {
+        return 0;
+      }
+
+      @Override
+      public boolean immediatelyRetryable() {
+        return retryable;
+      }
+    };
+  }
+
+  private CronetRequestAndOkHttpResponse createAttempt(Request request) {
+    FakeAttempt attempt = new FakeAttempt(request);
+    attempts.add(attempt);
+    return new CronetRequestAndOkHttpResponse(
+        attempt.urlRequest, attempt, () -> attempt.discarded = true);
+  }
+
+  private static class FakeAttempt implements ResponseSupplier {
+    private final Request request;
+    private final FakeUrlRequest urlRequest = new FakeUrlRequest();
+    private final SettableFuture<Response> response = SettableFuture.create();
+    private boolean discarded;
+
+    private FakeAttempt(Request request) {
+      this.request = request;
+    }
+
+    void completeResponse() {
+      response.set(
+          new Response.Builder()
+              .request(request)
+              .protocol(Protocol.HTTP_2)
+              .code(200)
+              .message("OK")
+              .body(ResponseBody.create(MediaType.parse("text/plain"), "body"))
+              .build());
+    }
+
+    @Override
+    public Response getResponse() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<Response> getResponseFuture() {
+      return response;
+    }
+  }
+
+  private static class FakeUrlRequest extends UrlRequest {
+    private boolean started;
+    private RuntimeException startFailure;
+
+    @Override
+    public void start() {
+      if (startFailure != null) {
+        throw startFailure;
+      }
+      started = true;
+    }
+
+    @Override
+    public void followRedirect() {}
+
+    @Override
+    public void read(ByteBuffer buffer) {}
+
+    @Override
+    public void cancel() {}
+
+    @Override
+    public boolean isDone() {
+      return false;
+    }
+
+    @Override
+    public void getStatus(StatusListener listener) {}
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.chromium.net.UploadDataProvider;
+import org.chromium.net.UploadDataSink;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RequestThrottleTest {
+
+  private static final int BYTES_PER_SECOND = 100 * 1024;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final TokenBucket looseBucket = new TokenBucket(BYTES_PER_SECOND, ticker);
+  private final TokenBucket strictBucket = new TokenBucket(BYTES_PER_SECOND, ticker);
+  private final RequestThrottle underTest =
+      new RequestThrottle(ImmutableList.of(looseBucket, strictBucket));
+  private final TimingWheel timingWheel =
+      new TimingWheel(ticker, /* tickMillis= */ 10, /* bucketCount= */ 8, null);
+  private final List<Runnable> executedTasks = new ArrayList<>();
+  private final Executor executor = executedTasks::add;
+
+  @Test
+  public void testAcquire_grantsStrictestBucket() throws Exception {
+    strictBucket.tryAcquire(BYTES_PER_SECOND - 16 * 1024);
+
+    assertThat(underTest.acquire(32 * 1024)).isEqualTo(16 * 1024);
+    // The looser bucket got back what the strict one didn't allow.
+    assertThat(looseBucket.tryAcquire(BYTES_PER_SECOND))
+        .isEqualTo(BYTES_PER_SECOND - 16 * 1024);
+  }
+
+  @Test
+  public void testTryAcquire_oneBucketEmpty_takesNothing() {
+    strictBucket.tryAcquire(BYTES_PER_SECOND);
+
+    assertThat(underTest.tryAcquire(32 * 1024)).isEqualTo(0);
+    assertThat(looseBucket.tryAcquire(BYTES_PER_SECOND)).isEqualTo(BYTES_PER_SECOND);
+  }
+
+  @Test
+  public void testNanosUntilAvailable_waitsForSlowestBucket() {
+    strictBucket.tryAcquire(BYTES_PER_SECOND);
+
+    assertThat(underTest.nanosUntilAvailable(32 * 1024))
+        .isEqualTo(strictBucket.nanosUntilAvailable(32 * 1024));
+    assertThat(underTest.nanosUntilAvailable(32 * 1024)).isGreaterThan(0L);
+    assertThat(looseBucket.nanosUntilAvailable(32 * 1024)).isEqualTo(0);
+  }
+
+  @Test
+  public void testThrottle_unlimited_returnsProvider() {
+    FakeUploadDataProvider provider = new FakeUploadDataProvider();
+
+    assertThat(RequestThrottle.UNLIMITED.throttle(provider, executor, timingWheel))
+        .isSameInstanceAs(provider);
+  }
+
+  @Test
+  public void testUpload_readLimitedToGrant() throws Exception {
+    strictBucket.tryAcquire(BYTES_PER_SECOND - 16 * 1024);
+    FakeUploadDataProvider provider = new FakeUploadDataProvider();
+    provider.bytesPerRead = 10 * 1024;
+    ByteBuffer buffer = ByteBuffer.allocate(32 * 1024);
+    RecordingUploadDataSink sink = new RecordingUploadDataSink();
+
+    underTest.throttle(provider, executor, timingWheel).read(sink, buffer);
+
+    assertThat(provider.remainingOnRead).containsExactly(16 * 1024);
+    assertThat(sink.succeeded).isEqualTo(1);
+    assertThat(buffer.position()).isEqualTo(10 * 1024);
+    assertThat(buffer.limit()).isEqualTo(32 * 1024);
+    // The unused part of the grant is returned.
+    assertThat(strictBucket.tryAcquire(BYTES_PER_SECOND)).isEqualTo(6 * 1024);
+  }
+
+  @Test
+  public void testUpload_noBudget_readDeferredWithoutBlocking() throws Exception {
+    strictBucket.tryAcquire(BYTES_PER_SECOND);
+    FakeUploadDataProvider provider = new FakeUploadDataProvider();
+    ByteBuffer buffer = ByteBuffer.allocate(32 * 1024);
+    RecordingUploadDataSink sink = new RecordingUploadDataSink();
+
+    underTest.throttle(provider, executor, timingWheel).read(sink, buffer);
+
+    assertThat(provider.remainingOnRead).isEmpty();
+    assertThat(timingWheel.expireTimeouts()).isEqualTo(0);
+
+    ticker.advanceMillis(100);
+    assertThat(timingWheel.expireTimeouts()).isEqualTo(1);
+    // The read is resumed on the executor, not on the wheel's thread.
+    assertThat(provider.remainingOnRead).isEmpty();
+    assertThat(executedTasks).hasSize(1);
+
+    executedTasks.get(0).run();
+
+    assertThat(provider.remainingOnRead).hasSize(1);
+    assertThat(sink.succeeded).isEqualTo(1);
+    assertThat(buffer.limit()).isEqualTo(32 * 1024);
+  }
+
+  @Test
+  public void testUpload_closedWhileDeferred_delegateNotRead() throws Exception {
+    strictBucket.tryAcquire(BYTES_PER_SECOND);
+    FakeUploadDataProvider provider = new FakeUploadDataProvider();
+    UploadDataProvider throttled = underTest.throttle(provider, executor, timingWheel);
+    RecordingUploadDataSink sink = new RecordingUploadDataSink();
+
+    throttled.read(sink, ByteBuffer.allocate(32 * 1024));
+    throttled.close();
+    ticker.advanceMillis(100);
+
+    assertThat(timingWheel.expireTimeouts()).isEqualTo(0);
+    assertThat(executedTasks).isEmpty();
+    assertThat(provider.remainingOnRead).isEmpty();
+    assertThat(provider.closed).isTrue();
+  }
+
+  @Test
+  public void testUpload_executorRejectsDeferredRead_readFails() throws Exception {
+    strictBucket.tryAcquire(BYTES_PER_SECOND);
+    UploadDataProvider throttled =
+        underTest.throttle(
+            new FakeUploadDataProvider(),
+            command -> {
+              throw new RejectedExecutionException();
+            },
+            timingWheel);
+    RecordingUploadDataSink sink = new RecordingUploadDataSink();
+
+    throttled.read(sink, ByteBuffer.allocate(32 * 1024));
+    ticker.advanceMillis(100);
+    timingWheel.expireTimeouts();
+
+    assertThat(sink.readError).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  public void testUpload_delegateThrows_restoresTokensAndLimit() {
+    strictBucket.tryAcquire(BYTES_PER_SECOND - 16 * 1024);
+    FakeUploadDataProvider provider = new FakeUploadDataProvider();
+    provider.readException = new IOException("Broken body");
+    ByteBuffer buffer = ByteBuffer.allocate(32 * 1024);
+    UploadDataProvider throttled = underTest.throttle(provider, executor, timingWheel);
+
+    IOException e =
+        assertThrows(
+            IOException.class, () -> throttled.read(new RecordingUploadDataSink(), buffer));
+
+    assertThat(e).isSameInstanceAs(provider.readException);
+    assertThat(buffer.limit()).isEqualTo(32 * 1024);
+    assertThat(strictBucket.tryAcquire(BYTES_PER_SECOND)).isEqualTo(16 * 1024);
+  }
+
+  private static class FakeUploadDataProvider extends UploadDataProvider {
+    private final List<Integer> remainingOnRead = new ArrayList<>();
+    private int bytesPerRead = 1;
+    private IOException readException;
+    private boolean closed;
+
+    @Override
+    public long getLength() {
+      return -1;
+    }
+
+    @Override
+    public void read(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) throws IOException {
+      remainingOnRead.add(byteBuffer.remaining());
+      if (readException != null) {
+        throw readException;
+      }
+      byteBuffer.put(new byte[Math.min(bytesPerRead, byteBuffer.remaining())]);
+      uploadDataSink.onReadSucceeded(false);
+    }
+
+    @Override
+    public void rewind(UploadDataSink uploadDataSink) {
+      uploadDataSink.onRewindSucceeded();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private static class RecordingUploadDataSink extends UploadDataSink {
+    private int succeeded;
+    private Exception readError;
+
+    @Override
+    public void onReadSucceeded(boolean finalChunk) {
+      succeeded++;
+    }
+
+    @Override
+    public void onReadError(Exception exception) {
+      readError = exception;
+    }
+
+    @Override
+    public void onRewindSucceeded() {}
+
+    @Override
+    public void onRewindError(Exception exception) {}
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
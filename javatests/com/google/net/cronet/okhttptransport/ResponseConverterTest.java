@@ -36,6 +36,7 @@ import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okio.Buffer;
+import okio.ForwardingSource;
 import okio.Source;
 import org.chromium.net.UrlResponseInfo;
 import org.junit.Test;
@@ -177,6 +178,60 @@ public class ResponseConverterTest {
     assertThat(actualResponse.body().string()).isEqualTo(GOOGLE_COM_BODY);
   }
 
+  @Test
+  public void testTimestamps() throws Exception {
+    ListenableFuture<UrlResponseInfo> responseInfoFuture =
+        Futures.immediateFuture(new GoogleComResponseInfo());
+    ListenableFuture<Source> bodySourceFuture =
+        Futures.immediateFuture(createGoogleComBodySource());
+    mockRequestCallback =
+        new OkHttpBridgeRequestCallback(0, RedirectStrategy.defaultStrategy()) {
+          @Override
+          ListenableFuture<UrlResponseInfo> getUrlResponseInfo() {
+            return responseInfoFuture;
+          }
+
+          @Override
+          ListenableFuture<Source> getBodySource() {
+            return bodySourceFuture;
+          }
+
+          @Override
+          long getRequestSentAtMillis() {
+            return 1000;
+          }
+
+          @Override
+          long getResponseReceivedAtMillis() {
+            return 1250;
+          }
+        };
+
+    Response actualResponse = underTest.toResponse(GOOGLE_COM_REQUEST, mockRequestCallback);
+
+    assertThat(actualResponse.sentRequestAtMillis()).isEqualTo(1000);
+    assertThat(actualResponse.receivedResponseAtMillis()).isEqualTo(1250);
+  }
+
+  @Test
+  public void testBodyReceived_onlyForBufferedBodies() throws Exception {
+    Response bufferedResponse =
+        underTest.toResponse(
+            GOOGLE_COM_REQUEST,
+            createMockCallback(new GoogleComResponseInfo(), createGoogleComBodySource()));
+    Response streamedResponse =
+        underTest.toResponse(
+            GOOGLE_COM_REQUEST,
+            createMockCallback(
+                new GoogleComResponseInfo(),
+                new ForwardingSource(createGoogleComBodySource()) {}));
+
+    assertThat(ResponseConverter.isBodyReceived(bufferedResponse)).isTrue();
+    assertThat(bufferedResponse.body().string()).isEqualTo(GOOGLE_COM_BODY);
+    assertThat(ResponseConverter.isBodyReceived(streamedResponse)).isFalse();
+    assertThat(streamedResponse.body().string()).isEqualTo(GOOGLE_COM_BODY);
+  }
+
   private static Source createGoogleComBodySource() {
     Buffer sourceBuffer = new Buffer();
     sourceBuffer.writeString(GOOGLE_COM_BODY, UTF_8);
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.chromium.net.UploadDataProvider;
+import org.chromium.net.UploadDataSink;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class TimedUploadDataProviderTest {
+
+  private final TransportMetrics metrics = TransportMetrics.create();
+  private final FakeUploadDataProvider delegate = new FakeUploadDataProvider();
+  private final RecordingUploadDataSink sink = new RecordingUploadDataSink();
+  private final UploadDataProvider underTest =
+      TimedUploadDataProvider.wrap(delegate, metrics.forHost("example.com").series("h2"));
+
+  @Test
+  public void testRead_succeeded_recordsChunkWaitAndForwards() throws Exception {
+    underTest.read(sink, ByteBuffer.allocate(16));
+    underTest.read(sink, ByteBuffer.allocate(16));
+
+    assertThat(sink.readsSucceeded).isEqualTo(2);
+    assertThat(uploadChunkWaitCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testRead_failed_forwardsErrorWithoutRecording() throws Exception {
+    IOException failure = new IOException("Broken body");
+    delegate.readError = failure;
+
+    underTest.read(sink, ByteBuffer.allocate(16));
+
+    assertThat(sink.error).isSameInstanceAs(failure);
+    assertThat(uploadChunkWaitCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testRewind_forwardedWithoutRecording() throws Exception {
+    underTest.rewind(sink);
+
+    assertThat(sink.rewindsSucceeded).isEqualTo(1);
+    assertThat(uploadChunkWaitCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testLengthAndClose_delegated() throws Exception {
+    assertThat(underTest.getLength()).isEqualTo(16);
+
+    underTest.close();
+
+    assertThat(delegate.closed).isTrue();
+  }
+
+  private long uploadChunkWaitCount() {
+    TransportMetrics.SeriesSnapshot series = metrics.snapshot().series("example.com", "h2");
+    return series == null ? 0 : series.uploadChunkWaitMicros().count();
+  }
+
+  private static class FakeUploadDataProvider extends UploadDataProvider {
+    private Exception readError;
+    private boolean closed;
+
+    @Override
+    public long getLength() {
+      return 16;
+    }
+
+    @Override
+    public void read(UploadDataSink uploadDataSink, ByteBuffer byteBuffer) {
+      if (readError != null) {
+        uploadDataSink.onReadError(readError);
+        return;
+      }
+      byteBuffer.put((byte) 1);
+      uploadDataSink.onReadSucceeded(false);
+    }
+
+    @Override
+    public void rewind(UploadDataSink uploadDataSink) {
+      uploadDataSink.onRewindSucceeded();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private static class RecordingUploadDataSink extends UploadDataSink {
+    private int readsSucceeded;
+    private int rewindsSucceeded;
+    private Exception error;
+
+    @Override
+    public void onReadSucceeded(boolean finalChunk) {
+      readsSucceeded++;
+    }
+
+    @Override
+    public void onReadError(Exception exception) {
+      error = exception;
+    }
+
+    @Override
+    public void onRewindSucceeded() {
+      rewindsSucceeded++;
+    }
+
+    @Override
+    public void onRewindError(Exception exception) {
+      error = exception;
+    }
+  }
+}
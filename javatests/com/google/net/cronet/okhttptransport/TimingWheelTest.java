@@ -0,0 +1,238 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class TimingWheelTest {
+  private static final long TICK_MILLIS = 10;
+  private static final int BUCKET_COUNT = 8;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final TimingWheel underTest =
+      new TimingWheel(ticker, TICK_MILLIS, BUCKET_COUNT, /* workerThreadFactory= */ null);
+
+  @Test
+  public void testExpiresAfterDelay() {
+    CountingEntry entry = new CountingEntry();
+    underTest.schedule(entry, 25);
+
+    ticker.advanceMillis(20);
+    assertThat(underTest.expireTimeouts()).isEqualTo(0);
+
+    ticker.advanceMillis(10);
+    assertThat(underTest.expireTimeouts()).isEqualTo(1);
+    assertThat(entry.timeouts).isEqualTo(1);
+
+    ticker.advanceMillis(100);
+    assertThat(underTest.expireTimeouts()).isEqualTo(0);
+    assertThat(entry.timeouts).isEqualTo(1);
+  }
+
+  @Test
+  public void testCanceledEntryDoesNotExpire() {
+    CountingEntry entry = new CountingEntry();
+    underTest.schedule(entry, 10);
+    underTest.cancel(entry);
+
+    ticker.advanceMillis(50);
+
+    assertThat(underTest.expireTimeouts()).isEqualTo(0);
+    assertThat(entry.timeouts).isEqualTo(0);
+  }
+
+  @Test
+  public void testRescheduleReplacesDeadline() {
+    CountingEntry entry = new CountingEntry();
+    underTest.schedule(entry, 10);
+    underTest.schedule(entry, 50);
+
+    ticker.advanceMillis(20);
+    assertThat(underTest.expireTimeouts()).isEqualTo(0);
+
+    ticker.advanceMillis(30);
+    assertThat(underTest.expireTimeouts()).isEqualTo(1);
+  }
+
+  @Test
+  public void testDelayLongerThanOneRevolution() {
+    CountingEntry entry = new CountingEntry();
+    // The wheel covers 80ms per revolution.
+    underTest.schedule(entry, 200);
+
+    for (int i = 0; i < 19; i++) {
+      ticker.advanceMillis(TICK_MILLIS);
+      assertThat(underTest.expireTimeouts()).isEqualTo(0);
+    }
+
+    ticker.advanceMillis(TICK_MILLIS);
+    assertThat(underTest.expireTimeouts()).isEqualTo(1);
+  }
+
+  @Test
+  public void testWheelFallingBehind_expiresEverythingDue() {
+    CountingEntry first = new CountingEntry();
+    CountingEntry second = new CountingEntry();
+    CountingEntry notYetDue = new CountingEntry();
+    underTest.schedule(first, 10);
+    underTest.schedule(second, 70);
+    underTest.schedule(notYetDue, 1000);
+
+    ticker.advanceMillis(500);
+
+    assertThat(underTest.expireTimeouts()).isEqualTo(2);
+    assertThat(first.timeouts).isEqualTo(1);
+    assertThat(second.timeouts).isEqualTo(1);
+    assertThat(notYetDue.timeouts).isEqualTo(0);
+  }
+
+  @Test
+  public void testEntryCanBeRescheduledFromItsHandler() {
+    TimingWheel.Entry entry =
+        new CountingEntry() {
+          @Override
+          void onTimeout() {
+            super.onTimeout();
+            if (timeouts < 3) {
+              underTest.schedule(this, TICK_MILLIS);
+            }
+          }
+        };
+    underTest.schedule(entry, TICK_MILLIS);
+
+    for (int i = 0; i < 5; i++) {
+      ticker.advanceMillis(TICK_MILLIS);
+      underTest.expireTimeouts();
+    }
+
+    assertThat(((CountingEntry) entry).timeouts).isEqualTo(3);
+  }
+
+  @Test
+  public void testStop_dropsPendingEntriesAndStopsWorker() throws Exception {
+    List<Thread> workers = Collections.synchronizedList(new ArrayList<>());
+    ThreadFactory threadFactory =
+        runnable -> {
+          Thread worker = new Thread(runnable);
+          worker.setDaemon(true);
+          workers.add(worker);
+          return worker;
+        };
+    TimingWheel wheel = new TimingWheel(ticker, TICK_MILLIS, BUCKET_COUNT, threadFactory);
+    CountingEntry pending = new CountingEntry();
+    wheel.schedule(pending, 10 * TICK_MILLIS);
+
+    wheel.stop();
+    workers.get(0).join();
+    CountingEntry armedAfterStop = new CountingEntry();
+    wheel.schedule(armedAfterStop, TICK_MILLIS);
+    ticker.advanceMillis(10 * TICK_MILLIS);
+    wheel.expireTimeouts();
+
+    assertThat(workers).hasSize(1);
+    assertThat(pending.timeouts).isEqualTo(0);
+  }
+
+  @Test
+  public void testWorkerInterrupted_expiresDueEntriesAndHandsOverTheRest() throws Exception {
+    CountDownLatch tickerAdvanced = new CountDownLatch(1);
+    List<Thread> workers = Collections.synchronizedList(new ArrayList<>());
+    ThreadFactory threadFactory =
+        runnable -> {
+          boolean first = workers.isEmpty();
+          Thread worker =
+              new Thread(
+                  () -> {
+                    if (first) {
+                      // Interrupted before its first sleep, once the first entry is due.
+                      Uninterruptibles.awaitUninterruptibly(tickerAdvanced);
+                      Thread.currentThread().interrupt();
+                    }
+                    runnable.run();
+                  });
+          worker.setDaemon(true);
+          workers.add(worker);
+          return worker;
+        };
+    TimingWheel wheel = new TimingWheel(ticker, TICK_MILLIS, BUCKET_COUNT, threadFactory);
+    LatchEntry due = new LatchEntry();
+    LatchEntry later = new LatchEntry();
+    wheel.schedule(due, TICK_MILLIS);
+    wheel.schedule(later, 10 * TICK_MILLIS);
+
+    ticker.advanceMillis(TICK_MILLIS);
+    tickerAdvanced.countDown();
+
+    assertThat(due.expired.await(5, SECONDS)).isTrue();
+    assertThat(due.expiredOn).isSameInstanceAs(workers.get(0));
+    workers.get(0).join();
+    assertThat(workers).hasSize(2);
+
+    ticker.advanceMillis(10 * TICK_MILLIS);
+
+    assertThat(later.expired.await(5, SECONDS)).isTrue();
+    assertThat(later.expiredOn).isSameInstanceAs(workers.get(1));
+  }
+
+  private static class LatchEntry extends TimingWheel.Entry {
+    final CountDownLatch expired = new CountDownLatch(1);
+    volatile Thread expiredOn;
+
+    @Override
+    void onTimeout() {
+      expiredOn = Thread.currentThread();
+      expired.countDown();
+    }
+  }
+
+  private static class CountingEntry extends TimingWheel.Entry {
+    int timeouts;
+
+    @Override
+    void onTimeout() {
+      timeouts++;
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    // Also read by the worker threads.
+    private volatile long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.Ticker;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class TokenBucketTest {
+
+  private static final long BYTES_PER_SECOND = 100 * 1024;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final TokenBucket underTest = new TokenBucket(BYTES_PER_SECOND, ticker);
+
+  @Test
+  public void testFullBucket_allowsBurst() {
+    assertThat(underTest.tryAcquire(60 * 1024)).isEqualTo(60 * 1024);
+    assertThat(underTest.tryAcquire(60 * 1024)).isEqualTo(40 * 1024);
+    assertThat(underTest.tryAcquire(1)).isEqualTo(0);
+  }
+
+  @Test
+  public void testRefill_proportionalToElapsedTime() {
+    underTest.tryAcquire(BYTES_PER_SECOND);
+
+    ticker.advanceMillis(100);
+
+    assertThat(underTest.tryAcquire(BYTES_PER_SECOND)).isEqualTo(BYTES_PER_SECOND / 10);
+  }
+
+  @Test
+  public void testRefill_cappedAtOneSecond() {
+    underTest.tryAcquire(BYTES_PER_SECOND);
+
+    ticker.advanceMillis(10_000);
+
+    assertThat(underTest.tryAcquire(10 * BYTES_PER_SECOND)).isEqualTo(BYTES_PER_SECOND);
+  }
+
+  @Test
+  public void testTinyRefill_waitsForReasonableChunk() {
+    underTest.tryAcquire(BYTES_PER_SECOND);
+
+    // 1 KiB has been refilled, which isn't worth a read yet.
+    ticker.advanceMillis(10);
+
+    assertThat(underTest.tryAcquire(BYTES_PER_SECOND)).isEqualTo(0);
+    assertThat(underTest.nanosUntilAvailable(BYTES_PER_SECOND))
+        .isAtMost(MILLISECONDS.toNanos(30));
+    // Small reads don't need to wait.
+    assertThat(underTest.tryAcquire(512)).isEqualTo(512);
+  }
+
+  @Test
+  public void testRelease_returnsUnusedTokens() {
+    underTest.tryAcquire(BYTES_PER_SECOND);
+
+    underTest.release(8 * 1024);
+
+    assertThat(underTest.tryAcquire(BYTES_PER_SECOND)).isEqualTo(8 * 1024);
+  }
+
+  @Test
+  public void testIsFull_onceRefilledCompletely() {
+    assertThat(underTest.isFull()).isTrue();
+    underTest.tryAcquire(1024);
+    assertThat(underTest.isFull()).isFalse();
+
+    ticker.advanceMillis(1000);
+
+    assertThat(underTest.isFull()).isTrue();
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advanceMillis(long millis) {
+      nanos += MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.net.cronet.okhttptransport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class TransportMetricsTest {
+
+  private final TransportMetrics underTest = TransportMetrics.create();
+
+  @Test
+  public void testBuckets_coverAllValuesContiguously() {
+    for (int i = 1; i < LogHistogram.BUCKET_COUNT; i++) {
+      long lowerBound = LogHistogram.bucketUpperBound(i - 1) + 1;
+      assertThat(LogHistogram.bucketIndex(lowerBound)).isEqualTo(i);
+      assertThat(LogHistogram.bucketIndex(LogHistogram.bucketUpperBound(i))).isEqualTo(i);
+    }
+    assertThat(LogHistogram.bucketUpperBound(LogHistogram.BUCKET_COUNT - 1))
+        .isEqualTo(LogHistogram.MAX_TRACKABLE_VALUE);
+    assertThat(LogHistogram.bucketIndex(Long.MAX_VALUE)).isEqualTo(LogHistogram.BUCKET_COUNT - 1);
+  }
+
+  @Test
+  public void testPercentiles_withinBucketPrecision() {
+    TransportMetrics.Series series = underTest.forHost("a.com").series("h2");
+    for (int i = 1; i <= 100; i++) {
+      series.recordTimeToHeaders(MILLISECONDS.toNanos(i));
+    }
+
+    TransportMetrics.HistogramSnapshot snapshot =
+        underTest.snapshot().series("a.com", "h2").timeToHeadersMicros();
+
+    assertThat(snapshot.count()).isEqualTo(100);
+    assertThat(snapshot.mean()).isWithin(1).of(MILLISECONDS.toMicros(50) + 500);
+    assertThat(snapshot.valueAtPercentile(50)).isAtLeast(MILLISECONDS.toMicros(50));
+    assertThat(snapshot.valueAtPercentile(50)).isAtMost(MILLISECONDS.toMicros(57));
+    assertThat(snapshot.valueAtPercentile(99)).isAtLeast(MILLISECONDS.toMicros(99));
+    assertThat(snapshot.max()).isAtLeast(MILLISECONDS.toMicros(100));
+    assertThat(snapshot.max()).isAtMost(MILLISECONDS.toMicros(113));
+  }
+
+  @Test
+  public void testSeries_splitByHostAndProtocol() {
+    underTest.forHost("a.com").series("h2").recordSucceeded();
+    underTest.forHost("a.com").series("h3").recordFailed();
+    underTest.forHost("b.com").series(null).recordCanceled();
+    underTest.forHost("b.com").series(null).recordQueueWait(MICROSECONDS.toNanos(5));
+
+    TransportMetrics.Snapshot snapshot = underTest.snapshot();
+
+    assertThat(snapshot.series()).hasSize(3);
+    assertThat(snapshot.series("a.com", "h2").succeeded()).isEqualTo(1);
+    assertThat(snapshot.series("a.com", "h3").failed()).isEqualTo(1);
+    TransportMetrics.SeriesSnapshot unknown =
+        snapshot.series("b.com", TransportMetrics.UNKNOWN_PROTOCOL);
+    assertThat(unknown.canceled()).isEqualTo(1);
+    assertThat(unknown.queueWaitMicros().valueAtPercentile(100)).isEqualTo(5);
+    assertThat(snapshot.series("c.com", "h2")).isNull();
+  }
+
+  @Test
+  public void testHosts_overflowIntoSharedSeries() {
+    for (int i = 0; i < 100; i++) {
+      underTest.forHost("host" + i + ".com").series("h2").recordSucceeded();
+    }
+
+    TransportMetrics.Snapshot snapshot = underTest.snapshot();
+
+    assertThat(snapshot.series()).hasSize(65);
+    assertThat(snapshot.series(TransportMetrics.OTHER_HOSTS, "h2").succeeded()).isEqualTo(36);
+  }
+
+  @Test
+  public void testDownload_recordsThroughput() {
+    TransportMetrics.Series series = underTest.forHost("a.com").series("h2");
+    series.recordDownload(1000, MILLISECONDS.toNanos(500));
+    series.recordDownload(0, MILLISECONDS.toNanos(500));
+
+    TransportMetrics.HistogramSnapshot snapshot =
+        underTest.snapshot().series("a.com", "h2").bytesPerSecond();
+
+    assertThat(snapshot.count()).isEqualTo(1);
+    assertThat(snapshot.mean()).isEqualTo(2000);
+  }
+}